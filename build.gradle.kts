@@ -28,6 +28,7 @@ dependencies {
 
     // Annotations for better code documentation
     compile("com.intellij:annotations:12.0")
+    compile("com.google.code.findbugs:jsr305:3.0.2")
 
     // Guava primitives
     compile("com.google.guava:guava:27.0.1-jre")
@@ -22,6 +22,7 @@ import java.util.Objects;
 import org.jetbrains.annotations.NotNull;
 
 import ru.mail.polis.dao.DAO;
+import ru.mail.polis.dao.Keys;
 
 /**
  * Record from {@link DAO}.
@@ -69,6 +70,6 @@ public final class Record implements Comparable<Record> {
 
     @Override
     public int compareTo(@NotNull final Record other) {
-        return this.key.compareTo(other.key);
+        return Keys.compare(key, other.key);
     }
 }
@@ -26,6 +26,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * Storage interface.
@@ -58,7 +59,7 @@ public interface DAO extends Closeable {
             return iterator(from);
         }
 
-        if (from.compareTo(to) > 0) {
+        if (Keys.compare(from, to) > 0) {
             return Iters.empty();
         }
 
@@ -93,11 +94,67 @@ public interface DAO extends Closeable {
             @NotNull ByteBuffer key,
             @NotNull ByteBuffer value) throws IOException;
 
+    /**
+     * Inserts or updates value by given key, the value expires once the time to live passes.
+     * Expired values are not returned and are dropped by compaction.
+     */
+    void upsert(
+            @NotNull ByteBuffer key,
+            @NotNull ByteBuffer value,
+            long ttlMillis) throws IOException;
+
     /**
      * Removes value by given key.
      */
     void remove(@NotNull ByteBuffer key) throws IOException;
 
+    /**
+     * Removes values of the keys from "from" (inclusive) to "to" (exclusive), removes nothing if "from"
+     * is not less than "to". Implementations may store a single range tombstone, this one removes
+     * the keys found in the range one by one.
+     */
+    default void removeRange(@NotNull final ByteBuffer from, @NotNull final ByteBuffer to) throws IOException {
+        final WriteBatch batch = new WriteBatch();
+        final Iterator<Record> records = range(from, to);
+        while (records.hasNext()) {
+            batch.remove(records.next().getKey());
+        }
+        write(batch);
+    }
+
+    /**
+     * Applies all the changes of the batch. Implementations may apply it atomically,
+     * this one changes the keys one by one.
+     */
+    default void write(@NotNull final WriteBatch batch) throws IOException {
+        batch.forEach(new WriteBatch.Handler() {
+            @Override
+            public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) throws IOException {
+                DAO.this.upsert(key, value);
+            }
+
+            @Override
+            public void remove(@NotNull final ByteBuffer key) throws IOException {
+                DAO.this.remove(key);
+            }
+        });
+    }
+
+    /**
+     * Takes a point-in-time view of the storage, which must be closed when done reading.
+     */
+    @NotNull
+    Snapshot snapshot() throws IOException;
+
+    /**
+     * Completes once the storage has loaded what it reads ahead on opening, so requests run at full speed.
+     * Requests are served before that too.
+     */
+    @NotNull
+    default CompletableFuture<Void> ready() {
+        return CompletableFuture.completedFuture(null);
+    }
+
     /**
      * Performs compaction.
      */
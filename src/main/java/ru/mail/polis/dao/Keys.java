@@ -0,0 +1,96 @@
+package ru.mail.polis.dao;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Comparator;
+
+/**
+ * Order of keys: lexicographic by unsigned bytes, a prefix going first. Keys are compared eight bytes
+ * at a time as big-endian unsigned longs, the first differing word decides without looking for the byte.
+ */
+public final class Keys {
+    public static final Comparator<ByteBuffer> ORDER = Keys::compare;
+
+    /**
+     * Flips the sign bit of every byte, so unsigned comparison of words orders bytes as signed values.
+     */
+    private static final long SIGN_BITS = 0x8080_8080_8080_8080L;
+
+    private Keys() {
+    }
+
+    /**
+     * Compares remaining bytes of the buffers.
+     *
+     * @return negative, zero or positive as the first key is less than, equal to or greater than the second
+     */
+    public static int compare(@NotNull final ByteBuffer a, @NotNull final ByteBuffer b) {
+        return compareWords(a, a.position(), a.remaining(), b, b.position(), b.remaining(), 0);
+    }
+
+    /**
+     * Compares remaining bytes of the key with a key stored in a buffer, positions are left intact.
+     *
+     * @param key    key to compare
+     * @param buffer buffer holding the other key
+     * @param start  offset of the other key in the buffer
+     * @param size   size of the other key
+     * @return negative, zero or positive as the key is less than, equal to or greater than the stored one
+     */
+    public static int compare(@NotNull final ByteBuffer key, @NotNull final ByteBuffer buffer,
+                              final int start, final int size) {
+        return compareWords(key, key.position(), key.remaining(), buffer, start, size, 0);
+    }
+
+    /**
+     * Compares keys stored in buffers, positions are left intact.
+     *
+     * @return negative, zero or positive as the first key is less than, equal to or greater than the second
+     */
+    public static int compare(@NotNull final ByteBuffer a, final int aStart, final int aSize,
+                              @NotNull final ByteBuffer b, final int bStart, final int bSize) {
+        return compareWords(a, aStart, aSize, b, bStart, bSize, 0);
+    }
+
+    /**
+     * Compares keys the way {@link ByteBuffer#compareTo} does, by signed bytes. Tables written before
+     * the keys were ordered by unsigned bytes are sorted so.
+     *
+     * @param key    key to compare
+     * @param buffer buffer holding the other key
+     * @param start  offset of the other key in the buffer
+     * @param size   size of the other key
+     * @return negative, zero or positive as the key is less than, equal to or greater than the stored one
+     */
+    public static int compareSigned(@NotNull final ByteBuffer key, @NotNull final ByteBuffer buffer,
+                                    final int start, final int size) {
+        return compareWords(key, key.position(), key.remaining(), buffer, start, size, SIGN_BITS);
+    }
+
+    private static int compareWords(@NotNull final ByteBuffer a, final int aStart, final int aSize,
+                                    @NotNull final ByteBuffer b, final int bStart, final int bSize,
+                                    final long flip) {
+        final int length = Math.min(aSize, bSize);
+        final boolean aSwap = a.order() != ByteOrder.BIG_ENDIAN;
+        final boolean bSwap = b.order() != ByteOrder.BIG_ENDIAN;
+        int i = 0;
+        for (; i + Long.BYTES <= length; i += Long.BYTES) {
+            final long x = aSwap ? Long.reverseBytes(a.getLong(aStart + i)) : a.getLong(aStart + i);
+            final long y = bSwap ? Long.reverseBytes(b.getLong(bStart + i)) : b.getLong(bStart + i);
+            if (x != y) {
+                return Long.compareUnsigned(x ^ flip, y ^ flip);
+            }
+        }
+        final int flipByte = (int) flip & 0xFF;
+        for (; i < length; i++) {
+            final int x = (a.get(aStart + i) & 0xFF) ^ flipByte;
+            final int y = (b.get(bStart + i) & 0xFF) ^ flipByte;
+            if (x != y) {
+                return x - y;
+            }
+        }
+        return aSize - bSize;
+    }
+}
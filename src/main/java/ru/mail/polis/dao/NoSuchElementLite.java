@@ -6,7 +6,7 @@ public class NoSuchElementLite extends NoSuchElementException {
 
     private static final long serialVersionUID = 39474551034732L;
 
-    NoSuchElementLite(final String s) {
+    public NoSuchElementLite(final String s) {
         super(s);
     }
 
@@ -0,0 +1,64 @@
+package ru.mail.polis.dao;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.Record;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Point-in-time view of a {@link DAO}: reads see every change made before the {@link DAO#snapshot() snapshot}
+ * was taken and none made after, however long they take. The storage keeps whatever the snapshot reads
+ * until it is closed, iterators obtained before keep working after that.
+ */
+public interface Snapshot extends Closeable {
+    /**
+     * Sequence number of the snapshot, the one of a later snapshot is not less.
+     */
+    long sequence();
+
+    /**
+     * Provides iterator over {@link Record}s of the snapshot starting at "from" key (inclusive)
+     * in ascending order, like {@link DAO#iterator(ByteBuffer)} does.
+     */
+    @NotNull
+    Iterator<Record> iterator(@NotNull ByteBuffer from) throws IOException;
+
+    /**
+     * Provides iterator over {@link Record}s of the snapshot from "from" key (inclusive)
+     * until "to" key (exclusive), like {@link DAO#range(ByteBuffer, ByteBuffer)} does.
+     */
+    @NotNull
+    default Iterator<Record> range(
+            @NotNull ByteBuffer from,
+            @Nullable ByteBuffer to) throws IOException {
+        if (to == null) {
+            return iterator(from);
+        }
+
+        if (Keys.compare(from, to) > 0) {
+            return Iters.empty();
+        }
+
+        final Record bound = Record.of(to, ByteBuffer.allocate(0));
+        return Iters.until(iterator(from), bound);
+    }
+
+    /**
+     * Obtains value of the key as of the snapshot.
+     *
+     * @throws NoSuchElementException if no such record
+     */
+    @NotNull
+    ByteBuffer get(@NotNull ByteBuffer key) throws IOException, NoSuchElementException;
+
+    /**
+     * Releases the data kept for the snapshot, reads are not allowed afterwards.
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,107 @@
+package ru.mail.polis.dao;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Changes of many keys to {@link DAO#write(WriteBatch) write} together. Changes of the same key
+ * are applied in the order they were added, so the last one wins. Not thread safe.
+ */
+public final class WriteBatch {
+    private final List<ByteBuffer> keys = new ArrayList<>();
+    /**
+     * Values by the index of the key, null for removals.
+     */
+    private final List<ByteBuffer> values = new ArrayList<>();
+    private long sizeInBytes;
+
+    /**
+     * Adds insertion or update of the key. The buffers are not copied and must not be changed
+     * until the batch is written.
+     *
+     * @param key   key to change
+     * @param value new value
+     * @return this batch
+     */
+    @NotNull
+    public WriteBatch upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) {
+        return add(key, value.duplicate());
+    }
+
+    /**
+     * Adds removal of the key.
+     *
+     * @param key key to remove
+     * @return this batch
+     */
+    @NotNull
+    public WriteBatch remove(@NotNull final ByteBuffer key) {
+        return add(key, null);
+    }
+
+    @NotNull
+    private WriteBatch add(@NotNull final ByteBuffer key, @Nullable final ByteBuffer value) {
+        keys.add(key.duplicate());
+        values.add(value);
+        sizeInBytes += key.remaining() + (value == null ? 0 : value.remaining());
+        return this;
+    }
+
+    /**
+     * Passes the changes to the handler in the order they were added.
+     *
+     * @param handler receives every change
+     * @throws IOException if the handler fails
+     */
+    public void forEach(@NotNull final Handler handler) throws IOException {
+        for (int i = 0; i < keys.size(); i++) {
+            final ByteBuffer value = values.get(i);
+            if (value == null) {
+                handler.remove(keys.get(i).duplicate());
+            } else {
+                handler.upsert(keys.get(i).duplicate(), value.duplicate());
+            }
+        }
+    }
+
+    /**
+     * Number of changes.
+     */
+    public int size() {
+        return keys.size();
+    }
+
+    public boolean isEmpty() {
+        return keys.isEmpty();
+    }
+
+    /**
+     * Total size of the keys and values.
+     */
+    public long sizeInBytes() {
+        return sizeInBytes;
+    }
+
+    /**
+     * Drops all the changes, so the batch may be filled again.
+     */
+    public void clear() {
+        keys.clear();
+        values.clear();
+        sizeInBytes = 0;
+    }
+
+    /**
+     * Receives changes of a batch.
+     */
+    public interface Handler {
+        void upsert(@NotNull ByteBuffer key, @NotNull ByteBuffer value) throws IOException;
+
+        void remove(@NotNull ByteBuffer key) throws IOException;
+    }
+}
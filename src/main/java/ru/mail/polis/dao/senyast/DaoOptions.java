@@ -0,0 +1,350 @@
+package ru.mail.polis.dao.senyast;
+
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.dao.senyast.compaction.CompactionStrategy;
+import ru.mail.polis.dao.senyast.compaction.LeveledCompaction;
+import ru.mail.polis.dao.senyast.compaction.TombstoneOptions;
+import ru.mail.polis.dao.senyast.tables.TableOptions;
+import ru.mail.polis.dao.senyast.tables.Verification;
+import ru.mail.polis.dao.senyast.tables.WriteLimits;
+import ru.mail.polis.dao.senyast.wal.Durability;
+
+import java.util.function.Supplier;
+
+/**
+ * Settings of {@link LSMDao}. Every setter returns a changed copy.
+ */
+public final class DaoOptions {
+    public static final long DEFAULT_FLUSH_THRESHOLD = 4L * 1024 * 1024;
+    public static final int DEFAULT_FLUSH_QUEUE_CAPACITY = 2;
+    public static final long DEFAULT_SYNC_PERIOD_MILLIS = 100;
+    public static final int DEFAULT_COMPACTION_THREADS = 2;
+    public static final int DEFAULT_FLUSH_THREADS = 2;
+    /**
+     * The default memory budget never exceeds the heap divided by this.
+     */
+    public static final int DEFAULT_MEMORY_BUDGET_HEAP_DIVISOR = 4;
+
+    private static final DaoOptions DEFAULT = new DaoOptions();
+
+    private long flushThreshold = DEFAULT_FLUSH_THRESHOLD;
+    private int flushQueueCapacity = DEFAULT_FLUSH_QUEUE_CAPACITY;
+    private long memoryBudget;
+    private TableOptions tableOptions = TableOptions.defaults();
+    private Durability durability = Durability.PERIODIC;
+    private Verification verification = Verification.FIRST_READ;
+    private long syncPeriodMillis = DEFAULT_SYNC_PERIOD_MILLIS;
+    private Supplier<CompactionStrategy> compactionStrategy = LeveledCompaction::new;
+    private int compactionThreads = DEFAULT_COMPACTION_THREADS;
+    private int compactionParallelism = Runtime.getRuntime().availableProcessors();
+    private int flushThreads = DEFAULT_FLUSH_THREADS;
+    private boolean offHeapMemTables;
+    private WriteLimits writeLimits = WriteLimits.defaults();
+    private TombstoneOptions tombstoneOptions = TombstoneOptions.defaults();
+
+    private DaoOptions() {
+    }
+
+    @NotNull
+    private DaoOptions copy() {
+        final DaoOptions result = new DaoOptions();
+        result.flushThreshold = flushThreshold;
+        result.flushQueueCapacity = flushQueueCapacity;
+        result.memoryBudget = memoryBudget;
+        result.tableOptions = tableOptions;
+        result.durability = durability;
+        result.verification = verification;
+        result.syncPeriodMillis = syncPeriodMillis;
+        result.compactionStrategy = compactionStrategy;
+        result.compactionThreads = compactionThreads;
+        result.compactionParallelism = compactionParallelism;
+        result.flushThreads = flushThreads;
+        result.offHeapMemTables = offHeapMemTables;
+        result.writeLimits = writeLimits;
+        result.tombstoneOptions = tombstoneOptions;
+        return result;
+    }
+
+    @NotNull
+    public static DaoOptions defaults() {
+        return DEFAULT;
+    }
+
+    /**
+     * Sets size of memory table to flush it at.
+     *
+     * @param threshold size in bytes
+     * @return new options
+     */
+    @NotNull
+    public DaoOptions withFlushThreshold(final long threshold) {
+        if (threshold < 0) {
+            throw new IllegalArgumentException("Flush threshold must not be negative: " + threshold);
+        }
+        final DaoOptions result = copy();
+        result.flushThreshold = threshold;
+        return result;
+    }
+
+    /**
+     * Sets how many full memory tables may wait for flush before writers block, as long as they fit
+     * a fixed share of the heap, unless {@link #withMemoryBudget(long) memory budget} is set.
+     *
+     * @param capacity flush queue capacity
+     * @return new options
+     */
+    @NotNull
+    public DaoOptions withFlushQueueCapacity(final int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Flush queue capacity must be positive: " + capacity);
+        }
+        final DaoOptions result = copy();
+        result.flushQueueCapacity = capacity;
+        return result;
+    }
+
+    /**
+     * Sets total size of the current memory table and the ones waiting for flush at which writers stop.
+     *
+     * @param budget size in bytes, not less than the flush threshold
+     * @return new options
+     */
+    @NotNull
+    public DaoOptions withMemoryBudget(final long budget) {
+        if (budget <= 0) {
+            throw new IllegalArgumentException("Memory budget must be positive: " + budget);
+        }
+        final DaoOptions result = copy();
+        result.memoryBudget = budget;
+        return result;
+    }
+
+    /**
+     * Sets format of the tables being written.
+     *
+     * @param options table settings
+     * @return new options
+     */
+    @NotNull
+    public DaoOptions withTableOptions(@NotNull final TableOptions options) {
+        final DaoOptions result = copy();
+        result.tableOptions = options;
+        return result;
+    }
+
+    /**
+     * Sets when the write ahead log is forced to disk.
+     *
+     * @param mode durability of writes
+     * @return new options
+     */
+    @NotNull
+    public DaoOptions withDurability(@NotNull final Durability mode) {
+        final DaoOptions result = copy();
+        result.durability = mode;
+        return result;
+    }
+
+    /**
+     * Sets when blocks of tables are checked against their checksums.
+     *
+     * @param mode verification of blocks read
+     * @return new options
+     */
+    @NotNull
+    public DaoOptions withVerification(@NotNull final Verification mode) {
+        final DaoOptions result = copy();
+        result.verification = mode;
+        return result;
+    }
+
+    /**
+     * Sets period of forcing the write ahead log for {@link Durability#PERIODIC}.
+     *
+     * @param millis period in milliseconds
+     * @return new options
+     */
+    @NotNull
+    public DaoOptions withSyncPeriodMillis(final long millis) {
+        if (millis <= 0) {
+            throw new IllegalArgumentException("Sync period must be positive: " + millis);
+        }
+        final DaoOptions result = copy();
+        result.syncPeriodMillis = millis;
+        return result;
+    }
+
+    /**
+     * Sets how tables on disk are merged. Strategies may keep state, so every database gets its own one.
+     *
+     * @param strategy factory of the strategy, e.g. {@code FullCompaction::new}
+     * @return new options
+     */
+    @NotNull
+    public DaoOptions withCompactionStrategy(@NotNull final Supplier<CompactionStrategy> strategy) {
+        final DaoOptions result = copy();
+        result.compactionStrategy = strategy;
+        return result;
+    }
+
+    /**
+     * Sets how many compactions may run in background at once.
+     *
+     * @param threads size of the compaction thread pool
+     * @return new options
+     */
+    @NotNull
+    public DaoOptions withCompactionThreads(final int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Compaction threads must be positive: " + threads);
+        }
+        final DaoOptions result = copy();
+        result.compactionThreads = threads;
+        return result;
+    }
+
+    /**
+     * Sets how many key ranges of a compaction may be merged at once, by default the number of processors.
+     * The workers are shared by all the compactions running.
+     *
+     * @param parallelism size of the pool merging parts of compactions
+     * @return new options
+     */
+    @NotNull
+    public DaoOptions withCompactionParallelism(final int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("Compaction parallelism must be positive: " + parallelism);
+        }
+        final DaoOptions result = copy();
+        result.compactionParallelism = parallelism;
+        return result;
+    }
+
+    /**
+     * Sets how many memory tables may be flushed at once. Flushed tables still become visible
+     * in generation order.
+     *
+     * @param threads number of flusher threads
+     * @return new options
+     */
+    @NotNull
+    public DaoOptions withFlushThreads(final int threads) {
+        if (threads <= 0) {
+            throw new IllegalArgumentException("Flush threads must be positive: " + threads);
+        }
+        final DaoOptions result = copy();
+        result.flushThreads = threads;
+        return result;
+    }
+
+    /**
+     * Sets whether memory tables keep cells in direct memory chunks instead of heap objects.
+     *
+     * @param offHeap true to use {@link ru.mail.polis.dao.senyast.tables.ArenaMemTable}
+     * @return new options
+     */
+    @NotNull
+    public DaoOptions withOffHeapMemTables(final boolean offHeap) {
+        final DaoOptions result = copy();
+        result.offHeapMemTables = offHeap;
+        return result;
+    }
+
+    /**
+     * Sets when writes are slowed down and stopped for flushes and compactions to catch up.
+     *
+     * @param limits write controller thresholds
+     * @return new options
+     */
+    @NotNull
+    public DaoOptions withWriteLimits(@NotNull final WriteLimits limits) {
+        final DaoOptions result = copy();
+        result.writeLimits = limits;
+        return result;
+    }
+
+    /**
+     * Sets when compactions purge tombstones and expired values.
+     *
+     * @param options grace period and tombstone compaction thresholds
+     * @return new options
+     */
+    @NotNull
+    public DaoOptions withTombstoneOptions(@NotNull final TombstoneOptions options) {
+        final DaoOptions result = copy();
+        result.tombstoneOptions = options;
+        return result;
+    }
+
+    public long flushThreshold() {
+        return flushThreshold;
+    }
+
+    public int flushQueueCapacity() {
+        return flushQueueCapacity;
+    }
+
+    /**
+     * Memory budget of the memory tables, by default the threshold times the flush queue capacity
+     * plus one for the current table, but no more than a fixed share of the heap and no less than the threshold.
+     */
+    public long memoryBudget() {
+        if (memoryBudget > 0) {
+            return memoryBudget;
+        }
+        final long tables = flushQueueCapacity + 1L;
+        final long queued = flushThreshold > Long.MAX_VALUE / tables ? Long.MAX_VALUE : flushThreshold * tables;
+        final long heapShare = Runtime.getRuntime().maxMemory() / DEFAULT_MEMORY_BUDGET_HEAP_DIVISOR;
+        return Math.max(flushThreshold, Math.min(queued, heapShare));
+    }
+
+    @NotNull
+    public TableOptions tableOptions() {
+        return tableOptions;
+    }
+
+    @NotNull
+    public Durability durability() {
+        return durability;
+    }
+
+    @NotNull
+    public Verification verification() {
+        return verification;
+    }
+
+    public long syncPeriodMillis() {
+        return syncPeriodMillis;
+    }
+
+    @NotNull
+    public CompactionStrategy compactionStrategy() {
+        return compactionStrategy.get();
+    }
+
+    public int compactionThreads() {
+        return compactionThreads;
+    }
+
+    public int compactionParallelism() {
+        return compactionParallelism;
+    }
+
+    public int flushThreads() {
+        return flushThreads;
+    }
+
+    public boolean offHeapMemTables() {
+        return offHeapMemTables;
+    }
+
+    @NotNull
+    public WriteLimits writeLimits() {
+        return writeLimits;
+    }
+
+    @NotNull
+    public TombstoneOptions tombstoneOptions() {
+        return tombstoneOptions;
+    }
+}
@@ -1,49 +1,123 @@
 package ru.mail.polis.dao.senyast;
 
+import com.google.common.base.Throwables;
+import com.google.common.collect.AbstractIterator;
 import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import ru.mail.polis.Record;
 import ru.mail.polis.dao.DAO;
-import ru.mail.polis.dao.Iters;
+import ru.mail.polis.dao.Keys;
+import ru.mail.polis.dao.NoSuchElementLite;
+import ru.mail.polis.dao.Snapshot;
+import ru.mail.polis.dao.WriteBatch;
+import ru.mail.polis.dao.senyast.compaction.Compaction;
+import ru.mail.polis.dao.senyast.compaction.CompactionScheduler;
+import ru.mail.polis.dao.senyast.compaction.CompactionStrategy;
+import ru.mail.polis.dao.senyast.compaction.TombstoneOptions;
+import ru.mail.polis.dao.senyast.compaction.TombstonePurge;
 import ru.mail.polis.dao.senyast.model.Cell;
 import ru.mail.polis.dao.senyast.model.Generation;
 import ru.mail.polis.dao.senyast.model.Value;
+import ru.mail.polis.dao.senyast.tables.ArenaMemTable;
 import ru.mail.polis.dao.senyast.tables.FileTable;
+import ru.mail.polis.dao.senyast.tables.HeapMemTable;
+import ru.mail.polis.dao.senyast.tables.Manifest;
+import ru.mail.polis.dao.senyast.tables.MemTable;
 import ru.mail.polis.dao.senyast.tables.MemTablePool;
+import ru.mail.polis.dao.senyast.tables.MergeIterator;
+import ru.mail.polis.dao.senyast.tables.RangeTombstones;
+import ru.mail.polis.dao.senyast.tables.Table;
+import ru.mail.polis.dao.senyast.tables.TableOptions;
 import ru.mail.polis.dao.senyast.tables.TableToFlush;
+import ru.mail.polis.dao.senyast.tables.Verification;
+import ru.mail.polis.dao.senyast.tables.Version;
+import ru.mail.polis.dao.senyast.tables.WriteController;
+import ru.mail.polis.dao.senyast.wal.WriteAheadLog;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
-import java.util.NavigableMap;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public class LSMDao implements DAO {
     public static final String SUFFIX_DAT = ".dat";
     private static final String SUFFIX_TMP = ".tmp";
+    private static final String SUFFIX_CORRUPT = ".corrupt";
+    private static final long FLUSH_RETRY_DELAY_MILLIS = 1000;
     public static final String PREFIX_FILE = "TABLE";
 
     private final File file;
     private final MemTablePool memTablePool;
-    private final NavigableMap<Integer, FileTable> fileTables;
 
-    private static final int TABLES_LIMIT = 10;
+    private final AtomicInteger generations;
+
+    private final TableOptions tableOptions;
+
+    private final boolean offHeapMemTables;
+
+    private final TombstoneOptions tombstoneOptions;
+
+    private final Verification verification;
+
+    private final CompactionScheduler compactionScheduler;
+
+    private final WriteController writeController;
+
+    private final WriteAheadLog wal;
+
+    private final Manifest manifest;
 
     private final Logger log = LoggerFactory.getLogger(LSMDao.class);
 
-    private final Thread flusherThread;
+    private final List<Thread> flusherThreads = new ArrayList<>();
 
-    private final AtomicInteger generationToCompact = new AtomicInteger(0);
+    /**
+     * Failure of a flush given up on close.
+     */
+    private volatile IOException closeFailure;
+
+    /**
+     * Writes blocks of flushed and compacted tables while the next block is encoded.
+     */
+    private final ExecutorService tableWriters;
+
+    /**
+     * Merges key ranges of compactions in parallel, opens and loads tables on startup.
+     */
+    private final ForkJoinPool compactionPool;
+    private final int compactionParallelism;
+
+    /**
+     * Completed once the tables opened on startup are loaded.
+     */
+    private final CompletableFuture<Void> ready;
 
     /**
      * Create persistence DAO.
@@ -53,192 +127,817 @@ public class LSMDao implements DAO {
      * @param queueCapacity flush queue capacity
      * @throws IOException if I/O error
      */
-
     public LSMDao(@NotNull final File file, final long flushLimit, final int queueCapacity) throws IOException {
-        assert flushLimit >= 0L;
+        this(file, DaoOptions.defaults().withFlushThreshold(flushLimit).withFlushQueueCapacity(queueCapacity));
+    }
+
+    /**
+     * Create persistence DAO.
+     *
+     * @param file    database location
+     * @param options settings of the database
+     * @throws IOException if I/O error
+     */
+    public LSMDao(@NotNull final File file, @NotNull final DaoOptions options) throws IOException {
         this.file = file;
-        this.fileTables = new ConcurrentSkipListMap<>();
+        final AtomicInteger writers = new AtomicInteger();
+        // Every key range of a compaction has a block write in flight
+        this.tableWriters = Executors.newFixedThreadPool(
+                options.flushThreads() + options.compactionThreads() * options.compactionParallelism(), r -> {
+                    final Thread thread = new Thread(r, "Table writer " + writers.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        this.compactionParallelism = options.compactionParallelism();
+        final AtomicInteger workers = new AtomicInteger();
+        this.compactionPool = new ForkJoinPool(compactionParallelism, pool -> {
+            final ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("Compaction worker " + workers.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, null, false);
+        this.tableOptions = options.tableOptions().withWriteExecutor(tableWriters);
+        this.offHeapMemTables = options.offHeapMemTables();
+        this.tombstoneOptions = options.tombstoneOptions();
+        this.verification = options.verification();
+        final List<Path> entries;
+        try (Stream<Path> list = Files.list(file.toPath())) {
+            entries = list.collect(Collectors.toList());
+        }
+        final Set<Integer> listed = Manifest.read(file);
+        final List<FileTable> fileTables = listed == null ? openAll(entries) : open(listed);
         final AtomicInteger generation = new AtomicInteger(0);
-        try (Stream<Path> walk = Files.walk(file.toPath(), 1)) {
-            walk.filter(path -> {
-                final String filename = path.getFileName().toString();
-                return filename.endsWith(SUFFIX_DAT) && filename.startsWith(PREFIX_FILE);
-            })
-                    .forEach(path -> {
-                        try {
-                            final int currGen = Generation.fromPath(path);
-                            if (currGen >= generation.get()) {
-                                generation.set(currGen);
-                            }
-                            fileTables.put(currGen, new FileTable(path.toFile(), currGen));
-                        } catch (IOException e) {
-                            log.error("Exception in find max generation", e);
-                        }
-                    });
+        final List<Integer> live = new ArrayList<>(fileTables.size());
+        long lastFlushed = 0;
+        for (final FileTable table : fileTables) {
+            live.add((int) table.getGeneration());
+            generation.set(Math.max(generation.get(), (int) table.getGeneration()));
+            lastFlushed = Math.max(lastFlushed, table.getMaxGeneration());
         }
+        deleteLeftovers(entries, listed == null ? null : live);
+        this.manifest = new Manifest(file, live);
+        generation.set(Math.max(generation.get(), replayLog(lastFlushed, fileTables, entries)));
+
+        this.generations = generation;
+        wal = new WriteAheadLog(file, options.durability(), options.syncPeriodMillis());
+        final CompactionStrategy strategy = options.compactionStrategy();
+        writeController = new WriteController(options.writeLimits(), options.memoryBudget(), strategy::debt);
+        memTablePool = new MemTablePool(options.flushThreshold(),
+                () -> newMemTable(generations.incrementAndGet()), writeController, wal, fileTables);
+        compactionScheduler = new CompactionScheduler(strategy, memTablePool::acquire,
+                this::compact, tombstoneOptions, options.compactionThreads());
+
+        for (int i = 1; i <= options.flushThreads(); i++) {
+            final Thread flusher = new FlusherThread(i);
+            flusherThreads.add(flusher);
+            flusher.start();
+        }
+        this.ready = loadInBackground();
+    }
 
-        memTablePool = new MemTablePool(flushLimit, generation.addAndGet(1), queueCapacity);
+    /**
+     * Loads indexes, bloom filters and range tombstones of the tables opened, which readers would load
+     * on first access otherwise. The version is pinned, so the tables stay open while being loaded.
+     *
+     * @return completed once all the tables are loaded, whether successfully or not
+     */
+    @NotNull
+    private CompletableFuture<Void> loadInBackground() {
+        final Version version = memTablePool.acquire();
+        final List<FileTable> tables = version.files();
+        final CompletableFuture<?>[] loads = new CompletableFuture<?>[tables.size()];
+        for (int i = 0; i < loads.length; i++) {
+            final FileTable table = tables.get(i);
+            loads[i] = CompletableFuture.runAsync(() -> {
+                try {
+                    table.load();
+                } catch (IOException e) {
+                    log.error("Can't load table " + table.getFile(), e);
+                }
+            }, compactionPool);
+        }
+        return CompletableFuture.allOf(loads).whenComplete((result, e) -> {
+            version.release();
+            log.info("Loaded " + loads.length + " tables");
+        });
+    }
+
+    /**
+     * Opens the tables listed in the manifest in parallel, reading their footers only.
+     */
+    @NotNull
+    private List<FileTable> open(@NotNull final Set<Integer> generations) throws IOException {
+        final List<Callable<FileTable>> tasks = new ArrayList<>(generations.size());
+        for (final int generation : generations) {
+            tasks.add(() -> new FileTable(tableFile(generation), generation, verification));
+        }
+        return invokeAll(tasks);
+    }
 
-        flusherThread = new FlusherThread();
-        flusherThread.start();
+    /**
+     * Opens every table found in the database created before the manifest was kept. A table which can't be
+     * opened is renamed aside with the {@value #SUFFIX_CORRUPT} suffix for inspection, nothing proves
+     * its data is stored elsewhere.
+     */
+    @NotNull
+    private List<FileTable> openAll(@NotNull final List<Path> entries) throws IOException {
+        final List<Callable<FileTable>> tasks = new ArrayList<>();
+        for (final Path path : entries) {
+            final String filename = path.getFileName().toString();
+            if (filename.endsWith(SUFFIX_DAT) && filename.startsWith(PREFIX_FILE)) {
+                tasks.add(() -> {
+                    try {
+                        return new FileTable(path.toFile(), Generation.fromPath(path), verification);
+                    } catch (IOException | RuntimeException e) {
+                        final Path aside = path.resolveSibling(filename + SUFFIX_CORRUPT);
+                        log.error("Can't open table " + path + ", moving it to " + aside, e);
+                        Files.move(path, aside);
+                        return null;
+                    }
+                });
+            }
+        }
+        final List<FileTable> result = invokeAll(tasks);
+        result.removeIf(Objects::isNull);
+        return result;
     }
 
+    /**
+     * Runs the tasks on the compaction pool, which is idle while the database is being opened.
+     *
+     * @return results of the tasks in order
+     */
+    @NotNull
+    private <T> List<T> invokeAll(@NotNull final List<Callable<T>> tasks) throws IOException {
+        final List<T> result = new ArrayList<>(tasks.size());
+        for (final Future<T> task : compactionPool.invokeAll(tasks)) {
+            try {
+                result.add(task.get());
+            } catch (ExecutionException e) {
+                throw failure(e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while opening tables");
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Deletes temporary files and tables not in the manifest, left by flushes and compactions
+     * interrupted by a crash: a flushed table gets into the manifest before its log segment is deleted
+     * and a compacted one before the tables it replaces are. Without a manifest no table is proven obsolete,
+     * so only temporary files are deleted.
+     *
+     * @param live generations listed in the manifest, null if the database has no manifest
+     */
+    private void deleteLeftovers(@NotNull final List<Path> entries, @Nullable final Collection<Integer> live)
+            throws IOException {
+        final Set<Integer> kept = live == null ? null : Set.copyOf(live);
+        for (final Path path : entries) {
+            final String filename = path.getFileName().toString();
+            final boolean table = filename.endsWith(SUFFIX_DAT) && filename.startsWith(PREFIX_FILE);
+            if (filename.endsWith(SUFFIX_TMP)
+                    || kept != null && table && !kept.contains(Generation.fromPath(path))) {
+                log.info("Deleting leftover " + path);
+                Files.delete(path);
+            }
+        }
+    }
+
+    @NotNull
+    private MemTable newMemTable(final long generation) {
+        return offHeapMemTables ? new ArenaMemTable(generation) : new HeapMemTable(generation);
+    }
+
+    /**
+     * Writes log segments of generations which were not flushed before the crash to tables
+     * and deletes all the segments.
+     *
+     * @param lastFlushed the newest memory table generation on disk
+     * @param fileTables  tables on disk to add the written tables to
+     * @param entries     files of the database directory
+     * @return the newest replayed generation or zero
+     */
+    private int replayLog(final long lastFlushed, @NotNull final List<FileTable> fileTables,
+                          @NotNull final List<Path> entries) throws IOException {
+        final List<Path> segments = entries.stream()
+                .filter(path -> WriteAheadLog.generation(path) >= 0)
+                .sorted(Comparator.comparingInt(WriteAheadLog::generation))
+                .collect(Collectors.toList());
+        int last = 0;
+        for (final Path segment : segments) {
+            final int generation = WriteAheadLog.generation(segment);
+            if (generation > lastFlushed) {
+                final MemTable table = newMemTable(generation);
+                table.retain();
+                try {
+                    final int records = WriteAheadLog.replay(segment.toFile(), table::restore,
+                            table::restoreRange);
+                    if (records > 0) {
+                        fileTables.add(writeTable(liveCells(table), generation, 0, generation, tableOptions,
+                                table.rangeTombstones()));
+                        manifest.added(generation);
+                        last = generation;
+                    }
+                    log.info("Replayed " + records + " records of generation " + generation);
+                } finally {
+                    table.release();
+                }
+            }
+            Files.delete(segment);
+        }
+        return last;
+    }
+
+    /**
+     * Cells of the memory table its own range tombstones don't cover.
+     */
+    @NotNull
+    private static PeekingIterator<Cell> liveCells(@NotNull final Table table) throws IOException {
+        return Iterators.peekingIterator(
+                new MergeIterator(List.of(table.iterator(ByteBuffer.allocate(0))), table.rangeTombstones()));
+    }
+
+    @NotNull
+    private FileTable writeTable(@NotNull final PeekingIterator<Cell> cells, final int generation, final int level,
+                                 final long maxGeneration, @NotNull final TableOptions options,
+                                 @NotNull final RangeTombstones rangeTombstones) throws IOException {
+        return install(writeTemporary(cells, generation, level, maxGeneration, options, rangeTombstones),
+                generation);
+    }
+
+    @NotNull
+    private File writeTemporary(@NotNull final PeekingIterator<Cell> cells, final int generation, final int level,
+                                final long maxGeneration, @NotNull final TableOptions options,
+                                @NotNull final RangeTombstones rangeTombstones) throws IOException {
+        final File tmp = temporary(generation);
+        Files.deleteIfExists(tmp.toPath());
+        FileTable.writeToFile(cells, tmp, options, level, maxGeneration, rangeTombstones);
+        return tmp;
+    }
+
+    @NotNull
+    private File temporary(final int generation) {
+        return new File(file, PREFIX_FILE + generation + SUFFIX_TMP);
+    }
+
+    @NotNull
+    private File tableFile(final int generation) {
+        return new File(file, PREFIX_FILE + generation + SUFFIX_DAT);
+    }
+
+    @NotNull
+    private FileTable install(@NotNull final File tmp, final int generation) throws IOException {
+        final File dest = tableFile(generation);
+        Files.move(tmp.toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        return new FileTable(dest, generation, verification);
+    }
+
+    /**
+     * Iterates over the version current at the moment of the call. The version and the sequence number
+     * are released once the iterator is exhausted or becomes unreachable.
+     */
     @NotNull
     @Override
     public Iterator<Record> iterator(@NotNull final ByteBuffer from) throws IOException {
-        return Iterators.transform(aliveCells(from), cell -> {
-            assert cell != null;
-            return Record.of(cell.getKey(), cell.getValue().getData());
-        });
+        final Version version = memTablePool.acquire();
+        return records(version, memTablePool.pin(), from, System.currentTimeMillis());
     }
 
-    private Iterator<Cell> fileTablesIterator(@NotNull final ByteBuffer from) {
-        final List<Iterator<Cell>> iterators = new ArrayList<>();
-        for (final FileTable ssTable : this.fileTables.values()) {
-            iterators.add(ssTable.iterator(from));
+    /**
+     * Iterates over the pinned version as of the pinned sequence number, releasing both once the iterator
+     * is done with them or if it can't be created.
+     */
+    @NotNull
+    private Iterator<Record> records(@NotNull final Version version, final long sequence,
+                                     @NotNull final ByteBuffer from, final long now) throws IOException {
+        final MemTablePool pool = memTablePool;
+        try {
+            return new VersionIterator<>(Iterators.transform(aliveCells(version, sequence, from, now), cell -> {
+                assert cell != null;
+                return Record.of(detach(cell.getKey()), detach(cell.getValue().getData()));
+            }), () -> {
+                pool.unpin(sequence);
+                version.release();
+            });
+        } catch (IOException | RuntimeException e) {
+            memTablePool.unpin(sequence);
+            version.release();
+            throw e;
         }
+    }
 
-        //noinspection UnstableApiUsage
-        return Iters.collapseEquals(
-                Iterators.mergeSorted(iterators, Cell.COMPARATOR),
-                Cell::getKey
-        );
+    private static Iterator<Cell> tablesIterator(@NotNull final Collection<FileTable> tables,
+                                                 @NotNull final ByteBuffer from,
+                                                 @NotNull final RangeTombstones rangeTombstones) {
+        final List<Iterator<Cell>> iterators = new ArrayList<>();
+        for (final FileTable ssTable : tables) {
+            iterators.add(ssTable.compactionIterator(from));
+        }
+        return new MergeIterator(iterators, rangeTombstones);
     }
 
-    private Iterator<Cell> aliveCells(@NotNull final ByteBuffer from) throws IOException {
-        Iterator<Cell> cellIterator = utilIterator(from);
+    private Iterator<Cell> aliveCells(@NotNull final Version version, final long sequence,
+                                      @NotNull final ByteBuffer from, final long now) throws IOException {
+        Iterator<Cell> cellIterator = utilIterator(version, sequence, from);
 
         return Iterators.filter(
                 cellIterator, cell -> {
                     assert cell != null;
-                    return !cell.getValue().isTombstone();
+                    return !cell.getValue().isTombstone() && !cell.getValue().isExpired(now);
                 }
         );
     }
 
     @Override
-    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) {
+    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) throws IOException {
         memTablePool.upsert(key, value);
     }
 
     @Override
-    public void remove(@NotNull final ByteBuffer key) {
-        memTablePool.remove(key);
+    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value,
+                       final long ttlMillis) throws IOException {
+        memTablePool.upsert(key, value, ttlMillis);
     }
 
-    private void flush(final TableToFlush tableToFlush) throws IOException {
-        final Iterator<Cell> memIterator = tableToFlush.getTable().iterator(ByteBuffer.allocate(0));
+    @Override
+    public void remove(@NotNull final ByteBuffer key) throws IOException {
+        memTablePool.remove(key);
+    }
 
-        if (memIterator.hasNext()) {
-            final int generation = tableToFlush.getGeneration();
-            final String tempFilename = PREFIX_FILE + generation + SUFFIX_TMP;
-            final String filename = PREFIX_FILE + generation + SUFFIX_DAT;
+    @Override
+    public void removeRange(@NotNull final ByteBuffer from, @NotNull final ByteBuffer to) throws IOException {
+        memTablePool.removeRange(from, to);
+    }
 
-            final File tmp = new File(file, tempFilename);
-            FileTable.writeToFile(memIterator, tmp);
-            final File dest = new File(file, filename);
-            Files.move(tmp.toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE);
-            fileTables.put(generation, new FileTable(dest, generation));
-            memTablePool.flushed(generation);
+    @Override
+    public void write(@NotNull final WriteBatch batch) throws IOException {
+        memTablePool.write(batch);
+    }
 
-            log.info("Flushing generation " + tableToFlush.getGeneration());
+    /**
+     * Writes the table concurrently with other flushers, but renames it into place and publishes it
+     * only after the older generations: log segments are replayed only past the newest generation on disk.
+     */
+    private void flush(final TableToFlush tableToFlush) throws IOException, InterruptedException {
+        final PeekingIterator<Cell> memIterator = liveCells(tableToFlush.getTable());
+        final RangeTombstones rangeTombstones = tableToFlush.getTable().rangeTombstones();
+
+        final int generation = tableToFlush.getGeneration();
+        final File tmp = memIterator.hasNext() || !rangeTombstones.isEmpty()
+                ? writeTemporary(memIterator, generation, 0, generation, tableOptions, rangeTombstones)
+                : null;
+        if (!memTablePool.awaitTurn(generation)) {
+            if (tmp != null) {
+                Files.delete(tmp.toPath());
+            }
+            log.warn("Generation " + generation + " is left in the log, an older one failed to flush");
+            return;
         }
-
-        if (fileTables.size() > TABLES_LIMIT) {
-            generationToCompact.set(tableToFlush.getGeneration());
-            compact();
+        FileTable table = null;
+        if (tmp != null) {
+            table = install(tmp, generation);
+            // Recorded before the log segment of the generation is deleted. If recording fails, the record
+            // may still be on disk, so the table is kept: a retry installs it again, and it is deleted
+            // as a leftover on the next start if a later checkpoint does not list it.
+            manifest.added(generation);
+            log.info("Flushing generation " + generation);
         }
+        memTablePool.flushed(generation, table);
+        compactionScheduler.tablesChanged();
     }
 
     @Override
     public void compact() throws IOException {
-        final int generation = memTablePool.getLastFlushedGeneration().get();
-        log.info("Compact generation " + generation + " by thread " + Thread.currentThread().getName());
+        compactionScheduler.compactAll();
+    }
 
-        final String tempFilename = PREFIX_FILE + generation + SUFFIX_TMP;
-        final String filename = PREFIX_FILE + generation + SUFFIX_DAT;
+    /**
+     * Merges input tables into new tables of the output level and replaces the inputs with them.
+     * Called by {@link CompactionScheduler}, which guarantees no other compaction touches the inputs.
+     *
+     * <p>Cells covered by range tombstones of the inputs are dropped. The tombstones are kept, split between
+     * the outputs by the first key of every output, as they may cover cells of tables not merged.
+     * Tombstones and expired values are purged as {@link TombstonePurge} decides.
+     *
+     * <p>A compaction whose outputs are limited in size is split into key ranges by the block separators
+     * of the inputs, every range worth an output table at least, and the ranges are merged in parallel.
+     * The outputs of all the ranges replace the inputs at once.
+     */
+    private void compact(@NotNull final Compaction compaction) throws IOException {
+        log.info("Compaction " + compaction + " by thread " + Thread.currentThread().getName());
+
+        final List<RangeTombstones> inputTombstones = new ArrayList<>(compaction.inputs().size());
+        long inputsSize = 0;
+        for (final FileTable input : compaction.inputs()) {
+            inputTombstones.add(input.rangeTombstones());
+            inputsSize += input.sizeInBytes();
+        }
+        final RangeTombstones covering = RangeTombstones.merge(inputTombstones);
+        final int parts = compaction.outputSizeLimit() == Long.MAX_VALUE
+                ? 1
+                : (int) Math.max(1, Math.min(compactionParallelism, inputsSize / compaction.outputSizeLimit()));
+        final List<ByteBuffer> splitPoints = compaction.splitPoints(parts);
+        // Pinned, so the tables left out stay mapped while the purge looks into them
+        final Version version = memTablePool.acquire();
+        final TombstonePurge purge;
+        try {
+            purge = new TombstonePurge(compaction.inputs(), version.files(), tombstoneOptions,
+                    System.currentTimeMillis());
+            final RangeTombstones kept = purge.apply(covering);
+            final List<Integer> written;
+            if (splitPoints.isEmpty()) {
+                written = compactRange(compaction, purge, covering, kept, ByteBuffer.allocate(0), null);
+            } else {
+                log.info("Compaction " + compaction + " split into " + (splitPoints.size() + 1) + " key ranges");
+                final List<Callable<List<Integer>>> tasks = new ArrayList<>(splitPoints.size() + 1);
+                for (int i = 0; i <= splitPoints.size(); i++) {
+                    final ByteBuffer from = i == 0 ? ByteBuffer.allocate(0) : splitPoints.get(i - 1);
+                    final ByteBuffer to = i == splitPoints.size() ? null : splitPoints.get(i);
+                    tasks.add(() -> compactRange(compaction, purge, covering, kept, from, to));
+                }
+                written = runAll(tasks);
+            }
+            final List<FileTable> outputs = new ArrayList<>(written.size());
+            try {
+                for (final int generation : written) {
+                    outputs.add(install(temporary(generation), generation));
+                }
+            } catch (IOException | RuntimeException e) {
+                // Not recorded yet, the outputs installed are deleted as leftovers on the next start
+                deleteTemporaries(written);
+                throw e;
+            }
+            final List<Integer> removed = new ArrayList<>(compaction.inputs().size());
+            for (final FileTable input : compaction.inputs()) {
+                removed.add((int) input.getGeneration());
+            }
+            // Recorded before the inputs are deleted. If recording fails, the record may still be on disk,
+            // so neither the inputs nor the outputs are deleted until a later checkpoint settles which are live.
+            manifest.replaced(removed, written);
 
-        final Iterator<Cell> cellIterator = fileTablesIterator(ByteBuffer.allocate(0));
+            memTablePool.replace(compaction.inputs(), outputs);
+        } finally {
+            version.release();
+        }
+        if (purge.purged() > 0) {
+            log.info("Compaction " + compaction + " purged " + purge.purged() + " tombstones");
+        }
+    }
 
-        final File tmp = new File(file, tempFilename);
-        FileTable.writeToFile(cellIterator, tmp);
-        final File dest = new File(file, filename);
-        Files.move(tmp.toPath(), dest.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    /**
+     * Merges cells of the inputs from "from" (inclusive) to "to" (exclusive) into temporary tables.
+     *
+     * @param covering range tombstones dropping cells of the inputs
+     * @param kept     range tombstones to store in the outputs
+     * @return generations of the temporary tables written
+     */
+    @NotNull
+    private List<Integer> compactRange(@NotNull final Compaction compaction, @NotNull final TombstonePurge purge,
+                                       @NotNull final RangeTombstones covering, @NotNull final RangeTombstones kept,
+                                       @NotNull final ByteBuffer from, @Nullable final ByteBuffer to)
+            throws IOException {
+        final PeekingIterator<Cell> cells = until(
+                Iterators.peekingIterator(purge.apply(tablesIterator(compaction.inputs(), from, covering))), to);
+        RangeTombstones rangeTombstones = to == null ? kept.from(from) : kept.from(from).before(to);
+        final TableOptions options = tableOptions.withFileSizeLimit(compaction.outputSizeLimit());
+        final List<Integer> written = new ArrayList<>();
+        try {
+            while (cells.hasNext() || !rangeTombstones.isEmpty()) {
+                final int generation = generations.incrementAndGet();
+                written.add(generation);
+                writeTemporary(cells, generation, compaction.outputLevel(), compaction.maxGeneration(), options,
+                        rangeTombstones);
+                rangeTombstones = cells.hasNext()
+                        ? rangeTombstones.from(cells.peek().getKey())
+                        : RangeTombstones.EMPTY;
+            }
+        } catch (IOException | RuntimeException e) {
+            deleteTemporaries(written);
+            throw failure(e);
+        }
+        return written;
+    }
 
-        fileTables.remove(generation);
+    /**
+     * Runs the tasks on the compaction pool. If any of them fails, the temporary tables the rest wrote
+     * are deleted.
+     *
+     * @return generations of the temporary tables written by all the tasks
+     */
+    @NotNull
+    private List<Integer> runAll(@NotNull final List<Callable<List<Integer>>> tasks) throws IOException {
+        final List<Integer> written = new ArrayList<>();
+        Throwable failure = null;
+        for (final Future<List<Integer>> task : compactionPool.invokeAll(tasks)) {
+            try {
+                written.addAll(task.get());
+            } catch (ExecutionException e) {
+                failure = e.getCause();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failure = new InterruptedIOException("Interrupted while merging key ranges");
+            }
+        }
+        if (failure == null) {
+            return written;
+        }
+        deleteTemporaries(written);
+        throw failure(failure);
+    }
 
-        for (final FileTable fileTable : fileTables.values()) {
-            Files.delete(fileTable.getFile().toPath());
+    /**
+     * Failure to rethrow as {@link IOException}, unwrapping {@link UncheckedIOException}.
+     * Other unchecked exceptions are thrown as they are.
+     */
+    @NotNull
+    private static IOException failure(@NotNull final Throwable cause) {
+        if (cause instanceof UncheckedIOException) {
+            return ((UncheckedIOException) cause).getCause();
         }
+        Throwables.throwIfUnchecked(cause);
+        return cause instanceof IOException ? (IOException) cause : new IOException(cause);
+    }
 
-        fileTables.clear();
-        fileTables.put(generation, new FileTable(dest, generation));
-        memTablePool.flushed(generation);
+    private void deleteTemporaries(@NotNull final List<Integer> generations) {
+        for (final int generation : generations) {
+            try {
+                Files.deleteIfExists(temporary(generation).toPath());
+            } catch (IOException e) {
+                log.error("Can't delete temporary table of generation " + generation, e);
+            }
+        }
+    }
+
+    /**
+     * Stops at the key.
+     *
+     * @param to the first key left out, null to go on to the end
+     */
+    @NotNull
+    private static PeekingIterator<Cell> until(@NotNull final PeekingIterator<Cell> cells,
+                                               @Nullable final ByteBuffer to) {
+        if (to == null) {
+            return cells;
+        }
+        return Iterators.peekingIterator(new AbstractIterator<>() {
+            @Override
+            protected Cell computeNext() {
+                return cells.hasNext() && Keys.compare(cells.peek().getKey(), to) < 0 ? cells.next() : endOfData();
+            }
+        });
     }
 
+    @NotNull
+    @Override
+    public ByteBuffer get(@NotNull final ByteBuffer key) throws IOException {
+        final Value value = getValue(key);
+        if (value.state() != Value.State.PRESENT) {
+            throw new NoSuchElementLite("Not found");
+        }
+        return value.getData();
+    }
 
     @Override
-    public Value getValue(final ByteBuffer from) throws IOException {
-        utilIterator(from);
-        Iterator<Cell> cellIterator = utilIterator(from);
+    public Value getValue(final ByteBuffer key) throws IOException {
+        final Version version = memTablePool.acquire();
+        final long sequence = memTablePool.pin();
+        try {
+            return value(version, sequence, key, System.currentTimeMillis());
+        } finally {
+            memTablePool.unpin(sequence);
+            version.release();
+        }
+    }
 
-        if (!cellIterator.hasNext()) {
+    @NotNull
+    private static Value value(@NotNull final Version version, final long sequence, @NotNull final ByteBuffer key,
+                               final long now) throws IOException {
+        final Value value = version.get(key, now, sequence);
+        if (value == null) {
             return Value.absent();
         }
+        return value.isTombstone()
+                ? value
+                : new Value(value.state(), value.getTimestamp(), detach(value.getData()), value.getExpiresAt());
+    }
 
-        final Cell next = cellIterator.next();
-        if (next.getKey().equals(from)) {
-            return next.getValue();
+    /**
+     * Completes once indexes, bloom filters and range tombstones of the tables found on startup are loaded.
+     * Requests are served before, loading what they touch first.
+     */
+    @NotNull
+    @Override
+    public CompletableFuture<Void> ready() {
+        return ready.copy();
+    }
+
+    /**
+     * Pins the tables holding the changes made so far and reads the memory tables as of the newest change
+     * applied, nothing is flushed. Memory tables the snapshot holds count against the memory budget
+     * until it is closed, so long-lived snapshots slow writes down.
+     * The sequence number of the snapshot is the newest generation it contains.
+     */
+    @NotNull
+    @Override
+    public Snapshot snapshot() {
+        final Version version = memTablePool.snapshot();
+        final long visible = memTablePool.pin();
+        long sequence = 0;
+        for (final MemTable table : version.memTables()) {
+            sequence = Math.max(sequence, table.generation());
+        }
+        for (final FileTable table : version.files()) {
+            sequence = Math.max(sequence, table.getMaxGeneration());
+        }
+        return new VersionSnapshot(version, visible, sequence, System.currentTimeMillis());
+    }
+
+    /**
+     * Copies data of a mapped file to the heap, tables are unmapped once the version is released.
+     */
+    @NotNull
+    private static ByteBuffer detach(@NotNull final ByteBuffer buffer) {
+        if (!buffer.isDirect()) {
+            return buffer;
         }
-        return Value.absent();
+        final ByteBuffer copy = ByteBuffer.allocate(buffer.remaining());
+        copy.put(buffer.duplicate());
+        return copy.flip();
     }
 
-    private Iterator<Cell> utilIterator(ByteBuffer from) throws IOException {
+    /**
+     * Controller pacing the writes, its getters expose whether and for how long writes are held back.
+     */
+    @NotNull
+    public WriteController writeController() {
+        return writeController;
+    }
+
+    private Iterator<Cell> utilIterator(@NotNull final Version version, final long sequence,
+                                        ByteBuffer from) throws IOException {
         final List<Iterator<Cell>> iterators = new ArrayList<>();
-        iterators.add(fileTablesIterator(from));
-        iterators.add(memTablePool.iterator(from));
+        for (final MemTable table : version.memTables()) {
+            iterators.add(table.iterator(from, sequence));
+        }
+        for (final FileTable table : version.files()) {
+            iterators.add(table.iterator(from));
+        }
+        return new MergeIterator(iterators, version.rangeTombstones(sequence));
+    }
 
-        return Iters.collapseEquals(
-                Iterators.mergeSorted(iterators, Cell.COMPARATOR),
-                Cell::getKey
-        );
+    /**
+     * Snapshot reading a pinned version as of a pinned sequence number of changes, values expire as of the moment
+     * the snapshot was taken. Every read pins both once more, so an iterator outlives the snapshot.
+     */
+    private final class VersionSnapshot implements Snapshot {
+        private final Version version;
+        private final long visible;
+        private final long sequence;
+        private final long takenAt;
+        private final AtomicBoolean closed = new AtomicBoolean();
+
+        VersionSnapshot(@NotNull final Version version, final long visible, final long sequence,
+                        final long takenAt) {
+            this.version = version;
+            this.visible = visible;
+            this.sequence = sequence;
+            this.takenAt = takenAt;
+        }
+
+        @Override
+        public long sequence() {
+            return sequence;
+        }
+
+        @NotNull
+        @Override
+        public Iterator<Record> iterator(@NotNull final ByteBuffer from) throws IOException {
+            return records(pin(), visible, from, takenAt);
+        }
+
+        @NotNull
+        @Override
+        public ByteBuffer get(@NotNull final ByteBuffer key) throws IOException {
+            final Version pinned = pin();
+            try {
+                final Value value = value(pinned, visible, key, takenAt);
+                if (value.state() != Value.State.PRESENT) {
+                    throw new NoSuchElementLite("Not found");
+                }
+                return value.getData();
+            } finally {
+                memTablePool.unpin(visible);
+                pinned.release();
+            }
+        }
+
+        /**
+         * Pins the version and the sequence number for a read, to release when done.
+         */
+        @NotNull
+        private Version pin() {
+            // Pinned before the check, so a concurrent close can't unpin the number meanwhile
+            memTablePool.pin(visible);
+            if (closed.get()) {
+                memTablePool.unpin(visible);
+                throw new IllegalStateException("Snapshot closed");
+            }
+            return version.retain();
+        }
+
+        @Override
+        public void close() {
+            if (closed.compareAndSet(false, true)) {
+                memTablePool.unpin(visible);
+                memTablePool.releaseSnapshot(version);
+            }
+        }
     }
 
+    /**
+     * Flushes the memory tables and stops the background work.
+     *
+     * @throws IOException if a flush failed, the changes of the table and the newer ones are left in the log
+     *                     then and replayed on the next open
+     */
     @Override
-    public void close() {
+    public void close() throws IOException {
         memTablePool.close();
+        for (final Thread flusher : flusherThreads) {
+            try {
+                flusher.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            flusher.interrupt();
+        }
+        compactionScheduler.close();
+        ready.join();
+        compactionPool.shutdown();
+        tableWriters.shutdown();
+        memTablePool.retire();
+        wal.close();
         try {
-            flusherThread.join();
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
+            manifest.close();
+        } catch (IOException e) {
+            log.error("Can't close manifest", e);
+        }
+        final IOException failure = closeFailure;
+        if (failure != null) {
+            throw new IOException("Flush failed on close, the changes are left in the log", failure);
         }
-        flusherThread.interrupt();
     }
 
     private class FlusherThread extends Thread {
 
-        FlusherThread() {
-            super("Flusher thread");
+        FlusherThread(final int number) {
+            super("Flusher thread " + number);
         }
 
+        /**
+         * Flushes tables until the poison pill. A failed flush is retried, since newer generations
+         * can't be published before it, until the database is closed.
+         */
         @Override
         public void run() {
-            boolean isPoison = false;
-            while (!isInterrupted() && !isPoison) {
-                TableToFlush tableToFlush = null;
+            while (!isInterrupted()) {
                 try {
-                    tableToFlush = memTablePool.toFlush();
-                    isPoison = tableToFlush.isPoisonPeel();
-                    flush(tableToFlush);
+                    final TableToFlush tableToFlush = memTablePool.toFlush();
+                    if (tableToFlush.isPoisonPeel()) {
+                        log.info("Dead after poison");
+                        return;
+                    }
+                    flushWithRetries(tableToFlush);
                 } catch (InterruptedException e) {
                     Thread.currentThread().interrupt();
-                } catch (IOException e) {
-                    log.error("Error while flushing in generation " + tableToFlush.getGeneration(), e);
                 }
-
             }
-            if (!isInterrupted()) {
-                log.info("Dead after poison");
+        }
+
+        /**
+         * Retries a failed flush while the database is open, writers stopped by the controller fail meanwhile.
+         * Once it is closed, the flush is given up, so closing never hangs on a broken disk.
+         */
+        private void flushWithRetries(@NotNull final TableToFlush tableToFlush) throws InterruptedException {
+            final int generation = tableToFlush.getGeneration();
+            while (true) {
+                try {
+                    flush(tableToFlush);
+                    return;
+                } catch (IOException | RuntimeException e) {
+                    log.error("Error while flushing in generation " + generation, e);
+                    final IOException failure = e instanceof IOException ? (IOException) e : new IOException(e);
+                    memTablePool.flushFailed(failure);
+                    if (memTablePool.isClosed()) {
+                        log.error("Flush of generation " + generation + " is given up on close");
+                        closeFailure = failure;
+                        memTablePool.abandon(generation);
+                        return;
+                    }
+                    Thread.sleep(FLUSH_RETRY_DELAY_MILLIS);
+                }
             }
         }
     }
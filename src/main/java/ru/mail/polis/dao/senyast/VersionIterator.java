@@ -0,0 +1,61 @@
+package ru.mail.polis.dao.senyast;
+
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.dao.NoSuchElementLite;
+import ru.mail.polis.dao.senyast.tables.Version;
+
+import java.lang.ref.Cleaner;
+import java.lang.ref.Reference;
+import java.util.Iterator;
+
+/**
+ * Iterator over a pinned {@link Version} as of a pinned sequence number. The iterators returned by the DAO
+ * are never closed, so both are released when the iterator is exhausted or, failing that, garbage collected.
+ * Until then the tables of the version stay mapped and are not deleted, even if compacted away, and
+ * the memory tables keep the values the iterator reads.
+ */
+final class VersionIterator<T> implements Iterator<T> {
+    private static final Cleaner CLEANER = Cleaner.create();
+
+    private final Iterator<T> delegate;
+    private final Cleaner.Cleanable cleanable;
+
+    /**
+     * Creates iterator releasing the version and the sequence number once done.
+     *
+     * @param delegate iterator reading the version
+     * @param release  releases the version and unpins the sequence number, must not refer to this iterator
+     */
+    VersionIterator(@NotNull final Iterator<T> delegate, @NotNull final Runnable release) {
+        this.delegate = delegate;
+        this.cleanable = CLEANER.register(this, release);
+    }
+
+    // The delegate reads mapped tables, which are unmapped once the version is released, so this iterator
+    // must stay reachable until the delegate returns or the cleaner could release the version under it.
+
+    @Override
+    public boolean hasNext() {
+        try {
+            if (delegate.hasNext()) {
+                return true;
+            }
+            cleanable.clean();
+            return false;
+        } finally {
+            Reference.reachabilityFence(this);
+        }
+    }
+
+    @Override
+    public T next() {
+        try {
+            if (!hasNext()) {
+                throw new NoSuchElementLite("Iterator is exhausted");
+            }
+            return delegate.next();
+        } finally {
+            Reference.reachabilityFence(this);
+        }
+    }
+}
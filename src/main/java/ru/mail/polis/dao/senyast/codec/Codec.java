@@ -0,0 +1,35 @@
+package ru.mail.polis.dao.senyast.codec;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Compression algorithm for table blocks. Implementations must be thread safe.
+ */
+public interface Codec {
+    /**
+     * Identifier stored in tables, must never change for an algorithm.
+     */
+    int id();
+
+    @NotNull
+    String name();
+
+    /**
+     * Compresses remaining bytes of source into destination starting at its position.
+     *
+     * @param src bytes to compress, position is not changed
+     * @param dst output buffer, compressed size bigger than its remaining bytes is useless
+     * @return compressed size or -1 if it does not fit into destination
+     */
+    int compress(@NotNull ByteBuffer src, @NotNull ByteBuffer dst);
+
+    /**
+     * Restores bytes compressed by {@link #compress(ByteBuffer, ByteBuffer)}.
+     *
+     * @param src compressed bytes, position is not changed
+     * @param dst output buffer having exactly the original size remaining
+     */
+    void decompress(@NotNull ByteBuffer src, @NotNull ByteBuffer dst);
+}
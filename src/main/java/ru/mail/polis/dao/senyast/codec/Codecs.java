@@ -0,0 +1,40 @@
+package ru.mail.polis.dao.senyast.codec;
+
+import org.jetbrains.annotations.Nullable;
+
+/**
+ * Registry of block codecs known to the storage.
+ */
+public final class Codecs {
+    /**
+     * No compression, blocks are stored as is.
+     */
+    public static final int NONE_ID = 0;
+
+    public static final Codec DEFLATE = new DeflateCodec();
+    public static final Codec LZ4 = new Lz4Codec();
+
+    private static final Codec[] KNOWN = {DEFLATE, LZ4};
+
+    private Codecs() {
+    }
+
+    /**
+     * Finds codec a table was written with.
+     *
+     * @param id codec identifier
+     * @return codec or null for uncompressed blocks
+     */
+    @Nullable
+    public static Codec byId(final int id) {
+        if (id == NONE_ID) {
+            return null;
+        }
+        for (final Codec codec : KNOWN) {
+            if (codec.id() == id) {
+                return codec;
+            }
+        }
+        throw new IllegalArgumentException("Unknown codec " + id);
+    }
+}
@@ -0,0 +1,60 @@
+package ru.mail.polis.dao.senyast.codec;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * JDK zlib, good ratio at moderate speed.
+ */
+final class DeflateCodec implements Codec {
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(Deflater::new);
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+
+    @Override
+    public int id() {
+        return 1;
+    }
+
+    @NotNull
+    @Override
+    public String name() {
+        return "deflate";
+    }
+
+    @Override
+    public int compress(@NotNull final ByteBuffer src, @NotNull final ByteBuffer dst) {
+        final Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setInput(src.duplicate());
+        deflater.finish();
+        final int start = dst.position();
+        while (!deflater.finished()) {
+            if (!dst.hasRemaining()) {
+                dst.position(start);
+                return -1;
+            }
+            deflater.deflate(dst);
+        }
+        return dst.position() - start;
+    }
+
+    @Override
+    public void decompress(@NotNull final ByteBuffer src, @NotNull final ByteBuffer dst) {
+        final Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setInput(src.duplicate());
+        try {
+            while (dst.hasRemaining()) {
+                if (inflater.inflate(dst) == 0 && (inflater.finished() || inflater.needsInput())) {
+                    throw new IllegalStateException("Truncated deflate block");
+                }
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("Broken deflate block", e);
+        }
+    }
+}
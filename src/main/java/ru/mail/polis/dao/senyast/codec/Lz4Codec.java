@@ -0,0 +1,192 @@
+package ru.mail.polis.dao.senyast.codec;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Pure Java implementation of LZ4 block format: fast single-pass compression with 64 KiB window.
+ * Every sequence is {@code [token][literal length extra][literals][offset LE][match length extra]}.
+ */
+final class Lz4Codec implements Codec {
+    private static final int MIN_MATCH = 4;
+    private static final int LAST_LITERALS = 5;
+    private static final int MF_LIMIT = 12;
+    private static final int MAX_DISTANCE = 0xFFFF;
+    private static final int RUN_MASK = 15;
+    private static final int HASH_LOG = 12;
+    private static final int SKIP_TRIGGER = 6;
+
+    private static final ThreadLocal<int[]> HASH_TABLES = ThreadLocal.withInitial(() -> new int[1 << HASH_LOG]);
+
+    @Override
+    public int id() {
+        return 2;
+    }
+
+    @NotNull
+    @Override
+    public String name() {
+        return "lz4";
+    }
+
+    private static int hash(final int sequence) {
+        return (sequence * -1640531535) >>> (Integer.SIZE - HASH_LOG);
+    }
+
+    @Override
+    public int compress(@NotNull final ByteBuffer src, @NotNull final ByteBuffer dst) {
+        final int start = dst.position();
+        final int base = src.position();
+        final int end = src.limit();
+        int anchor = base;
+
+        if (end - base > MF_LIMIT) {
+            final int[] table = HASH_TABLES.get();
+            Arrays.fill(table, -1);
+            final int matchLimit = end - LAST_LITERALS;
+            final int mfLimit = end - MF_LIMIT;
+            int ip = base + 1;
+            table[hash(src.getInt(base))] = base;
+
+            while (true) {
+                int ref;
+                int attempts = 1 << SKIP_TRIGGER;
+                while (true) {
+                    if (ip > mfLimit) {
+                        return writeLastLiterals(src, anchor, end - anchor, dst, start);
+                    }
+                    final int sequence = src.getInt(ip);
+                    final int h = hash(sequence);
+                    ref = table[h];
+                    table[h] = ip;
+                    if (ref >= 0 && ip - ref <= MAX_DISTANCE && src.getInt(ref) == sequence) {
+                        break;
+                    }
+                    // Step further and further on incompressible data
+                    ip += attempts++ >>> SKIP_TRIGGER;
+                }
+
+                while (ip > anchor && ref > base && src.get(ip - 1) == src.get(ref - 1)) {
+                    ip--;
+                    ref--;
+                }
+                int matchLength = MIN_MATCH;
+                while (ip + matchLength < matchLimit && src.get(ip + matchLength) == src.get(ref + matchLength)) {
+                    matchLength++;
+                }
+
+                if (!writeSequence(src, anchor, ip - anchor, ip - ref, matchLength, dst)) {
+                    dst.position(start);
+                    return -1;
+                }
+                ip += matchLength;
+                anchor = ip;
+            }
+        }
+        return writeLastLiterals(src, anchor, end - anchor, dst, start);
+    }
+
+    private static int extraBytes(final int length) {
+        return length >= RUN_MASK ? (length - RUN_MASK) / 255 + 1 : 0;
+    }
+
+    private static void putLength(@NotNull final ByteBuffer dst, final int length) {
+        if (length < RUN_MASK) {
+            return;
+        }
+        int rest = length - RUN_MASK;
+        while (rest >= 255) {
+            dst.put((byte) 255);
+            rest -= 255;
+        }
+        dst.put((byte) rest);
+    }
+
+    private static void putLiterals(@NotNull final ByteBuffer src, final int from, final int length,
+                                    @NotNull final ByteBuffer dst) {
+        final ByteBuffer literals = src.duplicate();
+        literals.limit(from + length).position(from);
+        dst.put(literals);
+    }
+
+    private static boolean writeSequence(@NotNull final ByteBuffer src, final int literalsFrom, final int literals,
+                                         final int offset, final int matchLength, @NotNull final ByteBuffer dst) {
+        final int match = matchLength - MIN_MATCH;
+        final int size = 1 + extraBytes(literals) + literals + Short.BYTES + extraBytes(match);
+        if (dst.remaining() < size) {
+            return false;
+        }
+        dst.put((byte) (Math.min(literals, RUN_MASK) << 4 | Math.min(match, RUN_MASK)));
+        putLength(dst, literals);
+        putLiterals(src, literalsFrom, literals, dst);
+        dst.put((byte) offset).put((byte) (offset >>> 8));
+        putLength(dst, match);
+        return true;
+    }
+
+    private static int writeLastLiterals(@NotNull final ByteBuffer src, final int from, final int literals,
+                                         @NotNull final ByteBuffer dst, final int start) {
+        if (dst.remaining() < 1 + extraBytes(literals) + literals) {
+            dst.position(start);
+            return -1;
+        }
+        dst.put((byte) (Math.min(literals, RUN_MASK) << 4));
+        putLength(dst, literals);
+        putLiterals(src, from, literals, dst);
+        return dst.position() - start;
+    }
+
+    @Override
+    public void decompress(@NotNull final ByteBuffer src, @NotNull final ByteBuffer dst) {
+        final int dstStart = dst.position();
+        final int end = src.limit();
+        int ip = src.position();
+        try {
+            while (ip < end) {
+                final int token = src.get(ip++) & 0xFF;
+                int literals = token >>> 4;
+                if (literals == RUN_MASK) {
+                    int next;
+                    do {
+                        next = src.get(ip++) & 0xFF;
+                        literals += next;
+                    } while (next == 255);
+                }
+                putLiterals(src, ip, literals, dst);
+                ip += literals;
+                if (ip >= end) {
+                    break;
+                }
+
+                final int offset = (src.get(ip) & 0xFF) | (src.get(ip + 1) & 0xFF) << 8;
+                ip += Short.BYTES;
+                int matchLength = token & RUN_MASK;
+                if (matchLength == RUN_MASK) {
+                    int next;
+                    do {
+                        next = src.get(ip++) & 0xFF;
+                        matchLength += next;
+                    } while (next == 255);
+                }
+                matchLength += MIN_MATCH;
+
+                final int from = dst.position() - offset;
+                if (offset == 0 || from < dstStart) {
+                    throw new IllegalStateException("Broken lz4 block: bad offset " + offset);
+                }
+                // Byte by byte since the match may overlap the bytes being written
+                for (int i = 0; i < matchLength; i++) {
+                    dst.put(dst.get(from + i));
+                }
+            }
+        } catch (IndexOutOfBoundsException | BufferOverflowException | IllegalArgumentException e) {
+            throw new IllegalStateException("Broken lz4 block", e);
+        }
+        if (dst.hasRemaining()) {
+            throw new IllegalStateException("Broken lz4 block: " + dst.remaining() + " bytes missing");
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package ru.mail.polis.dao.senyast.compaction;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.dao.Keys;
+import ru.mail.polis.dao.senyast.tables.FileTable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tables to merge and where to put the result. Compactions of bigger priority are run first.
+ */
+public final class Compaction {
+    private final List<FileTable> inputs;
+    private final int outputLevel;
+    private final long outputSizeLimit;
+    private final double priority;
+    @Nullable
+    private final ByteBuffer firstKey;
+    @Nullable
+    private final ByteBuffer lastKey;
+
+    /**
+     * Describes compaction.
+     *
+     * @param inputs          tables to merge
+     * @param outputLevel     level of the tables written
+     * @param outputSizeLimit size a table being written is closed at
+     * @param priority        how badly the compaction is needed, 1 meaning the shape is just out of bounds
+     */
+    public Compaction(@NotNull final List<FileTable> inputs, final int outputLevel, final long outputSizeLimit,
+                      final double priority) {
+        this.inputs = List.copyOf(inputs);
+        this.outputLevel = outputLevel;
+        this.outputSizeLimit = outputSizeLimit;
+        this.priority = priority;
+
+        ByteBuffer first = null;
+        ByteBuffer last = null;
+        for (final FileTable table : inputs) {
+            final ByteBuffer tableFirst = table.getFirstKey();
+            final ByteBuffer tableLast = table.getLastKey();
+            if (tableFirst != null && (first == null || Keys.compare(tableFirst, first) < 0)) {
+                first = tableFirst;
+            }
+            if (tableLast != null && (last == null || Keys.compare(tableLast, last) > 0)) {
+                last = tableLast;
+            }
+        }
+        this.firstKey = first;
+        this.lastKey = last;
+    }
+
+    @NotNull
+    public List<FileTable> inputs() {
+        return inputs;
+    }
+
+    public int outputLevel() {
+        return outputLevel;
+    }
+
+    public long outputSizeLimit() {
+        return outputSizeLimit;
+    }
+
+    public double priority() {
+        return priority;
+    }
+
+    /**
+     * Checks whether key ranges of the compactions intersect, so their outputs would overlap.
+     *
+     * @param other another compaction
+     * @return true if the ranges intersect
+     */
+    public boolean overlaps(@NotNull final Compaction other) {
+        return firstKey != null && other.firstKey != null
+                && Keys.compare(firstKey, other.lastKey) <= 0 && Keys.compare(lastKey, other.firstKey) >= 0;
+    }
+
+    /**
+     * The newest memory table generation the merged cells come from.
+     */
+    public long maxGeneration() {
+        long max = 0;
+        for (final FileTable table : inputs) {
+            max = Math.max(max, table.getMaxGeneration());
+        }
+        return max;
+    }
+
+    /**
+     * Splits the key range of the compaction into parts of about the same size by the block separators
+     * of the inputs, every separator starting about a block of data.
+     *
+     * @param parts number of parts wanted
+     * @return ascending keys the parts start at but the first one, fewer if the inputs have too few blocks
+     */
+    @NotNull
+    public List<ByteBuffer> splitPoints(final int parts) {
+        final List<ByteBuffer> separators = new ArrayList<>();
+        for (final FileTable table : inputs) {
+            separators.addAll(table.splitPoints());
+        }
+        separators.sort(Keys.ORDER);
+        final List<ByteBuffer> result = new ArrayList<>(parts);
+        for (int part = 1; part < parts && !separators.isEmpty(); part++) {
+            final ByteBuffer point = separators.get(part * separators.size() / parts);
+            if (result.isEmpty() || Keys.compare(result.get(result.size() - 1), point) < 0) {
+                result.add(point);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder result = new StringBuilder();
+        for (final FileTable table : inputs) {
+            result.append(result.length() == 0 ? "[" : ", ")
+                    .append('L').append(table.getLevel()).append(':').append(table.getGeneration());
+        }
+        return result.append("] -> L").append(outputLevel).toString();
+    }
+}
@@ -0,0 +1,296 @@
+package ru.mail.polis.dao.senyast.compaction;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.mail.polis.dao.senyast.model.Value;
+import ru.mail.polis.dao.senyast.tables.FileTable;
+import ru.mail.polis.dao.senyast.tables.Version;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs compactions on its own threads. Every idle thread starts the candidate of the biggest priority
+ * which neither shares input tables with a running compaction nor writes to the same level within
+ * the key range of one. When the strategy has nothing to compact, tables dense with tombstones past
+ * the grace period are compacted, as {@link TombstoneOptions} tell.
+ */
+public class CompactionScheduler implements Closeable {
+    private static final long RETRY_DELAY_MILLIS = 1000;
+    /**
+     * Bounds how long idle threads sleep, tables becoming worth compacting for tombstones as time goes by.
+     */
+    private static final long MIN_RECHECK_MILLIS = 100;
+    private static final long MAX_RECHECK_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+    private static final Logger log = LoggerFactory.getLogger(CompactionScheduler.class);
+
+    private final CompactionStrategy strategy;
+    private final Supplier<Version> versions;
+    private final Compactor compactor;
+    private final TombstoneOptions tombstones;
+    private final long recheckMillis;
+    private final ExecutorService executor;
+
+    private final Object lock = new Object();
+    /**
+     * Running compactions with the versions they were chosen from. The version stays pinned until
+     * the compaction leaves the map, since the key bounds of the inputs are read from the tables.
+     */
+    private final Map<Compaction, Version> running = new IdentityHashMap<>();
+    private final Set<FileTable> busy = Collections.newSetFromMap(new IdentityHashMap<>());
+    private int fullRequests;
+    private boolean stopped;
+
+    /**
+     * Merges tables of the compaction and replaces them with the result.
+     */
+    @FunctionalInterface
+    public interface Compactor {
+        void compact(@NotNull Compaction compaction) throws IOException;
+    }
+
+    /**
+     * Creates scheduler and starts its threads.
+     *
+     * @param strategy   decides what to compact
+     * @param versions   pins the current version, the tables on disk of which are compacted
+     * @param compactor  runs compactions
+     * @param tombstones when to compact tables for their tombstones
+     * @param threads    number of compactions which may run at once
+     */
+    public CompactionScheduler(@NotNull final CompactionStrategy strategy,
+                               @NotNull final Supplier<Version> versions,
+                               @NotNull final Compactor compactor,
+                               @NotNull final TombstoneOptions tombstones, final int threads) {
+        this.strategy = strategy;
+        this.versions = versions;
+        this.compactor = compactor;
+        this.tombstones = tombstones;
+        this.recheckMillis = Math.max(MIN_RECHECK_MILLIS,
+                Math.min(MAX_RECHECK_MILLIS, tombstones.compactionIntervalMillis()));
+        final AtomicInteger number = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(threads, r -> {
+            final Thread thread = new Thread(r, "Compaction thread " + number.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        for (int i = 0; i < threads; i++) {
+            executor.execute(this::work);
+        }
+    }
+
+    /**
+     * Wakes the threads up after the set of tables has changed.
+     */
+    public void tablesChanged() {
+        synchronized (lock) {
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Waits for the running compactions and merges all the tables in the calling thread.
+     * Background compactions are not started meanwhile.
+     *
+     * @throws IOException if the compaction failed
+     */
+    public void compactAll() throws IOException {
+        final Compaction compaction;
+        synchronized (lock) {
+            fullRequests++;
+            try {
+                while (!running.isEmpty()) {
+                    lock.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for compactions");
+            } finally {
+                fullRequests--;
+            }
+            final Version version = versions.get();
+            try {
+                compaction = strategy.full(version.files());
+                start(compaction, version);
+            } catch (RuntimeException e) {
+                version.release();
+                throw e;
+            }
+        }
+        run(compaction);
+    }
+
+    private void work() {
+        while (true) {
+            Compaction compaction = null;
+            try {
+                compaction = take();
+                if (compaction == null) {
+                    return;
+                }
+                run(compaction);
+            } catch (IOException | RuntimeException e) {
+                log.error(compaction == null ? "Choosing compaction failed"
+                        : "Compaction " + compaction + " failed", e);
+                try {
+                    Thread.sleep(RETRY_DELAY_MILLIS);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for a compaction to run and starts it.
+     *
+     * @return compaction started or null if the scheduler is stopped
+     */
+    @Nullable
+    private Compaction take() {
+        synchronized (lock) {
+            Version version = versions.get();
+            try {
+                Compaction next = next(version);
+                while (next == null) {
+                    version.release();
+                    version = null;
+                    if (stopped) {
+                        return null;
+                    }
+                    try {
+                        lock.wait(recheckMillis);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return null;
+                    }
+                    version = versions.get();
+                    next = next(version);
+                }
+                start(next, version);
+                return next;
+            } catch (RuntimeException e) {
+                if (version != null) {
+                    version.release();
+                }
+                throw e;
+            }
+        }
+    }
+
+    @Nullable
+    private Compaction next(@NotNull final Version version) {
+        assert Thread.holdsLock(lock);
+        if (stopped || fullRequests > 0) {
+            return null;
+        }
+        final List<Compaction> candidates = strategy.candidates(version.files());
+        for (final Compaction candidate : candidates) {
+            if (!conflicts(candidate)) {
+                return candidate;
+            }
+        }
+        if (!candidates.isEmpty()) {
+            return null;
+        }
+        for (final Compaction candidate : strategy.tombstoneCandidates(version.files(), dense(version.files()))) {
+            if (!conflicts(candidate)) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Lists tables with enough tombstones, the oldest of which is past the grace period, written long enough ago.
+     * The ratio is checked last, as a table written before its number of range tombstones was stored loads them.
+     */
+    @NotNull
+    private List<FileTable> dense(@NotNull final Collection<FileTable> files) {
+        final long now = System.currentTimeMillis();
+        final long purgeBefore = Value.momentAt(now - tombstones.gracePeriodMillis());
+        final List<FileTable> result = new ArrayList<>();
+        for (final FileTable file : files) {
+            if (!busy.contains(file)
+                    && file.getOldestTombstone() < purgeBefore
+                    && now - file.getFile().lastModified() >= tombstones.compactionIntervalMillis()
+                    && file.tombstoneRatio() >= tombstones.compactionRatio()) {
+                result.add(file);
+            }
+        }
+        return result;
+    }
+
+    private boolean conflicts(@NotNull final Compaction candidate) {
+        for (final FileTable input : candidate.inputs()) {
+            if (busy.contains(input)) {
+                return true;
+            }
+        }
+        for (final Compaction compaction : running.keySet()) {
+            if (compaction.outputLevel() == candidate.outputLevel() && compaction.overlaps(candidate)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void start(@NotNull final Compaction compaction, @NotNull final Version version) {
+        running.put(compaction, version);
+        try {
+            busy.addAll(compaction.inputs());
+        } catch (RuntimeException e) {
+            running.remove(compaction);
+            busy.removeAll(compaction.inputs());
+            throw e;
+        }
+    }
+
+    private void run(@NotNull final Compaction compaction) throws IOException {
+        try {
+            compactor.compact(compaction);
+        } finally {
+            synchronized (lock) {
+                running.remove(compaction).release();
+                busy.removeAll(compaction.inputs());
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Lets the running compactions finish and stops the threads.
+     */
+    @Override
+    public void close() {
+        synchronized (lock) {
+            stopped = true;
+            lock.notifyAll();
+        }
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.HOURS)) {
+                log.warn("Compactions have not finished in time");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
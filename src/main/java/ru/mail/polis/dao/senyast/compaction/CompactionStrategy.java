@@ -0,0 +1,56 @@
+package ru.mail.polis.dao.senyast.compaction;
+
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.dao.senyast.tables.FileTable;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Decides which tables on disk are merged together.
+ */
+public interface CompactionStrategy {
+    /**
+     * Lists compactions worth running. The caller starts the first one not conflicting with
+     * compactions already running, so alternatives sharing tables may be listed too.
+     *
+     * @param tables all the tables on disk
+     * @return compactions by descending priority, empty if the tables are fine as they are
+     */
+    @NotNull
+    List<Compaction> candidates(@NotNull Collection<FileTable> tables);
+
+    /**
+     * Lists compactions rewriting tables full of tombstones, so the tombstones are purged. Asked for
+     * only when no other compaction is due.
+     *
+     * @param tables all the tables on disk
+     * @param dense  tables whose tombstones are worth purging
+     * @return compactions by descending priority, empty to leave the tombstones alone
+     */
+    @NotNull
+    default List<Compaction> tombstoneCandidates(@NotNull final Collection<FileTable> tables,
+                                                 @NotNull final Collection<FileTable> dense) {
+        return List.of();
+    }
+
+    /**
+     * Merges everything, as requested by {@link ru.mail.polis.dao.DAO#compact()}.
+     *
+     * @param tables all the tables on disk
+     * @return compaction of all the tables
+     */
+    @NotNull
+    Compaction full(@NotNull Collection<FileTable> tables);
+
+    /**
+     * Estimates how much data compactions have to rewrite to bring the tables into shape,
+     * writers are slowed down as the debt grows.
+     *
+     * @param tables all the tables on disk
+     * @return size in bytes, zero if no compaction is due
+     */
+    default long debt(@NotNull final Collection<FileTable> tables) {
+        return 0;
+    }
+}
@@ -0,0 +1,75 @@
+package ru.mail.polis.dao.senyast.compaction;
+
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.dao.senyast.tables.FileTable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Rewrites all the tables into a single one as soon as there are too many of them.
+ */
+public final class FullCompaction implements CompactionStrategy {
+    public static final int DEFAULT_TABLES_LIMIT = 10;
+
+    private final int tablesLimit;
+
+    public FullCompaction() {
+        this(DEFAULT_TABLES_LIMIT);
+    }
+
+    /**
+     * Creates strategy.
+     *
+     * @param tablesLimit number of tables to compact above
+     */
+    public FullCompaction(final int tablesLimit) {
+        if (tablesLimit <= 0) {
+            throw new IllegalArgumentException("Tables limit must be positive: " + tablesLimit);
+        }
+        this.tablesLimit = tablesLimit;
+    }
+
+    @NotNull
+    @Override
+    public List<Compaction> candidates(@NotNull final Collection<FileTable> tables) {
+        if (tables.size() <= tablesLimit) {
+            return List.of();
+        }
+        return List.of(new Compaction(new ArrayList<>(tables), 1, Long.MAX_VALUE,
+                (double) tables.size() / tablesLimit));
+    }
+
+    /**
+     * Rewrites all the tables, since a tombstone is purged only if every table which may hold the key is merged.
+     */
+    @NotNull
+    @Override
+    public List<Compaction> tombstoneCandidates(@NotNull final Collection<FileTable> tables,
+                                                @NotNull final Collection<FileTable> dense) {
+        double ratio = 0;
+        for (final FileTable table : dense) {
+            ratio = Math.max(ratio, table.tombstoneRatio());
+        }
+        return dense.isEmpty() ? List.of() : List.of(new Compaction(new ArrayList<>(tables), 1, Long.MAX_VALUE, ratio));
+    }
+
+    @Override
+    public long debt(@NotNull final Collection<FileTable> tables) {
+        if (tables.size() <= tablesLimit) {
+            return 0;
+        }
+        long size = 0;
+        for (final FileTable table : tables) {
+            size += table.sizeInBytes();
+        }
+        return size;
+    }
+
+    @NotNull
+    @Override
+    public Compaction full(@NotNull final Collection<FileTable> tables) {
+        return new Compaction(new ArrayList<>(tables), 1, Long.MAX_VALUE, Double.MAX_VALUE);
+    }
+}
@@ -0,0 +1,220 @@
+package ru.mail.polis.dao.senyast.compaction;
+
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.dao.Keys;
+import ru.mail.polis.dao.senyast.tables.FileTable;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps tables in levels. Flushed tables land in L0 and may overlap, tables of every deeper level
+ * have disjoint key ranges and the level is allowed to be {@code multiplier} times bigger than the previous one.
+ *
+ * <p>When L0 has too many tables, they are merged with the overlapping part of L1. When a deeper level
+ * exceeds its size target, one of its tables is merged with the overlapping part of the next level,
+ * the tables overlapping the least of the next level per byte being preferred. Written tables are closed
+ * at the target file size, so every compaction rewrites a bounded key range only.
+ */
+public final class LeveledCompaction implements CompactionStrategy {
+    public static final int DEFAULT_L0_TRIGGER = 4;
+    public static final long DEFAULT_FILE_SIZE = 4L * 1024 * 1024;
+    public static final long DEFAULT_LEVEL_BASE = 32L * 1024 * 1024;
+    public static final int DEFAULT_MULTIPLIER = 10;
+    public static final int DEFAULT_LEVELS = 7;
+
+    private final int l0Trigger;
+    private final long fileSize;
+    private final long levelBase;
+    private final int multiplier;
+    private final int levels;
+
+    public LeveledCompaction() {
+        this(DEFAULT_L0_TRIGGER, DEFAULT_FILE_SIZE, DEFAULT_LEVEL_BASE, DEFAULT_MULTIPLIER, DEFAULT_LEVELS);
+    }
+
+    /**
+     * Creates strategy.
+     *
+     * @param l0Trigger  number of L0 tables to compact them at
+     * @param fileSize   target size of written tables
+     * @param levelBase  target size of L1
+     * @param multiplier how many times every next level is bigger
+     * @param levels     number of levels including L0
+     */
+    public LeveledCompaction(final int l0Trigger, final long fileSize, final long levelBase,
+                             final int multiplier, final int levels) {
+        if (l0Trigger <= 0 || fileSize <= 0 || levelBase <= 0 || multiplier <= 1 || levels < 2) {
+            throw new IllegalArgumentException("Bad leveled compaction settings");
+        }
+        this.l0Trigger = l0Trigger;
+        this.fileSize = fileSize;
+        this.levelBase = levelBase;
+        this.multiplier = multiplier;
+        this.levels = levels;
+    }
+
+    @NotNull
+    @Override
+    public List<Compaction> candidates(@NotNull final Collection<FileTable> tables) {
+        final List<List<FileTable>> byLevel = byLevel(tables);
+        final List<Compaction> result = new ArrayList<>();
+        final double l0Score = (double) byLevel.get(0).size() / l0Trigger;
+        if (l0Score >= 1.0) {
+            result.add(compactL0(byLevel, l0Score));
+        }
+        double target = levelBase;
+        // The last level has no target
+        for (int level = 1; level < levels - 1; level++) {
+            final double score = size(byLevel.get(level)) / target;
+            if (score >= 1.0) {
+                result.addAll(compactLevel(byLevel, level, score));
+            }
+            target *= multiplier;
+        }
+        // Stable, so tables of a level stay ordered by their overlap
+        result.sort(Comparator.comparingDouble(Compaction::priority).reversed());
+        return result;
+    }
+
+    /**
+     * Merges a table of L0 the way L0 is compacted, a table of a deeper level with the overlapping part
+     * of the next level and a table of the last level alone.
+     */
+    @NotNull
+    @Override
+    public List<Compaction> tombstoneCandidates(@NotNull final Collection<FileTable> tables,
+                                                @NotNull final Collection<FileTable> dense) {
+        final List<List<FileTable>> byLevel = byLevel(tables);
+        final List<Compaction> result = new ArrayList<>(dense.size());
+        for (final FileTable table : dense) {
+            final int level = Math.min(table.getLevel(), levels - 1);
+            final double priority = table.tombstoneRatio();
+            if (level == 0) {
+                result.add(compactL0(byLevel, priority));
+            } else if (level == levels - 1) {
+                result.add(new Compaction(List.of(table), level, fileSize, priority));
+            } else if (table.getFirstKey() != null) {
+                final List<FileTable> inputs = new ArrayList<>();
+                inputs.add(table);
+                inputs.addAll(overlapping(byLevel.get(level + 1), table.getFirstKey(), table.getLastKey()));
+                result.add(new Compaction(inputs, level + 1, fileSize, priority));
+            }
+        }
+        result.sort(Comparator.comparingDouble(Compaction::priority).reversed());
+        return result;
+    }
+
+    /**
+     * Sums L0 once it reaches the trigger and the excess of every deeper level over its target.
+     */
+    @Override
+    public long debt(@NotNull final Collection<FileTable> tables) {
+        final List<List<FileTable>> byLevel = byLevel(tables);
+        long debt = byLevel.get(0).size() >= l0Trigger ? size(byLevel.get(0)) : 0;
+        long target = levelBase;
+        for (int level = 1; level < levels - 1; level++) {
+            debt += Math.max(0, size(byLevel.get(level)) - target);
+            target *= multiplier;
+        }
+        return debt;
+    }
+
+    @NotNull
+    @Override
+    public Compaction full(@NotNull final Collection<FileTable> tables) {
+        final List<List<FileTable>> byLevel = byLevel(tables);
+        int output = levels - 1;
+        while (output > 1 && byLevel.get(output).isEmpty()) {
+            output--;
+        }
+        return new Compaction(new ArrayList<>(tables), output, fileSize, Double.MAX_VALUE);
+    }
+
+    @NotNull
+    private Compaction compactL0(@NotNull final List<List<FileTable>> byLevel, final double score) {
+        final List<FileTable> inputs = new ArrayList<>(byLevel.get(0));
+        ByteBuffer from = null;
+        ByteBuffer to = null;
+        for (final FileTable table : inputs) {
+            final ByteBuffer first = table.getFirstKey();
+            final ByteBuffer last = table.getLastKey();
+            if (first != null && (from == null || Keys.compare(first, from) < 0)) {
+                from = first;
+            }
+            if (last != null && (to == null || Keys.compare(last, to) > 0)) {
+                to = last;
+            }
+        }
+        if (from != null) {
+            inputs.addAll(overlapping(byLevel.get(1), from, to));
+        }
+        return new Compaction(inputs, 1, fileSize, score);
+    }
+
+    /**
+     * Lists merges of every table of the level with the overlapping part of the next level,
+     * the ones overlapping the least of the next level per byte first.
+     */
+    @NotNull
+    private List<Compaction> compactLevel(@NotNull final List<List<FileTable>> byLevel, final int level,
+                                          final double score) {
+        final List<FileTable> next = byLevel.get(level + 1);
+        final List<Compaction> result = new ArrayList<>();
+        final Map<Compaction, Double> ratios = new IdentityHashMap<>();
+        for (final FileTable table : byLevel.get(level)) {
+            final ByteBuffer first = table.getFirstKey();
+            if (first == null) {
+                continue;
+            }
+            final List<FileTable> overlap = overlapping(next, first, table.getLastKey());
+            final List<FileTable> inputs = new ArrayList<>(overlap.size() + 1);
+            inputs.add(table);
+            inputs.addAll(overlap);
+            final Compaction compaction = new Compaction(inputs, level + 1, fileSize, score);
+            ratios.put(compaction, (double) size(overlap) / Math.max(1, table.sizeInBytes()));
+            result.add(compaction);
+        }
+        result.sort(Comparator.comparingDouble(ratios::get));
+        return result;
+    }
+
+    @NotNull
+    private List<List<FileTable>> byLevel(@NotNull final Collection<FileTable> tables) {
+        final List<List<FileTable>> result = new ArrayList<>(levels);
+        for (int i = 0; i < levels; i++) {
+            result.add(new ArrayList<>());
+        }
+        for (final FileTable table : tables) {
+            result.get(Math.min(table.getLevel(), levels - 1)).add(table);
+        }
+        return result;
+    }
+
+    @NotNull
+    private static List<FileTable> overlapping(@NotNull final List<FileTable> tables,
+                                               @NotNull final ByteBuffer from, @NotNull final ByteBuffer to) {
+        final List<FileTable> result = new ArrayList<>();
+        for (final FileTable table : tables) {
+            final ByteBuffer first = table.getFirstKey();
+            final ByteBuffer last = table.getLastKey();
+            if (first != null && Keys.compare(first, to) <= 0 && Keys.compare(last, from) >= 0) {
+                result.add(table);
+            }
+        }
+        return result;
+    }
+
+    private static long size(@NotNull final List<FileTable> tables) {
+        long size = 0;
+        for (final FileTable table : tables) {
+            size += table.sizeInBytes();
+        }
+        return size;
+    }
+}
@@ -0,0 +1,105 @@
+package ru.mail.polis.dao.senyast.compaction;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Settings of tombstone purging. Compaction drops a tombstone, or a value which has expired, once
+ * the grace period has passed since the removal or the expiration, provided no table left out of
+ * the compaction may hold an older value of the key. Replicas which missed the removal get the grace
+ * period to learn about it before the data they hold stops being shadowed.
+ *
+ * <p>A table whose share of tombstones reaches the compaction ratio, the oldest of them being past the grace
+ * period, is compacted for the sake of the tombstones when no other compaction is due, but not before
+ * the compaction interval passes since the table was written, so tombstones which can't be purged yet
+ * are not rewritten over and over.
+ */
+public final class TombstoneOptions {
+    public static final long DEFAULT_GRACE_PERIOD_MILLIS = TimeUnit.DAYS.toMillis(10);
+    public static final double DEFAULT_COMPACTION_RATIO = 0.2;
+    public static final long DEFAULT_COMPACTION_INTERVAL_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private static final TombstoneOptions DEFAULT = new TombstoneOptions();
+
+    private long gracePeriodMillis = DEFAULT_GRACE_PERIOD_MILLIS;
+    private double compactionRatio = DEFAULT_COMPACTION_RATIO;
+    private long compactionIntervalMillis = DEFAULT_COMPACTION_INTERVAL_MILLIS;
+
+    private TombstoneOptions() {
+    }
+
+    @NotNull
+    private TombstoneOptions copy() {
+        final TombstoneOptions result = new TombstoneOptions();
+        result.gracePeriodMillis = gracePeriodMillis;
+        result.compactionRatio = compactionRatio;
+        result.compactionIntervalMillis = compactionIntervalMillis;
+        return result;
+    }
+
+    @NotNull
+    public static TombstoneOptions defaults() {
+        return DEFAULT;
+    }
+
+    /**
+     * Sets how long tombstones and expired values are kept after the removal or the expiration.
+     *
+     * @param millis grace period in milliseconds, zero to purge as soon as possible
+     * @return new options
+     */
+    @NotNull
+    public TombstoneOptions withGracePeriod(final long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Grace period must not be negative: " + millis);
+        }
+        final TombstoneOptions result = copy();
+        result.gracePeriodMillis = millis;
+        return result;
+    }
+
+    /**
+     * Sets share of purgeable tombstones to compact a table at.
+     *
+     * @param ratio share of the rows, above one to never compact for tombstones
+     * @return new options
+     */
+    @NotNull
+    public TombstoneOptions withCompactionRatio(final double ratio) {
+        if (!(ratio > 0)) {
+            throw new IllegalArgumentException("Tombstone compaction ratio must be positive: " + ratio);
+        }
+        final TombstoneOptions result = copy();
+        result.compactionRatio = ratio;
+        return result;
+    }
+
+    /**
+     * Sets how long a table is left alone after it is written before it may be compacted for tombstones.
+     *
+     * @param millis interval in milliseconds
+     * @return new options
+     */
+    @NotNull
+    public TombstoneOptions withCompactionInterval(final long millis) {
+        if (millis < 0) {
+            throw new IllegalArgumentException("Tombstone compaction interval must not be negative: " + millis);
+        }
+        final TombstoneOptions result = copy();
+        result.compactionIntervalMillis = millis;
+        return result;
+    }
+
+    public long gracePeriodMillis() {
+        return gracePeriodMillis;
+    }
+
+    public double compactionRatio() {
+        return compactionRatio;
+    }
+
+    public long compactionIntervalMillis() {
+        return compactionIntervalMillis;
+    }
+}
@@ -0,0 +1,142 @@
+package ru.mail.polis.dao.senyast.compaction;
+
+import com.google.common.collect.Iterators;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.dao.Keys;
+import ru.mail.polis.dao.senyast.model.Cell;
+import ru.mail.polis.dao.senyast.model.RangeTombstone;
+import ru.mail.polis.dao.senyast.model.Value;
+import ru.mail.polis.dao.senyast.tables.FileTable;
+import ru.mail.polis.dao.senyast.tables.RangeTombstones;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Drops tombstones and expired values merged by a compaction as {@link TombstoneOptions} allow.
+ * Tables left out of the compaction are the only place an older value of a key may live in,
+ * since memory tables hold newer changes only, so a key is purged if none of them may contain it.
+ *
+ * <p>Expired values which can't be dropped yet are turned into tombstones of their timestamp,
+ * keeping older values of the key shadowed while their data is gone. Parts of a compaction merged
+ * in parallel share the purge.
+ */
+public final class TombstonePurge {
+    private final List<FileTable> others;
+    private final long now;
+    /**
+     * Tombstones older than this timestamp and values expired before this moment are past the grace period.
+     */
+    private final long purgeBefore;
+    private final long expiredBefore;
+    private final LongAdder purged = new LongAdder();
+
+    /**
+     * Creates purge of a compaction.
+     *
+     * @param inputs  tables merged by the compaction
+     * @param files   all the tables on disk, the inputs among them
+     * @param options grace period
+     * @param now     wall clock time in milliseconds to judge expiration and the grace period by
+     */
+    public TombstonePurge(@NotNull final Collection<FileTable> inputs, @NotNull final Collection<FileTable> files,
+                          @NotNull final TombstoneOptions options, final long now) {
+        final Set<FileTable> merged = Collections.newSetFromMap(new IdentityHashMap<>());
+        merged.addAll(inputs);
+        this.others = new ArrayList<>();
+        for (final FileTable file : files) {
+            if (!merged.contains(file)) {
+                others.add(file);
+            }
+        }
+        this.now = now;
+        this.expiredBefore = now - options.gracePeriodMillis();
+        this.purgeBefore = Value.momentAt(expiredBefore);
+    }
+
+    /**
+     * Drops purgeable cells and turns the other expired values into tombstones.
+     *
+     * @param cells merged cells, a single cell per key
+     * @return cells to write
+     */
+    @NotNull
+    public Iterator<Cell> apply(@NotNull final Iterator<Cell> cells) {
+        return Iterators.filter(Iterators.transform(cells, this::purge), Objects::nonNull);
+    }
+
+    @Nullable
+    private Cell purge(@Nullable final Cell cell) {
+        final Value value = Objects.requireNonNull(cell).getValue();
+        final boolean purgeable;
+        if (value.isTombstone()) {
+            purgeable = value.getTimestamp() < purgeBefore;
+        } else if (value.isExpired(now)) {
+            purgeable = value.getExpiresAt() < expiredBefore;
+        } else {
+            return cell;
+        }
+        if (purgeable && unique(cell.getKey())) {
+            purged.increment();
+            return null;
+        }
+        return value.isTombstone()
+                ? cell
+                : new Cell(cell.getKey(), Value.tombstone(value.getTimestamp()), cell.getGeneration());
+    }
+
+    /**
+     * Drops purgeable range tombstones, the cells they cover having been dropped by the merge.
+     *
+     * @param rangeTombstones range tombstones of the inputs
+     * @return range tombstones to write
+     */
+    @NotNull
+    public RangeTombstones apply(@NotNull final RangeTombstones rangeTombstones) {
+        final RangeTombstones result = rangeTombstones.retain(
+                fragment -> fragment.getTimestamp() >= purgeBefore || overlapsOthers(fragment));
+        purged.add(rangeTombstones.fragments().size() - result.fragments().size());
+        return result;
+    }
+
+    /**
+     * Number of tombstones, range tombstone fragments and expired values dropped so far.
+     */
+    public long purged() {
+        return purged.sum();
+    }
+
+    /**
+     * Checks whether no table left out may contain the key.
+     */
+    private boolean unique(@NotNull final ByteBuffer key) {
+        for (final FileTable other : others) {
+            final ByteBuffer first = other.getFirstKey();
+            if (first != null && Keys.compare(first, key) <= 0 && Keys.compare(key, other.getLastKey()) <= 0
+                    && other.mightContain(key)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean overlapsOthers(@NotNull final RangeTombstone fragment) {
+        for (final FileTable other : others) {
+            final ByteBuffer first = other.getFirstKey();
+            if (first != null && Keys.compare(first, fragment.getTo()) < 0
+                    && Keys.compare(other.getLastKey(), fragment.getFrom()) >= 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -1,13 +1,8 @@
 package ru.mail.polis.dao.senyast.model;
 
 import java.nio.ByteBuffer;
-import java.util.Comparator;
 
 public class Cell {
-    public static final Comparator<Cell> COMPARATOR =
-            Comparator.comparing(Cell::getKey).thenComparing(Cell::getValue)
-                    .thenComparing(Cell::getGeneration, Comparator.reverseOrder());
-
     private final ByteBuffer key;
     private final Value value;
     private final long generation;
@@ -33,7 +28,7 @@ public class Cell {
         return value;
     }
 
-    private long getGeneration() {
+    public long getGeneration() {
         return generation;
     }
 }
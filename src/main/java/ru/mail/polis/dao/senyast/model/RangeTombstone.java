@@ -0,0 +1,49 @@
+package ru.mail.polis.dao.senyast.model;
+
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.dao.Keys;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Removal of every key from "from" (inclusive) to "to" (exclusive) written before the timestamp.
+ */
+public final class RangeTombstone {
+    private final ByteBuffer from;
+    private final ByteBuffer to;
+    private final long timestamp;
+
+    /**
+     * Creates tombstone of the range.
+     *
+     * @param from      the first key removed
+     * @param to        the key the range ends at, not removed
+     * @param timestamp moment of the removal, values written later survive it
+     */
+    public RangeTombstone(@NotNull final ByteBuffer from, @NotNull final ByteBuffer to, final long timestamp) {
+        this.from = from;
+        this.to = to;
+        this.timestamp = timestamp;
+    }
+
+    @NotNull
+    public ByteBuffer getFrom() {
+        return from;
+    }
+
+    @NotNull
+    public ByteBuffer getTo() {
+        return to;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Checks whether the range holds no keys.
+     */
+    public boolean isEmpty() {
+        return Keys.compare(from, to) >= 0;
+    }
+}
@@ -4,24 +4,46 @@ import org.jetbrains.annotations.NotNull;
 
 import java.nio.ByteBuffer;
 import java.util.Collection;
-import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 public final class Value implements Comparable<Value> {
+    /**
+     * Expiration time of values living forever.
+     */
+    public static final long NEVER = 0;
 
     private static final Value ABSENT = new Value(State.ABSENT, 0, null);
 
     private final long ts;
     private final ByteBuffer data;
     private final State state;
-    private static final AtomicInteger nano = new AtomicInteger();
+    private final long expiresAt;
+    /**
+     * The newest timestamp handed out, timestamps only grow even if the clock goes back or a batch
+     * takes more of them than a millisecond has.
+     */
+    private static final AtomicLong lastMoment = new AtomicLong();
     private static final int FACTOR = 1_000_000;
 
     public Value(State state, final long ts, final ByteBuffer data) {
+        this(state, ts, data, NEVER);
+    }
+
+    /**
+     * Creates value which stops being visible at the given moment.
+     *
+     * @param state     state of the value
+     * @param ts        timestamp of the write
+     * @param data      data or null for tombstones
+     * @param expiresAt wall clock time in milliseconds the value expires at, {@link #NEVER} if it does not
+     */
+    public Value(final State state, final long ts, final ByteBuffer data, final long expiresAt) {
         assert ts >= 0;
+        assert expiresAt >= 0;
         this.state = state;
         this.ts = ts;
         this.data = data;
+        this.expiresAt = expiresAt;
     }
 
     /**
@@ -38,6 +60,10 @@ public final class Value implements Comparable<Value> {
         return new Value(State.PRESENT, time, data.duplicate());
     }
 
+    public static Value of(final long time, final ByteBuffer data, final long expiresAt) {
+        return new Value(State.PRESENT, time, data.duplicate(), expiresAt);
+    }
+
     @NotNull
     public static Value absent() {
         return ABSENT;
@@ -71,12 +97,55 @@ public final class Value implements Comparable<Value> {
         return ts;
     }
 
-    private static long getMoment() {
-        final long time = System.currentTimeMillis() * FACTOR + nano.incrementAndGet();
-        if (nano.get() > FACTOR) {
-            nano.set(0);
+    /**
+     * Wall clock time in milliseconds the value expires at.
+     *
+     * @return the time or {@link #NEVER}
+     */
+    public long getExpiresAt() {
+        return expiresAt;
+    }
+
+    /**
+     * Checks whether the value has expired, an expired value hides older values of the key like a tombstone.
+     *
+     * @param now current wall clock time in milliseconds
+     * @return true if the expiration time has come
+     */
+    public boolean isExpired(final long now) {
+        return expiresAt != NEVER && expiresAt <= now;
+    }
+
+    /**
+     * Reserves consecutive timestamps, so changes written together keep their order.
+     *
+     * @param count number of timestamps
+     * @return the first of them
+     */
+    public static long moments(final int count) {
+        assert count > 0;
+        final long now = System.currentTimeMillis() * FACTOR;
+        while (true) {
+            final long last = lastMoment.get();
+            final long first = Math.max(last + 1, now);
+            if (lastMoment.compareAndSet(last, first + count - 1)) {
+                return first;
+            }
         }
-        return time;
+    }
+
+    /**
+     * Timestamp of the changes made at the wall clock time, older than any change made later.
+     *
+     * @param millis wall clock time in milliseconds
+     * @return the smallest timestamp of the millisecond
+     */
+    public static long momentAt(final long millis) {
+        return millis * FACTOR;
+    }
+
+    private static long getMoment() {
+        return moments(1);
     }
 
     public State state() {
@@ -0,0 +1,505 @@
+package ru.mail.polis.dao.senyast.tables;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.dao.Keys;
+import ru.mail.polis.dao.NoSuchElementLite;
+import ru.mail.polis.dao.senyast.model.Cell;
+import ru.mail.polis.dao.senyast.model.RangeTombstone;
+import ru.mail.polis.dao.senyast.model.Value;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Memory table keeping cells off heap. Keys and values are copied to chunks of direct memory and indexed
+ * by a skip list whose nodes live in the chunks too, so a write allocates no objects on heap.
+ *
+ * <p>A node is {@code [value pointer][height][key size][next pointer per level][key]}, a value is
+ * {@code [timestamp][expires at][sequence][previous value pointer][data size, -1 for tombstone][data]}.
+ * A pointer holds the chunk number in the high half and the offset in the low one. Writers take no locks
+ * but to add a chunk: space is claimed by advancing the allocation pointer with CAS, new nodes are linked
+ * into every level bottom up with CAS and so are new values into the chain of the node, which is ordered
+ * by sequence number, the newest first. Readers see the pointers with acquire loads.
+ *
+ * <p>Values written over stay in the chain for readers of older changes. A write unlinks the values below
+ * the newest one of the oldest readable change, so chains of keys taking overwrites stay short. Their space,
+ * like the node of a writer which lost the race to insert the same key, is not reused until the table
+ * is released, so a table taking overwrites of the same keys reaches the flush threshold with fewer live cells.
+ *
+ * <p>Chunks are freed once the last {@link Version} containing the table is released, cells read from the table
+ * must be copied before that. Range tombstones, being rare, are kept on heap.
+ */
+@ThreadSafe
+public final class ArenaMemTable implements MemTable {
+    public static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+
+    private static final int MAX_HEIGHT = 12;
+    /**
+     * Offset zero of the first chunk is never allocated, so no node or value has this pointer.
+     */
+    private static final long NIL = 0;
+
+    private static final int VALUE = 0;
+    private static final int HEIGHT = VALUE + Long.BYTES;
+    private static final int KEY_SIZE = HEIGHT + Integer.BYTES;
+    private static final int NEXT = KEY_SIZE + Integer.BYTES;
+
+    private static final int TIMESTAMP = 0;
+    private static final int EXPIRES_AT = TIMESTAMP + Long.BYTES;
+    private static final int SEQUENCE = EXPIRES_AT + Long.BYTES;
+    private static final int PREVIOUS = SEQUENCE + Long.BYTES;
+    private static final int DATA_SIZE = PREVIOUS + Long.BYTES;
+    private static final int DATA = DATA_SIZE + Integer.BYTES;
+    private static final int TOMBSTONE = -1;
+
+    private static final VarHandle POINTER =
+            MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    /**
+     * Predecessors of the key on every level followed by their successors, filled by every search of a writer.
+     */
+    private static final ThreadLocal<long[]> SEARCH = ThreadLocal.withInitial(() -> new long[2 * MAX_HEIGHT]);
+
+    private final long generation;
+    private final int chunkSize;
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicInteger refs = new AtomicInteger();
+    /**
+     * Pointer to the free space of the chunk being filled, only moved to another chunk under the lock.
+     */
+    private final AtomicLong free;
+    private final long head;
+
+    private final Object chunkLock = new Object();
+    /**
+     * Replaced by a bigger copy before a pointer to a new chunk is published.
+     */
+    private volatile ByteBuffer[] chunks = new ByteBuffer[16];
+    private int chunkCount;
+    private volatile SequencedTombstones rangeTombstones = SequencedTombstones.empty();
+
+    public ArenaMemTable(final long generation) {
+        this(generation, DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * Creates empty memory table.
+     *
+     * @param generation generation of cells in the table
+     * @param chunkSize  size of direct memory chunks, bigger cells get chunks of their own
+     */
+    public ArenaMemTable(final long generation, final int chunkSize) {
+        if (chunkSize <= NEXT + MAX_HEIGHT * Long.BYTES) {
+            throw new IllegalArgumentException("Chunk is too small: " + chunkSize);
+        }
+        this.generation = generation;
+        this.chunkSize = chunkSize;
+        synchronized (chunkLock) {
+            this.free = new AtomicLong(pointer(addChunk(chunkSize), Long.BYTES));
+        }
+        this.head = allocate(NEXT + MAX_HEIGHT * Long.BYTES);
+        chunk(head).putInt(offset(head) + HEIGHT, MAX_HEIGHT);
+    }
+
+    @Override
+    public long generation() {
+        return generation;
+    }
+
+    @Override
+    public long sizeInBytes() {
+        return allocated.get();
+    }
+
+    @Nullable
+    @Override
+    public Value get(@NotNull final ByteBuffer key, final long sequence) {
+        final long node = ceiling(key, null);
+        if (node == NIL || compare(key, node) != 0) {
+            return null;
+        }
+        final long value = visible(valuePointer(node), sequence);
+        return value == NIL ? null : value(value);
+    }
+
+    @Override
+    public Iterator<Cell> iterator(@NotNull final ByteBuffer from, final long sequence) {
+        final long first = ceiling(from, null);
+        return new Iterator<>() {
+            long node = first;
+            long value = skip();
+
+            /**
+             * Moves to the first node from the current one with a value visible, returns the value.
+             */
+            private long skip() {
+                while (node != NIL) {
+                    final long visible = visible(valuePointer(node), sequence);
+                    if (visible != NIL) {
+                        return visible;
+                    }
+                    node = ArenaMemTable.this.next(node, 0);
+                }
+                return NIL;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return node != NIL;
+            }
+
+            @Override
+            public Cell next() {
+                if (node == NIL) {
+                    throw new NoSuchElementLite("No more cells in memory table " + generation);
+                }
+                final Cell cell = new Cell(key(node), value(value), generation);
+                node = ArenaMemTable.this.next(node, 0);
+                value = skip();
+                return cell;
+            }
+        };
+    }
+
+    @Override
+    public void put(@NotNull final ByteBuffer key, @NotNull final Value value, final long sequence,
+                    final long oldest) {
+        store(key, value, sequence, oldest, false);
+    }
+
+    @Override
+    public void restore(@NotNull final ByteBuffer key, @NotNull final Value value) {
+        store(key, value, RESTORED, RESTORED, true);
+    }
+
+    @Override
+    public void removeRange(@NotNull final RangeTombstone tombstone, final long sequence) {
+        synchronized (this) {
+            rangeTombstones = rangeTombstones.with(tombstone, sequence);
+        }
+        allocated.addAndGet(tombstone.getFrom().remaining() + tombstone.getTo().remaining() + Long.BYTES);
+    }
+
+    @NotNull
+    @Override
+    public RangeTombstones rangeTombstones(final long sequence) {
+        return rangeTombstones.visible(sequence);
+    }
+
+    @Override
+    public void retain() {
+        refs.incrementAndGet();
+    }
+
+    /**
+     * Drops a reference, the last one frees the chunks.
+     */
+    @Override
+    public void release() {
+        final int count = refs.decrementAndGet();
+        assert count >= 0;
+        if (count > 0) {
+            return;
+        }
+        synchronized (chunkLock) {
+            final ByteBuffer[] current = chunks;
+            for (int i = 0; i < chunkCount; i++) {
+                MappedBuffers.free(current[i]);
+                current[i] = null;
+            }
+            chunkCount = 0;
+        }
+    }
+
+    private void store(@NotNull final ByteBuffer key, @NotNull final Value value, final long sequence,
+                       final long oldest, final boolean restored) {
+        final long[] search = SEARCH.get();
+        final long pointer = writeValue(value, sequence);
+        long node = NIL;
+        while (true) {
+            final long found = ceiling(key, search);
+            if (found != NIL && compare(key, found) == 0) {
+                if (restored) {
+                    replaceValue(found, pointer);
+                } else {
+                    pushValue(found, pointer, sequence);
+                    prune(pointer, oldest);
+                }
+                return;
+            }
+            if (node == NIL) {
+                node = newNode(key, pointer);
+            }
+            if (link(node, 0, search)) {
+                break;
+            }
+        }
+        final int height = chunk(node).getInt(offset(node) + HEIGHT);
+        for (int level = 1; level < height; level++) {
+            while (!link(node, level, search)) {
+                ceiling(key, search);
+            }
+        }
+    }
+
+    /**
+     * Inserts the value into the chain of the node after the values of newer changes.
+     */
+    private void pushValue(final long node, final long pointer, final long sequence) {
+        ByteBuffer chunk = chunk(node);
+        int offset = offset(node) + VALUE;
+        while (true) {
+            final long current = (long) POINTER.getAcquire(chunk, offset);
+            if (current == NIL || sequence(current) <= sequence) {
+                chunk(pointer).putLong(offset(pointer) + PREVIOUS, current);
+                if (POINTER.compareAndSet(chunk, offset, current, pointer)) {
+                    return;
+                }
+            } else {
+                chunk = chunk(current);
+                offset = offset(current) + PREVIOUS;
+            }
+        }
+    }
+
+    /**
+     * Unlinks the values older than the newest one up to the oldest readable change. Readers never walk past
+     * that value and writers never link values below it, as their changes are newer, so a plain store does.
+     *
+     * @param value  value of the chain to start at, newer than the oldest readable change
+     * @param oldest number of the oldest change a reader may read the table as of
+     */
+    private void prune(final long value, final long oldest) {
+        long pointer = value;
+        while (pointer != NIL && sequence(pointer) > oldest) {
+            pointer = (long) POINTER.getAcquire(chunk(pointer), offset(pointer) + PREVIOUS);
+        }
+        if (pointer != NIL && (long) POINTER.getAcquire(chunk(pointer), offset(pointer) + PREVIOUS) != NIL) {
+            POINTER.setRelease(chunk(pointer), offset(pointer) + PREVIOUS, NIL);
+        }
+    }
+
+    /**
+     * Points the node to the restored value unless it holds a newer one, dropping the chain.
+     */
+    private void replaceValue(final long node, final long pointer) {
+        final ByteBuffer chunk = chunk(node);
+        final int offset = offset(node) + VALUE;
+        final long timestamp = chunk(pointer).getLong(offset(pointer) + TIMESTAMP);
+        long current = (long) POINTER.getAcquire(chunk, offset);
+        while (chunk(current).getLong(offset(current) + TIMESTAMP) <= timestamp) {
+            final long witness = (long) POINTER.compareAndExchangeRelease(chunk, offset, current, pointer);
+            if (witness == current) {
+                return;
+            }
+            current = witness;
+        }
+    }
+
+    /**
+     * Writes node of random height which is linked nowhere yet.
+     */
+    private long newNode(@NotNull final ByteBuffer key, final long value) {
+        final int height = randomHeight();
+        final long node = allocate(NEXT + height * Long.BYTES + key.remaining());
+        final ByteBuffer chunk = chunk(node);
+        final int offset = offset(node);
+        chunk.putLong(offset + VALUE, value);
+        chunk.putInt(offset + HEIGHT, height);
+        chunk.putInt(offset + KEY_SIZE, key.remaining());
+        chunk.duplicate().position(offset + NEXT + height * Long.BYTES).put(key.duplicate());
+        return node;
+    }
+
+    /**
+     * Inserts the node between the predecessor and the successor found on the level, which is reachable
+     * only after the node is linked on the levels below, so its own next pointer may be set plainly.
+     *
+     * @return whether the predecessor still pointed to the successor and now points to the node
+     */
+    private boolean link(final long node, final int level, @NotNull final long[] search) {
+        final long predecessor = search[level];
+        final long successor = search[MAX_HEIGHT + level];
+        chunk(node).putLong(offset(node) + NEXT + level * Long.BYTES, successor);
+        return POINTER.compareAndSet(chunk(predecessor), offset(predecessor) + NEXT + level * Long.BYTES,
+                successor, node);
+    }
+
+    private long writeValue(@NotNull final Value value, final long sequence) {
+        final ByteBuffer data = value.isTombstone() ? null : value.getData();
+        final long pointer = allocate(DATA + (data == null ? 0 : data.remaining()));
+        final ByteBuffer chunk = chunk(pointer);
+        final int offset = offset(pointer);
+        chunk.putLong(offset + TIMESTAMP, value.getTimestamp());
+        chunk.putLong(offset + EXPIRES_AT, value.getExpiresAt());
+        chunk.putLong(offset + SEQUENCE, sequence);
+        chunk.putInt(offset + DATA_SIZE, data == null ? TOMBSTONE : data.remaining());
+        if (data != null) {
+            chunk.duplicate().position(offset + DATA).put(data);
+        }
+        return pointer;
+    }
+
+    /**
+     * Finds the first node with key not less than the given one.
+     *
+     * @param key    key to look for
+     * @param search filled with the last node before the key and the node after it on every level, if not null
+     * @return the node or {@link #NIL}
+     */
+    private long ceiling(@NotNull final ByteBuffer key, @Nullable final long[] search) {
+        long node = head;
+        long next = NIL;
+        for (int level = MAX_HEIGHT - 1; level >= 0; level--) {
+            next = next(node, level);
+            while (next != NIL && compare(key, next) > 0) {
+                node = next;
+                next = next(node, level);
+            }
+            if (search != null) {
+                search[level] = node;
+                search[MAX_HEIGHT + level] = next;
+            }
+        }
+        return next;
+    }
+
+    private int compare(@NotNull final ByteBuffer key, final long node) {
+        final ByteBuffer chunk = chunk(node);
+        final int offset = offset(node);
+        final int keyStart = offset + NEXT + chunk.getInt(offset + HEIGHT) * Long.BYTES;
+        return Keys.compare(key, chunk, keyStart, chunk.getInt(offset + KEY_SIZE));
+    }
+
+    @NotNull
+    private ByteBuffer key(final long node) {
+        final ByteBuffer chunk = chunk(node);
+        final int offset = offset(node);
+        return slice(chunk, offset + NEXT + chunk.getInt(offset + HEIGHT) * Long.BYTES,
+                chunk.getInt(offset + KEY_SIZE));
+    }
+
+    @NotNull
+    private Value value(final long pointer) {
+        final ByteBuffer chunk = chunk(pointer);
+        final int offset = offset(pointer);
+        final long timestamp = chunk.getLong(offset + TIMESTAMP);
+        final int size = chunk.getInt(offset + DATA_SIZE);
+        if (size == TOMBSTONE) {
+            return Value.tombstone(timestamp);
+        }
+        return Value.of(timestamp, slice(chunk, offset + DATA, size), chunk.getLong(offset + EXPIRES_AT));
+    }
+
+    private long next(final long node, final int level) {
+        return (long) POINTER.getAcquire(chunk(node), offset(node) + NEXT + level * Long.BYTES);
+    }
+
+    private long valuePointer(final long node) {
+        return (long) POINTER.getAcquire(chunk(node), offset(node) + VALUE);
+    }
+
+    private long sequence(final long value) {
+        return chunk(value).getLong(offset(value) + SEQUENCE);
+    }
+
+    /**
+     * Finds the value of the newest change up to the sequence number in the chain.
+     *
+     * @param value    the first value of the chain
+     * @param sequence number of the newest change to see
+     * @return the value or {@link #NIL}
+     */
+    private long visible(final long value, final long sequence) {
+        long pointer = value;
+        while (pointer != NIL && sequence(pointer) > sequence) {
+            pointer = (long) POINTER.getAcquire(chunk(pointer), offset(pointer) + PREVIOUS);
+        }
+        return pointer;
+    }
+
+    @NotNull
+    private static ByteBuffer slice(@NotNull final ByteBuffer chunk, final int offset, final int size) {
+        final ByteBuffer result = chunk.asReadOnlyBuffer();
+        result.limit(offset + size).position(offset);
+        return result.slice();
+    }
+
+    private static int randomHeight() {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        int height = 1;
+        while (height < MAX_HEIGHT && random.nextInt(4) == 0) {
+            height++;
+        }
+        return height;
+    }
+
+    @NotNull
+    private ByteBuffer chunk(final long pointer) {
+        return chunks[(int) (pointer >>> Integer.SIZE)];
+    }
+
+    private static int offset(final long pointer) {
+        return (int) pointer;
+    }
+
+    private static long pointer(final int chunk, final int offset) {
+        return ((long) chunk << Integer.SIZE) | offset;
+    }
+
+    /**
+     * Allocates 8-byte aligned space, so the pointers stored at the start are accessed atomically.
+     */
+    private long allocate(final int size) {
+        final int aligned = (size + Long.BYTES - 1) & -Long.BYTES;
+        allocated.addAndGet(aligned);
+        if (aligned > chunkSize) {
+            synchronized (chunkLock) {
+                return pointer(addChunk(aligned), 0);
+            }
+        }
+        while (true) {
+            final long current = free.get();
+            if (offset(current) + aligned <= chunkSize) {
+                if (free.compareAndSet(current, current + aligned)) {
+                    return current;
+                }
+                continue;
+            }
+            synchronized (chunkLock) {
+                // Another writer may have started a chunk meanwhile
+                if (free.get() >>> Integer.SIZE == current >>> Integer.SIZE) {
+                    final long pointer = pointer(addChunk(chunkSize), 0);
+                    // Writers still claiming the rest of the full chunk fail their CAS from now on
+                    free.set(pointer + aligned);
+                    return pointer;
+                }
+            }
+        }
+    }
+
+    /**
+     * Adds chunk of the given size, the tail of the chunk being filled is left unused.
+     *
+     * @return number of the chunk
+     */
+    private int addChunk(final int size) {
+        assert Thread.holdsLock(chunkLock);
+        final ByteBuffer[] current = chunks;
+        final ByteBuffer[] next = chunkCount == current.length
+                ? Arrays.copyOf(current, current.length * 2)
+                : current;
+        next[chunkCount] = ByteBuffer.allocateDirect(size).order(ByteOrder.nativeOrder());
+        chunks = next;
+        return chunkCount++;
+    }
+}
@@ -0,0 +1,163 @@
+package ru.mail.polis.dao.senyast.tables;
+
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.dao.Keys;
+import ru.mail.polis.dao.senyast.model.Cell;
+import ru.mail.polis.dao.senyast.model.Value;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Sorted run of cells with row offsets, searched in place.
+ * Cell is {@code [key size][key][timestamp][value size][value]}, tombstones have negative timestamp and no value.
+ * A value with time to live stores its size inverted, followed by the expiration time:
+ * {@code [key size][key][timestamp][~value size][expires at][value]}.
+ */
+final class Block {
+    private final ByteBuffer cells;
+    private final ByteBuffer offsets;
+    private final boolean wideOffsets;
+    private final int rows;
+
+    private Block(@NotNull final ByteBuffer cells, @NotNull final ByteBuffer offsets,
+                  final boolean wideOffsets, final int rows) {
+        this.cells = cells;
+        this.offsets = offsets;
+        this.wideOffsets = wideOffsets;
+        this.rows = rows;
+    }
+
+    /**
+     * Wraps block of the current format: cells, int offset per row, int rows count.
+     *
+     * @param block buffer starting at zero position
+     */
+    @NotNull
+    static Block of(@NotNull final ByteBuffer block) {
+        assert block.position() == 0;
+        final int rows = block.getInt(block.limit() - Integer.BYTES);
+        return split(block, rows, Integer.BYTES);
+    }
+
+    /**
+     * Wraps data of a legacy table: cells, long offset per row, long rows count.
+     *
+     * @param data buffer starting at zero position
+     */
+    @NotNull
+    static Block legacy(@NotNull final ByteBuffer data) {
+        assert data.position() == 0;
+        final long rows = data.getLong(data.limit() - Long.BYTES);
+        assert rows <= Integer.MAX_VALUE;
+        return split(data, (int) rows, Long.BYTES);
+    }
+
+    private static Block split(@NotNull final ByteBuffer data, final int rows, final int offsetSize) {
+        final int offsetsStart = data.limit() - offsetSize - offsetSize * rows;
+        final ByteBuffer offsetBuffer = data.duplicate();
+        offsetBuffer.position(offsetsStart);
+        offsetBuffer.limit(data.limit() - offsetSize);
+
+        final ByteBuffer cellBuffer = data.duplicate();
+        cellBuffer.limit(offsetsStart);
+        return new Block(cellBuffer.slice(), offsetBuffer.slice(), offsetSize == Long.BYTES, rows);
+    }
+
+    int rows() {
+        return rows;
+    }
+
+    private int offsetAt(final int i) {
+        assert 0 <= i && i < rows;
+        if (wideOffsets) {
+            final long offset = offsets.getLong(i * Long.BYTES);
+            assert offset <= Integer.MAX_VALUE;
+            return (int) offset;
+        }
+        return offsets.getInt(i * Integer.BYTES);
+    }
+
+    /**
+     * Position of the first row with key not less than the given one.
+     */
+    int position(@NotNull final ByteBuffer from, @NotNull final KeyOrder order) {
+        final int found = search(from, order);
+        return found >= 0 ? found : -(found + 1);
+    }
+
+    /**
+     * Binary search of the key.
+     *
+     * @param key   key to look for
+     * @param order order the rows are sorted in
+     * @return index of the key if found, otherwise {@code -(insertion point) - 1}
+     */
+    int search(@NotNull final ByteBuffer key, @NotNull final KeyOrder order) {
+        int left = 0;
+        int right = rows - 1;
+        while (left <= right) {
+            final int mid = left + (right - left) / 2;
+            final int cmp = compareKeyAt(key, mid, order);
+            if (cmp < 0) {
+                right = mid - 1;
+            } else if (cmp > 0) {
+                left = mid + 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(left + 1);
+    }
+
+    /**
+     * Compares key with the key of i-th row in place.
+     */
+    int compareKeyAt(@NotNull final ByteBuffer key, final int i, @NotNull final KeyOrder order) {
+        final int offset = offsetAt(i);
+        return order.compare(key, cells, offset + Integer.BYTES, cells.getInt(offset));
+    }
+
+    /**
+     * Compares key of i-th row with key of j-th row of another block in {@link Keys} order.
+     */
+    int compareRows(final int i, @NotNull final Block other, final int j) {
+        final int offset = offsetAt(i);
+        final int otherOffset = other.offsetAt(j);
+        return Keys.compare(cells, offset + Integer.BYTES, cells.getInt(offset),
+                other.cells, otherOffset + Integer.BYTES, other.cells.getInt(otherOffset));
+    }
+
+    @NotNull
+    Cell cellAt(final int i, final long generation) {
+        final int offset = offsetAt(i);
+        final int keySize = cells.getInt(offset);
+        final ByteBuffer key = cells.duplicate();
+        key.position(offset + Integer.BYTES);
+        key.limit(key.position() + keySize);
+        return new Cell(key.slice(), decodeValue(offset + Integer.BYTES + keySize), generation);
+    }
+
+    @NotNull
+    Value valueAt(final int i) {
+        final int offset = offsetAt(i);
+        return decodeValue(offset + Integer.BYTES + cells.getInt(offset));
+    }
+
+    private Value decodeValue(final int valueOffset) {
+        final long timeStamp = cells.getLong(valueOffset);
+        if (timeStamp < 0) {
+            return Value.tombstone(-timeStamp);
+        }
+        final int valueSize = cells.getInt(valueOffset + Long.BYTES);
+        final ByteBuffer value = cells.duplicate();
+        value.position(valueOffset + Long.BYTES + Integer.BYTES);
+        if (valueSize >= 0) {
+            value.limit(value.position() + valueSize);
+            return Value.of(timeStamp, value.slice());
+        }
+        final long expiresAt = value.getLong(value.position());
+        value.position(value.position() + Long.BYTES);
+        value.limit(value.position() + ~valueSize);
+        return Value.of(timeStamp, value.slice(), expiresAt);
+    }
+}
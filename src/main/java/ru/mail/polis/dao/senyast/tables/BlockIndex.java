@@ -0,0 +1,133 @@
+package ru.mail.polis.dao.senyast.tables;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Sparse index of table blocks kept on heap: position, length and separator key of every block.
+ * Separator is the shortest key greater than the last key of the previous block and not greater
+ * than the first key of the block, so huge keys do not get copied to the index.
+ * Serialized as {@code [offset][length][separator size][separator]} per block.
+ */
+final class BlockIndex {
+    private final long[] offsets;
+    private final int[] lengths;
+    private final ByteBuffer keys;
+    private final int[] keyStarts;
+
+    private BlockIndex(@NotNull final long[] offsets, @NotNull final int[] lengths,
+                       @NotNull final ByteBuffer keys, @NotNull final int[] keyStarts) {
+        this.offsets = offsets;
+        this.lengths = lengths;
+        this.keys = keys;
+        this.keyStarts = keyStarts;
+    }
+
+    /**
+     * Copies serialized index to heap.
+     *
+     * @param buffer serialized index
+     * @param blocks number of blocks
+     * @return loaded index
+     */
+    @NotNull
+    static BlockIndex read(@NotNull final ByteBuffer buffer, final int blocks) {
+        final ByteBuffer input = buffer.duplicate();
+        final long[] offsets = new long[blocks];
+        final int[] lengths = new int[blocks];
+        final int[] keyStarts = new int[blocks + 1];
+        final ByteBuffer keys = ByteBuffer.allocate(input.remaining() - blocks * (Long.BYTES + 2 * Integer.BYTES));
+        for (int i = 0; i < blocks; i++) {
+            offsets[i] = input.getLong();
+            lengths[i] = input.getInt();
+            final int keySize = input.getInt();
+            keyStarts[i] = keys.position();
+            final ByteBuffer key = input.duplicate();
+            key.limit(key.position() + keySize);
+            keys.put(key);
+            input.position(input.position() + keySize);
+        }
+        keyStarts[blocks] = keys.position();
+        return new BlockIndex(offsets, lengths, keys, keyStarts);
+    }
+
+    /**
+     * Appends index entry.
+     *
+     * @param to       buffer with enough room for the entry
+     * @param offset    block position in the file
+     * @param length    block length
+     * @param separator separator key of the block
+     */
+    static void write(@NotNull final ByteBuffer to, final long offset, final int length,
+                      @NotNull final ByteBuffer separator) {
+        to.putLong(offset).putInt(length).putInt(separator.remaining()).put(separator.duplicate());
+    }
+
+    static int entrySize(@NotNull final ByteBuffer separator) {
+        return Long.BYTES + Integer.BYTES + Integer.BYTES + separator.remaining();
+    }
+
+    /**
+     * Shortest prefix of the first key of a block which is still greater than the last key of the previous one.
+     *
+     * @param previousLast last key of the previous block
+     * @param first        first key of the block
+     * @return separator sharing content with the first key
+     */
+    @NotNull
+    static ByteBuffer separator(@NotNull final ByteBuffer previousLast, @NotNull final ByteBuffer first) {
+        final int mismatch = previousLast.mismatch(first);
+        assert mismatch >= 0 && mismatch < first.remaining();
+        final ByteBuffer result = first.duplicate();
+        result.limit(result.position() + mismatch + 1);
+        return result.slice();
+    }
+
+    int blocks() {
+        return offsets.length;
+    }
+
+    long offset(final int block) {
+        return offsets[block];
+    }
+
+    int length(final int block) {
+        return lengths[block];
+    }
+
+    /**
+     * Separator key of the block.
+     */
+    @NotNull
+    ByteBuffer separator(final int block) {
+        final ByteBuffer result = keys.duplicate();
+        result.limit(keyStarts[block + 1]).position(keyStarts[block]);
+        return result.slice().asReadOnlyBuffer();
+    }
+
+    /**
+     * Finds the only block which may contain the key.
+     *
+     * @param key   key to look for
+     * @param order order the blocks are sorted in
+     * @return index of the last block with separator not greater than the given key, -1 if there is no such block
+     */
+    int blockFor(@NotNull final ByteBuffer key, @NotNull final KeyOrder order) {
+        int left = 0;
+        int right = offsets.length - 1;
+        while (left <= right) {
+            final int mid = left + (right - left) / 2;
+            final int cmp = order.compare(key, keys, keyStarts[mid], keyStarts[mid + 1] - keyStarts[mid]);
+            if (cmp < 0) {
+                right = mid - 1;
+            } else if (cmp > 0) {
+                left = mid + 1;
+            } else {
+                return mid;
+            }
+        }
+        return left - 1;
+    }
+}
@@ -0,0 +1,182 @@
+package ru.mail.polis.dao.senyast.tables;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Immutable Bloom filter over table keys, persisted next to the table data.
+ */
+public final class BloomFilter {
+    private static final long SEED = 0x9E3779B97F4A7C15L;
+
+    private final long[] words;
+    private final int hashFunctions;
+    private final long bits;
+
+    private BloomFilter(@NotNull final long[] words, final int hashFunctions) {
+        assert words.length > 0;
+        assert hashFunctions > 0;
+        this.words = words;
+        this.hashFunctions = hashFunctions;
+        this.bits = (long) words.length * Long.SIZE;
+    }
+
+    /**
+     * Builds filter for already hashed keys.
+     *
+     * @param hashes     key hashes computed by {@link #hash(ByteBuffer)}
+     * @param count      number of meaningful elements in hashes
+     * @param bitsPerKey filter bits spent on every key
+     * @return filled filter
+     */
+    @NotNull
+    public static BloomFilter build(@NotNull final long[] hashes, final int count, final int bitsPerKey) {
+        final BloomFilter filter = create(count, bitsPerKey);
+        for (int i = 0; i < count; i++) {
+            filter.add(hashes[i]);
+        }
+        return filter;
+    }
+
+    /**
+     * Creates empty filter to {@link #add(long) add} hashes to. More keys than expected may be added,
+     * at the cost of a higher false positive rate.
+     *
+     * @param expectedKeys number of keys the filter is sized for
+     * @param bitsPerKey   filter bits spent on every expected key
+     * @return empty filter
+     */
+    @NotNull
+    static BloomFilter create(final long expectedKeys, final int bitsPerKey) {
+        assert bitsPerKey > 0;
+        final long maxWords = Integer.MAX_VALUE - 8;
+        final long keys = Math.min(expectedKeys, maxWords * Long.SIZE / bitsPerKey);
+        final long bitsTotal = Math.max(Long.SIZE, keys * bitsPerKey);
+        final int wordsCount = (int) Math.min(maxWords, (bitsTotal + Long.SIZE - 1) / Long.SIZE);
+        // k = ln(2) * m / n minimizes false positive rate
+        final int hashFunctions = Math.max(1, Math.min(30, (int) Math.round(bitsPerKey * Math.log(2))));
+        return new BloomFilter(new long[wordsCount], hashFunctions);
+    }
+
+    /**
+     * Reads filter previously written by {@link #writeTo(ByteBuffer)}.
+     *
+     * @param buffer        words of the filter
+     * @param hashFunctions number of hash functions the filter was built with
+     * @return loaded filter
+     */
+    @NotNull
+    public static BloomFilter read(@NotNull final ByteBuffer buffer, final int hashFunctions) {
+        final long[] words = new long[buffer.remaining() / Long.BYTES];
+        buffer.duplicate().asLongBuffer().get(words);
+        return new BloomFilter(words, hashFunctions);
+    }
+
+    /**
+     * 64-bit hash of the remaining bytes of the key, reading words big-endian whatever the order of the buffer,
+     * so a key hashes the same when the filter is built and when it is queried.
+     *
+     * @param key key to hash
+     * @return hash value
+     */
+    public static long hash(@NotNull final ByteBuffer key) {
+        final int from = key.position();
+        final int to = key.limit();
+        final boolean swap = key.order() != ByteOrder.BIG_ENDIAN;
+        long h = SEED ^ (to - from);
+        int i = from;
+        for (; i + Long.BYTES <= to; i += Long.BYTES) {
+            final long word = swap ? Long.reverseBytes(key.getLong(i)) : key.getLong(i);
+            h = Long.rotateLeft(h ^ mix(word), 27) * 5 + 0x52DCE729;
+        }
+        long tail = 0;
+        for (int shift = 0; i < to; i++, shift += Byte.SIZE) {
+            tail |= (key.get(i) & 0xFFL) << shift;
+        }
+        return mix(h ^ mix(tail));
+    }
+
+    private static long mix(final long value) {
+        long h = value;
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * Adds key to the filter being built.
+     *
+     * @param hash key hash computed by {@link #hash(ByteBuffer)}
+     */
+    void add(final long hash) {
+        final long delta = (hash >>> 32) | 1L;
+        long combined = hash;
+        for (int i = 0; i < hashFunctions; i++) {
+            final long bit = (combined & Long.MAX_VALUE) % bits;
+            words[(int) (bit >>> 6)] |= 1L << bit;
+            combined += delta;
+        }
+    }
+
+    /**
+     * Checks whether the key may be present in the table.
+     *
+     * @param key key to check
+     * @return false if the key is definitely absent
+     */
+    public boolean mightContain(@NotNull final ByteBuffer key) {
+        final long hash = hash(key);
+        final long delta = (hash >>> 32) | 1L;
+        long combined = hash;
+        for (int i = 0; i < hashFunctions; i++) {
+            final long bit = (combined & Long.MAX_VALUE) % bits;
+            if ((words[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+            combined += delta;
+        }
+        return true;
+    }
+
+    public int hashFunctions() {
+        return hashFunctions;
+    }
+
+    public int sizeInBytes() {
+        return words.length * Long.BYTES;
+    }
+
+    /**
+     * Serializes words of the filter.
+     *
+     * @param to buffer to put the words to
+     */
+    public void writeTo(@NotNull final ByteBuffer to) {
+        for (final long word : words) {
+            to.putLong(word);
+        }
+    }
+
+    /**
+     * Grows hash accumulator used while a table is being written.
+     *
+     * @param hashes current accumulator
+     * @param size   number of used elements
+     * @param max    capacity never to grow the accumulator beyond, greater than the size
+     * @return accumulator with room for at least one more element
+     */
+    @NotNull
+    static long[] ensureCapacity(@NotNull final long[] hashes, final int size, final int max) {
+        assert size < max;
+        if (size < hashes.length) {
+            return hashes;
+        }
+        return Arrays.copyOf(hashes, Math.min(max, Math.max(16, hashes.length * 2)));
+    }
+}
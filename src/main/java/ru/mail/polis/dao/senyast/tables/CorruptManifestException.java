@@ -0,0 +1,18 @@
+package ru.mail.polis.dao.senyast.tables;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Thrown when the manifest does not start with a checkpoint matching its checksum, so the set of tables
+ * on disk is unknown. No table is deleted then, removing the manifest opens every table found instead.
+ */
+public class CorruptManifestException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    CorruptManifestException(@NotNull final File manifest, @NotNull final String message) {
+        super("Manifest " + manifest + " is corrupted: " + message);
+    }
+}
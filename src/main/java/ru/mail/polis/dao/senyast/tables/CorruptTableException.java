@@ -0,0 +1,23 @@
+package ru.mail.polis.dao.senyast.tables;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a block of a table does not match its checksum.
+ */
+public class CorruptTableException extends IOException {
+    private static final long serialVersionUID = 1L;
+
+    private final long generation;
+
+    CorruptTableException(final long generation, @NotNull final String message) {
+        super("Table of generation " + generation + " is corrupted: " + message);
+        this.generation = generation;
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+}
@@ -1,133 +1,609 @@
 package ru.mail.polis.dao.senyast.tables;
 
+import com.google.common.collect.PeekingIterator;
 import org.jetbrains.annotations.NotNull;
-import ru.mail.polis.dao.senyast.model.Bytes;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.mail.polis.dao.Keys;
+import ru.mail.polis.dao.NoSuchElementLite;
+import ru.mail.polis.dao.senyast.codec.Codec;
+import ru.mail.polis.dao.senyast.codec.Codecs;
 import ru.mail.polis.dao.senyast.model.Cell;
 import ru.mail.polis.dao.senyast.model.Value;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
-import java.nio.LongBuffer;
 import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32C;
 
 public class FileTable implements Table {
-    private final int rows;
-    private final LongBuffer offsets;
-    private final ByteBuffer cells;
+    private static final Logger log = LoggerFactory.getLogger(FileTable.class);
+
+    private static final AtomicLong MAPPED_BYTES = new AtomicLong();
+    private static final AtomicInteger MAPPED_TABLES = new AtomicInteger();
+
+    /**
+     * Blocks are mapped in segments of at most this size, so tables are not limited by the size of a buffer.
+     */
+    static final long MAX_SEGMENT_SIZE = Integer.MAX_VALUE;
+
+    private static final long UNKNOWN = -1;
+
+    private final long fileSize;
+    private final long segmentSize;
     private final long generation;
     private final File file;
+    /**
+     * Footer properties of tables written in blocks, null for legacy tables holding all the rows in a single block.
+     */
+    @Nullable
+    private final Map<String, Long> properties;
+    private final long propertiesOffset;
+    private final int format;
+    @Nullable
+    private final Codec codec;
+    private final int level;
+    private final KeyOrder keyOrder;
+    private final Verification verification;
+    /**
+     * Rows in {@link KeyOrder#UNSIGNED} order for tables sorted otherwise, built on the first scan.
+     */
+    private volatile KeyPermutation permutation;
+    /**
+     * The newest memory table generation whose cells the table contains.
+     */
+    private final long maxGeneration;
+    private final long rows;
+    /**
+     * Number of tombstone cells and timestamp of the oldest tombstone, range tombstones included,
+     * {@link Long#MAX_VALUE} if there are none. Unknown for tables written without the statistics.
+     */
+    private final long tombstones;
+    private final long oldestTombstone;
+    /**
+     * Number of range tombstone fragments, {@link #UNKNOWN} for tables written without it which have any.
+     */
+    private final long fragments;
+    /**
+     * Mapped blocks, index, bloom filter and range tombstones, loaded on first access.
+     */
+    private volatile Contents contents;
+
+    /**
+     * Number of {@link Version versions} containing the table. Readers pin a version,
+     * so the table is unmapped once no version contains it and nobody reads the versions which did.
+     */
+    private final AtomicInteger refs = new AtomicInteger();
+    private volatile boolean obsolete;
 
     /**
-     * Creates instance of FileTable and get data from file.
+     * Creates instance of FileTable reading only the footer of the file, the rest is loaded on first access
+     * or by {@link #load()}. Legacy tables are loaded at once.
      *
-     * @param file       to get data
-     * @param generation of data
+     * @param file         to get data
+     * @param generation   of data
+     * @param verification when blocks are checked against their checksums
      * @throws IOException if was input or output errors
      */
-    public FileTable(@NotNull final File file, final long generation) throws IOException {
+    public FileTable(@NotNull final File file, final long generation,
+                     @NotNull final Verification verification) throws IOException {
+        this(file, generation, verification, MAX_SEGMENT_SIZE);
+    }
+
+    /**
+     * Creates instance mapping the blocks in segments of at most the given size, a block bigger than that
+     * getting a segment of its own. Smaller segments only cost more mappings.
+     *
+     * @param file         to get data
+     * @param generation   of data
+     * @param verification when blocks are checked against their checksums
+     * @param segmentSize  size in bytes of the largest segment mapped, up to {@code Integer.MAX_VALUE}
+     * @throws IOException if was input or output errors
+     */
+    public FileTable(@NotNull final File file, final long generation, @NotNull final Verification verification,
+                     final long segmentSize) throws IOException {
+        if (segmentSize <= 0 || segmentSize > MAX_SEGMENT_SIZE) {
+            throw new IllegalArgumentException("Bad segment size: " + segmentSize);
+        }
+        this.segmentSize = segmentSize;
         this.generation = generation;
         this.file = file;
+        this.verification = verification;
+        this.fileSize = file.length();
 
-        final long fileSize = file.length();
-        final ByteBuffer mapped;
         try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
-            assert fileSize <= Integer.MAX_VALUE;
-            mapped = fc.map(FileChannel.MapMode.READ_ONLY, 0L, fileSize).order(ByteOrder.BIG_ENDIAN);
+            final ByteBuffer trailer = read(fc, Math.max(0, fileSize - TableFormat.BLOOM_FOOTER_SIZE), fileSize);
+            this.format = TableFormat.version(trailer);
+            if (format == TableFormat.VERSION_BLOCKS || format == TableFormat.VERSION_CHECKED) {
+                final int footerSize = TableFormat.footerSize(format);
+                if (trailer.limit() < footerSize) {
+                    throw new CorruptTableException(generation, "footer of " + file + " is truncated");
+                }
+                this.propertiesOffset = trailer.getLong(trailer.limit() - TableFormat.FOOTER_SIZE);
+                if (propertiesOffset < 0 || propertiesOffset > fileSize - footerSize) {
+                    throw new CorruptTableException(generation,
+                            "properties offset " + propertiesOffset + " of " + file + " is out of bounds");
+                }
+                final ByteBuffer stored = read(fc, propertiesOffset, fileSize - footerSize);
+                if (format == TableFormat.VERSION_CHECKED
+                        && (int) TableFormat.checksum(stored) != trailer.getInt(trailer.limit() - footerSize)) {
+                    throw new CorruptTableException(generation,
+                            "properties of " + file + " do not match their checksum");
+                }
+                this.properties = TableFormat.readProperties(stored);
+                this.rows = TableFormat.property(properties, TableFormat.ROWS);
+                this.tombstones = properties.getOrDefault(TableFormat.TOMBSTONES, 0L);
+                this.oldestTombstone = properties.getOrDefault(TableFormat.TOMBSTONES_OLDEST, Long.MAX_VALUE);
+                this.fragments = properties.getOrDefault(TableFormat.RANGES_FRAGMENTS,
+                        properties.containsKey(TableFormat.RANGES_OFFSET) ? UNKNOWN : 0L);
+                this.codec = Codecs.byId(
+                        properties.getOrDefault(TableFormat.CODEC, (long) Codecs.NONE_ID).intValue());
+                this.level = properties.getOrDefault(TableFormat.LEVEL, 0L).intValue();
+                this.maxGeneration = properties.getOrDefault(TableFormat.MAX_GENERATION, generation);
+                this.keyOrder = KeyOrder.of(
+                        properties.getOrDefault(TableFormat.KEY_ORDER, (long) KeyOrder.SIGNED.ordinal()));
+            } else {
+                // Legacy formats address rows with int offsets, so their files never exceed a segment
+                if (fileSize > MAX_SEGMENT_SIZE) {
+                    throw new IllegalStateException("Legacy table " + file + " is too large: " + fileSize);
+                }
+                this.propertiesOffset = 0;
+                this.properties = null;
+                this.codec = null;
+                this.level = 0;
+                this.maxGeneration = generation;
+                this.keyOrder = KeyOrder.SIGNED;
+                this.tombstones = 0;
+                this.oldestTombstone = Long.MAX_VALUE;
+                this.fragments = 0;
+                final Contents loaded = loadLegacy(fc);
+                this.contents = loaded;
+                assert loaded.legacy != null;
+                this.rows = loaded.legacy.rows();
+            }
         }
-        final long rowsValue = mapped.getLong((int) (fileSize - Long.BYTES));
-        assert rowsValue <= Integer.MAX_VALUE;
-        this.rows = (int) rowsValue;
-
-        final ByteBuffer offsetBuffer = mapped.duplicate();
-        offsetBuffer.position(mapped.limit() - Long.BYTES * rows - Long.BYTES);
-        offsetBuffer.limit(mapped.limit() - Long.BYTES);
-        this.offsets = offsetBuffer.slice().asLongBuffer();
-
-        final ByteBuffer cellBuffer = mapped.duplicate();
-        cellBuffer.limit(offsetBuffer.position());
-        this.cells = cellBuffer.slice();
     }
 
     /**
-     * Write data to disk.
+     * Maps the file and reads the index, bloom filter and range tombstones unless already done.
+     * Called by readers on first access, so calling it in advance only saves them the wait.
      *
-     * @param cells data iterator to write
-     * @param to    ile location
      * @throws IOException if was input or output errors
      */
-    public static void writeToFile(@NotNull final Iterator<Cell> cells, @NotNull final File to)
-            throws IOException {
-        try (FileChannel fileChannel = FileChannel.open(
-                to.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
-            final List<Long> offsets = new ArrayList<>();
-            long offset = 0;
-            while (cells.hasNext()) {
-                offsets.add(offset);
-
-                final Cell cell = cells.next();
-
-                final ByteBuffer key = cell.getKey();
-                final int keySize = cell.getKey().remaining();
-                fileChannel.write(Bytes.fromInt(keySize));
-                offset += Integer.BYTES;
-                final ByteBuffer keyDuplicate = key.duplicate();
-                fileChannel.write(keyDuplicate);
-                offset += keySize;
-
-                final Value value = cell.getValue();
-
-                if (value.isTombstone()) {
-                    fileChannel.write(Bytes.fromLong(-cell.getValue().getTimestamp()));
-                } else {
-                    fileChannel.write(Bytes.fromLong(cell.getValue().getTimestamp()));
-                }
+    public void load() throws IOException {
+        try {
+            contents();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
 
-                offset += Long.BYTES;
-                if (!value.isTombstone()) {
-                    final ByteBuffer valueData = value.getData();
-                    final int valueSize = value.getData().remaining();
-                    fileChannel.write(Bytes.fromInt(valueSize));
-                    offset += Integer.BYTES;
-                    fileChannel.write(valueData);
-                    offset += valueSize;
+    @NotNull
+    private Contents contents() {
+        Contents result = contents;
+        if (result == null) {
+            synchronized (this) {
+                result = contents;
+                if (result == null) {
+                    try (FileChannel fc = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                        result = loadBlocks(fc);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException("Can't load table " + file, e);
+                    }
+                    contents = result;
                 }
             }
-            for (final Long anOffset : offsets) {
-                fileChannel.write(Bytes.fromLong(anOffset));
+        }
+        return result;
+    }
+
+    /**
+     * Reads the index, block checksums, bloom filter and range tombstones, which lie between the index offset
+     * and the properties, at once and checks them against the metadata checksum if the table has one.
+     */
+    @NotNull
+    private Contents loadBlocks(@NotNull final FileChannel fc) throws IOException {
+        assert properties != null;
+        final long indexOffset = TableFormat.property(properties, TableFormat.INDEX_OFFSET);
+        final Metadata metadata = new Metadata(read(fc, indexOffset, propertiesOffset), indexOffset);
+        final Long expected = properties.get(TableFormat.METADATA_CHECKSUM);
+        if (expected != null && TableFormat.checksum(metadata.stored) != expected) {
+            throw new CorruptTableException(generation,
+                    "index, bloom filter or range tombstones of " + file + " do not match their checksum");
+        }
+        final BlockIndex index = BlockIndex.read(
+                metadata.part(indexOffset, TableFormat.property(properties, TableFormat.INDEX_LENGTH)),
+                (int) TableFormat.property(properties, TableFormat.BLOCKS));
+        final long[] bounds = segmentBounds(index, indexOffset, segmentSize);
+        return new Contents(map(fc, bounds), bounds, readBloom(metadata, properties), index, null,
+                readRangeTombstones(metadata, properties), readChecksums(metadata, properties, index.blocks()));
+    }
+
+    /**
+     * Part of the file between the index offset and the properties, read to heap.
+     */
+    private final class Metadata {
+        private final ByteBuffer stored;
+        private final long offset;
+
+        Metadata(@NotNull final ByteBuffer stored, final long offset) {
+            this.stored = stored;
+            this.offset = offset;
+        }
+
+        @NotNull
+        ByteBuffer part(final long from, final long length) throws CorruptTableException {
+            if (from < offset || length < 0 || from - offset + length > stored.limit()) {
+                throw new CorruptTableException(generation,
+                        "metadata at " + from + " of length " + length + " of " + file + " is out of bounds");
             }
+            final ByteBuffer result = stored.duplicate();
+            result.position((int) (from - offset));
+            result.limit((int) (from - offset + length));
+            return result.slice();
+        }
+    }
 
-            fileChannel.write(Bytes.fromLong(offsets.size()));
+    @NotNull
+    private Contents loadLegacy(@NotNull final FileChannel fc) throws IOException {
+        final long[] bounds = {0, fileSize};
+        final ByteBuffer[] segments = map(fc, bounds);
+        final ByteBuffer mapped = segments[0];
+        int dataSize = mapped.limit();
+        final BloomFilter bloom;
+        if (format == TableFormat.VERSION_BLOOM) {
+            final long bloomOffset = mapped.getLong(dataSize - TableFormat.BLOOM_FOOTER_SIZE);
+            final int hashFunctions = mapped.getInt(dataSize - TableFormat.BLOOM_FOOTER_SIZE + Long.BYTES);
+            bloom = hashFunctions == 0 ? null : BloomFilter.read(
+                    slice(mapped, (int) bloomOffset, dataSize - TableFormat.BLOOM_FOOTER_SIZE), hashFunctions);
+            dataSize = (int) bloomOffset;
+        } else {
+            bloom = null;
         }
+        return new Contents(segments, bounds, bloom, null, Block.legacy(slice(mapped, 0, dataSize)),
+                RangeTombstones.EMPTY, null);
+    }
+
+    @Nullable
+    private static BloomFilter readBloom(@NotNull final Metadata metadata,
+                                         @NotNull final Map<String, Long> properties) throws IOException {
+        final Long offset = properties.get(TableFormat.BLOOM_OFFSET);
+        if (offset == null) {
+            return null;
+        }
+        final long length = TableFormat.property(properties, TableFormat.BLOOM_LENGTH);
+        final int hashFunctions = (int) TableFormat.property(properties, TableFormat.BLOOM_HASHES);
+        return BloomFilter.read(metadata.part(offset, length), hashFunctions);
+    }
+
+    @NotNull
+    private static RangeTombstones readRangeTombstones(@NotNull final Metadata metadata,
+                                                      @NotNull final Map<String, Long> properties) throws IOException {
+        final Long offset = properties.get(TableFormat.RANGES_OFFSET);
+        if (offset == null) {
+            return RangeTombstones.EMPTY;
+        }
+        final long length = TableFormat.property(properties, TableFormat.RANGES_LENGTH);
+        return RangeTombstones.read(metadata.part(offset, length));
+    }
+
+    @Nullable
+    private static int[] readChecksums(@NotNull final Metadata metadata, @NotNull final Map<String, Long> properties,
+                                       final int blocks) throws IOException {
+        final Long offset = properties.get(TableFormat.CHECKSUMS_OFFSET);
+        if (offset == null) {
+            return null;
+        }
+        final int[] result = new int[blocks];
+        metadata.part(offset, (long) blocks * Integer.BYTES).asIntBuffer().get(result);
+        return result;
+    }
+
+    /**
+     * Reads a part of the file to heap.
+     */
+    @NotNull
+    private static ByteBuffer read(@NotNull final FileChannel fc, final long from, final long to) throws IOException {
+        assert 0 <= from && from <= to && to - from <= Integer.MAX_VALUE;
+        final ByteBuffer result = ByteBuffer.allocate((int) (to - from));
+        while (result.hasRemaining()) {
+            if (fc.read(result, from + result.position()) < 0) {
+                throw new EOFException("Table is truncated at " + (from + result.position()));
+            }
+        }
+        return result.flip();
+    }
+
+    /**
+     * Splits the blocks into segments small enough to be mapped, a block never spans two segments.
+     *
+     * @param index       index of the blocks
+     * @param dataSize    total size of the blocks
+     * @param segmentSize size of the largest segment unless a single block is bigger
+     * @return offsets of the segments followed by the end of the last one
+     */
+    @NotNull
+    private static long[] segmentBounds(@NotNull final BlockIndex index, final long dataSize,
+                                        final long segmentSize) {
+        long[] result = new long[2];
+        int segments = 1;
+        for (int i = 0; i < index.blocks(); i++) {
+            // A block bigger than a segment starting the current one stays in it alone
+            if (index.offset(i) + index.length(i) - result[segments - 1] > segmentSize
+                    && index.offset(i) > result[segments - 1]) {
+                if (segments == result.length - 1) {
+                    result = Arrays.copyOf(result, result.length * 2);
+                }
+                result[segments++] = index.offset(i);
+            }
+        }
+        result[segments] = dataSize;
+        return Arrays.copyOf(result, segments + 1);
+    }
+
+    @NotNull
+    private static ByteBuffer[] map(@NotNull final FileChannel fc, @NotNull final long[] bounds) throws IOException {
+        final ByteBuffer[] result = new ByteBuffer[bounds.length - 1];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = fc.map(FileChannel.MapMode.READ_ONLY, bounds[i], bounds[i + 1] - bounds[i])
+                    .order(ByteOrder.BIG_ENDIAN);
+        }
+        return result;
+    }
+
+    @NotNull
+    private static ByteBuffer slice(@NotNull final ByteBuffer buffer, final int from, final int to) {
+        final ByteBuffer result = buffer.duplicate();
+        result.limit(to).position(from);
+        return result.slice();
+    }
+
+    /**
+     * Write data to disk. Stops at {@link TableOptions#fileSizeLimit()} leaving the rest of the cells
+     * in the iterator, the range tombstones from the first of them on are left for the next table.
+     *
+     * @param cells           data iterator to write
+     * @param to              file location
+     * @param options         format settings of the table
+     * @param level           level of the table
+     * @param maxGeneration   the newest memory table generation the cells come from
+     * @param rangeTombstones range tombstones to store with the cells
+     * @throws IOException if was input or output errors
+     */
+    public static void writeToFile(@NotNull final PeekingIterator<Cell> cells, @NotNull final File to,
+                                   @NotNull final TableOptions options, final int level, final long maxGeneration,
+                                   @NotNull final RangeTombstones rangeTombstones) throws IOException {
+        try (FileChannel fileChannel = FileChannel.open(
+                to.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+            final TableWriter writer = new TableWriter(fileChannel, options, level, maxGeneration);
+            while (cells.hasNext() && writer.size() < options.fileSizeLimit()) {
+                writer.add(cells.next());
+            }
+            writer.finish(cells.hasNext() ? rangeTombstones.before(cells.peek().getKey()) : rangeTombstones);
+            // The write ahead log of the cells is deleted once the table is renamed into place
+            fileChannel.force(false);
+        }
+    }
+
+    /**
+     * Checks bloom filter of the table, if any, before touching the data.
+     *
+     * @param key key to look for
+     * @return false if the table definitely does not contain the key
+     */
+    public boolean mightContain(@NotNull final ByteBuffer key) {
+        final BloomFilter bloom = contents().bloom;
+        return bloom == null || bloom.mightContain(key);
     }
 
     @Override
     public long sizeInBytes()
     {
-        return 0;
+        return fileSize;
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    public long getMaxGeneration() {
+        return maxGeneration;
+    }
+
+    /**
+     * Share of tombstones among the rows, every range tombstone fragment counting as a row.
+     * Read from the properties, only tables written without the number of fragments load the range tombstones.
+     *
+     * @return ratio from zero to one
+     */
+    public double tombstoneRatio() {
+        final long ranges = fragments == UNKNOWN ? rangeTombstones().fragments().size() : fragments;
+        return (double) (tombstones + ranges) / Math.max(1, rows + ranges);
+    }
+
+    /**
+     * Timestamp of the oldest tombstone, range tombstones included.
+     *
+     * @return the timestamp or {@link Long#MAX_VALUE} if the table has no tombstones or is written without
+     *         tombstone statistics
+     */
+    public long getOldestTombstone() {
+        return oldestTombstone;
+    }
+
+    /**
+     * Separator keys of the blocks but the first one, every key starting about a block of data,
+     * to split the key range of the table into parts of similar size.
+     *
+     * @return keys in ascending order, empty for tables not stored in blocks sorted by unsigned bytes
+     */
+    @NotNull
+    public List<ByteBuffer> splitPoints() {
+        final BlockIndex index = contents().index;
+        if (index == null || keyOrder != KeyOrder.UNSIGNED) {
+            return List.of();
+        }
+        final List<ByteBuffer> result = new ArrayList<>(index.blocks());
+        for (int i = 1; i < index.blocks(); i++) {
+            result.add(index.separator(i));
+        }
+        return result;
+    }
+
+    /**
+     * Smallest key of the table, a range tombstone starting before the cells extends the table down to its start.
+     *
+     * @return the key or null if the table is empty
+     */
+    @Nullable
+    public ByteBuffer getFirstKey() {
+        final ByteBuffer cells = firstCellKey();
+        final ByteBuffer ranges = rangeTombstones().firstKey();
+        if (ranges == null || cells != null && Keys.compare(cells, ranges) <= 0) {
+            return cells;
+        }
+        return ranges.asReadOnlyBuffer();
+    }
+
+    /**
+     * Largest key of the table, a range tombstone ending after the cells extends the table up to its end.
+     *
+     * @return the key or null if the table is empty
+     */
+    @Nullable
+    public ByteBuffer getLastKey() {
+        final ByteBuffer cells = lastCellKey();
+        final ByteBuffer ranges = rangeTombstones().lastKey();
+        if (ranges == null || cells != null && Keys.compare(cells, ranges) >= 0) {
+            return cells;
+        }
+        return ranges.asReadOnlyBuffer();
+    }
+
+    @Nullable
+    private ByteBuffer firstCellKey() {
+        final ByteBuffer firstKey = contents().firstKey;
+        if (firstKey == null) {
+            return null;
+        }
+        return keyOrder == KeyOrder.UNSIGNED
+                ? firstKey.asReadOnlyBuffer()
+                : permutation().cellAt(0, generation).getKey().asReadOnlyBuffer();
+    }
+
+    @Nullable
+    private ByteBuffer lastCellKey() {
+        final ByteBuffer lastKey = contents().lastKey;
+        if (lastKey == null) {
+            return null;
+        }
+        if (keyOrder == KeyOrder.UNSIGNED) {
+            return lastKey.asReadOnlyBuffer();
+        }
+        final KeyPermutation rows = permutation();
+        return rows.cellAt(rows.size() - 1, generation).getKey().asReadOnlyBuffer();
     }
 
+    @NotNull
+    @Override
+    public RangeTombstones rangeTombstones() {
+        return contents().rangeTombstones;
+    }
+
+    @NotNull
+    private KeyPermutation permutation() {
+        KeyPermutation result = permutation;
+        if (result == null) {
+            synchronized (this) {
+                result = permutation;
+                if (result == null) {
+                    final Contents loaded = contents();
+                    final Block[] all = new Block[loaded.blocks()];
+                    for (int i = 0; i < all.length; i++) {
+                        all[i] = loaded.block(i, verifyReads());
+                    }
+                    result = KeyPermutation.sort(all);
+                    permutation = result;
+                    log.info("Sorted " + result.size() + " rows of " + file + " written in signed key order");
+                }
+            }
+        }
+        return result;
+    }
+
+    private boolean verifyReads() {
+        return verification != Verification.COMPACTION;
+    }
+
+    /**
+     * Iterates over the cells checking blocks as {@link Verification} says for reads.
+     * A corrupted block fails the iteration with {@link UncheckedIOException} caused by {@link CorruptTableException}.
+     */
     @NotNull
     @Override
     public Iterator<Cell> iterator(@NotNull final ByteBuffer from) {
+        return iterator(from, verifyReads());
+    }
+
+    /**
+     * Iterates over the cells for compaction checking every block, unless checked before
+     * with {@link Verification#FIRST_READ}, so a corrupted table is never merged into new ones.
+     *
+     * @param from key to start at
+     * @return iterator failing with {@link UncheckedIOException} caused by {@link CorruptTableException}
+     */
+    @NotNull
+    public Iterator<Cell> compactionIterator(@NotNull final ByteBuffer from) {
+        return iterator(from, true);
+    }
+
+    @NotNull
+    private Iterator<Cell> iterator(@NotNull final ByteBuffer from, final boolean verify) {
+        if (keyOrder != KeyOrder.UNSIGNED) {
+            return permutation().iterator(from, generation);
+        }
+        final Contents loaded = contents();
+        final int first = loaded.index == null ? 0 : Math.max(0, loaded.index.blockFor(from, keyOrder));
         return new Iterator<>() {
-            int next = position(from);
+            int blockIndex = first;
+            Block block = first < loaded.blocks() ? loaded.block(first, verify) : null;
+            int next = block == null ? 0 : block.position(from, keyOrder);
 
             @Override
             public boolean hasNext()
             {
-                return next < rows;
+                while (block != null && next >= block.rows()) {
+                    blockIndex++;
+                    block = blockIndex < loaded.blocks() ? loaded.block(blockIndex, verify) : null;
+                    next = 0;
+                }
+                return block != null;
             }
 
             @Override
             public Cell next() {
-                assert hasNext();
-                return cellAt(next++);
+                if (!hasNext()) {
+                    throw new NoSuchElementLite("No more cells in " + file);
+                }
+                return block.cellAt(next++, generation);
             }
         };
     }
@@ -142,64 +618,241 @@ public class FileTable implements Table {
         throw new UnsupportedOperationException("");
     }
 
-    private int position(final @NotNull ByteBuffer from) {
-        int left = 0;
-        int right = rows - 1;
-        while (left <= right) {
-            final int mid = left + (right - left) / 2;
-            final int cmp = from.compareTo(keyAt(mid));
-            if (cmp < 0) {
-                right = mid - 1;
-            } else if (cmp > 0) {
-                left = mid + 1;
-            } else {
-                return mid;
-            }
+    /**
+     * Looks the key up in the order the table is sorted in, whatever it is.
+     *
+     * @throws CorruptTableException if the block of the key does not match its checksum
+     */
+    @Nullable
+    @Override
+    public Value get(@NotNull final ByteBuffer key) throws IOException {
+        try {
+            return find(key);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
         }
-        return left;
     }
 
-    private ByteBuffer keyAt(final int i) {
-        assert 0 <= i && i < rows;
-        final long offset = offsets.get(i);
-        assert offset <= Integer.MAX_VALUE;
-        final int keySize = cells.getInt((int) offset);
-        final ByteBuffer key = cells.duplicate();
-        key.position((int) (offset + Integer.BYTES));
-        key.limit(key.position() + keySize);
-        return key.slice();
+    @Nullable
+    private Value find(@NotNull final ByteBuffer key) {
+        final Contents loaded = contents();
+        if (loaded.firstKey == null || compare(key, loaded.firstKey) < 0 || compare(key, loaded.lastKey) > 0
+                || loaded.bloom != null && !loaded.bloom.mightContain(key)) {
+            return null;
+        }
+        final int blockIndex = loaded.index == null ? 0 : loaded.index.blockFor(key, keyOrder);
+        if (blockIndex < 0 || blockIndex >= loaded.blocks()) {
+            return null;
+        }
+        final Block block = loaded.block(blockIndex, verifyReads());
+        final int found = block.search(key, keyOrder);
+        if (found < 0) {
+            return null;
+        }
+        return block.valueAt(found);
     }
 
-    private Cell cellAt(final int i) {
-        assert 0 <= i && i < rows;
-        long offset = offsets.get(i);
-        assert offset <= Integer.MAX_VALUE;
+    private int compare(@NotNull final ByteBuffer key, @NotNull final ByteBuffer bound) {
+        return keyOrder.compare(key, bound, bound.position(), bound.remaining());
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Total size of the file parts mapped by the tables of all databases and not unmapped yet.
+     *
+     * @return size in bytes
+     */
+    public static long mappedBytes() {
+        return MAPPED_BYTES.get();
+    }
 
-        final int keySize = cells.getInt((int) offset);
-        offset += Integer.BYTES;
-        final ByteBuffer key = cells.duplicate();
-        key.position((int) offset);
-        key.limit(key.position() + keySize);
-        offset += keySize;
+    /**
+     * Number of tables of all databases whose files are still mapped.
+     *
+     * @return number of tables
+     */
+    public static int mappedTables() {
+        return MAPPED_TABLES.get();
+    }
 
-        final long timeStamp = cells.getLong((int) offset);
-        offset += Long.BYTES;
+    void retain() {
+        refs.incrementAndGet();
+    }
 
-        if (timeStamp < 0) {
-            return new Cell(key.slice(), Value.tombstone(-timeStamp), generation);
-        } else {
-            final int valueSize = cells.getInt((int) offset);
-            offset += Integer.BYTES;
-            final ByteBuffer value = cells.duplicate();
-            value.position((int) offset);
-            value.limit(value.position() + valueSize)
-                    .position((int) offset)
-                    .limit((int) (offset + valueSize));
-            return new Cell(key.slice(), Value.of(timeStamp, value.slice()), generation);
+    /**
+     * Drops a reference. The last one unmaps the file, the file of an obsolete table is deleted as well.
+     * A table is never published again once no version contains it.
+     */
+    void release() {
+        final int count = refs.decrementAndGet();
+        assert count >= 0;
+        if (count > 0) {
+            return;
+        }
+        final Contents loaded = contents;
+        if (loaded != null) {
+            for (final ByteBuffer segment : loaded.segments) {
+                MappedBuffers.unmap(segment);
+            }
+            MAPPED_BYTES.addAndGet(-loaded.mappedSize());
+            MAPPED_TABLES.decrementAndGet();
+        }
+        if (obsolete) {
+            try {
+                Files.delete(file.toPath());
+            } catch (IOException e) {
+                log.error("Can't delete obsolete table " + file, e);
+            }
         }
     }
 
-    public File getFile() {
-        return file;
+    /**
+     * Marks the table replaced, so it is deleted once no version contains it.
+     * Must be called before the version without the table is published.
+     */
+    void markObsolete() {
+        obsolete = true;
+    }
+
+    /**
+     * Parts of the table needed to read cells.
+     */
+    private final class Contents {
+        /**
+         * Mapped parts of the file. The blocks are mapped for tables written in blocks, the whole file otherwise.
+         */
+        private final ByteBuffer[] segments;
+        /**
+         * File offset of every segment followed by the end of the last one.
+         */
+        private final long[] bounds;
+        @Nullable
+        private final BloomFilter bloom;
+        /**
+         * Index of tables written in blocks, null for legacy tables holding all the rows in a single block.
+         */
+        @Nullable
+        private final BlockIndex index;
+        @Nullable
+        private final Block legacy;
+        private final RangeTombstones rangeTombstones;
+        /**
+         * The first and the last key in the order of the table.
+         */
+        @Nullable
+        private final ByteBuffer firstKey;
+        @Nullable
+        private final ByteBuffer lastKey;
+        /**
+         * CRC32C of every block as stored, null for tables written without checksums.
+         */
+        @Nullable
+        private final int[] checksums;
+        /**
+         * Blocks found matching their checksums for {@link Verification#FIRST_READ}, a plain array written
+         * and read without synchronization on purpose. The race is benign: a flag is only ever set to true,
+         * after checking bytes which never change while the table is mapped, so a reader which misses
+         * a flag set by another thread checks the block once more, and one which sees it skips a check
+         * already passed. No other state is published through the flags.
+         */
+        private final boolean[] verified;
+
+        Contents(@NotNull final ByteBuffer[] segments, @NotNull final long[] bounds, @Nullable final BloomFilter bloom,
+                 @Nullable final BlockIndex index, @Nullable final Block legacy,
+                 @NotNull final RangeTombstones rangeTombstones, @Nullable final int[] checksums) {
+            this.segments = segments;
+            this.bounds = bounds;
+            this.bloom = bloom;
+            this.index = index;
+            this.legacy = legacy;
+            this.rangeTombstones = rangeTombstones;
+            this.checksums = checksums;
+            this.verified = new boolean[checksums == null ? 0 : checksums.length];
+            MAPPED_BYTES.addAndGet(mappedSize());
+            MAPPED_TABLES.incrementAndGet();
+
+            final Block first = blocks() == 0 ? null : block(0, verifyReads());
+            if (first == null || first.rows() == 0) {
+                this.firstKey = null;
+                this.lastKey = null;
+            } else {
+                // Slices of the mapped file, or of a decompressed block for compressed tables
+                this.firstKey = first.cellAt(0, generation).getKey();
+                final Block last = block(blocks() - 1, verifyReads());
+                this.lastKey = last.cellAt(last.rows() - 1, generation).getKey();
+            }
+        }
+
+        private long mappedSize() {
+            return bounds[bounds.length - 1] - bounds[0];
+        }
+
+        /**
+         * Slice of the mapped segment holding the given range of the file, no copying involved.
+         */
+        @NotNull
+        private ByteBuffer slice(final long from, final long to) {
+            int segment = Arrays.binarySearch(bounds, 0, segments.length, from);
+            if (segment < 0) {
+                segment = -segment - 2;
+            }
+            assert 0 <= segment && from <= to && to <= bounds[segment + 1];
+            final ByteBuffer result = segments[segment].duplicate();
+            result.limit((int) (to - bounds[segment]));
+            result.position((int) (from - bounds[segment]));
+            return result.slice();
+        }
+
+        private int blocks() {
+            return index == null ? 1 : index.blocks();
+        }
+
+        /**
+         * Decodes the block.
+         *
+         * @param i      index of the block
+         * @param verify whether to check the block against its checksum, once for {@link Verification#FIRST_READ}
+         * @throws UncheckedIOException caused by {@link CorruptTableException} if the check fails
+         */
+        @NotNull
+        private Block block(final int i, final boolean verify) {
+            if (index == null) {
+                assert legacy != null;
+                return legacy;
+            }
+            final long offset = index.offset(i);
+            final ByteBuffer stored = slice(offset, offset + index.length(i));
+            if (verify && checksums != null && (verification != Verification.FIRST_READ || !verified[i])) {
+                verify(i, offset, stored);
+            }
+            if (codec == null) {
+                return Block.of(stored);
+            }
+            final int blockCodec = stored.get(0);
+            final int size = stored.getInt(Byte.BYTES);
+            stored.position(TableFormat.BLOCK_HEADER_SIZE);
+            if (blockCodec == Codecs.NONE_ID) {
+                return Block.of(stored.slice());
+            }
+            final Codec actual = blockCodec == codec.id() ? codec : Codecs.byId(blockCodec);
+            assert actual != null;
+            final ByteBuffer block = ByteBuffer.allocate(size);
+            actual.decompress(stored, block);
+            return Block.of(block.flip());
+        }
+
+        private void verify(final int i, final long offset, @NotNull final ByteBuffer stored) {
+            assert checksums != null;
+            final CRC32C crc = new CRC32C();
+            crc.update(stored.duplicate());
+            if ((int) crc.getValue() != checksums[i]) {
+                throw new UncheckedIOException(new CorruptTableException(generation,
+                        "block " + i + " at offset " + offset + " of " + file + " does not match its checksum"));
+            }
+            verified[i] = true;
+        }
     }
 }
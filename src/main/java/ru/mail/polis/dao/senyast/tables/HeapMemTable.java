@@ -0,0 +1,207 @@
+package ru.mail.polis.dao.senyast.tables;
+
+import com.google.common.collect.Iterators;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.dao.Keys;
+import ru.mail.polis.dao.senyast.model.Cell;
+import ru.mail.polis.dao.senyast.model.RangeTombstone;
+import ru.mail.polis.dao.senyast.model.Value;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Memory table keeping cells on heap in a concurrent skip list. Every key maps to the chain of its values
+ * ordered by sequence number, the newest first. Writing a key drops the values no reader can see anymore,
+ * so overwrites of a hot key keep the chain short and the table holds little besides live cells.
+ */
+@ThreadSafe
+public class HeapMemTable implements MemTable {
+    /*
+     * Heap taken by an entry besides the bytes of the key and the value, estimated for compressed oops:
+     * the skip list node, its share of index nodes, the key buffer with its array header and the value
+     * with its link in the chain. A value which is not a tombstone adds its buffer with the array header.
+     */
+    private static final int NODE_SIZE = 24;
+    private static final int INDEX_SHARE = 8;
+    private static final int BUFFER_SIZE = 56 + 16;
+    private static final int VALUE_SIZE = 40 + 32;
+    private static final int ENTRY_OVERHEAD = NODE_SIZE + INDEX_SHARE + BUFFER_SIZE + VALUE_SIZE;
+
+    private final NavigableMap<ByteBuffer, Revision> map;
+    private final AtomicLong tableSize = new AtomicLong();
+    private final long generation;
+    private volatile SequencedTombstones rangeTombstones = SequencedTombstones.empty();
+
+    /**
+     * Value of the key stored by a change, linked to the values of older changes.
+     */
+    private static final class Revision {
+        private final Value value;
+        private final long sequence;
+        @Nullable
+        private final Revision previous;
+
+        Revision(@NotNull final Value value, final long sequence, @Nullable final Revision previous) {
+            this.value = value;
+            this.sequence = sequence;
+            this.previous = previous;
+        }
+
+        /**
+         * Chain with the value inserted in sequence order, the revisions newer than it are copied.
+         * Revisions older than the cut are dropped, the ones between it and the value are copied then.
+         *
+         * @param cut revision of the chain older than the value to end the chain at, null to keep all
+         */
+        @NotNull
+        Revision with(@NotNull final Value value, final long sequence, @Nullable final Revision cut) {
+            final List<Revision> newer = new ArrayList<>();
+            Revision rest = this;
+            while (rest != null && rest.sequence > sequence) {
+                newer.add(rest);
+                rest = rest.previous;
+            }
+            Revision result = rest;
+            if (cut != null && cut.previous != null) {
+                final List<Revision> kept = new ArrayList<>();
+                for (Revision revision = rest; revision != cut; revision = revision.previous) {
+                    assert revision != null;
+                    kept.add(revision);
+                }
+                result = copy(kept, new Revision(cut.value, cut.sequence, null));
+            }
+            return copy(newer, new Revision(value, sequence, result));
+        }
+
+        /**
+         * Links copies of the revisions, the newest first, on top of the chain.
+         */
+        @NotNull
+        private static Revision copy(@NotNull final List<Revision> revisions, @NotNull final Revision chain) {
+            Revision result = chain;
+            for (int i = revisions.size() - 1; i >= 0; i--) {
+                final Revision revision = revisions.get(i);
+                result = new Revision(revision.value, revision.sequence, result);
+            }
+            return result;
+        }
+
+        /**
+         * The newest revision up to the sequence number, the older ones are never read by readers of it
+         * and of newer changes.
+         */
+        @Nullable
+        Revision readable(final long sequence) {
+            Revision revision = this;
+            while (revision != null && revision.sequence > sequence) {
+                revision = revision.previous;
+            }
+            return revision;
+        }
+
+        @Nullable
+        Value visible(final long sequence) {
+            final Revision revision = readable(sequence);
+            return revision == null ? null : revision.value;
+        }
+    }
+
+    /**
+     * Creates empty memory table.
+     *
+     * @param generation generation of cells in the table
+     */
+    public HeapMemTable(final long generation) {
+        this.generation = generation;
+        this.map = new ConcurrentSkipListMap<>(Keys.ORDER);
+    }
+
+    @Override
+    public final Iterator<Cell> iterator(@NotNull final ByteBuffer from, final long sequence) {
+        return Iterators.filter(Iterators.transform(
+                map.tailMap(from).entrySet().iterator(),
+                entry -> {
+                    assert entry != null;
+                    final Value value = entry.getValue().visible(sequence);
+                    return value == null ? null : new Cell(entry.getKey(), value, generation);
+                }), Objects::nonNull);
+    }
+
+    @Override
+    public long generation() {
+        return generation;
+    }
+
+    @Nullable
+    @Override
+    public Value get(@NotNull final ByteBuffer key, final long sequence) {
+        final Revision revision = map.get(key);
+        return revision == null ? null : revision.visible(sequence);
+    }
+
+    @Override
+    public void put(@NotNull final ByteBuffer key, @NotNull final Value value, final long sequence,
+                    final long oldest) {
+        if (map.putIfAbsent(key, new Revision(value, sequence, null)) == null) {
+            tableSize.addAndGet(ENTRY_OVERHEAD + key.remaining() + dataSize(value));
+            return;
+        }
+        while (true) {
+            final Revision chain = map.get(key);
+            final Revision cut = chain.readable(oldest);
+            if (map.replace(key, chain, chain.with(value, sequence, cut))) {
+                long dropped = 0;
+                for (Revision revision = cut == null ? null : cut.previous; revision != null;
+                     revision = revision.previous) {
+                    dropped += VALUE_SIZE + dataSize(revision.value);
+                }
+                tableSize.addAndGet(VALUE_SIZE + dataSize(value) - dropped);
+                return;
+            }
+        }
+    }
+
+    @Override
+    public void restore(@NotNull final ByteBuffer key, @NotNull final Value value) {
+        final Revision prev = map.get(key);
+        if (prev == null) {
+            map.put(key, new Revision(value, RESTORED, null));
+            tableSize.addAndGet(ENTRY_OVERHEAD + key.remaining() + dataSize(value));
+        } else if (prev.value.getTimestamp() <= value.getTimestamp()) {
+            map.put(key, new Revision(value, RESTORED, null));
+            tableSize.addAndGet(dataSize(value) - dataSize(prev.value));
+        }
+    }
+
+    @Override
+    public void removeRange(@NotNull final RangeTombstone tombstone, final long sequence) {
+        synchronized (this) {
+            rangeTombstones = rangeTombstones.with(tombstone, sequence);
+        }
+        tableSize.addAndGet(2 * BUFFER_SIZE + tombstone.getFrom().remaining() + tombstone.getTo().remaining());
+    }
+
+    @NotNull
+    @Override
+    public RangeTombstones rangeTombstones(final long sequence) {
+        return rangeTombstones.visible(sequence);
+    }
+
+    private static long dataSize(@NotNull final Value value) {
+        return value.isTombstone() ? 0 : BUFFER_SIZE + value.getData().remaining();
+    }
+
+    @Override
+    public long sizeInBytes() {
+        return tableSize.get();
+    }
+}
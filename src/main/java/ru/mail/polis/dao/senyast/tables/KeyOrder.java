@@ -0,0 +1,44 @@
+package ru.mail.polis.dao.senyast.tables;
+
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.dao.Keys;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Order the keys of a table are sorted in, recorded in the table properties by ordinal.
+ */
+enum KeyOrder {
+    /**
+     * Order of {@link ByteBuffer#compareTo}, tables written before {@link Keys} was introduced are sorted so.
+     */
+    SIGNED {
+        @Override
+        int compare(@NotNull final ByteBuffer key, @NotNull final ByteBuffer buffer, final int start, final int size) {
+            return Keys.compareSigned(key, buffer, start, size);
+        }
+    },
+    /**
+     * Order of {@link Keys}, used by the rest of the database.
+     */
+    UNSIGNED {
+        @Override
+        int compare(@NotNull final ByteBuffer key, @NotNull final ByteBuffer buffer, final int start, final int size) {
+            return Keys.compare(key, buffer, start, size);
+        }
+    };
+
+    /**
+     * Compares remaining bytes of the key with a key stored in a buffer.
+     */
+    abstract int compare(@NotNull ByteBuffer key, @NotNull ByteBuffer buffer, int start, int size);
+
+    @NotNull
+    static KeyOrder of(final long ordinal) {
+        final KeyOrder[] orders = values();
+        if (ordinal < 0 || ordinal >= orders.length) {
+            throw new IllegalStateException("Unknown key order " + ordinal);
+        }
+        return orders[(int) ordinal];
+    }
+}
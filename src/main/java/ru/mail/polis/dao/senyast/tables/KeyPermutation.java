@@ -0,0 +1,136 @@
+package ru.mail.polis.dao.senyast.tables;
+
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.dao.NoSuchElementLite;
+import ru.mail.polis.dao.senyast.model.Cell;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+/**
+ * Rows of a table sorted in {@link KeyOrder#SIGNED signed} order, rearranged into the order of
+ * {@link ru.mail.polis.dao.Keys}. Built once per table on the first scan, until compaction rewrites
+ * the table. A row is addressed by its block in the high half of a long and its index in the low one.
+ *
+ * <p>The blocks are held for the lifetime of the table, so a compressed table keeps its blocks
+ * decompressed on heap.
+ */
+final class KeyPermutation {
+    private final Block[] blocks;
+    private final long[] rows;
+
+    private KeyPermutation(@NotNull final Block[] blocks, @NotNull final long[] rows) {
+        this.blocks = blocks;
+        this.rows = rows;
+    }
+
+    /**
+     * Sorts rows of the blocks.
+     *
+     * @param blocks all the blocks of the table
+     * @return rows in unsigned key order
+     */
+    @NotNull
+    static KeyPermutation sort(@NotNull final Block[] blocks) {
+        int count = 0;
+        for (final Block block : blocks) {
+            count += block.rows();
+        }
+        final long[] rows = new long[count];
+        int next = 0;
+        for (int b = 0; b < blocks.length; b++) {
+            for (int r = 0; r < blocks[b].rows(); r++) {
+                rows[next++] = row(b, r);
+            }
+        }
+        final KeyPermutation result = new KeyPermutation(blocks, rows);
+        result.mergeSort(new long[count], 0, count);
+        return result;
+    }
+
+    private static long row(final int block, final int index) {
+        return (long) block << Integer.SIZE | index;
+    }
+
+    /**
+     * Sorts rows in range, merges are skipped for runs already in order, which signed and
+     * unsigned orders share between the keys differing in the sign bit.
+     */
+    private void mergeSort(@NotNull final long[] buffer, final int from, final int to) {
+        if (to - from < 2) {
+            return;
+        }
+        final int mid = (from + to) >>> 1;
+        mergeSort(buffer, from, mid);
+        mergeSort(buffer, mid, to);
+        if (compare(rows[mid - 1], rows[mid]) <= 0) {
+            return;
+        }
+        System.arraycopy(rows, from, buffer, from, to - from);
+        int left = from;
+        int right = mid;
+        int out = from;
+        while (left < mid && right < to) {
+            rows[out++] = compare(buffer[left], buffer[right]) <= 0 ? buffer[left++] : buffer[right++];
+        }
+        System.arraycopy(buffer, left, rows, out, mid - left);
+        out += mid - left;
+        System.arraycopy(buffer, right, rows, out, to - right);
+    }
+
+    private int compare(final long a, final long b) {
+        return blocks[(int) (a >>> Integer.SIZE)].compareRows((int) a, blocks[(int) (b >>> Integer.SIZE)], (int) b);
+    }
+
+    int size() {
+        return rows.length;
+    }
+
+    @NotNull
+    Cell cellAt(final int i, final long generation) {
+        final long row = rows[i];
+        return blocks[(int) (row >>> Integer.SIZE)].cellAt((int) row, generation);
+    }
+
+    /**
+     * Position of the first row with key not less than the given one.
+     */
+    int position(@NotNull final ByteBuffer from) {
+        int left = 0;
+        int right = rows.length - 1;
+        while (left <= right) {
+            final int mid = left + (right - left) / 2;
+            final long row = rows[mid];
+            final int cmp = blocks[(int) (row >>> Integer.SIZE)].compareKeyAt(from, (int) row, KeyOrder.UNSIGNED);
+            if (cmp < 0) {
+                right = mid - 1;
+            } else if (cmp > 0) {
+                left = mid + 1;
+            } else {
+                return mid;
+            }
+        }
+        return left;
+    }
+
+    @NotNull
+    Iterator<Cell> iterator(@NotNull final ByteBuffer from, final long generation) {
+        final int first = position(from);
+        return new Iterator<>() {
+            int next = first;
+
+            @Override
+            public boolean hasNext() {
+                return next < rows.length;
+            }
+
+            @Override
+            public Cell next() {
+                if (next >= rows.length) {
+                    throw new NoSuchElementLite("No more cells");
+                }
+                return cellAt(next++, generation);
+            }
+        };
+    }
+}
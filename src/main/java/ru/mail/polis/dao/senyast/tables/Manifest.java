@@ -0,0 +1,267 @@
+package ru.mail.polis.dao.senyast.tables;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.IntConsumer;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only registry of the tables on disk, so opening the database reads one file instead of
+ * the whole directory and a table not listed is known to be a leftover of a crash.
+ *
+ * <p>A table is written and renamed into place first and recorded afterwards, a replaced table is deleted
+ * only after its removal is recorded. So every table listed exists, while a table written by a flush or
+ * compaction interrupted before being recorded is not listed and gets deleted on the next start.
+ * A failed record may have reached the disk all the same, so the tables it mentions are not deleted
+ * until the next change rewrites the manifest.
+ *
+ * <p>Every record is forced to disk and is {@code [payload size][crc32c of payload][type][count][generation]...}
+ * for a checkpoint listing all the tables and
+ * {@code [payload size][crc32c of payload][type][added count][generation]...[removed count][generation]...}
+ * for a change. The first record is always a checkpoint, the manifest is corrupted otherwise and the database
+ * is not opened. Replay stops at the first torn or corrupted record after it. Every {@link #CHECKPOINT_EDITS}
+ * changes, on opening and after a failed append the registry is rewritten as a single checkpoint to a temporary
+ * file which replaces the manifest atomically, and the directory is forced to disk so the rename is durable.
+ */
+@ThreadSafe
+public class Manifest implements Closeable {
+    public static final String FILE_NAME = "MANIFEST";
+    private static final String TMP_FILE_NAME = FILE_NAME + ".tmp";
+
+    static final int CHECKPOINT_EDITS = 1024;
+
+    private static final int RECORD_HEADER_SIZE = Integer.BYTES + Integer.BYTES;
+    private static final byte CHECKPOINT = 1;
+    private static final byte EDIT = 2;
+
+    private static final boolean WINDOWS = System.getProperty("os.name").startsWith("Windows");
+
+    private static final Logger log = LoggerFactory.getLogger(Manifest.class);
+
+    private final File dir;
+    private final Set<Integer> generations;
+    private FileChannel channel;
+    private int edits;
+    private boolean torn;
+
+    /**
+     * Writes checkpoint of the tables, replacing the manifest if any, and opens it for appending.
+     *
+     * @param dir         database location
+     * @param generations generations of the tables on disk
+     * @throws IOException if I/O error
+     */
+    public Manifest(@NotNull final File dir, @NotNull final Collection<Integer> generations) throws IOException {
+        this.dir = dir;
+        this.generations = new TreeSet<>(generations);
+        synchronized (this) {
+            checkpoint();
+        }
+    }
+
+    /**
+     * Reads the tables listed in the manifest of the database.
+     *
+     * @param dir database location
+     * @return generations of the tables or null if the database has no manifest, as created before it was kept
+     * @throws CorruptManifestException if the manifest does not start with a valid checkpoint
+     * @throws IOException              if I/O error
+     */
+    @Nullable
+    public static Set<Integer> read(@NotNull final File dir) throws IOException {
+        final File manifest = new File(dir, FILE_NAME);
+        if (!manifest.exists()) {
+            return null;
+        }
+        final ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(manifest.toPath()));
+        // Written to a temporary file and renamed, so the checkpoint is never torn unless corrupted
+        if (!valid(buffer) || buffer.get(buffer.position() + RECORD_HEADER_SIZE) != CHECKPOINT) {
+            throw new CorruptManifestException(manifest, "no valid checkpoint at the start");
+        }
+        final Set<Integer> result = new HashSet<>();
+        while (valid(buffer)) {
+            final int start = buffer.position();
+            buffer.position(start + RECORD_HEADER_SIZE);
+            final byte type = buffer.get();
+            if (type == CHECKPOINT) {
+                result.clear();
+                readGenerations(buffer, result::add);
+            } else {
+                readGenerations(buffer, result::add);
+                readGenerations(buffer, result::remove);
+            }
+        }
+        if (buffer.hasRemaining()) {
+            log.warn("Manifest " + manifest + " is torn at " + buffer.position() + ", the rest is skipped");
+        }
+        return result;
+    }
+
+    /**
+     * Whether a whole record matching its checksum starts at the position of the buffer.
+     */
+    private static boolean valid(@NotNull final ByteBuffer buffer) {
+        if (buffer.remaining() < RECORD_HEADER_SIZE) {
+            return false;
+        }
+        final int start = buffer.position();
+        final int payload = buffer.getInt(start);
+        return payload > 0 && payload <= buffer.remaining() - RECORD_HEADER_SIZE
+                && (int) crc(buffer, start + RECORD_HEADER_SIZE, payload) == buffer.getInt(start + Integer.BYTES);
+    }
+
+    /**
+     * Records a flushed table.
+     *
+     * @param generation generation of the table renamed into place
+     * @throws IOException if I/O error, the table may be recorded or not until a later change succeeds,
+     *                     so it must not be deleted
+     */
+    public void added(final int generation) throws IOException {
+        replaced(Set.of(), Set.of(generation));
+    }
+
+    /**
+     * Records replacement of the tables merged by compaction with the tables written, all at once.
+     *
+     * @param removed generations of the merged tables
+     * @param added   generations of the tables renamed into place
+     * @throws IOException if I/O error, the replacement may be recorded or not until a later change succeeds,
+     *                     so neither the merged tables nor the written ones must be deleted
+     */
+    public synchronized void replaced(@NotNull final Collection<Integer> removed,
+                                      @NotNull final Collection<Integer> added) throws IOException {
+        generations.removeAll(removed);
+        generations.addAll(added);
+        try {
+            if (!added.isEmpty()) {
+                // The tables are renamed into place already, their names must be on disk before the record
+                syncDirectory(dir);
+            }
+            if (torn || ++edits >= CHECKPOINT_EDITS) {
+                checkpoint();
+            } else {
+                final ByteBuffer record = record(EDIT, added.size() + removed.size() + 2);
+                putGenerations(record, added);
+                putGenerations(record, removed);
+                append(channel, record);
+            }
+        } catch (IOException e) {
+            // Whether the record made it to disk is unknown, the next change rewrites the manifest
+            torn = true;
+            generations.removeAll(added);
+            generations.addAll(removed);
+            throw e;
+        }
+    }
+
+    private void checkpoint() throws IOException {
+        assert Thread.holdsLock(this);
+        final File tmp = new File(dir, TMP_FILE_NAME);
+        try (FileChannel out = FileChannel.open(tmp.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            final ByteBuffer record = record(CHECKPOINT, generations.size() + 1);
+            putGenerations(record, generations);
+            append(out, record);
+        }
+        final File manifest = new File(dir, FILE_NAME);
+        Files.move(tmp.toPath(), manifest.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        syncDirectory(dir);
+        if (channel != null) {
+            channel.close();
+        }
+        channel = FileChannel.open(manifest.toPath(), StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        edits = 0;
+        torn = false;
+    }
+
+    /**
+     * Forces the entries of the directory to disk, so the files renamed in it keep their names after a crash.
+     * Directories can't be opened on Windows, where renames are journaled by the file system anyway.
+     *
+     * @param dir directory to force
+     * @throws IOException if I/O error
+     */
+    static void syncDirectory(@NotNull final File dir) throws IOException {
+        if (WINDOWS) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    @NotNull
+    private static ByteBuffer record(final byte type, final int ints) {
+        final ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + Byte.BYTES + ints * Integer.BYTES);
+        record.position(RECORD_HEADER_SIZE);
+        record.put(type);
+        return record;
+    }
+
+    private static void putGenerations(@NotNull final ByteBuffer record, @NotNull final Collection<Integer> values) {
+        record.putInt(values.size());
+        for (final int generation : values) {
+            record.putInt(generation);
+        }
+    }
+
+    private static void readGenerations(@NotNull final ByteBuffer buffer,
+                                        @NotNull final IntConsumer consumer) {
+        final int count = buffer.getInt();
+        for (int i = 0; i < count; i++) {
+            consumer.accept(buffer.getInt());
+        }
+    }
+
+    private void append(@NotNull final FileChannel to, @NotNull final ByteBuffer record) throws IOException {
+        final int payload = record.capacity() - RECORD_HEADER_SIZE;
+        record.putInt(0, payload);
+        record.putInt(Integer.BYTES, (int) crc(record, RECORD_HEADER_SIZE, payload));
+        record.clear();
+        while (record.hasRemaining()) {
+            to.write(record);
+        }
+        force(to);
+    }
+
+    /**
+     * Forces a record written to the manifest or to the checkpoint replacing it to disk. Called by
+     * the constructor too.
+     *
+     * @param written channel the record is written to
+     * @throws IOException if I/O error, the record may have reached the disk or not
+     */
+    protected void force(@NotNull final FileChannel written) throws IOException {
+        written.force(false);
+    }
+
+    private static long crc(@NotNull final ByteBuffer buffer, final int from, final int length) {
+        final ByteBuffer payload = buffer.duplicate();
+        payload.limit(from + length).position(from);
+        final CRC32C crc = new CRC32C();
+        crc.update(payload);
+        return crc.getValue();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        channel.close();
+    }
+}
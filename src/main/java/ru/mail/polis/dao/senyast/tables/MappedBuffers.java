@@ -0,0 +1,68 @@
+package ru.mail.polis.dao.senyast.tables;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+
+/**
+ * Releases memory mapped files and direct memory without waiting for the garbage collector to collect the buffers.
+ */
+final class MappedBuffers {
+    private static final Logger log = LoggerFactory.getLogger(MappedBuffers.class);
+
+    /**
+     * {@code sun.misc.Unsafe.invokeCleaner} bound to the instance, null if the runtime does not provide it.
+     */
+    @Nullable
+    private static final MethodHandle INVOKE_CLEANER = invokeCleaner();
+
+    private MappedBuffers() {
+    }
+
+    @Nullable
+    private static MethodHandle invokeCleaner() {
+        try {
+            final Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            final Field field = unsafeClass.getDeclaredField("theUnsafe");
+            field.setAccessible(true);
+            return MethodHandles.lookup()
+                    .findVirtual(unsafeClass, "invokeCleaner", MethodType.methodType(void.class, ByteBuffer.class))
+                    .bindTo(field.get(null));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.warn("Can't unmap files explicitly, leaving them to the garbage collector", e);
+            return null;
+        }
+    }
+
+    /**
+     * Unmaps the buffer. Any access to the buffer or its slices afterwards may crash the JVM.
+     *
+     * @param buffer buffer returned by {@link java.nio.channels.FileChannel#map}
+     */
+    static void unmap(@NotNull final ByteBuffer buffer) {
+        if (INVOKE_CLEANER == null) {
+            return;
+        }
+        try {
+            INVOKE_CLEANER.invokeExact(buffer);
+        } catch (Throwable e) {
+            log.error("Can't unmap buffer", e);
+        }
+    }
+
+    /**
+     * Frees memory of the buffer. Any access to the buffer or its slices afterwards may crash the JVM.
+     *
+     * @param buffer buffer returned by {@link ByteBuffer#allocateDirect}
+     */
+    static void free(@NotNull final ByteBuffer buffer) {
+        unmap(buffer);
+    }
+}
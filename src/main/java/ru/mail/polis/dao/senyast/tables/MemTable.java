@@ -1,68 +1,138 @@
 package ru.mail.polis.dao.senyast.tables;
 
-import com.google.common.collect.Iterators;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import ru.mail.polis.dao.senyast.model.Cell;
+import ru.mail.polis.dao.senyast.model.RangeTombstone;
 import ru.mail.polis.dao.senyast.model.Value;
 
-import javax.annotation.concurrent.ThreadSafe;
 import java.nio.ByteBuffer;
 import java.util.Iterator;
-import java.util.NavigableMap;
-import java.util.concurrent.ConcurrentSkipListMap;
-import java.util.concurrent.atomic.AtomicLong;
-
-@ThreadSafe
-public class MemTable implements Table {
-    private final NavigableMap<ByteBuffer, Value> map;
-    private final AtomicLong tableSize = new AtomicLong();
-    private final long generation;
-
-    MemTable(final long generation) {
-        this.generation = generation;
-        this.map = new ConcurrentSkipListMap<>();
+
+/**
+ * Table taking writes in memory until it is flushed to disk.
+ *
+ * <p>Every change is stored with the sequence number of the change it is a part of and readers pass
+ * the number of the newest change they see. A table keeps the values a key had, so a reader gets
+ * the newest one of the changes visible to it, while a flush writes the newest ones.
+ */
+public interface MemTable extends Table {
+    /**
+     * Sequence number of the changes read back from the write ahead log, visible to every reader.
+     */
+    long RESTORED = 0;
+    /**
+     * Sequence number to read all the changes stored with.
+     */
+    long LATEST = Long.MAX_VALUE;
+
+    /**
+     * Generation of cells in the table.
+     */
+    long generation();
+
+    /**
+     * Iterates over the cells with the newest values of the changes up to the sequence number,
+     * keys with no such values are skipped.
+     *
+     * @param from     key to start at
+     * @param sequence number of the newest change to see
+     * @return cells in key order
+     */
+    Iterator<Cell> iterator(@NotNull ByteBuffer from, long sequence);
+
+    @Override
+    default Iterator<Cell> iterator(@NotNull final ByteBuffer from) {
+        return iterator(from, LATEST);
     }
 
     /**
-     * Get data iterator from memory table.
+     * Finds the newest value of the key of the changes up to the sequence number.
      *
-     * @param from key to find data
-     * @return data iterator
+     * @param key      key to find
+     * @param sequence number of the newest change to see
+     * @return value, including tombstone, or null if no such change wrote the key
      */
+    @Nullable
+    Value get(@NotNull ByteBuffer key, long sequence);
+
+    @Nullable
     @Override
-    public final Iterator<Cell> iterator(@NotNull final ByteBuffer from) {
-        return Iterators.transform(
-                map.tailMap(from).entrySet().iterator(),
-                entry -> {
-                    assert entry != null;
-                    return new Cell(entry.getKey(), entry.getValue(), generation);
-                });
+    default Value get(@NotNull final ByteBuffer key) {
+        return get(key, LATEST);
     }
 
+    /**
+     * Range tombstones of the changes up to the sequence number.
+     *
+     * @param sequence number of the newest change to see
+     * @return the tombstones split into fragments
+     */
+    @NotNull
+    RangeTombstones rangeTombstones(long sequence);
+
+    @NotNull
     @Override
-    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) {
-        final Value prev = map.put(key, Value.of(value));
-        if (prev == null) {
-            tableSize.addAndGet(key.remaining() + value.remaining());
-        } else if (prev.isTombstone()) {
-            tableSize.addAndGet(value.remaining());
-        } else {
-            tableSize.addAndGet(value.remaining() - prev.getData().remaining());
-        }
+    default RangeTombstones rangeTombstones() {
+        return rangeTombstones(LATEST);
+    }
+
+    /**
+     * Stores value stamped by the caller, keeping the previous ones for readers of older changes.
+     * The values older than the newest one up to the oldest readable change are dropped.
+     *
+     * @param key      key to change
+     * @param value    new value or tombstone
+     * @param sequence number of the change
+     * @param oldest   number of the oldest change a reader may read the table as of, not greater than the sequence
+     */
+    void put(@NotNull ByteBuffer key, @NotNull Value value, long sequence, long oldest);
+
+    /**
+     * Stores value read back from the write ahead log unless the table already has a newer one,
+     * since records of concurrent writers may be logged out of order. The previous value is dropped.
+     *
+     * @param key   key to change
+     * @param value logged value or tombstone
+     */
+    void restore(@NotNull ByteBuffer key, @NotNull Value value);
+
+    /**
+     * Stores range tombstone stamped by the caller. Cells of the range stay in the table and are hidden by readers.
+     *
+     * @param tombstone removal of the range
+     * @param sequence  number of the change
+     */
+    void removeRange(@NotNull RangeTombstone tombstone, long sequence);
+
+    /**
+     * Stores range tombstone read back from the write ahead log.
+     *
+     * @param tombstone removal of the range
+     */
+    default void restoreRange(@NotNull final RangeTombstone tombstone) {
+        removeRange(tombstone, RESTORED);
+    }
+
+    /**
+     * Takes a reference for a version containing the table.
+     */
+    default void retain() {
+    }
+
+    /**
+     * Drops a reference, the last one may free memory of the table, which must not be read afterwards.
+     */
+    default void release() {
     }
 
     @Override
-    public void remove(@NotNull final ByteBuffer key) {
-        final Value prev = map.put(key, Value.tombstone());
-        if (prev == null) {
-            tableSize.addAndGet(key.remaining());
-        } else if (!prev.isTombstone()) {
-            tableSize.addAndGet(-prev.getData().remaining());
-        }
+    default void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) {
+        put(key, Value.of(value), RESTORED, RESTORED);
     }
 
     @Override
-    public long sizeInBytes() {
-        return tableSize.get();
+    default void remove(@NotNull final ByteBuffer key) {
+        put(key, Value.tombstone(), RESTORED, RESTORED);
     }
 }
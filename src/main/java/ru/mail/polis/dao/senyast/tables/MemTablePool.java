@@ -1,40 +1,73 @@
 package ru.mail.polis.dao.senyast.tables;
 
-import com.google.common.collect.Iterators;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import ru.mail.polis.dao.Iters;
+import ru.mail.polis.dao.Keys;
+import ru.mail.polis.dao.WriteBatch;
 import ru.mail.polis.dao.senyast.model.Cell;
+import ru.mail.polis.dao.senyast.model.RangeTombstone;
+import ru.mail.polis.dao.senyast.model.Value;
+import ru.mail.polis.dao.senyast.wal.Durability;
+import ru.mail.polis.dao.senyast.wal.WriteAheadLog;
 
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Iterator;
+import java.util.Collection;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.NavigableMap;
-import java.util.concurrent.ArrayBlockingQueue;
+import java.util.Map;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+import java.util.function.UnaryOperator;
 
-public class MemTablePool implements Table, Closeable {
+/**
+ * Memory tables and tables on disk of the database, published together as an immutable {@link Version}.
+ * Writers go to the current memory table under the read lock, which is taken for writing to send
+ * the table to flush. Readers {@link #acquire()} the current version without any locks and read the memory
+ * tables as of the sequence number they {@link #pin() pin}, so every change, a batch included, is seen
+ * entirely or not at all. The pool itself offers no reads, as a read must pin the version and the sequence number
+ * for as long as it goes on: memory tables kept off heap are freed once the last version containing them is released.
+ *
+ * <p>Every write is {@link WriteController#admit(long) admitted} by the controller first, which delays writers
+ * as flushes and compactions fall behind and stops them while the memory tables exceed the budget.
+ */
+public class MemTablePool implements Closeable {
 
     private final ReadWriteLock lock = new ReentrantReadWriteLock();
 
-    private volatile MemTable current;
-    private final NavigableMap<Integer, MemTable> pendingFlush;
+    private final AtomicReference<Version> version;
+    private final Object publishLock = new Object();
+    private final Sequencer sequencer = new Sequencer();
+    /**
+     * Memory tables pinned by snapshots with the number of snapshots, guarded by the publish lock.
+     */
+    private final Map<MemTable, Integer> snapshotTables = new IdentityHashMap<>();
     private final BlockingQueue<TableToFlush> flushQueue;
 
     private final long memFlushThreshHold;
+    private final WriteController controller;
+    /**
+     * Notified when a memory table is flushed or given up.
+     */
+    private final Object flushedLock = new Object();
+    /**
+     * The oldest generation whose flush was given up, guarded by the flushed lock.
+     */
+    private int abandoned = Integer.MAX_VALUE;
 
-    private int generation;
+    @Nullable
+    private final WriteAheadLog wal;
 
-    private final AtomicInteger lastFlushedGeneration = new AtomicInteger(0);
+    private final Supplier<MemTable> memTables;
 
     private final AtomicBoolean stop = new AtomicBoolean(false);
 
@@ -44,123 +77,440 @@ public class MemTablePool implements Table, Closeable {
      * Class to multithreading flush.
      *
      * @param memFlushThreshHold threshold at which we flush data to disk
-     * @param startGeneration    start generation
-     * @param queueCapacity      flush queue capacity
+     * @param memTables          creates empty memory tables of the next generation
+     * @param controller         paces writers, updated with every published version
+     * @param wal                log to record changes in before applying them, null to keep them in memory only
+     * @param files              tables on disk
      */
-    public MemTablePool(final long memFlushThreshHold, final int startGeneration, final int queueCapacity) {
+    public MemTablePool(final long memFlushThreshHold, @NotNull final Supplier<MemTable> memTables,
+                        @NotNull final WriteController controller, @Nullable final WriteAheadLog wal,
+                        @NotNull final Collection<FileTable> files) {
+        if (controller.memoryBudget() < memFlushThreshHold) {
+            throw new IllegalArgumentException("Memory budget " + controller.memoryBudget()
+                    + " is less than flush threshold " + memFlushThreshHold);
+        }
         this.memFlushThreshHold = memFlushThreshHold;
-        this.generation = startGeneration;
-        this.pendingFlush = new ConcurrentSkipListMap<>();
-        this.current = new MemTable(startGeneration);
-        this.flushQueue = new ArrayBlockingQueue<>(queueCapacity);
+        this.controller = controller;
+        this.wal = wal;
+        this.memTables = memTables;
+        this.version = new AtomicReference<>(new Version(memTables.get(), List.of(), files));
+        controller.update(version.get(), 0);
+        // The controller bounds the tables waiting for flush
+        this.flushQueue = new LinkedBlockingQueue<>();
     }
 
-    @Override
+    /**
+     * Pins the current version. The caller must {@link Version#release() release} it when done reading.
+     *
+     * @return the current version
+     */
+    @NotNull
+    public Version acquire() {
+        while (true) {
+            final Version current = version.get();
+            if (current.tryRetain()) {
+                return current;
+            }
+            if (version.get() == current) {
+                throw new IllegalStateException("Database closed");
+            }
+        }
+    }
+
+    /**
+     * Drops the reference of the pool to the current version, so the tables are unmapped once
+     * the readers are done. Must be called after the last flush and compaction.
+     */
+    public void retire() {
+        synchronized (publishLock) {
+            version.get().release();
+        }
+    }
+
+    private void publish(@NotNull final UnaryOperator<Version> change) {
+        synchronized (publishLock) {
+            final Version previous = version.get();
+            final Version next = change.apply(previous);
+            version.set(next);
+            previous.release();
+            controller.update(next, snapshotsOnly(next));
+        }
+    }
+
+    /**
+     * Size of the memory tables which only snapshots hold, the published version does not contain them.
+     */
+    private long snapshotsOnly(@NotNull final Version published) {
+        assert Thread.holdsLock(publishLock);
+        final List<MemTable> tables = published.memTables();
+        long size = 0;
+        for (final MemTable table : snapshotTables.keySet()) {
+            if (tables.stream().noneMatch(t -> t == table)) {
+                size += table.sizeInBytes();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Pins the sequence number of the newest change readers see, every change up to it is applied entirely.
+     * Readers must take it after pinning the version to read and {@link #unpin(long) unpin} it when done,
+     * the values they read as of it are kept in the memory tables until then.
+     *
+     * @return the sequence number
+     */
+    public long pin() {
+        return sequencer.pin();
+    }
+
+    /**
+     * Pins a sequence number once more for another reader.
+     *
+     * @param sequence number {@link #pin() pinned} already
+     */
+    public void pin(final long sequence) {
+        sequencer.pin(sequence);
+    }
+
+    public void unpin(final long sequence) {
+        sequencer.unpin(sequence);
+    }
+
+    /**
+     * Size of the current memory table and the ones waiting for flush.
+     */
     public long sizeInBytes() {
+        return version.get().memTablesSize();
+    }
+
+    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) throws IOException {
+        write(key, value, Value.NEVER);
+    }
+
+    /**
+     * Inserts or updates value which expires once the time to live passes.
+     *
+     * @param key       key to write
+     * @param value     value to write
+     * @param ttlMillis time to live in milliseconds
+     * @throws IOException if the change could not be logged
+     */
+    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value,
+                       final long ttlMillis) throws IOException {
+        if (ttlMillis <= 0) {
+            throw new IllegalArgumentException("Time to live must be positive: " + ttlMillis);
+        }
+        final long now = System.currentTimeMillis();
+        if (ttlMillis > Long.MAX_VALUE - now) {
+            throw new IllegalArgumentException("Time to live is too long: " + ttlMillis);
+        }
+        write(key, value, now + ttlMillis);
+    }
+
+    public void remove(@NotNull final ByteBuffer key) throws IOException {
+        write(key, null, Value.NEVER);
+    }
+
+    /**
+     * Stamps the change, logs it to the segment of the current generation and applies it to the current table.
+     * All of it happens under the read lock once the change is admitted, so the table can't be sent to flush
+     * in between and a change stamped after a snapshot never lands in a table the snapshot holds.
+     * The change is applied only once the log has it as durable as {@link Durability} promises, so no reader
+     * sees a change which is not acknowledged. If logging fails, the change is not applied, but it may still
+     * be replayed on restart if its record has reached the disk, so the outcome of a failed write is unknown.
+     *
+     * @param data      value to write or null to remove the key
+     * @param expiresAt wall clock time in milliseconds the value expires at or {@link Value#NEVER} to keep it
+     */
+    private void write(@NotNull final ByteBuffer key, @Nullable final ByteBuffer data,
+                       final long expiresAt) throws IOException {
+        controller.admit(key.remaining() + (data == null ? 0 : data.remaining()));
         lock.readLock().lock();
         try {
-            long size = current.sizeInBytes();
-            size += pendingFlush.values().stream().mapToLong(MemTable::sizeInBytes).sum();
-            return size;
+            if (stop.get()) {
+                throw new IllegalStateException("Database closed");
+            }
+            final long timestamp = Value.moments(1);
+            final Value value = data == null
+                    ? Value.tombstone(timestamp)
+                    : Value.of(timestamp, data, expiresAt);
+            final MemTable current = version.get().current();
+            final long sequence = sequencer.reserve();
+            try {
+                if (wal != null) {
+                    wal.await(wal.append((int) current.generation(), key, value));
+                }
+                current.put(key, value, sequence, sequencer.oldestReadable());
+            } finally {
+                sequencer.publish(sequence);
+            }
         } finally {
             lock.readLock().unlock();
         }
+        syncAddToFlush();
     }
 
-    @Override
-    public Iterator<Cell> iterator(@NotNull final ByteBuffer from) throws IOException {
-
-        final List<Iterator<Cell>> list;
-
+    /**
+     * Applies the changes of the batch with consecutive timestamps taken under the read lock once the batch
+     * is admitted, like the ones of single changes. The batch is logged as a single record
+     * under the read lock, so it lands in one generation and survives a crash entirely or not at all.
+     * The changes share a sequence number, so readers see all of them or none.
+     * Like a single change, the batch is applied only once it is logged.
+     *
+     * @param batch changes to apply
+     * @throws IOException if the changes could not be logged
+     */
+    public void write(@NotNull final WriteBatch batch) throws IOException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        controller.admit(batch.sizeInBytes());
         lock.readLock().lock();
         try {
-            list = new ArrayList<>(pendingFlush.size() + 1);
-            for (final Table fileChannelTable : pendingFlush.values()) {
-                list.add(fileChannelTable.iterator(from));
+            if (stop.get()) {
+                throw new IllegalStateException("Database closed");
+            }
+            final MemTable current = version.get().current();
+            final List<Cell> cells = cells(batch, Value.moments(batch.size()), current.generation());
+            final long sequence = sequencer.reserve();
+            try {
+                if (wal != null) {
+                    wal.await(wal.appendAll((int) current.generation(), cells));
+                }
+                final long oldest = sequencer.oldestReadable();
+                for (final Cell cell : cells) {
+                    current.put(cell.getKey(), cell.getValue(), sequence, oldest);
+                }
+            } finally {
+                sequencer.publish(sequence);
             }
-            final Iterator<Cell> memoryIterator = current.iterator(from);
-            list.add(memoryIterator);
         } finally {
             lock.readLock().unlock();
         }
-
-        //noinspection UnstableApiUsage
-        return Iters.collapseEquals(Iterators.mergeSorted(list, Cell.COMPARATOR),
-                Cell::getKey);
+        syncAddToFlush();
     }
 
-    @Override
-    public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) {
-        if (stop.get()) {
-            throw new IllegalStateException("Database closed");
+    /**
+     * Removes the keys from "from" (inclusive) to "to" (exclusive) with a single range tombstone,
+     * logged and applied like any other change. An empty range removes nothing.
+     *
+     * @param from the first key to remove
+     * @param to   the key the range ends at
+     * @throws IOException if the removal could not be logged
+     */
+    public void removeRange(@NotNull final ByteBuffer from, @NotNull final ByteBuffer to) throws IOException {
+        if (Keys.compare(from, to) >= 0) {
+            return;
+        }
+        controller.admit(from.remaining() + to.remaining());
+        lock.readLock().lock();
+        try {
+            if (stop.get()) {
+                throw new IllegalStateException("Database closed");
+            }
+            final RangeTombstone tombstone = new RangeTombstone(from.duplicate(), to.duplicate(), Value.moments(1));
+            final MemTable current = version.get().current();
+            final long sequence = sequencer.reserve();
+            try {
+                if (wal != null) {
+                    wal.await(wal.appendRange((int) current.generation(), tombstone));
+                }
+                current.removeRange(tombstone, sequence);
+            } finally {
+                sequencer.publish(sequence);
+            }
+        } finally {
+            lock.readLock().unlock();
         }
-        current.upsert(key, value);
         syncAddToFlush();
     }
 
-    @Override
-    public void remove(@NotNull final ByteBuffer key) {
-        if (stop.get()) {
-            throw new IllegalStateException("Database closed");
+    @NotNull
+    private static List<Cell> cells(@NotNull final WriteBatch batch, final long firstTimestamp,
+                                    final long generation) throws IOException {
+        final List<Cell> cells = new ArrayList<>(batch.size());
+        batch.forEach(new WriteBatch.Handler() {
+            @Override
+            public void upsert(@NotNull final ByteBuffer key, @NotNull final ByteBuffer value) {
+                cells.add(new Cell(key, Value.of(firstTimestamp + cells.size(), value), generation));
+            }
+
+            @Override
+            public void remove(@NotNull final ByteBuffer key) {
+                cells.add(new Cell(key, Value.tombstone(firstTimestamp + cells.size()), generation));
+            }
+        });
+        return cells;
+    }
+
+    private void notifyFlushed() {
+        synchronized (flushedLock) {
+            flushedLock.notifyAll();
         }
-        current.remove(key);
-        syncAddToFlush();
     }
 
+    /**
+     * Takes the next table to flush. The poison pill is left in the queue, so every flusher gets it.
+     *
+     * @return table to flush or the poison pill once the pool is closed
+     * @throws InterruptedException if interrupted while waiting
+     */
     public TableToFlush toFlush() throws InterruptedException {
-        return flushQueue.take();
+        final TableToFlush next = flushQueue.take();
+        if (next.isPoisonPeel()) {
+            flushQueue.put(next);
+        }
+        return next;
     }
 
-    private void updateCurrentFlushGeneration(final int generation) {
-        if (generation > lastFlushedGeneration.get()) {
-            lastFlushedGeneration.set(generation);
+    /**
+     * Waits until the memory tables older than the given one are flushed,
+     * so flushed tables replace memory tables in generation order.
+     *
+     * @param generation generation of the memory table being flushed
+     * @return false if the flush of an older table was {@link #abandon(int) given up}, so the table can't be
+     *         published either
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitTurn(final int generation) throws InterruptedException {
+        synchronized (flushedLock) {
+            while (version.get().oldestFlushing() != generation) {
+                if (abandoned < generation) {
+                    return false;
+                }
+                flushedLock.wait();
+            }
+            return true;
         }
     }
 
+    /**
+     * Reports a failed flush attempt, which is retried. Writers stopped until flushes catch up fail meanwhile.
+     *
+     * @param failure the failure of the attempt
+     */
+    public void flushFailed(@NotNull final IOException failure) {
+        controller.flushFailed(failure);
+    }
+
+    /**
+     * Gives up the flush of the table once the pool is closed. Its changes and the ones of newer tables
+     * stay in their log segments, which are replayed on the next open.
+     *
+     * @param generation generation of the table
+     */
+    public void abandon(final int generation) {
+        synchronized (flushedLock) {
+            abandoned = Math.min(abandoned, generation);
+            flushedLock.notifyAll();
+        }
+    }
+
+    public boolean isClosed() {
+        return stop.get();
+    }
+
     /**
      * Callback method to inform about flush bu "Flusher thread".
+     * The memory table and the table on disk replace each other atomically.
      *
      * @param generation number of flushed generation
+     * @param table      the flushed table or null if the memory table was empty
      */
-    public void flushed(final int generation) {
-        lock.writeLock().lock();
-        try {
-            pendingFlush.remove(generation);
-        } finally {
-            lock.writeLock().unlock();
+    public void flushed(final int generation, @Nullable final FileTable table) {
+        controller.flushFailed(null);
+        publish(v -> v.withFlushed(generation, table));
+        notifyFlushed();
+        if (wal != null) {
+            wal.release(generation);
         }
+    }
 
-        updateCurrentFlushGeneration(generation);
+    /**
+     * Replaces tables merged by compaction with the result atomically.
+     * The replaced tables are deleted once no reader uses them.
+     *
+     * @param removed merged tables
+     * @param added   tables written
+     */
+    public void replace(@NotNull final Collection<FileTable> removed, @NotNull final Collection<FileTable> added) {
+        for (final FileTable table : removed) {
+            table.markObsolete();
+        }
+        publish(v -> v.withReplaced(removed, added));
     }
 
-    public AtomicInteger getLastFlushedGeneration() {
-        return lastFlushedGeneration;
+    /**
+     * Sends the current table to flush and starts a new one, must be called under the write lock.
+     */
+    @NotNull
+    private TableToFlush rotate() {
+        final MemTable current = version.get().current();
+        publish(v -> v.withCurrent(memTables.get()));
+        return new TableToFlush(current, (int) current.generation());
     }
 
     private void syncAddToFlush() {
-        if (current.sizeInBytes() > memFlushThreshHold) {
+        if (version.get().current().sizeInBytes() > memFlushThreshHold) {
             TableToFlush toFlush = null;
             lock.writeLock().lock();
             try {
-                if (current.sizeInBytes() > memFlushThreshHold) {
-                    toFlush = new TableToFlush(current, generation);
-                    pendingFlush.put(generation, current);
-                    generation++;
-                    current = new MemTable(generation);
+                if (version.get().current().sizeInBytes() > memFlushThreshHold) {
+                    toFlush = rotate();
                 }
             } finally {
                 lock.writeLock().unlock();
             }
             if (toFlush != null) {
-                try {
+                enqueue(toFlush);
+            }
+        }
+    }
 
-                    flushQueue.put(toFlush);
-                } catch (InterruptedException e) {
-                    log.info("Thread interrupted");
-                    Thread.currentThread().interrupt();
-                }
+    private void enqueue(@NotNull final TableToFlush toFlush) {
+        try {
+            flushQueue.put(toFlush);
+        } catch (InterruptedException e) {
+            log.info("Thread interrupted");
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Pins the current version for a snapshot, which reads it as of the sequence number
+     * {@link #pin() pinned} afterwards. The memory tables of the version stay in memory until the snapshot is released,
+     * also after they are flushed, and are charged against the memory budget meanwhile.
+     *
+     * @return version to {@link #releaseSnapshot(Version) release} when done reading
+     */
+    @NotNull
+    public Version snapshot() {
+        synchronized (publishLock) {
+            if (stop.get()) {
+                throw new IllegalStateException("Database closed");
+            }
+            final Version pinned = acquire();
+            for (final MemTable table : pinned.memTables()) {
+                snapshotTables.merge(table, 1, Integer::sum);
+            }
+            return pinned;
+        }
+    }
+
+    /**
+     * Releases the version of a snapshot.
+     *
+     * @param pinned version returned by {@link #snapshot()}
+     */
+    public void releaseSnapshot(@NotNull final Version pinned) {
+        synchronized (publishLock) {
+            for (final MemTable table : pinned.memTables()) {
+                snapshotTables.computeIfPresent(table, (t, count) -> count == 1 ? null : count - 1);
             }
+            final Version published = version.get();
+            controller.update(published, snapshotsOnly(published));
         }
+        pinned.release();
     }
 
     @Override
@@ -172,13 +522,15 @@ public class MemTablePool implements Table, Closeable {
         final TableToFlush toFlush;
         lock.writeLock().lock();
         try {
-            pendingFlush.put(generation, current);
-            toFlush = new TableToFlush(current, generation, true);
+            toFlush = rotate();
         } finally {
             lock.writeLock().unlock();
         }
+        notifyFlushed();
+        controller.close();
         try {
             flushQueue.put(toFlush);
+            flushQueue.put(new TableToFlush(null, 0, true));
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
         }
@@ -0,0 +1,153 @@
+package ru.mail.polis.dao.senyast.tables;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.dao.Keys;
+import ru.mail.polis.dao.NoSuchElementLite;
+import ru.mail.polis.dao.senyast.model.Cell;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Iterator;
+
+/**
+ * Merges sorted cell sources into one sorted stream with a single cell per key. Sources sit in a binary heap
+ * by their current cell: the smallest key first and, for equal keys, the newest timestamp, then the newest
+ * generation. The top is taken, every other source positioned at the same key is advanced past it,
+ * so shadowed cells never leave the merge. Cells covered by the given range tombstones are dropped as well.
+ *
+ * <p>Each source must hold a key once at most, as memory tables and tables on disk do.
+ */
+public final class MergeIterator implements Iterator<Cell> {
+    private final Iterator<Cell>[] sources;
+    /**
+     * Current cell of the source at the same heap position.
+     */
+    private final Cell[] heads;
+    private int size;
+    private final RangeTombstones tombstones;
+    @Nullable
+    private Cell next;
+
+    /**
+     * Creates iterator positioned at the first cell of the sources.
+     *
+     * @param sources iterators over cells in key order
+     */
+    public MergeIterator(@NotNull final Collection<Iterator<Cell>> sources) {
+        this(sources, RangeTombstones.EMPTY);
+    }
+
+    /**
+     * Creates iterator positioned at the first cell of the sources not covered by the tombstones.
+     *
+     * @param sources    iterators over cells in key order
+     * @param tombstones range tombstones hiding older cells
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public MergeIterator(@NotNull final Collection<Iterator<Cell>> sources,
+                         @NotNull final RangeTombstones tombstones) {
+        this.sources = new Iterator[sources.size()];
+        this.heads = new Cell[sources.size()];
+        for (final Iterator<Cell> source : sources) {
+            if (source.hasNext()) {
+                this.sources[size] = source;
+                this.heads[size] = source.next();
+                size++;
+            }
+        }
+        for (int i = size / 2 - 1; i >= 0; i--) {
+            siftDown(i);
+        }
+        this.tombstones = tombstones;
+        this.next = merge();
+    }
+
+    @Override
+    public boolean hasNext() {
+        return next != null;
+    }
+
+    @Override
+    public Cell next() {
+        final Cell result = next;
+        if (result == null) {
+            throw new NoSuchElementLite("No more cells to merge");
+        }
+        next = merge();
+        return result;
+    }
+
+    /**
+     * Takes the newest cell of the smallest key left which is not covered by a range tombstone.
+     *
+     * @return the cell or null if the sources are exhausted
+     */
+    @Nullable
+    private Cell merge() {
+        while (size > 0) {
+            final Cell result = heads[0];
+            final ByteBuffer key = result.getKey();
+            advanceTop();
+            while (size > 0 && heads[0].getKey().equals(key)) {
+                advanceTop();
+            }
+            if (!tombstones.covers(result)) {
+                return result;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Moves the top source to its next cell, or drops it if exhausted, and restores the heap.
+     */
+    private void advanceTop() {
+        final Iterator<Cell> top = sources[0];
+        if (top.hasNext()) {
+            heads[0] = top.next();
+        } else {
+            size--;
+            sources[0] = sources[size];
+            heads[0] = heads[size];
+            sources[size] = null;
+            heads[size] = null;
+        }
+        siftDown(0);
+    }
+
+    private void siftDown(final int from) {
+        final Iterator<Cell> source = sources[from];
+        final Cell head = heads[from];
+        int i = from;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && compare(heads[child + 1], heads[child]) < 0) {
+                child++;
+            }
+            if (compare(heads[child], head) >= 0) {
+                break;
+            }
+            sources[i] = sources[child];
+            heads[i] = heads[child];
+            i = child;
+        }
+        sources[i] = source;
+        heads[i] = head;
+    }
+
+    private static int compare(@NotNull final Cell a, @NotNull final Cell b) {
+        final int keys = Keys.compare(a.getKey(), b.getKey());
+        if (keys != 0) {
+            return keys;
+        }
+        final int timestamps = Long.compare(b.getValue().getTimestamp(), a.getValue().getTimestamp());
+        if (timestamps != 0) {
+            return timestamps;
+        }
+        return Long.compare(b.getGeneration(), a.getGeneration());
+    }
+}
@@ -0,0 +1,292 @@
+package ru.mail.polis.dao.senyast.tables;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.dao.Keys;
+import ru.mail.polis.dao.senyast.model.Cell;
+import ru.mail.polis.dao.senyast.model.RangeTombstone;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+
+/**
+ * Immutable set of range tombstones split into sorted fragments which do not overlap, every fragment
+ * keeping the newest timestamp of the tombstones covering it. A cell is covered by the fragment holding
+ * its key if the fragment is newer.
+ *
+ * <p>Persisted as {@code [count]} followed by {@code [from size][from][to size][to][timestamp]} per fragment.
+ */
+public final class RangeTombstones {
+    /**
+     * Timestamp of keys no tombstone covers, older than any value.
+     */
+    public static final long NONE = Long.MIN_VALUE;
+    public static final RangeTombstones EMPTY = new RangeTombstones(new RangeTombstone[0]);
+
+    private final RangeTombstone[] fragments;
+
+    private RangeTombstones(@NotNull final RangeTombstone[] fragments) {
+        this.fragments = fragments;
+    }
+
+    /**
+     * Splits the tombstones into fragments, empty ranges are ignored.
+     *
+     * @param tombstones tombstones in any order, possibly overlapping
+     * @return the fragments
+     */
+    @NotNull
+    public static RangeTombstones of(@NotNull final Collection<RangeTombstone> tombstones) {
+        final TreeSet<ByteBuffer> bounds = new TreeSet<>(Keys.ORDER);
+        for (final RangeTombstone tombstone : tombstones) {
+            if (!tombstone.isEmpty()) {
+                bounds.add(tombstone.getFrom());
+                bounds.add(tombstone.getTo());
+            }
+        }
+        if (bounds.isEmpty()) {
+            return EMPTY;
+        }
+        final ByteBuffer[] points = bounds.toArray(new ByteBuffer[0]);
+        final long[] newest = new long[points.length - 1];
+        Arrays.fill(newest, NONE);
+        for (final RangeTombstone tombstone : tombstones) {
+            if (tombstone.isEmpty()) {
+                continue;
+            }
+            final int end = Arrays.binarySearch(points, tombstone.getTo(), Keys.ORDER);
+            for (int i = Arrays.binarySearch(points, tombstone.getFrom(), Keys.ORDER); i < end; i++) {
+                newest[i] = Math.max(newest[i], tombstone.getTimestamp());
+            }
+        }
+        final List<RangeTombstone> fragments = new ArrayList<>();
+        for (int i = 0; i < newest.length; i++) {
+            if (newest[i] == NONE) {
+                continue;
+            }
+            int last = i;
+            while (last + 1 < newest.length && newest[last + 1] == newest[i]) {
+                last++;
+            }
+            fragments.add(new RangeTombstone(points[i], points[last + 1], newest[i]));
+            i = last;
+        }
+        return new RangeTombstones(fragments.toArray(new RangeTombstone[0]));
+    }
+
+    /**
+     * Combines sets of many tables.
+     *
+     * @param sets sets to combine
+     * @return set covering whatever any of the sets covers
+     */
+    @NotNull
+    public static RangeTombstones merge(@NotNull final Collection<RangeTombstones> sets) {
+        RangeTombstones single = EMPTY;
+        final List<RangeTombstone> all = new ArrayList<>();
+        for (final RangeTombstones set : sets) {
+            if (!set.isEmpty()) {
+                single = set;
+                all.addAll(Arrays.asList(set.fragments));
+            }
+        }
+        return all.size() == single.fragments.length ? single : of(all);
+    }
+
+    /**
+     * Adds the tombstone.
+     *
+     * @param tombstone tombstone to add
+     * @return new set
+     */
+    @NotNull
+    public RangeTombstones with(@NotNull final RangeTombstone tombstone) {
+        final List<RangeTombstone> all = new ArrayList<>(fragments.length + 1);
+        all.addAll(Arrays.asList(fragments));
+        all.add(tombstone);
+        return of(all);
+    }
+
+    /**
+     * Leaves out fragments, the rest keep their bounds.
+     *
+     * @param kept tells fragments to keep
+     * @return set of the kept fragments
+     */
+    @NotNull
+    public RangeTombstones retain(@NotNull final Predicate<RangeTombstone> kept) {
+        final List<RangeTombstone> result = new ArrayList<>(fragments.length);
+        for (final RangeTombstone fragment : fragments) {
+            if (kept.test(fragment)) {
+                result.add(fragment);
+            }
+        }
+        return result.size() == fragments.length ? this : new RangeTombstones(result.toArray(new RangeTombstone[0]));
+    }
+
+    public boolean isEmpty() {
+        return fragments.length == 0;
+    }
+
+    /**
+     * Finds the newest tombstone covering the key.
+     *
+     * @param key key to look for
+     * @return timestamp of the tombstone or {@link #NONE} if no tombstone covers the key
+     */
+    public long deletedAt(@NotNull final ByteBuffer key) {
+        int low = 0;
+        int high = fragments.length - 1;
+        int found = -1;
+        while (low <= high) {
+            final int mid = (low + high) >>> 1;
+            if (Keys.compare(fragments[mid].getFrom(), key) <= 0) {
+                found = mid;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (found < 0 || Keys.compare(key, fragments[found].getTo()) >= 0) {
+            return NONE;
+        }
+        return fragments[found].getTimestamp();
+    }
+
+    /**
+     * Checks whether a tombstone hides the cell.
+     */
+    public boolean covers(@NotNull final Cell cell) {
+        return fragments.length > 0 && cell.getValue().getTimestamp() < deletedAt(cell.getKey());
+    }
+
+    /**
+     * Part of the set below the key.
+     *
+     * @param key the first key left out
+     * @return fragments ending at the key at most
+     */
+    @NotNull
+    public RangeTombstones before(@NotNull final ByteBuffer key) {
+        final List<RangeTombstone> result = new ArrayList<>(fragments.length);
+        for (final RangeTombstone fragment : fragments) {
+            if (Keys.compare(fragment.getFrom(), key) >= 0) {
+                break;
+            }
+            result.add(Keys.compare(fragment.getTo(), key) <= 0
+                    ? fragment
+                    : new RangeTombstone(fragment.getFrom(), key, fragment.getTimestamp()));
+        }
+        return new RangeTombstones(result.toArray(new RangeTombstone[0]));
+    }
+
+    /**
+     * Part of the set starting at the key.
+     *
+     * @param key the first key kept
+     * @return fragments starting at the key at least
+     */
+    @NotNull
+    public RangeTombstones from(@NotNull final ByteBuffer key) {
+        final List<RangeTombstone> result = new ArrayList<>(fragments.length);
+        for (final RangeTombstone fragment : fragments) {
+            if (Keys.compare(fragment.getTo(), key) <= 0) {
+                continue;
+            }
+            result.add(Keys.compare(fragment.getFrom(), key) >= 0
+                    ? fragment
+                    : new RangeTombstone(key, fragment.getTo(), fragment.getTimestamp()));
+        }
+        return new RangeTombstones(result.toArray(new RangeTombstone[0]));
+    }
+
+    /**
+     * Start of the first fragment.
+     *
+     * @return the key or null if the set is empty
+     */
+    @Nullable
+    public ByteBuffer firstKey() {
+        return isEmpty() ? null : fragments[0].getFrom();
+    }
+
+    /**
+     * End of the last fragment, the key itself is not covered.
+     *
+     * @return the key or null if the set is empty
+     */
+    @Nullable
+    public ByteBuffer lastKey() {
+        return isEmpty() ? null : last().getTo();
+    }
+
+    @NotNull
+    private RangeTombstone last() {
+        return fragments[fragments.length - 1];
+    }
+
+    /**
+     * Fragments in key order.
+     */
+    @NotNull
+    public List<RangeTombstone> fragments() {
+        return List.of(fragments);
+    }
+
+    /**
+     * Size of the set written by {@link #writeTo(ByteBuffer)}.
+     */
+    public int sizeInBytes() {
+        int size = Integer.BYTES;
+        for (final RangeTombstone fragment : fragments) {
+            size += Integer.BYTES + fragment.getFrom().remaining()
+                    + Integer.BYTES + fragment.getTo().remaining() + Long.BYTES;
+        }
+        return size;
+    }
+
+    /**
+     * Writes the set to the buffer.
+     *
+     * @param buffer buffer with {@link #sizeInBytes()} bytes remaining at least
+     */
+    public void writeTo(@NotNull final ByteBuffer buffer) {
+        buffer.putInt(fragments.length);
+        for (final RangeTombstone fragment : fragments) {
+            buffer.putInt(fragment.getFrom().remaining()).put(fragment.getFrom().duplicate())
+                    .putInt(fragment.getTo().remaining()).put(fragment.getTo().duplicate())
+                    .putLong(fragment.getTimestamp());
+        }
+    }
+
+    /**
+     * Reads set previously written by {@link #writeTo(ByteBuffer)}, the keys are slices of the buffer.
+     *
+     * @param buffer the written set
+     * @return loaded set
+     */
+    @NotNull
+    public static RangeTombstones read(@NotNull final ByteBuffer buffer) {
+        final ByteBuffer input = buffer.duplicate();
+        final RangeTombstone[] fragments = new RangeTombstone[input.getInt()];
+        for (int i = 0; i < fragments.length; i++) {
+            final ByteBuffer from = slice(input, input.getInt());
+            final ByteBuffer to = slice(input, input.getInt());
+            fragments[i] = new RangeTombstone(from, to, input.getLong());
+        }
+        return fragments.length == 0 ? EMPTY : new RangeTombstones(fragments);
+    }
+
+    @NotNull
+    private static ByteBuffer slice(@NotNull final ByteBuffer input, final int size) {
+        final ByteBuffer result = input.duplicate();
+        result.limit(result.position() + size);
+        input.position(input.position() + size);
+        return result.slice();
+    }
+}
@@ -0,0 +1,66 @@
+package ru.mail.polis.dao.senyast.tables;
+
+import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.dao.senyast.model.RangeTombstone;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Range tombstones of a memory table with the sequence numbers of the changes they came with, so readers
+ * see the ones of the changes visible to them. Fragments of all the tombstones are kept ready,
+ * a reader which does not see some of them gets fragments built for it.
+ */
+final class SequencedTombstones {
+    private static final SequencedTombstones EMPTY =
+            new SequencedTombstones(new RangeTombstone[0], new long[0], RangeTombstones.EMPTY);
+
+    private final RangeTombstone[] tombstones;
+    private final long[] sequences;
+    private final long newest;
+    private final RangeTombstones all;
+
+    private SequencedTombstones(@NotNull final RangeTombstone[] tombstones, @NotNull final long[] sequences,
+                                @NotNull final RangeTombstones all) {
+        this.tombstones = tombstones;
+        this.sequences = sequences;
+        long max = Long.MIN_VALUE;
+        for (final long sequence : sequences) {
+            max = Math.max(max, sequence);
+        }
+        this.newest = max;
+        this.all = all;
+    }
+
+    @NotNull
+    static SequencedTombstones empty() {
+        return EMPTY;
+    }
+
+    @NotNull
+    SequencedTombstones with(@NotNull final RangeTombstone tombstone, final long sequence) {
+        final RangeTombstone[] nextTombstones = Arrays.copyOf(tombstones, tombstones.length + 1);
+        nextTombstones[tombstones.length] = tombstone;
+        final long[] nextSequences = Arrays.copyOf(sequences, sequences.length + 1);
+        nextSequences[sequences.length] = sequence;
+        return new SequencedTombstones(nextTombstones, nextSequences, all.with(tombstone));
+    }
+
+    /**
+     * Fragments of the tombstones which came with the changes up to the sequence number.
+     */
+    @NotNull
+    RangeTombstones visible(final long sequence) {
+        if (sequence >= newest) {
+            return all;
+        }
+        final List<RangeTombstone> result = new ArrayList<>(tombstones.length);
+        for (int i = 0; i < tombstones.length; i++) {
+            if (sequences[i] <= sequence) {
+                result.add(tombstones[i]);
+            }
+        }
+        return RangeTombstones.of(result);
+    }
+}
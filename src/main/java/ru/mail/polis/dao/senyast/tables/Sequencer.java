@@ -0,0 +1,135 @@
+package ru.mail.polis.dao.senyast.tables;
+
+import java.util.BitSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sequence numbers of the changes applied to the memory tables. A writer {@link #reserve() reserves}
+ * the next number, stores its cells with it and {@link #publish(long) publishes} it once they are all
+ * stored. Readers see the changes up to the {@link #visible() visible} number, which passes a change
+ * only after every change reserved before it is published, so a reader never sees a part of a change
+ * nor a change without the ones preceding it.
+ *
+ * <p>Readers {@link #pin() pin} the number they read as of until they are done, so writers know the
+ * {@link #oldestReadable() oldest} number anybody may still read as of and drop the values older changes
+ * wrote over.
+ */
+final class Sequencer {
+    private final AtomicLong reserved = new AtomicLong();
+    private volatile long visible;
+    /**
+     * Numbers published ahead of the visible one, offset by it, guarded by the instance.
+     */
+    private final BitSet ahead = new BitSet();
+    /**
+     * Numbers pinned by readers with the number of readers of each.
+     */
+    private final ConcurrentNavigableMap<Long, Integer> pinned = new ConcurrentSkipListMap<>();
+    /**
+     * Only grows, a reader pinning a number below it must pin again, since writers may have dropped
+     * the values it needs.
+     */
+    private final AtomicLong floor = new AtomicLong();
+
+    long reserve() {
+        return reserved.incrementAndGet();
+    }
+
+    /**
+     * Makes the change visible along with the ones published ahead of it once the changes reserved before
+     * are, and waits for that, so the writer reads its own change afterwards.
+     *
+     * @param sequence number of the change, whether its cells are stored or the change has failed
+     */
+    synchronized void publish(final long sequence) {
+        if (sequence != visible + 1) {
+            ahead.set((int) (sequence - visible - 1));
+            boolean interrupted = false;
+            while (visible < sequence) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    // The change is stored already, it can't be given up
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+        // Bit zero stands for this change, the ones published right after it follow
+        final int passed = ahead.nextClearBit(1) - 1;
+        visible = sequence + passed;
+        if (!ahead.isEmpty()) {
+            shift(passed + 1);
+            if (passed > 0) {
+                notifyAll();
+            }
+        }
+    }
+
+    private void shift(final int count) {
+        final BitSet rest = ahead.get(count, Math.max(count, ahead.length()));
+        ahead.clear();
+        ahead.or(rest);
+    }
+
+    /**
+     * Number of the newest change visible to readers, every change up to it is stored entirely.
+     */
+    long visible() {
+        return visible;
+    }
+
+    /**
+     * Pins the visible number until {@link #unpin(long) unpinned}, the values readers of it see are kept.
+     *
+     * @return the number to read as of
+     */
+    long pin() {
+        while (true) {
+            final long sequence = visible;
+            pin(sequence);
+            // A writer which has not seen the pin has raised the floor before looking
+            if (sequence >= floor.get()) {
+                return sequence;
+            }
+            unpin(sequence);
+        }
+    }
+
+    /**
+     * Pins a number once more for another reader.
+     *
+     * @param sequence number pinned already
+     */
+    void pin(final long sequence) {
+        pinned.merge(sequence, 1, Integer::sum);
+    }
+
+    void unpin(final long sequence) {
+        pinned.computeIfPresent(sequence, (s, count) -> count == 1 ? null : count - 1);
+    }
+
+    /**
+     * Number of the oldest change a reader may read as of, the values written over by changes up to it
+     * are never read but the newest one.
+     *
+     * @return the number
+     */
+    long oldestReadable() {
+        final long candidate = oldest(visible);
+        floor.accumulateAndGet(candidate, Math::max);
+        // Readers pinning after the floor is raised see it, the ones which pinned before are seen here
+        return oldest(candidate);
+    }
+
+    private long oldest(final long bound) {
+        final Map.Entry<Long, Integer> first = pinned.firstEntry();
+        return first == null ? bound : Math.min(bound, first.getKey());
+    }
+}
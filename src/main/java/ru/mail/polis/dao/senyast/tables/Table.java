@@ -1,7 +1,9 @@
 package ru.mail.polis.dao.senyast.tables;
 
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 import ru.mail.polis.dao.senyast.model.Cell;
+import ru.mail.polis.dao.senyast.model.Value;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
@@ -12,6 +14,25 @@ public interface Table {
 
     Iterator<Cell> iterator(@NotNull ByteBuffer from) throws IOException;
 
+    /**
+     * Exact-match lookup.
+     *
+     * @param key key to find
+     * @return value of the key, including tombstone, or null if the table knows nothing about the key
+     * @throws IOException if I/O error
+     */
+    @Nullable
+    Value get(@NotNull ByteBuffer key) throws IOException;
+
+    /**
+     * Range tombstones of the table. They hide older cells of any table, cells returned by
+     * {@link #iterator(ByteBuffer)} and {@link #get(ByteBuffer)} are not filtered by them.
+     *
+     * @return the tombstones split into fragments
+     */
+    @NotNull
+    RangeTombstones rangeTombstones();
+
     void upsert(
             @NotNull ByteBuffer key,
             @NotNull ByteBuffer value) throws IOException;
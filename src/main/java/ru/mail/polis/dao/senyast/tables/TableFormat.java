@@ -0,0 +1,151 @@
+package ru.mail.polis.dao.senyast.tables;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32C;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+/**
+ * On-disk layout of {@link FileTable}.
+ *
+ * <p>Legacy files have no footer: cells, one long offset per row, rows count.
+ * Version 1 appends a bloom filter and {@code [bloom offset][hash functions][version][magic]}.
+ * Version 2 stores cells in blocks, each block being {@code [cells][int offset per row][rows]},
+ * followed by the sparse block index, the bloom filter, named properties and
+ * {@code [properties offset][version][magic]}. If the table has a codec, every block is prefixed with
+ * {@code [codec id][uncompressed size]} and the codec id is zero for blocks which did not compress well.
+ * Tables of versions before 2, and of version 2 without the key order property, are sorted by signed bytes.
+ * Range tombstones, if any, follow the bloom filter as written by {@link RangeTombstones#writeTo}.
+ * The index is followed by the CRC32C of every block as stored, codec prefix included, an int per block;
+ * tables written before have no checksums.
+ * Version 3 has the layout of version 2 with {@code [properties checksum][properties offset][version][magic]}
+ * at the end, the CRC32C of the properties as stored, and the {@link #METADATA_CHECKSUM metadata checksum}
+ * property, so a table which opens and loads has intact metadata.
+ */
+final class TableFormat {
+    static final long MAGIC = 0x5453_414C_4246_4C54L;
+    static final int VERSION_LEGACY = 0;
+    static final int VERSION_BLOOM = 1;
+    static final int VERSION_BLOCKS = 2;
+    static final int VERSION_CHECKED = 3;
+
+    static final int TRAILER_SIZE = Integer.BYTES + Long.BYTES;
+    static final int BLOOM_FOOTER_SIZE = Long.BYTES + Integer.BYTES + TRAILER_SIZE;
+    static final int FOOTER_SIZE = Long.BYTES + TRAILER_SIZE;
+    static final int CHECKED_FOOTER_SIZE = Integer.BYTES + FOOTER_SIZE;
+    static final int BLOCK_HEADER_SIZE = Byte.BYTES + Integer.BYTES;
+
+    static final String ROWS = "rows";
+    static final String BLOCKS = "blocks";
+    static final String INDEX_OFFSET = "index.offset";
+    static final String INDEX_LENGTH = "index.length";
+    static final String BLOOM_OFFSET = "bloom.offset";
+    static final String BLOOM_LENGTH = "bloom.length";
+    static final String BLOOM_HASHES = "bloom.hashes";
+    static final String CODEC = "codec";
+    static final String LEVEL = "level";
+    static final String MAX_GENERATION = "generation.max";
+    /**
+     * Ordinal of {@link KeyOrder}, tables without it are sorted in {@link KeyOrder#SIGNED} order.
+     */
+    static final String KEY_ORDER = "key.order";
+    /**
+     * Offset of block checksums, tables without it are not verified.
+     */
+    static final String CHECKSUMS_OFFSET = "checksums.offset";
+    static final String RANGES_OFFSET = "ranges.offset";
+    static final String RANGES_LENGTH = "ranges.length";
+    /**
+     * Number of range tombstone fragments, so the share of tombstones is known without loading them.
+     * Tables with range tombstones written without it have to load them.
+     */
+    static final String RANGES_FRAGMENTS = "ranges.fragments";
+    /**
+     * Number of tombstone cells, tables without it are assumed to have none.
+     */
+    static final String TOMBSTONES = "tombstones";
+    /**
+     * Timestamp of the oldest tombstone, range tombstones included, written only if there are any.
+     */
+    static final String TOMBSTONES_OLDEST = "tombstones.oldest";
+    /**
+     * CRC32C of everything between the index offset and the properties: the index, the block checksums,
+     * the bloom filter and the range tombstones. Written from version 3 on.
+     */
+    static final String METADATA_CHECKSUM = "metadata.checksum";
+
+    private TableFormat() {
+    }
+
+    /**
+     * Detects format version by the tail of the file.
+     */
+    static int version(@NotNull final ByteBuffer mapped) {
+        final int size = mapped.limit();
+        if (size < TRAILER_SIZE || mapped.getLong(size - Long.BYTES) != MAGIC) {
+            return VERSION_LEGACY;
+        }
+        final int version = mapped.getInt(size - TRAILER_SIZE);
+        if (version != VERSION_BLOOM && version != VERSION_BLOCKS && version != VERSION_CHECKED) {
+            throw new IllegalStateException("Unsupported table format version " + version);
+        }
+        return version;
+    }
+
+    /**
+     * Size of the footer following the properties.
+     */
+    static int footerSize(final int version) {
+        assert version == VERSION_BLOCKS || version == VERSION_CHECKED;
+        return version == VERSION_CHECKED ? CHECKED_FOOTER_SIZE : FOOTER_SIZE;
+    }
+
+    /**
+     * CRC32C of the remaining bytes, the buffer is not moved.
+     */
+    static long checksum(@NotNull final ByteBuffer buffer) {
+        final CRC32C crc = new CRC32C();
+        crc.update(buffer.duplicate());
+        return crc.getValue();
+    }
+
+    @NotNull
+    static ByteBuffer writeProperties(@NotNull final Map<String, Long> properties) {
+        int size = Integer.BYTES;
+        for (final String name : properties.keySet()) {
+            size += Integer.BYTES + name.getBytes(UTF_8).length + Long.BYTES;
+        }
+        final ByteBuffer result = ByteBuffer.allocate(size);
+        result.putInt(properties.size());
+        for (final Map.Entry<String, Long> property : properties.entrySet()) {
+            final byte[] name = property.getKey().getBytes(UTF_8);
+            result.putInt(name.length).put(name).putLong(property.getValue());
+        }
+        return result.flip();
+    }
+
+    @NotNull
+    static Map<String, Long> readProperties(@NotNull final ByteBuffer buffer) {
+        final ByteBuffer input = buffer.duplicate();
+        final int count = input.getInt();
+        final Map<String, Long> properties = new HashMap<>(count * 2);
+        for (int i = 0; i < count; i++) {
+            final byte[] name = new byte[input.getInt()];
+            input.get(name);
+            properties.put(new String(name, UTF_8), input.getLong());
+        }
+        return properties;
+    }
+
+    static long property(@NotNull final Map<String, Long> properties, @NotNull final String name) {
+        final Long value = properties.get(name);
+        if (value == null) {
+            throw new IllegalStateException("Table has no property " + name);
+        }
+        return value;
+    }
+}
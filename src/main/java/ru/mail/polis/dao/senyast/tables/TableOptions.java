@@ -0,0 +1,124 @@
+package ru.mail.polis.dao.senyast.tables;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.dao.senyast.codec.Codec;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Settings of the tables being written. Tables on disk describe themselves, so the settings
+ * may be changed between restarts.
+ */
+public final class TableOptions {
+    public static final int DEFAULT_BLOOM_BITS_PER_KEY = 10;
+    public static final int DEFAULT_BLOCK_SIZE = 4 * 1024;
+
+    private static final TableOptions DEFAULT =
+            new TableOptions(DEFAULT_BLOOM_BITS_PER_KEY, DEFAULT_BLOCK_SIZE, null, Long.MAX_VALUE, null);
+
+    private final int bloomBitsPerKey;
+    private final int blockSize;
+    @Nullable
+    private final Codec codec;
+    private final long fileSizeLimit;
+    @Nullable
+    private final Executor writeExecutor;
+
+    private TableOptions(final int bloomBitsPerKey, final int blockSize, @Nullable final Codec codec,
+                         final long fileSizeLimit, @Nullable final Executor writeExecutor) {
+        this.bloomBitsPerKey = bloomBitsPerKey;
+        this.blockSize = blockSize;
+        this.codec = codec;
+        this.fileSizeLimit = fileSizeLimit;
+        this.writeExecutor = writeExecutor;
+    }
+
+    @NotNull
+    public static TableOptions defaults() {
+        return DEFAULT;
+    }
+
+    /**
+     * Sets bloom filter density.
+     *
+     * @param bitsPerKey bloom filter bits per key, zero or negative to write no filter
+     * @return new options
+     */
+    @NotNull
+    public TableOptions withBloomBitsPerKey(final int bitsPerKey) {
+        return new TableOptions(bitsPerKey, blockSize, codec, fileSizeLimit, writeExecutor);
+    }
+
+    /**
+     * Sets target size of data blocks.
+     *
+     * @param size size in bytes a block is closed at, a single big cell may exceed it
+     * @return new options
+     */
+    @NotNull
+    public TableOptions withBlockSize(final int size) {
+        if (size <= 0) {
+            throw new IllegalArgumentException("Block size must be positive: " + size);
+        }
+        return new TableOptions(bloomBitsPerKey, size, codec, fileSizeLimit, writeExecutor);
+    }
+
+    /**
+     * Sets block compression. Compaction rewrites tables with the codec set at the moment.
+     *
+     * @param blockCodec codec to compress blocks with, null to store blocks as is
+     * @return new options
+     */
+    @NotNull
+    public TableOptions withCodec(@Nullable final Codec blockCodec) {
+        return new TableOptions(bloomBitsPerKey, blockSize, blockCodec, fileSizeLimit, writeExecutor);
+    }
+
+    /**
+     * Sets size a table is closed at, the rest of the cells being left for the next table.
+     *
+     * @param limit size of data in bytes, {@link Long#MAX_VALUE} to write all the cells into one table
+     * @return new options
+     */
+    @NotNull
+    public TableOptions withFileSizeLimit(final long limit) {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("File size limit must be positive: " + limit);
+        }
+        return new TableOptions(bloomBitsPerKey, blockSize, codec, limit, writeExecutor);
+    }
+
+    /**
+     * Sets executor writing a block to the file while the writer encodes the next one.
+     *
+     * @param executor executor to write blocks on, null to write them on the encoding thread
+     * @return new options
+     */
+    @NotNull
+    public TableOptions withWriteExecutor(@Nullable final Executor executor) {
+        return new TableOptions(bloomBitsPerKey, blockSize, codec, fileSizeLimit, executor);
+    }
+
+    public int bloomBitsPerKey() {
+        return bloomBitsPerKey;
+    }
+
+    public int blockSize() {
+        return blockSize;
+    }
+
+    @Nullable
+    public Codec codec() {
+        return codec;
+    }
+
+    public long fileSizeLimit() {
+        return fileSizeLimit;
+    }
+
+    @Nullable
+    public Executor writeExecutor() {
+        return writeExecutor;
+    }
+}
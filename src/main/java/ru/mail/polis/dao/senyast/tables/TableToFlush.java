@@ -9,9 +9,9 @@ public class TableToFlush {
     /**
      * Wrapper class to Table.
      *
-     * @param table        table needed flush
+     * @param table        table needed flush, null for the poison pill
      * @param generation   generation of table to flush
-     * @param isPoisonPeel check is table last table to flush
+     * @param isPoisonPeel true for the pill stopping the flushers
      */
     public TableToFlush(final Table table, final int generation, final boolean isPoisonPeel) {
         this.table = table;
@@ -0,0 +1,382 @@
+package ru.mail.polis.dao.senyast.tables;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.dao.senyast.codec.Codec;
+import ru.mail.polis.dao.senyast.codec.Codecs;
+import ru.mail.polis.dao.senyast.model.Cell;
+import ru.mail.polis.dao.senyast.model.RangeTombstone;
+import ru.mail.polis.dao.senyast.model.Value;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.zip.CRC32C;
+
+/**
+ * Streams sorted cells into a table of the current {@link TableFormat} version.
+ *
+ * <p>With a {@link TableOptions#writeExecutor() write executor} a block is written there while the next one
+ * is encoded into spare buffers, at most one write being in flight.
+ */
+final class TableWriter {
+    /**
+     * Key hashes are kept for the filter to be sized by the number of rows up to this many rows,
+     * beyond that the filter is sized by the rows expected and filled as the rows are written.
+     */
+    private static final int MAX_BUFFERED_HASHES = 1 << 18;
+    /**
+     * Rows expected in a table without size limit, relative to the rows written when the hashes outgrow the buffer.
+     */
+    private static final int UNLIMITED_GROWTH = 4;
+
+    private final FileChannel channel;
+    private final TableOptions options;
+    private final int level;
+    private final long maxGeneration;
+
+    private ByteBuffer block;
+    private ByteBuffer compressed = ByteBuffer.allocate(0);
+    private int[] rowOffsets = new int[64];
+    private int blockRows;
+    private ByteBuffer blockSeparator;
+    private ByteBuffer lastKey;
+
+    private ByteBuffer index = ByteBuffer.allocate(1024);
+    private int[] checksums = new int[64];
+    private int blocks;
+    private long rows;
+    private long tombstones;
+    private long oldestTombstone = Long.MAX_VALUE;
+    private long position;
+
+    private long[] hashes = new long[0];
+    @Nullable
+    private BloomFilter bloom;
+
+    @Nullable
+    private final Executor executor;
+    @Nullable
+    private CompletableFuture<Void> pending;
+    private ByteBuffer spareBlock;
+    private ByteBuffer spareCompressed = ByteBuffer.allocate(0);
+
+    /**
+     * Creates writer of a table.
+     *
+     * @param channel       channel to write to
+     * @param options       format settings
+     * @param level         level of the table
+     * @param maxGeneration newest memory table generation the cells come from
+     */
+    TableWriter(@NotNull final FileChannel channel, @NotNull final TableOptions options,
+                final int level, final long maxGeneration) {
+        this.channel = channel;
+        this.options = options;
+        this.level = level;
+        this.maxGeneration = maxGeneration;
+        this.block = ByteBuffer.allocate(options.blockSize() + options.blockSize() / 4);
+        this.executor = options.writeExecutor();
+        this.spareBlock = ByteBuffer.allocate(executor == null ? 0 : block.capacity());
+    }
+
+    /**
+     * Appends the cell, cells must come in ascending key order.
+     *
+     * @param cell cell to write
+     * @throws IOException if I/O error
+     */
+    void add(@NotNull final Cell cell) throws IOException {
+        final ByteBuffer key = cell.getKey();
+        final Value value = cell.getValue();
+        final ByteBuffer data = value.isTombstone() ? null : value.getData();
+        final int keySize = key.remaining();
+        final boolean expiring = data != null && value.getExpiresAt() != Value.NEVER;
+        final int valueSize = data == null ? 0 : Integer.BYTES + (expiring ? Long.BYTES : 0) + data.remaining();
+        final int cellSize = Integer.BYTES + keySize + Long.BYTES + valueSize;
+
+        if (blockRows > 0 && block.position() + cellSize > options.blockSize()) {
+            flushBlock();
+        }
+        if (blockRows == 0) {
+            blockSeparator = lastKey == null ? ByteBuffer.allocate(0) : BlockIndex.separator(lastKey, key);
+        }
+        // room for the cell and the block tail: row offsets and rows count
+        ensureBlockCapacity(cellSize + Integer.BYTES * (blockRows + 2));
+        if (blockRows == rowOffsets.length) {
+            rowOffsets = Arrays.copyOf(rowOffsets, rowOffsets.length * 2);
+        }
+        rowOffsets[blockRows++] = block.position();
+
+        block.putInt(keySize).put(key.duplicate());
+        if (data == null) {
+            block.putLong(-value.getTimestamp());
+            tombstones++;
+            oldestTombstone = Math.min(oldestTombstone, value.getTimestamp());
+        } else if (expiring) {
+            block.putLong(value.getTimestamp()).putInt(~data.remaining()).putLong(value.getExpiresAt()).put(data);
+        } else {
+            block.putLong(value.getTimestamp()).putInt(data.remaining()).put(data);
+        }
+
+        if (options.bloomBitsPerKey() > 0) {
+            addHash(BloomFilter.hash(key));
+        }
+        lastKey = key;
+        rows++;
+    }
+
+    private void addHash(final long hash) {
+        if (bloom == null && rows < MAX_BUFFERED_HASHES) {
+            hashes = BloomFilter.ensureCapacity(hashes, (int) rows, MAX_BUFFERED_HASHES);
+            hashes[(int) rows] = hash;
+            return;
+        }
+        if (bloom == null) {
+            bloom = BloomFilter.create(expectedRows(), options.bloomBitsPerKey());
+            for (final long buffered : hashes) {
+                bloom.add(buffered);
+            }
+            hashes = new long[0];
+        }
+        bloom.add(hash);
+    }
+
+    /**
+     * Estimates rows of the whole table by the rows written so far.
+     */
+    private long expectedRows() {
+        final long limit = options.fileSizeLimit();
+        if (limit == Long.MAX_VALUE) {
+            return rows * UNLIMITED_GROWTH;
+        }
+        // The rest of the table up to the size limit is assumed to hold rows of the same size
+        return Math.max(rows + 1, (long) ((double) rows * limit / Math.max(1, size())));
+    }
+
+    /**
+     * Estimates size of the table written so far.
+     */
+    long size() {
+        return position + block.position();
+    }
+
+    private void ensureBlockCapacity(final int extra) {
+        if (block.remaining() < extra) {
+            final ByteBuffer bigger = ByteBuffer.allocate(Math.max(block.capacity() * 2, block.position() + extra));
+            block.flip();
+            bigger.put(block);
+            block = bigger;
+        }
+    }
+
+    private void flushBlock() throws IOException {
+        for (int i = 0; i < blockRows; i++) {
+            block.putInt(rowOffsets[i]);
+        }
+        block.putInt(blockRows);
+        block.flip();
+        final long blockOffset = position;
+        final ByteBuffer[] stored = options.codec() == null ? new ByteBuffer[]{block} : compress(options.codec());
+        if (blocks == checksums.length) {
+            checksums = Arrays.copyOf(checksums, checksums.length * 2);
+        }
+        checksums[blocks] = checksum(stored);
+        write(stored);
+        final int length = (int) (position - blockOffset);
+        if (executor != null) {
+            swapBuffers();
+        }
+        block.clear();
+
+        final int entrySize = BlockIndex.entrySize(blockSeparator);
+        if (index.remaining() < entrySize) {
+            final ByteBuffer bigger = ByteBuffer.allocate(Math.max(index.capacity() * 2, index.position() + entrySize));
+            index.flip();
+            bigger.put(index);
+            index = bigger;
+        }
+        BlockIndex.write(index, blockOffset, length, blockSeparator);
+        blocks++;
+        blockRows = 0;
+        blockSeparator = null;
+    }
+
+    /**
+     * Compresses the block unless it is not worth it.
+     *
+     * @return buffers to store, the codec prefix followed by the block compressed or as is
+     */
+    @NotNull
+    private ByteBuffer[] compress(@NotNull final Codec codec) {
+        final int size = block.remaining();
+        // Compression is worth it only if it saves at least an eighth of the block
+        final int limit = TableFormat.BLOCK_HEADER_SIZE + size - size / 8;
+        if (compressed.capacity() < limit) {
+            compressed = ByteBuffer.allocate(limit);
+        }
+        compressed.clear().limit(limit).position(TableFormat.BLOCK_HEADER_SIZE);
+        final int compressedSize = codec.compress(block, compressed);
+        compressed.position(0);
+        if (compressedSize < 0) {
+            compressed.put((byte) Codecs.NONE_ID).putInt(size).flip();
+            return new ByteBuffer[]{compressed, block};
+        }
+        compressed.put((byte) codec.id()).putInt(size)
+                .limit(TableFormat.BLOCK_HEADER_SIZE + compressedSize)
+                .position(0);
+        return new ByteBuffer[]{compressed};
+    }
+
+    private static int checksum(@NotNull final ByteBuffer... buffers) {
+        final CRC32C crc = new CRC32C();
+        for (final ByteBuffer buffer : buffers) {
+            crc.update(buffer.duplicate());
+        }
+        return (int) crc.getValue();
+    }
+
+    /**
+     * The buffers must not be changed until the next write or {@link #finish(RangeTombstones)}.
+     */
+    private void write(@NotNull final ByteBuffer... buffers) throws IOException {
+        if (executor == null) {
+            for (final ByteBuffer buffer : buffers) {
+                while (buffer.hasRemaining()) {
+                    position += channel.write(buffer);
+                }
+            }
+            return;
+        }
+        awaitPending();
+        final long offset = position;
+        for (final ByteBuffer buffer : buffers) {
+            position += buffer.remaining();
+        }
+        pending = CompletableFuture.runAsync(() -> writeAt(offset, buffers), executor);
+    }
+
+    private void writeAt(final long offset, @NotNull final ByteBuffer... buffers) {
+        long at = offset;
+        try {
+            for (final ByteBuffer buffer : buffers) {
+                while (buffer.hasRemaining()) {
+                    at += channel.write(buffer, at);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void awaitPending() throws IOException {
+        if (pending == null) {
+            return;
+        }
+        try {
+            pending.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw e;
+        } finally {
+            pending = null;
+        }
+    }
+
+    /**
+     * Encodes the next block into the buffers written before, the previous write having completed.
+     */
+    private void swapBuffers() {
+        final ByteBuffer written = block;
+        block = spareBlock;
+        spareBlock = written;
+        final ByteBuffer writtenCompressed = compressed;
+        compressed = spareCompressed;
+        spareCompressed = writtenCompressed;
+    }
+
+    /**
+     * Writes the last block, index, bloom filter, range tombstones and footer.
+     *
+     * @param rangeTombstones range tombstones to store with the cells
+     * @throws IOException if I/O error
+     */
+    void finish(@NotNull final RangeTombstones rangeTombstones) throws IOException {
+        if (blockRows > 0) {
+            flushBlock();
+        }
+        final Map<String, Long> properties = new LinkedHashMap<>();
+        properties.put(TableFormat.ROWS, rows);
+        properties.put(TableFormat.BLOCKS, (long) blocks);
+        properties.put(TableFormat.LEVEL, (long) level);
+        properties.put(TableFormat.MAX_GENERATION, maxGeneration);
+        properties.put(TableFormat.KEY_ORDER, (long) KeyOrder.UNSIGNED.ordinal());
+        properties.put(TableFormat.TOMBSTONES, tombstones);
+        for (final RangeTombstone fragment : rangeTombstones.fragments()) {
+            oldestTombstone = Math.min(oldestTombstone, fragment.getTimestamp());
+        }
+        if (oldestTombstone != Long.MAX_VALUE) {
+            properties.put(TableFormat.TOMBSTONES_OLDEST, oldestTombstone);
+        }
+        if (options.codec() != null) {
+            properties.put(TableFormat.CODEC, (long) options.codec().id());
+        }
+
+        // Everything from the index up to the properties is covered by the metadata checksum
+        final CRC32C metadata = new CRC32C();
+        properties.put(TableFormat.INDEX_OFFSET, position);
+        properties.put(TableFormat.INDEX_LENGTH, (long) index.position());
+        metadata.update(index.flip().duplicate());
+        write(index);
+
+        final ByteBuffer blockChecksums = ByteBuffer.allocate(blocks * Integer.BYTES);
+        blockChecksums.asIntBuffer().put(checksums, 0, blocks);
+        properties.put(TableFormat.CHECKSUMS_OFFSET, position);
+        metadata.update(blockChecksums.duplicate());
+        write(blockChecksums);
+
+        if (options.bloomBitsPerKey() > 0) {
+            // The hashes are buffered only while there are fewer rows than the buffer holds
+            final BloomFilter filter = bloom == null
+                    ? BloomFilter.build(hashes, (int) rows, options.bloomBitsPerKey())
+                    : bloom;
+            final ByteBuffer words = ByteBuffer.allocate(filter.sizeInBytes());
+            filter.writeTo(words);
+            properties.put(TableFormat.BLOOM_OFFSET, position);
+            properties.put(TableFormat.BLOOM_LENGTH, (long) words.capacity());
+            properties.put(TableFormat.BLOOM_HASHES, (long) filter.hashFunctions());
+            metadata.update(words.flip().duplicate());
+            write(words);
+        }
+
+        if (!rangeTombstones.isEmpty()) {
+            final ByteBuffer ranges = ByteBuffer.allocate(rangeTombstones.sizeInBytes());
+            rangeTombstones.writeTo(ranges);
+            properties.put(TableFormat.RANGES_OFFSET, position);
+            properties.put(TableFormat.RANGES_LENGTH, (long) ranges.capacity());
+            properties.put(TableFormat.RANGES_FRAGMENTS, (long) rangeTombstones.fragments().size());
+            metadata.update(ranges.flip().duplicate());
+            write(ranges);
+        }
+        properties.put(TableFormat.METADATA_CHECKSUM, metadata.getValue());
+
+        final long propertiesOffset = position;
+        final ByteBuffer stored = TableFormat.writeProperties(properties);
+        final int propertiesChecksum = (int) TableFormat.checksum(stored);
+        write(stored);
+        final ByteBuffer footer = ByteBuffer.allocate(TableFormat.CHECKED_FOOTER_SIZE);
+        footer.putInt(propertiesChecksum).putLong(propertiesOffset)
+                .putInt(TableFormat.VERSION_CHECKED).putLong(TableFormat.MAGIC);
+        write(footer.flip());
+        awaitPending();
+    }
+}
@@ -0,0 +1,19 @@
+package ru.mail.polis.dao.senyast.tables;
+
+/**
+ * When {@link FileTable} checks blocks against their checksums. Tables written without checksums are never checked.
+ */
+public enum Verification {
+    /**
+     * Every block read is checked.
+     */
+    ALWAYS,
+    /**
+     * A block is checked the first time it is read, later reads trust the result.
+     */
+    FIRST_READ,
+    /**
+     * Only blocks read by compaction are checked, so corruption is not spread to new tables.
+     */
+    COMPACTION
+}
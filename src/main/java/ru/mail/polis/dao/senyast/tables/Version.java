@@ -0,0 +1,260 @@
+package ru.mail.polis.dao.senyast.tables;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import ru.mail.polis.dao.senyast.model.Value;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Immutable set of tables the database consists of at some moment: the memory table taking writes,
+ * memory tables being flushed and the tables on disk.
+ *
+ * <p>A version is reference counted. The pool holds one reference while the version is current and
+ * readers {@link MemTablePool#acquire() acquire} one more for as long as they read. Every version holds
+ * a reference to each of its tables, so a table replaced by compaction or a flushed memory table is released
+ * once the last version containing it is.
+ *
+ * <p>Readers pass the sequence number of the newest change they see, which the memory tables taking writes
+ * filter their cells by, so a pinned version with the number reads the same data however long it is read.
+ */
+public final class Version {
+    /**
+     * Order point lookups visit tables on disk in: L0 from the newest, then deeper levels.
+     */
+    private static final Comparator<FileTable> SEARCH_ORDER = Comparator.comparingInt(FileTable::getLevel)
+            .thenComparing(Comparator.comparingLong(FileTable::getMaxGeneration).reversed());
+
+    private final MemTable current;
+    /**
+     * Memory tables waiting for flush, the newest first.
+     */
+    private final List<MemTable> flushing;
+    private final List<FileTable> files;
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    /**
+     * Creates version holding references to the tables. Versions are created only to be published.
+     *
+     * @param current  memory table taking writes
+     * @param flushing memory tables waiting for flush, the newest first
+     * @param files    tables on disk
+     */
+    Version(@NotNull final MemTable current, @NotNull final List<MemTable> flushing,
+            @NotNull final Collection<FileTable> files) {
+        this.current = current;
+        this.flushing = List.copyOf(flushing);
+        final List<FileTable> sorted = new ArrayList<>(files);
+        sorted.sort(SEARCH_ORDER);
+        this.files = Collections.unmodifiableList(sorted);
+        for (final FileTable file : this.files) {
+            file.retain();
+        }
+        for (final MemTable table : memTables()) {
+            table.retain();
+        }
+    }
+
+    @NotNull
+    Version withCurrent(@NotNull final MemTable next) {
+        return new Version(next, memTables(), files);
+    }
+
+    @NotNull
+    Version withFlushed(final long generation, @Nullable final FileTable table) {
+        final List<MemTable> tables = new ArrayList<>(flushing.size());
+        for (final MemTable memTable : flushing) {
+            if (memTable.generation() != generation) {
+                tables.add(memTable);
+            }
+        }
+        final List<FileTable> result = new ArrayList<>(files);
+        if (table != null) {
+            result.add(table);
+        }
+        return new Version(current, tables, result);
+    }
+
+    @NotNull
+    Version withReplaced(@NotNull final Collection<FileTable> removed, @NotNull final Collection<FileTable> added) {
+        final Set<FileTable> gone = Collections.newSetFromMap(new IdentityHashMap<>());
+        gone.addAll(removed);
+        final List<FileTable> result = new ArrayList<>(files.size() + added.size());
+        for (final FileTable file : files) {
+            if (!gone.contains(file)) {
+                result.add(file);
+            }
+        }
+        result.addAll(added);
+        return new Version(current, flushing, result);
+    }
+
+    /**
+     * Takes one more reference unless the version has been released completely.
+     */
+    boolean tryRetain() {
+        int count = refs.get();
+        while (count > 0) {
+            if (refs.compareAndSet(count, count + 1)) {
+                return true;
+            }
+            count = refs.get();
+        }
+        return false;
+    }
+
+    /**
+     * Takes one more reference for another reader.
+     *
+     * @return this version
+     * @throws IllegalStateException if the version has been released completely
+     */
+    @NotNull
+    public Version retain() {
+        if (!tryRetain()) {
+            throw new IllegalStateException("Version released");
+        }
+        return this;
+    }
+
+    /**
+     * Drops a reference, the last one releases the tables.
+     */
+    public void release() {
+        final int count = refs.decrementAndGet();
+        assert count >= 0;
+        if (count == 0) {
+            for (final FileTable file : files) {
+                file.release();
+            }
+            for (final MemTable table : memTables()) {
+                table.release();
+            }
+        }
+    }
+
+    @NotNull
+    public MemTable current() {
+        return current;
+    }
+
+    /**
+     * Memory tables, the newest first.
+     */
+    @NotNull
+    public List<MemTable> memTables() {
+        final List<MemTable> tables = new ArrayList<>(flushing.size() + 1);
+        tables.add(current);
+        tables.addAll(flushing);
+        return tables;
+    }
+
+    /**
+     * Generation of the oldest memory table waiting for flush.
+     *
+     * @return the generation or -1 if no table is waiting
+     */
+    public long oldestFlushing() {
+        return flushing.isEmpty() ? -1 : flushing.get(flushing.size() - 1).generation();
+    }
+
+    public int flushingCount() {
+        return flushing.size();
+    }
+
+    /**
+     * Total size of the memory tables.
+     */
+    public long memTablesSize() {
+        long size = 0;
+        for (final MemTable table : memTables()) {
+            size += table.sizeInBytes();
+        }
+        return size;
+    }
+
+    /**
+     * Tables on disk in the order point lookups visit them.
+     */
+    @NotNull
+    public List<FileTable> files() {
+        return files;
+    }
+
+    /**
+     * Finds the newest value of the key as of the given moment, a range tombstone newer than the value
+     * or expiration of the value turns it into a tombstone.
+     *
+     * @param key      key to find
+     * @param now      wall clock time in milliseconds to judge expiration by
+     * @param sequence number of the newest change to see in the memory tables
+     * @return value, including tombstone, or null if no table knows the key
+     * @throws IOException if I/O error
+     */
+    @Nullable
+    public Value get(@NotNull final ByteBuffer key, final long now, final long sequence) throws IOException {
+        final Value value = newest(key, sequence);
+        long deletedAt = current.rangeTombstones(sequence).deletedAt(key);
+        for (final MemTable table : flushing) {
+            deletedAt = Math.max(deletedAt, table.rangeTombstones(sequence).deletedAt(key));
+        }
+        for (final FileTable file : files) {
+            deletedAt = Math.max(deletedAt, file.rangeTombstones().deletedAt(key));
+        }
+        if (deletedAt != RangeTombstones.NONE && (value == null || value.getTimestamp() <= deletedAt)) {
+            return Value.tombstone(deletedAt);
+        }
+        if (value != null && value.isExpired(now)) {
+            return Value.tombstone(value.getTimestamp());
+        }
+        return value;
+    }
+
+    @Nullable
+    private Value newest(@NotNull final ByteBuffer key, final long sequence) throws IOException {
+        final Value value = current.get(key, sequence);
+        if (value != null) {
+            return value;
+        }
+        for (final MemTable table : flushing) {
+            final Value pending = table.get(key, sequence);
+            if (pending != null) {
+                return pending;
+            }
+        }
+        for (final FileTable file : files) {
+            final Value stored = file.get(key);
+            if (stored != null) {
+                return stored;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Range tombstones of all the tables, the ones of the memory tables as of the sequence number.
+     *
+     * @param sequence number of the newest change to see in the memory tables
+     * @return the tombstones split into fragments
+     */
+    @NotNull
+    public RangeTombstones rangeTombstones(final long sequence) {
+        final List<RangeTombstones> all = new ArrayList<>(flushing.size() + files.size() + 1);
+        for (final MemTable table : memTables()) {
+            all.add(table.rangeTombstones(sequence));
+        }
+        for (final FileTable file : files) {
+            all.add(file.rangeTombstones());
+        }
+        return RangeTombstones.merge(all);
+    }
+}
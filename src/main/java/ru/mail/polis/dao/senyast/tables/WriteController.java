@@ -0,0 +1,325 @@
+package ru.mail.polis.dao.senyast.tables;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Collection;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToLongFunction;
+
+/**
+ * Paces writers by the state of the background work: memory tables waiting for flush, tables in L0
+ * and compaction debt, L0 counting only while there is debt. Once a {@link WriteLimits slowdown threshold}
+ * is reached, writes take tokens from a bucket refilled at the delayed write rate, which falls as
+ * the pressure approaches a stop threshold.
+ * At a stop threshold, or when the memory tables exceed the memory budget, writers wait until
+ * flushes and compactions catch up. Memory tables only snapshots hold, flushed or not, count against
+ * the budget too, delaying writes from half the budget on but never stopping them, since the thread
+ * holding the snapshots may be the one writing.
+ *
+ * <p>While a flush is failing, writers which would wait for flushes to catch up fail instead,
+ * since nothing is flushed until the failure is over.
+ *
+ * <p>The state is reevaluated on every published {@link Version} and every write.
+ */
+@ThreadSafe
+public final class WriteController implements Closeable {
+    /**
+     * How far ahead of the rate a burst of writes may go without delays.
+     */
+    private static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    /**
+     * The rate never falls below the delayed write rate divided by this.
+     */
+    private static final int MIN_RATE_DIVISOR = 8;
+    private static final double STOP = 1.0;
+
+    /**
+     * Way writes go through the controller.
+     */
+    public enum State {
+        NORMAL, DELAYED, STOPPED
+    }
+
+    private final WriteLimits limits;
+    private final long memoryBudget;
+    private final ToLongFunction<Collection<FileTable>> debt;
+
+    private final Object lock = new Object();
+    /**
+     * The latest published version, read for the size of its memory tables only, so no reference is held.
+     */
+    @Nullable
+    private volatile Version version;
+    /**
+     * Size of the memory tables which only snapshots hold.
+     */
+    private volatile long snapshotsOnly;
+    private volatile int pendingFlushes;
+    private volatile int l0Tables;
+    private volatile long compactionDebt;
+    private volatile boolean closed;
+    @Nullable
+    private volatile IOException flushFailure;
+    /**
+     * Moment the bucket runs out of tokens at, guarded by the lock.
+     */
+    private long emptyAt = System.nanoTime();
+
+    private final LongAdder delayedWrites = new LongAdder();
+    private final LongAdder delayNanos = new LongAdder();
+    private final LongAdder stoppedWrites = new LongAdder();
+    private final LongAdder stopNanos = new LongAdder();
+
+    /**
+     * Creates controller, it lets writes through until the first {@link #update(Version, long)}.
+     *
+     * @param limits       slowdown and stop thresholds
+     * @param memoryBudget total size of the memory tables to stop writes above
+     * @param debt         estimates compaction debt of the tables on disk
+     */
+    public WriteController(@NotNull final WriteLimits limits, final long memoryBudget,
+                           @NotNull final ToLongFunction<Collection<FileTable>> debt) {
+        if (memoryBudget <= 0) {
+            throw new IllegalArgumentException("Memory budget must be positive: " + memoryBudget);
+        }
+        this.limits = limits;
+        this.memoryBudget = memoryBudget;
+        this.debt = debt;
+    }
+
+    /**
+     * Takes the state of the new version into account and wakes stopped writers up to recheck it.
+     *
+     * @param published     the version just published
+     * @param snapshotsOnly size of the memory tables which the version does not contain but snapshots hold
+     */
+    void update(@NotNull final Version published, final long snapshotsOnly) {
+        int l0 = 0;
+        for (final FileTable file : published.files()) {
+            if (file.getLevel() == 0) {
+                l0++;
+            }
+        }
+        final long compaction = debt.applyAsLong(published.files());
+        synchronized (lock) {
+            version = published;
+            this.snapshotsOnly = snapshotsOnly;
+            pendingFlushes = published.flushingCount();
+            l0Tables = l0;
+            compactionDebt = compaction;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Records the failure of the last flush attempt or that the flush has succeeded, waking stopped writers up.
+     *
+     * @param failure the failure, null once a flush succeeds
+     */
+    void flushFailed(@Nullable final IOException failure) {
+        synchronized (lock) {
+            flushFailure = failure;
+            lock.notifyAll();
+        }
+    }
+
+    /**
+     * Lets a write through, waiting first if the writes are delayed or stopped.
+     *
+     * @param bytes size of the key and the value
+     * @throws InterruptedIOException if interrupted while waiting
+     * @throws IOException            if the writes are stopped while a flush is failing
+     */
+    void admit(final long bytes) throws IOException {
+        double pressure = pressure();
+        if (pressure >= STOP) {
+            awaitResumed();
+            pressure = pressure();
+        }
+        if (pressure < 0 || closed) {
+            return;
+        }
+        final long delay = reserve(bytes, rate(pressure));
+        if (delay <= 0) {
+            return;
+        }
+        delayedWrites.increment();
+        delayNanos.add(delay);
+        try {
+            TimeUnit.NANOSECONDS.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while delayed");
+        }
+    }
+
+    private void awaitResumed() throws IOException {
+        final long start = System.nanoTime();
+        stoppedWrites.increment();
+        try {
+            synchronized (lock) {
+                while (!closed && pressure() >= STOP) {
+                    final IOException failure = flushFailure;
+                    if (failure != null) {
+                        throw new IOException("Writes are stopped while flushes fail", failure);
+                    }
+                    lock.wait();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while writes are stopped");
+        } finally {
+            stopNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Takes tokens for the write from the bucket.
+     *
+     * @return nanoseconds to wait for the tokens, not positive if they are there
+     */
+    private long reserve(final long bytes, final double rate) {
+        synchronized (lock) {
+            final long now = System.nanoTime();
+            if (emptyAt - (now - BURST_NANOS) < 0) {
+                emptyAt = now - BURST_NANOS;
+            }
+            emptyAt += (long) (bytes * TimeUnit.SECONDS.toNanos(1) / rate);
+            return emptyAt - now;
+        }
+    }
+
+    private double rate(final double pressure) {
+        final double rate = limits.delayedWriteRate();
+        return Math.max(rate / MIN_RATE_DIVISOR, rate * (1.0 - pressure));
+    }
+
+    /**
+     * Evaluates how close the database is to stopping writes.
+     *
+     * @return negative if writes are not delayed, at least {@link #STOP} if they are stopped
+     */
+    private double pressure() {
+        final Version current = version;
+        if (current == null) {
+            return -1;
+        }
+        final long memory = current.memTablesSize();
+        final long compaction = compactionDebt;
+        // Tables in L0 hold writers back only if the strategy is going to compact them
+        final int l0 = compaction > 0 ? l0Tables : 0;
+        if (memory > memoryBudget || l0 >= limits.l0Stop() || compaction >= limits.debtStop()) {
+            return STOP;
+        }
+        double pressure = -1;
+        if (pendingFlushes >= limits.flushesSlowdown()) {
+            pressure = (double) memory / memoryBudget;
+        }
+        if (l0 >= limits.l0Slowdown()) {
+            pressure = Math.max(pressure, ratio(l0, limits.l0Slowdown(), limits.l0Stop()));
+        }
+        if (compaction >= limits.debtSlowdown()) {
+            pressure = Math.max(pressure, ratio(compaction, limits.debtSlowdown(), limits.debtStop()));
+        }
+        final long held = memory + snapshotsOnly;
+        if (snapshotsOnly > 0 && held >= memoryBudget / 2) {
+            pressure = Math.max(pressure, Math.min(Math.nextDown(STOP), ratio(held, memoryBudget / 2, memoryBudget)));
+        }
+        return pressure;
+    }
+
+    private static double ratio(final long value, final long slowdown, final long stop) {
+        return (double) (value - slowdown) / (stop - slowdown);
+    }
+
+    /**
+     * Lets all the writers through, the closed pool rejects them.
+     */
+    @Override
+    public void close() {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+    }
+
+    public long memoryBudget() {
+        return memoryBudget;
+    }
+
+    @NotNull
+    public State state() {
+        final double pressure = pressure();
+        if (pressure >= STOP) {
+            return State.STOPPED;
+        }
+        return pressure < 0 ? State.NORMAL : State.DELAYED;
+    }
+
+    /**
+     * Rate writes are paced at.
+     *
+     * @return bytes per second, zero if writes are not delayed
+     */
+    public long delayedWriteRate() {
+        final double pressure = pressure();
+        return pressure < 0 || pressure >= STOP ? 0 : (long) rate(pressure);
+    }
+
+    public int pendingFlushes() {
+        return pendingFlushes;
+    }
+
+    public int l0Tables() {
+        return l0Tables;
+    }
+
+    public long compactionDebt() {
+        return compactionDebt;
+    }
+
+    /**
+     * Failure of the flush being retried.
+     *
+     * @return the failure of the last attempt or null if flushes succeed
+     */
+    @Nullable
+    public IOException flushFailure() {
+        return flushFailure;
+    }
+
+    /**
+     * Number of writes delayed by the token bucket.
+     */
+    public long delayedWrites() {
+        return delayedWrites.sum();
+    }
+
+    /**
+     * Total time writes were delayed by the token bucket.
+     */
+    public long delayNanos() {
+        return delayNanos.sum();
+    }
+
+    /**
+     * Number of writes which waited at a stop threshold.
+     */
+    public long stoppedWrites() {
+        return stoppedWrites.sum();
+    }
+
+    /**
+     * Total time writes waited at stop thresholds.
+     */
+    public long stopNanos() {
+        return stopNanos.sum();
+    }
+}
@@ -0,0 +1,140 @@
+package ru.mail.polis.dao.senyast.tables;
+
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Thresholds of {@link WriteController}. Above a slowdown threshold writes are paced, above a stop
+ * threshold they wait for flushes and compactions to catch up. L0 thresholds apply only while
+ * the compaction strategy reports debt, so a strategy leaving L0 alone doesn't stop writers.
+ */
+public final class WriteLimits {
+    public static final int DEFAULT_FLUSHES_SLOWDOWN = 2;
+    public static final int DEFAULT_L0_SLOWDOWN = 8;
+    public static final int DEFAULT_L0_STOP = 16;
+    public static final long DEFAULT_DEBT_SLOWDOWN = 64L * 1024 * 1024;
+    public static final long DEFAULT_DEBT_STOP = 256L * 1024 * 1024;
+    public static final long DEFAULT_DELAYED_WRITE_RATE = 16L * 1024 * 1024;
+
+    private static final WriteLimits DEFAULT = new WriteLimits();
+
+    private int flushesSlowdown = DEFAULT_FLUSHES_SLOWDOWN;
+    private int l0Slowdown = DEFAULT_L0_SLOWDOWN;
+    private int l0Stop = DEFAULT_L0_STOP;
+    private long debtSlowdown = DEFAULT_DEBT_SLOWDOWN;
+    private long debtStop = DEFAULT_DEBT_STOP;
+    private long delayedWriteRate = DEFAULT_DELAYED_WRITE_RATE;
+
+    private WriteLimits() {
+    }
+
+    @NotNull
+    private WriteLimits copy() {
+        final WriteLimits result = new WriteLimits();
+        result.flushesSlowdown = flushesSlowdown;
+        result.l0Slowdown = l0Slowdown;
+        result.l0Stop = l0Stop;
+        result.debtSlowdown = debtSlowdown;
+        result.debtStop = debtStop;
+        result.delayedWriteRate = delayedWriteRate;
+        return result;
+    }
+
+    @NotNull
+    public static WriteLimits defaults() {
+        return DEFAULT;
+    }
+
+    /**
+     * Sets number of memory tables waiting for flush to slow writes down at. Writers stop
+     * once the memory budget is exceeded.
+     *
+     * @param flushes number of pending flushes
+     * @return new limits
+     */
+    @NotNull
+    public WriteLimits withFlushesSlowdown(final int flushes) {
+        if (flushes <= 0) {
+            throw new IllegalArgumentException("Pending flushes to slow down at must be positive: " + flushes);
+        }
+        final WriteLimits result = copy();
+        result.flushesSlowdown = flushes;
+        return result;
+    }
+
+    /**
+     * Sets number of L0 tables to slow writes down and to stop them at.
+     *
+     * @param slowdown number of tables to slow down at
+     * @param stop     number of tables to stop at, greater than the slowdown one
+     * @return new limits
+     */
+    @NotNull
+    public WriteLimits withL0Tables(final int slowdown, final int stop) {
+        if (slowdown <= 0 || stop <= slowdown) {
+            throw new IllegalArgumentException("Bad L0 limits: " + slowdown + ", " + stop);
+        }
+        final WriteLimits result = copy();
+        result.l0Slowdown = slowdown;
+        result.l0Stop = stop;
+        return result;
+    }
+
+    /**
+     * Sets compaction debt to slow writes down and to stop them at.
+     *
+     * @param slowdown debt in bytes to slow down at
+     * @param stop     debt in bytes to stop at, greater than the slowdown one
+     * @return new limits
+     * @see ru.mail.polis.dao.senyast.compaction.CompactionStrategy#debt(java.util.Collection)
+     */
+    @NotNull
+    public WriteLimits withCompactionDebt(final long slowdown, final long stop) {
+        if (slowdown <= 0 || stop <= slowdown) {
+            throw new IllegalArgumentException("Bad compaction debt limits: " + slowdown + ", " + stop);
+        }
+        final WriteLimits result = copy();
+        result.debtSlowdown = slowdown;
+        result.debtStop = stop;
+        return result;
+    }
+
+    /**
+     * Sets rate slowed down writes start at. The rate falls as the pressure approaches a stop threshold.
+     *
+     * @param bytesPerSecond size of keys and values written per second
+     * @return new limits
+     */
+    @NotNull
+    public WriteLimits withDelayedWriteRate(final long bytesPerSecond) {
+        if (bytesPerSecond <= 0) {
+            throw new IllegalArgumentException("Delayed write rate must be positive: " + bytesPerSecond);
+        }
+        final WriteLimits result = copy();
+        result.delayedWriteRate = bytesPerSecond;
+        return result;
+    }
+
+    public int flushesSlowdown() {
+        return flushesSlowdown;
+    }
+
+    public int l0Slowdown() {
+        return l0Slowdown;
+    }
+
+    public int l0Stop() {
+        return l0Stop;
+    }
+
+    public long debtSlowdown() {
+        return debtSlowdown;
+    }
+
+    public long debtStop() {
+        return debtStop;
+    }
+
+    public long delayedWriteRate() {
+        return delayedWriteRate;
+    }
+}
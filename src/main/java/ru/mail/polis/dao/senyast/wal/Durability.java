@@ -0,0 +1,19 @@
+package ru.mail.polis.dao.senyast.wal;
+
+/**
+ * How hard {@link WriteAheadLog} tries to keep acknowledged writes on crash.
+ */
+public enum Durability {
+    /**
+     * Records are written to the OS in background and never forced, a machine crash may lose them.
+     */
+    NONE,
+    /**
+     * Records are written in background and forced to disk once per sync period.
+     */
+    PERIODIC,
+    /**
+     * Writers wait until the batch containing their record is written and forced.
+     */
+    BATCH
+}
@@ -0,0 +1,554 @@
+package ru.mail.polis.dao.senyast.wal;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import ru.mail.polis.dao.senyast.model.Cell;
+import ru.mail.polis.dao.senyast.model.RangeTombstone;
+import ru.mail.polis.dao.senyast.model.Value;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.zip.CRC32C;
+
+/**
+ * Append-only log with a segment per memory table generation.
+ *
+ * <p>Writers only encode and enqueue records, a single syncer thread drains everything enqueued so far
+ * and writes it to the segment with one {@link FileChannel#write} followed, depending on {@link Durability},
+ * by one {@link FileChannel#force}. A segment is deleted once its generation is flushed to disk.
+ *
+ * <p>Every record is {@code [payload size][crc32c of payload][type][timestamp][key size][key][value size][value]},
+ * tombstones having no value. A value with time to live is logged as
+ * {@code [payload size][crc32c of payload][type][timestamp][key size][key][expires at][value size][value]}.
+ * A batch is a single record {@code [payload size][crc32c of payload][type][count]} followed by the changes
+ * without sizes and checksums, so it is replayed entirely or not at all.
+ * A range removal is {@code [payload size][crc32c of payload][type][timestamp][from size][from][to size][to]}.
+ * Replay stops at the first torn or corrupted record.
+ */
+public class WriteAheadLog implements Closeable {
+    public static final String PREFIX_FILE = "WAL";
+    public static final String SUFFIX_LOG = ".log";
+
+    private static final int QUEUE_CAPACITY = 64 * 1024;
+    private static final int MAX_BATCH = 4 * 1024;
+    private static final int RECORD_HEADER_SIZE = Integer.BYTES + Integer.BYTES;
+    private static final byte UPSERT = 1;
+    private static final byte REMOVE = 2;
+    private static final byte BATCH = 3;
+    private static final byte REMOVE_RANGE = 4;
+    private static final byte UPSERT_EXPIRING = 5;
+
+    private static final Logger log = LoggerFactory.getLogger(WriteAheadLog.class);
+
+    private final File dir;
+    private final Durability durability;
+    private final long syncPeriodNanos;
+    private final BlockingQueue<Ticket> queue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private final Thread syncer;
+
+    private volatile IOException failure;
+    private volatile boolean closed;
+
+    /**
+     * Opens log in the database directory and starts the syncer thread.
+     *
+     * @param dir              database location
+     * @param durability       when records are forced to disk
+     * @param syncPeriodMillis period of forcing for {@link Durability#PERIODIC}
+     */
+    public WriteAheadLog(@NotNull final File dir, @NotNull final Durability durability, final long syncPeriodMillis) {
+        if (durability == Durability.PERIODIC && syncPeriodMillis <= 0) {
+            throw new IllegalArgumentException("Sync period must be positive: " + syncPeriodMillis);
+        }
+        this.dir = dir;
+        this.durability = durability;
+        this.syncPeriodNanos = TimeUnit.MILLISECONDS.toNanos(syncPeriodMillis);
+        this.syncer = new SyncerThread();
+        syncer.start();
+    }
+
+    /**
+     * Enqueues record of the key change. The record is written by the syncer thread.
+     *
+     * @param generation generation of the memory table the change goes to
+     * @param key        changed key
+     * @param value      new value or tombstone
+     * @return ticket to {@link #await} for
+     * @throws IOException if the log has failed before
+     */
+    @NotNull
+    public Ticket append(final int generation, @NotNull final ByteBuffer key,
+                         @NotNull final Value value) throws IOException {
+        checkFailure();
+        if (closed) {
+            throw new IllegalStateException("Log closed");
+        }
+        final Ticket entry = new Ticket(generation, encode(key, value));
+        enqueue(entry);
+        return entry;
+    }
+
+    /**
+     * Enqueues a single record of changes of many keys, replayed all together or not at all.
+     *
+     * @param generation generation of the memory table the changes go to
+     * @param cells      changed keys with their new values or tombstones
+     * @return ticket to {@link #await} for
+     * @throws IOException if the log has failed before
+     */
+    @NotNull
+    public Ticket appendAll(final int generation, @NotNull final List<Cell> cells) throws IOException {
+        checkFailure();
+        if (closed) {
+            throw new IllegalStateException("Log closed");
+        }
+        final Ticket entry = new Ticket(generation, encode(cells));
+        enqueue(entry);
+        return entry;
+    }
+
+    /**
+     * Enqueues record of the range removal.
+     *
+     * @param generation generation of the memory table the tombstone goes to
+     * @param tombstone  removal of the range
+     * @return ticket to {@link #await} for
+     * @throws IOException if the log has failed before
+     */
+    @NotNull
+    public Ticket appendRange(final int generation, @NotNull final RangeTombstone tombstone) throws IOException {
+        checkFailure();
+        if (closed) {
+            throw new IllegalStateException("Log closed");
+        }
+        final Ticket entry = new Ticket(generation, encode(tombstone));
+        enqueue(entry);
+        return entry;
+    }
+
+    /**
+     * Waits for the appended record to become durable. Returns at once unless durability is
+     * {@link Durability#BATCH}.
+     *
+     * @param ticket value returned by {@link #append}
+     * @throws IOException if the record could not be written
+     */
+    public void await(@NotNull final Ticket ticket) throws IOException {
+        if (durability != Durability.BATCH) {
+            return;
+        }
+        synchronized (ticket) {
+            while (!ticket.done) {
+                try {
+                    ticket.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Interrupted while waiting for log sync");
+                }
+            }
+        }
+        checkFailure();
+    }
+
+    /**
+     * Deletes segment of the generation once all its records enqueued so far are processed.
+     *
+     * @param generation generation which is on disk now
+     */
+    public void release(final int generation) {
+        try {
+            enqueue(new Ticket(generation, null));
+        } catch (InterruptedIOException e) {
+            log.warn("Segment " + generation + " left on disk", e);
+        }
+    }
+
+    private void enqueue(@NotNull final Ticket entry) throws InterruptedIOException {
+        try {
+            queue.put(entry);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while appending to log");
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        final IOException e = failure;
+        if (e != null) {
+            throw new IOException("Write ahead log failed", e);
+        }
+    }
+
+    @NotNull
+    private static ByteBuffer encode(@NotNull final ByteBuffer key, @NotNull final Value value) {
+        final int payload = changeSize(key, value);
+        final ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload);
+        record.putInt(payload).putInt(0);
+        putChange(record, key, value);
+        record.putInt(Integer.BYTES, (int) crc(record, RECORD_HEADER_SIZE, payload));
+        return record.flip();
+    }
+
+    @NotNull
+    private static ByteBuffer encode(@NotNull final List<Cell> cells) {
+        long size = Byte.BYTES + Integer.BYTES;
+        for (final Cell cell : cells) {
+            size += changeSize(cell.getKey(), cell.getValue());
+        }
+        if (size > Integer.MAX_VALUE - RECORD_HEADER_SIZE) {
+            throw new IllegalArgumentException("Batch is too big: " + size);
+        }
+        final int payload = (int) size;
+        final ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload);
+        record.putInt(payload).putInt(0).put(BATCH).putInt(cells.size());
+        for (final Cell cell : cells) {
+            putChange(record, cell.getKey(), cell.getValue());
+        }
+        record.putInt(Integer.BYTES, (int) crc(record, RECORD_HEADER_SIZE, payload));
+        return record.flip();
+    }
+
+    @NotNull
+    private static ByteBuffer encode(@NotNull final RangeTombstone tombstone) {
+        final ByteBuffer from = tombstone.getFrom();
+        final ByteBuffer to = tombstone.getTo();
+        final int payload = Byte.BYTES + Long.BYTES + Integer.BYTES + from.remaining() + Integer.BYTES + to.remaining();
+        final ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload);
+        record.putInt(payload).putInt(0)
+                .put(REMOVE_RANGE)
+                .putLong(tombstone.getTimestamp())
+                .putInt(from.remaining()).put(from.duplicate())
+                .putInt(to.remaining()).put(to.duplicate());
+        record.putInt(Integer.BYTES, (int) crc(record, RECORD_HEADER_SIZE, payload));
+        return record.flip();
+    }
+
+    private static int changeSize(@NotNull final ByteBuffer key, @NotNull final Value value) {
+        if (value.isTombstone()) {
+            return Byte.BYTES + Long.BYTES + Integer.BYTES + key.remaining();
+        }
+        return Byte.BYTES + Long.BYTES + Integer.BYTES + key.remaining()
+                + (value.getExpiresAt() == Value.NEVER ? 0 : Long.BYTES)
+                + Integer.BYTES + value.getData().remaining();
+    }
+
+    private static void putChange(@NotNull final ByteBuffer record, @NotNull final ByteBuffer key,
+                                  @NotNull final Value value) {
+        final ByteBuffer data = value.isTombstone() ? null : value.getData();
+        final boolean expiring = data != null && value.getExpiresAt() != Value.NEVER;
+        record.put(data == null ? REMOVE : expiring ? UPSERT_EXPIRING : UPSERT)
+                .putLong(value.getTimestamp())
+                .putInt(key.remaining()).put(key.duplicate());
+        if (expiring) {
+            record.putLong(value.getExpiresAt());
+        }
+        if (data != null) {
+            record.putInt(data.remaining()).put(data);
+        }
+    }
+
+    private static long crc(@NotNull final ByteBuffer buffer, final int from, final int length) {
+        final ByteBuffer payload = buffer.duplicate();
+        payload.limit(from + length).position(from);
+        final CRC32C crc = new CRC32C();
+        crc.update(payload);
+        return crc.getValue();
+    }
+
+    /**
+     * Reads records of the segment in the order they were written.
+     *
+     * @param segment  segment file
+     * @param consumer receives key and value of every record
+     * @param ranges   receives range tombstones
+     * @return number of records read
+     * @throws IOException if the segment could not be read
+     */
+    public static int replay(@NotNull final File segment, @NotNull final BiConsumer<ByteBuffer, Value> consumer,
+                             @NotNull final Consumer<RangeTombstone> ranges) throws IOException {
+        final ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(segment.toPath(), StandardOpenOption.READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        int records = 0;
+        while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+            final int start = buffer.position();
+            final int payload = buffer.getInt(start);
+            if (payload <= 0 || payload > buffer.remaining() - RECORD_HEADER_SIZE
+                    || (int) crc(buffer, start + RECORD_HEADER_SIZE, payload) != buffer.getInt(start + Integer.BYTES)) {
+                break;
+            }
+            buffer.position(start + RECORD_HEADER_SIZE);
+            final byte type = buffer.get();
+            if (type == BATCH) {
+                final int count = buffer.getInt();
+                for (int i = 0; i < count; i++) {
+                    readChange(buffer, buffer.get(), consumer);
+                }
+                records += count;
+            } else if (type == REMOVE_RANGE) {
+                final long timestamp = buffer.getLong();
+                final ByteBuffer from = copy(buffer, buffer.getInt());
+                ranges.accept(new RangeTombstone(from, copy(buffer, buffer.getInt()), timestamp));
+                records++;
+            } else {
+                readChange(buffer, type, consumer);
+                records++;
+            }
+        }
+        if (buffer.hasRemaining()) {
+            log.warn("Segment " + segment + " is torn at " + buffer.position() + ", the rest is skipped");
+        }
+        return records;
+    }
+
+    private static void readChange(@NotNull final ByteBuffer buffer, final byte type,
+                                   @NotNull final BiConsumer<ByteBuffer, Value> consumer) {
+        final long timestamp = buffer.getLong();
+        final ByteBuffer key = copy(buffer, buffer.getInt());
+        if (type == UPSERT) {
+            consumer.accept(key, Value.of(timestamp, copy(buffer, buffer.getInt())));
+        } else if (type == UPSERT_EXPIRING) {
+            final long expiresAt = buffer.getLong();
+            consumer.accept(key, Value.of(timestamp, copy(buffer, buffer.getInt()), expiresAt));
+        } else {
+            consumer.accept(key, Value.tombstone(timestamp));
+        }
+    }
+
+    @NotNull
+    private static ByteBuffer copy(@NotNull final ByteBuffer buffer, final int size) {
+        final ByteBuffer source = buffer.duplicate();
+        source.limit(source.position() + size);
+        buffer.position(buffer.position() + size);
+        final ByteBuffer result = ByteBuffer.allocate(size);
+        result.put(source);
+        return result.flip();
+    }
+
+    /**
+     * Finds generation of the segment by its file name.
+     *
+     * @param path segment file
+     * @return generation or -1 if the file is not a segment
+     */
+    public static int generation(@NotNull final Path path) {
+        final String name = path.getFileName().toString();
+        if (!name.startsWith(PREFIX_FILE) || !name.endsWith(SUFFIX_LOG)) {
+            return -1;
+        }
+        try {
+            return Integer.parseInt(name.substring(PREFIX_FILE.length(), name.length() - SUFFIX_LOG.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    @NotNull
+    public static File segment(@NotNull final File dir, final int generation) {
+        return new File(dir, PREFIX_FILE + generation + SUFFIX_LOG);
+    }
+
+    /**
+     * Writes and forces everything enqueued, then stops the syncer thread.
+     */
+    @Override
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            queue.put(Ticket.STOP);
+            syncer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Record enqueued for the syncer thread.
+     */
+    public static final class Ticket {
+        private static final Ticket STOP = new Ticket(-1, null);
+
+        private final int generation;
+        /**
+         * Encoded record, null for a request to delete the segment.
+         */
+        @Nullable
+        private final ByteBuffer record;
+        private boolean done;
+
+        private Ticket(final int generation, @Nullable final ByteBuffer record) {
+            this.generation = generation;
+            this.record = record;
+        }
+    }
+
+    private class SyncerThread extends Thread {
+        private final Map<Integer, FileChannel> segments = new HashMap<>();
+        private final Set<FileChannel> unforced = new HashSet<>();
+        private final List<Ticket> batch = new ArrayList<>();
+        private ByteBuffer buffer = ByteBuffer.allocateDirect(64 * 1024);
+        private long lastSync = System.nanoTime();
+
+        SyncerThread() {
+            super("WAL syncer");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            boolean stop = false;
+            while (!stop) {
+                try {
+                    final Ticket first = durability == Durability.PERIODIC
+                            ? queue.poll(Math.max(0, lastSync + syncPeriodNanos - System.nanoTime()),
+                            TimeUnit.NANOSECONDS)
+                            : queue.take();
+                    if (first != null) {
+                        batch.add(first);
+                        queue.drainTo(batch, MAX_BATCH);
+                        stop = process();
+                    }
+                    if (stop || durability == Durability.PERIODIC
+                            && System.nanoTime() - lastSync >= syncPeriodNanos) {
+                        sync();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    stop = true;
+                } catch (IOException e) {
+                    log.error("Write ahead log failed", e);
+                    failure = e;
+                } finally {
+                    complete();
+                }
+            }
+            closeSegments();
+        }
+
+        private boolean process() throws IOException {
+            boolean stop = false;
+            int generation = -1;
+            for (final Ticket entry : batch) {
+                if (entry == Ticket.STOP) {
+                    stop = true;
+                    continue;
+                }
+                if (entry.generation != generation) {
+                    write(generation);
+                    generation = entry.generation;
+                }
+                if (entry.record == null) {
+                    delete(entry.generation);
+                } else {
+                    put(entry.record);
+                }
+            }
+            write(generation);
+            if (durability == Durability.BATCH) {
+                sync();
+            }
+            return stop;
+        }
+
+        private void put(@NotNull final ByteBuffer record) {
+            if (buffer.remaining() < record.remaining()) {
+                final ByteBuffer bigger = ByteBuffer.allocateDirect(
+                        Math.max(buffer.capacity() * 2, buffer.position() + record.remaining()));
+                bigger.put(buffer.flip());
+                buffer = bigger;
+            }
+            buffer.put(record.duplicate());
+        }
+
+        private void write(final int generation) throws IOException {
+            if (buffer.position() == 0) {
+                return;
+            }
+            buffer.flip();
+            try {
+                final FileChannel channel = segment(generation);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                unforced.add(channel);
+            } finally {
+                buffer.clear();
+            }
+        }
+
+        @NotNull
+        private FileChannel segment(final int generation) throws IOException {
+            FileChannel channel = segments.get(generation);
+            if (channel == null) {
+                channel = FileChannel.open(WriteAheadLog.segment(dir, generation).toPath(),
+                        StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+                segments.put(generation, channel);
+            }
+            return channel;
+        }
+
+        private void delete(final int generation) throws IOException {
+            final FileChannel channel = segments.remove(generation);
+            if (channel != null) {
+                unforced.remove(channel);
+                channel.close();
+            }
+            Files.deleteIfExists(WriteAheadLog.segment(dir, generation).toPath());
+        }
+
+        private void sync() throws IOException {
+            if (durability != Durability.NONE) {
+                for (final FileChannel channel : unforced) {
+                    channel.force(false);
+                }
+            }
+            unforced.clear();
+            lastSync = System.nanoTime();
+        }
+
+        private void complete() {
+            for (final Ticket entry : batch) {
+                synchronized (entry) {
+                    entry.done = true;
+                    entry.notifyAll();
+                }
+            }
+            batch.clear();
+        }
+
+        private void closeSegments() {
+            for (final FileChannel channel : segments.values()) {
+                try {
+                    channel.close();
+                } catch (IOException e) {
+                    log.error("Can't close log segment", e);
+                }
+            }
+            segments.clear();
+        }
+    }
+}
@@ -30,11 +30,17 @@ import java.nio.ByteBuffer;
 
 import java.util.*;
 import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static ru.mail.polis.service.senyast.ResponseUtil.*;
 
 public class ServiceImpl extends HttpServer implements Service {
+    private static final long NO_TTL = 0;
+    /**
+     * Bounds the time to live, so the expiration time does not overflow.
+     */
+    private static final long MAX_TTL_SECONDS = Integer.MAX_VALUE;
 
     private final DAO dao;
     private final Topology<String> topology;
@@ -87,6 +93,7 @@ public class ServiceImpl extends HttpServer implements Service {
      *
      * @param request request to Server
      * @param id      key
+     * @param ttl     request parameter "ttl" - seconds a put value lives for - non required
      * @param session http Session of request
      */
     @SuppressWarnings("unused")
@@ -94,21 +101,44 @@ public class ServiceImpl extends HttpServer implements Service {
     public void daoMethods(@NotNull final Request request,
                            @Param("id") final String id,
                            @Param("replicas") final String replicas,
+                           @Param("ttl") final String ttl,
                            final HttpSession session) {
         if (id == null || id.isEmpty()) {
             sendResponse(session, new Response(Response.BAD_REQUEST, Response.EMPTY));
             return;
         }
+        final long ttlMillis = parseTtl(ttl);
+        if (ttlMillis < 0) {
+            sendResponse(session, new Response(Response.BAD_REQUEST, Response.EMPTY));
+            return;
+        }
 
 
         final ByteBuffer key = ByteBuffer.wrap(id.getBytes(Charsets.UTF_8));
         final boolean proxied = isProxied(request);
 
         if (proxied) {
-            getLocal(request, session, key);
+            getLocal(request, session, key, ttlMillis);
             return;
         }
-        getFromSet(request, session, replicas, key);
+        getFromSet(request, session, replicas, key, ttlMillis);
+    }
+
+    /**
+     * Converts time to live given in seconds.
+     *
+     * @return milliseconds, {@link #NO_TTL} if the parameter is absent or negative if it is not a positive number
+     */
+    private static long parseTtl(final String ttl) {
+        if (ttl == null) {
+            return NO_TTL;
+        }
+        try {
+            final long seconds = Long.parseLong(ttl);
+            return seconds > 0 && seconds <= MAX_TTL_SECONDS ? TimeUnit.SECONDS.toMillis(seconds) : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
     }
 
     private Value responseToValue(Response response) {
@@ -116,13 +146,13 @@ public class ServiceImpl extends HttpServer implements Service {
         return getValue(response, ts);
     }
 
-    private void getLocal(Request request, HttpSession session, ByteBuffer key) {
+    private void getLocal(Request request, HttpSession session, ByteBuffer key, long ttlMillis) {
         switch (request.getMethod()) {
             case Request.METHOD_GET:
                 executeAsync(session, () -> getMethod(key));
                 break;
             case Request.METHOD_PUT:
-                executeAsync(session, () -> putMethod(key, request));
+                executeAsync(session, () -> putMethod(key, request, ttlMillis));
                 break;
             case Request.METHOD_DELETE:
                 executeAsync(session, () -> {
@@ -135,7 +165,8 @@ public class ServiceImpl extends HttpServer implements Service {
         }
     }
 
-    private void getFromSet(Request request, HttpSession session, String replicas, ByteBuffer key) {
+    private void getFromSet(Request request, HttpSession session, String replicas, ByteBuffer key,
+                            long ttlMillis) {
         ReplicationFactor replicationFactor;
         try {
             replicationFactor = replicas == null ? quorum : ReplicationFactor.fromString(replicas);
@@ -170,7 +201,7 @@ public class ServiceImpl extends HttpServer implements Service {
                     int count = 0;
                     for (final String node : nodes) {
                         if (topology.isMe(node)) {
-                            if (is2XX(putMethod(key, request).getStatus())) {
+                            if (is2XX(putMethod(key, request, ttlMillis).getStatus())) {
                                 count++;
                             }
                         }
@@ -218,6 +249,19 @@ public class ServiceImpl extends HttpServer implements Service {
         sendResponse(session, new Response(Response.OK, Response.EMPTY));
     }
 
+    /**
+     * Method to check whether the storage has loaded its tables. The node serves requests as soon as
+     * the table metadata is known, that is once {@code /v0/status} answers, and at full speed once this one does.
+     *
+     * @param session http Session of request
+     */
+    @SuppressWarnings("unused")
+    @Path("/v0/ready")
+    public void ready(final HttpSession session) {
+        sendResponse(session, new Response(dao.ready().isDone() ? Response.OK : Response.SERVICE_UNAVAILABLE,
+                Response.EMPTY));
+    }
+
 
     /**
      * Method to get more key - value pair.
@@ -274,8 +318,12 @@ public class ServiceImpl extends HttpServer implements Service {
         return new Response(Response.ACCEPTED, Response.EMPTY);
     }
 
-    private Response putMethod(final ByteBuffer key, final Request request) throws IOException {
-        dao.upsert(key, ByteBuffer.wrap(request.getBody()));
+    private Response putMethod(final ByteBuffer key, final Request request, final long ttlMillis) throws IOException {
+        if (ttlMillis == NO_TTL) {
+            dao.upsert(key, ByteBuffer.wrap(request.getBody()));
+        } else {
+            dao.upsert(key, ByteBuffer.wrap(request.getBody()), ttlMillis);
+        }
         return new Response(Response.CREATED, Response.EMPTY);
     }
 
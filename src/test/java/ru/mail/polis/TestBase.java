@@ -17,13 +17,23 @@
 package ru.mail.polis;
 
 import org.jetbrains.annotations.NotNull;
+import ru.mail.polis.dao.senyast.LSMDao;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
 
 /**
  * Contains utility methods for unit tests
@@ -77,6 +87,45 @@ abstract public class TestBase {
         return randomBuffer(VALUE_LENGTH);
     }
 
+    /**
+     * Key of the given number, keys of bigger numbers go later.
+     */
+    @NotNull
+    protected static ByteBuffer key(final int i) {
+        return ByteBuffer.wrap(String.format("key%05d", i).getBytes(UTF_8));
+    }
+
+    @NotNull
+    protected static ByteBuffer value(final int i) {
+        return ByteBuffer.wrap(("value" + i).getBytes(UTF_8));
+    }
+
+    /**
+     * Lists the table files in the database directory.
+     *
+     * @param data database directory
+     * @return paths of the tables sorted by name
+     */
+    @NotNull
+    protected static List<Path> tableFiles(@NotNull final File data) throws IOException {
+        try (Stream<Path> files = Files.list(data.toPath())) {
+            return files.filter(path -> {
+                final String name = path.getFileName().toString();
+                return name.startsWith(LSMDao.PREFIX_FILE) && name.endsWith(LSMDao.SUFFIX_DAT);
+            }).sorted().collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Finds the only table file in the database directory, failing if there is none or more.
+     */
+    @NotNull
+    protected static Path singleTableFile(@NotNull final File data) throws IOException {
+        final List<Path> tables = tableFiles(data);
+        assertEquals(1, tables.size());
+        return tables.get(0);
+    }
+
     @NotNull
     protected static ByteBuffer join(
             @NotNull final ByteBuffer left,
@@ -62,7 +62,7 @@ class BasicTest extends TestBase {
         try (DAO dao = DAOFactory.create(data)) {
             // Generate and insert data
             final int count = 10;
-            final NavigableMap<ByteBuffer, ByteBuffer> map = new TreeMap<>();
+            final NavigableMap<ByteBuffer, ByteBuffer> map = new TreeMap<>(Keys.ORDER);
             for (int i = 0; i < count; i++) {
                 final ByteBuffer key = randomKeyBuffer();
                 final ByteBuffer value = randomValueBuffer();
@@ -90,7 +90,7 @@ class BasicTest extends TestBase {
         try (DAO dao = DAOFactory.create(data)) {
             // Generate and insert data
             final int count = 10;
-            final NavigableMap<ByteBuffer, ByteBuffer> map = new TreeMap<>();
+            final NavigableMap<ByteBuffer, ByteBuffer> map = new TreeMap<>(Keys.ORDER);
             for (int i = 0; i < count; i++) {
                 final ByteBuffer key = randomKeyBuffer();
                 final ByteBuffer value = randomValueBuffer();
@@ -118,7 +118,7 @@ class BasicTest extends TestBase {
         try (DAO dao = DAOFactory.create(data)) {
             // Generate and insert data
             final int count = 10;
-            final NavigableMap<ByteBuffer, ByteBuffer> map = new TreeMap<>();
+            final NavigableMap<ByteBuffer, ByteBuffer> map = new TreeMap<>(Keys.ORDER);
             for (int i = 0; i < count; i++) {
                 final ByteBuffer key = randomKeyBuffer();
                 final ByteBuffer value = randomValueBuffer();
@@ -148,7 +148,7 @@ class BasicTest extends TestBase {
         try (DAO dao = DAOFactory.create(data)) {
             // Generate and insert data
             final int count = 10;
-            final NavigableMap<ByteBuffer, ByteBuffer> map = new TreeMap<>();
+            final NavigableMap<ByteBuffer, ByteBuffer> map = new TreeMap<>(Keys.ORDER);
             for (int i = 0; i < count; i++) {
                 final ByteBuffer key = randomKeyBuffer();
                 final ByteBuffer value = randomValueBuffer();
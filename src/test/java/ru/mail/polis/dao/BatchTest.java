@@ -0,0 +1,163 @@
+package ru.mail.polis.dao;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import ru.mail.polis.Record;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.senyast.DaoOptions;
+import ru.mail.polis.dao.senyast.LSMDao;
+import ru.mail.polis.dao.senyast.model.Value;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Atomicity tests for {@link WriteBatch}.
+ */
+class BatchTest extends TestBase {
+    private static final int KEYS = 32;
+    private static final int BATCHES = 2_000;
+
+    @Test
+    void singleWriter(@TempDir File data) throws Exception {
+        concurrentBatches(1, data);
+    }
+
+    @Test
+    void fourWriters(@TempDir File data) throws Exception {
+        concurrentBatches(4, data);
+    }
+
+    @Test
+    void batchSurvivesReopen(@TempDir File data) throws IOException {
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.write(batch(1));
+            dao.write(batch(2).remove(key(0)));
+        }
+        try (DAO dao = DAOFactory.create(data)) {
+            final List<Integer> values = values(dao);
+            assertEquals(KEYS - 1, values.size());
+            values.forEach(value -> assertEquals(2, value.intValue()));
+        }
+    }
+
+    @Test
+    void momentsAfterBatchSpanningMillisecondsAreNewer() {
+        // A batch larger than several milliseconds' worth of timestamps
+        final int count = 10_000_000;
+        final long first = Value.moments(count);
+        assertTrue(Value.moments(1) > first + count - 1);
+        assertTrue(Value.tombstone().getTimestamp() > first + count);
+    }
+
+    @Test
+    void writesAfterBatchSpanningMillisecondWin(@TempDir File data) throws IOException {
+        // Every change goes to a memory table of its own, so reads merge them by timestamp
+        try (DAO dao = new LSMDao(data, DaoOptions.defaults()
+                .withFlushThreshold(1).withMemoryBudget(64 * 1024 * 1024))) {
+            // Timestamps taken earlier within the millisecond, so the batch takes more than the millisecond has
+            Value.moments(1_000_000 - KEYS / 2);
+            dao.write(batch(1));
+            dao.upsert(key(0), ByteBuffer.allocate(Integer.BYTES).putInt(0, 2));
+            dao.removeRange(key(1), key(3));
+            dao.upsert(key(2), ByteBuffer.allocate(Integer.BYTES).putInt(0, 3));
+            checkAfterBatch(dao);
+            dao.compact();
+            checkAfterBatch(dao);
+        }
+        try (DAO dao = DAOFactory.create(data)) {
+            checkAfterBatch(dao);
+        }
+    }
+
+    private static void checkAfterBatch(@NotNull final DAO dao) throws IOException {
+        assertEquals(2, dao.get(key(0)).getInt());
+        assertEquals(3, dao.get(key(2)).getInt());
+        final List<Integer> values = values(dao);
+        assertEquals(KEYS - 1, values.size());
+        assertEquals(2, values.get(0).intValue());
+        assertEquals(3, values.get(1).intValue());
+        values.subList(2, values.size()).forEach(value -> assertEquals(1, value.intValue()));
+    }
+
+    /**
+     * Writers overwrite all the keys with batches, each batch storing its own number under every key,
+     * while a reader checks that every scan sees all the keys with the same number.
+     */
+    private static void concurrentBatches(final int writers, @NotNull final File data) throws Exception {
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.write(batch(0));
+
+            final ExecutorService executor = Executors.newFixedThreadPool(writers);
+            final AtomicBoolean done = new AtomicBoolean();
+            try {
+                final List<Future<?>> futures = new ArrayList<>(writers);
+                for (int w = 0; w < writers; w++) {
+                    final int writer = w;
+                    futures.add(executor.submit(() -> {
+                        for (int i = writer + 1; i <= BATCHES; i += writers) {
+                            dao.write(batch(i));
+                        }
+                        return null;
+                    }));
+                }
+
+                int scans = 0;
+                do {
+                    final List<Integer> values = values(dao);
+                    assertEquals(KEYS, values.size(), "Partial batch seen");
+                    final int first = values.get(0);
+                    for (final int value : values) {
+                        assertEquals(first, value, "Mixed batches seen");
+                    }
+                    scans++;
+                    done.set(futures.stream().allMatch(Future::isDone));
+                } while (!done.get());
+
+                for (final Future<?> future : futures) {
+                    future.get();
+                }
+                assertTrue(scans > 0);
+            } finally {
+                executor.shutdown();
+                assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+            }
+        }
+    }
+
+    @NotNull
+    private static WriteBatch batch(final int number) {
+        final WriteBatch batch = new WriteBatch();
+        // Odd batches go backwards so a reader running into a half-applied one sees it from either end
+        for (int i = 0; i < KEYS; i++) {
+            final int k = number % 2 == 0 ? i : KEYS - 1 - i;
+            batch.upsert(key(k), ByteBuffer.allocate(Integer.BYTES).putInt(0, number));
+        }
+        return batch;
+    }
+
+    @NotNull
+    private static List<Integer> values(@NotNull final DAO dao) throws IOException {
+        final List<Integer> values = new ArrayList<>(KEYS);
+        final Iterator<Record> iterator = dao.iterator(ByteBuffer.allocate(0));
+        while (iterator.hasNext()) {
+            final ByteBuffer value = iterator.next().getValue();
+            values.add(value.getInt(value.position()));
+        }
+        return values;
+    }
+}
@@ -0,0 +1,167 @@
+package ru.mail.polis.dao;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import ru.mail.polis.Record;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.senyast.DaoOptions;
+import ru.mail.polis.dao.senyast.LSMDao;
+import ru.mail.polis.dao.senyast.tables.TableOptions;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Lookups and scans over tables split into many small blocks, and over tables of the legacy format.
+ */
+class BlockTableTest extends TestBase {
+    private static final int KEYS = 2_000;
+    private static final int BLOCK_SIZE = 256;
+
+    @Test
+    void smallBlocks(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        final DaoOptions options = DaoOptions.defaults()
+                .withTableOptions(TableOptions.defaults().withBlockSize(BLOCK_SIZE));
+        try (DAO dao = new LSMDao(data, options)) {
+            for (int i = 0; i < KEYS; i++) {
+                // Keys sharing long prefixes, some being prefixes of others, make separators of every length
+                final ByteBuffer key = key("k" + prefix(i % 7) + i);
+                final ByteBuffer value = key("value" + i);
+                dao.upsert(key, value);
+                expected.put(key, value);
+            }
+            // A cell bigger than a block
+            final ByteBuffer big = key("k" + prefix(BLOCK_SIZE * 3));
+            dao.upsert(big, randomValueBuffer());
+            expected.put(big, dao.get(big));
+        }
+
+        try (DAO dao = new LSMDao(data, options)) {
+            for (final NavigableMap.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), dao.get(entry.getKey()));
+            }
+            assertThrows(NoSuchElementLite.class, () -> dao.get(key("k")));
+            assertThrows(NoSuchElementLite.class, () -> dao.get(key("kxxxxxxx")));
+
+            assertRange(expected, dao, key(""));
+            assertRange(expected, dao, key("kx"));
+            assertRange(expected, dao, key("kxxx5"));
+            assertRange(expected, dao, expected.lastKey());
+            assertFalse(dao.iterator(key("l")).hasNext());
+        }
+    }
+
+    @Test
+    void legacyTable(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        final List<ByteBuffer> cells = new ArrayList<>();
+        for (int i = 0; i < KEYS; i++) {
+            final ByteBuffer key = key(String.format("key%05d", i));
+            if (i % 10 == 0) {
+                cells.add(cell(key, -(i + 1), null));
+            } else {
+                final ByteBuffer value = key("value" + i);
+                cells.add(cell(key, i + 1, value));
+                expected.put(key, value);
+            }
+        }
+        writeLegacy(new File(data, LSMDao.PREFIX_FILE + 1 + LSMDao.SUFFIX_DAT), cells);
+
+        try (DAO dao = new LSMDao(data, DaoOptions.defaults())) {
+            for (int i = 0; i < KEYS; i++) {
+                final ByteBuffer key = key(String.format("key%05d", i));
+                if (i % 10 == 0) {
+                    assertThrows(NoSuchElementLite.class, () -> dao.get(key));
+                } else {
+                    assertEquals(expected.get(key), dao.get(key));
+                }
+            }
+            assertRange(expected, dao, key(""));
+            assertRange(expected, dao, key("key01000"));
+
+            // Newer tables shadow the legacy one
+            dao.upsert(expected.firstKey(), key("new"));
+            dao.compact();
+            assertEquals(key("new"), dao.get(expected.firstKey()));
+            expected.put(expected.firstKey(), key("new"));
+            assertRange(expected, dao, key(""));
+        }
+    }
+
+    private static void assertRange(@NotNull final NavigableMap<ByteBuffer, ByteBuffer> expected,
+                                    @NotNull final DAO dao, @NotNull final ByteBuffer from) throws IOException {
+        final Iterator<Record> records = dao.iterator(from);
+        for (final NavigableMap.Entry<ByteBuffer, ByteBuffer> entry : expected.tailMap(from, true).entrySet()) {
+            assertTrue(records.hasNext());
+            final Record record = records.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(records.hasNext());
+    }
+
+    /**
+     * Cell of the legacy format, {@code [key size][key][timestamp][value size][value]}, tombstones having
+     * negative timestamp and no value.
+     */
+    @NotNull
+    private static ByteBuffer cell(@NotNull final ByteBuffer key, final long timestamp,
+                                   final ByteBuffer value) {
+        final int valueSize = value == null ? 0 : Integer.BYTES + value.remaining();
+        final ByteBuffer cell = ByteBuffer.allocate(Integer.BYTES + key.remaining() + Long.BYTES + valueSize);
+        cell.putInt(key.remaining()).put(key.duplicate()).putLong(timestamp);
+        if (value != null) {
+            cell.putInt(value.remaining()).put(value.duplicate());
+        }
+        return cell.flip();
+    }
+
+    /**
+     * Writes cells followed by a long offset per row and the rows count, as tables were written before blocks.
+     */
+    private static void writeLegacy(@NotNull final File file, @NotNull final List<ByteBuffer> cells)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE)) {
+            final ByteBuffer offsets = ByteBuffer.allocate(Long.BYTES * (cells.size() + 1));
+            long offset = 0;
+            for (final ByteBuffer cell : cells) {
+                offsets.putLong(offset);
+                offset += cell.remaining();
+                channel.write(cell);
+            }
+            offsets.putLong(cells.size());
+            channel.write(offsets.flip());
+        }
+    }
+
+    @NotNull
+    private static String prefix(final int length) {
+        final char[] prefix = new char[length];
+        Arrays.fill(prefix, 'x');
+        return new String(prefix);
+    }
+
+    @NotNull
+    private static ByteBuffer key(@NotNull final String key) {
+        return ByteBuffer.wrap(key.getBytes(UTF_8));
+    }
+}
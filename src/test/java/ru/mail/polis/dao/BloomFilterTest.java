@@ -0,0 +1,145 @@
+package ru.mail.polis.dao;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.collect.Iterators;
+import com.google.common.collect.PeekingIterator;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.senyast.LSMDao;
+import ru.mail.polis.dao.senyast.model.Cell;
+import ru.mail.polis.dao.senyast.model.Value;
+import ru.mail.polis.dao.senyast.tables.BloomFilter;
+import ru.mail.polis.dao.senyast.tables.FileTable;
+import ru.mail.polis.dao.senyast.tables.RangeTombstones;
+import ru.mail.polis.dao.senyast.tables.TableOptions;
+import ru.mail.polis.dao.senyast.tables.Verification;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Bloom filters never lose a key they are built over, including after being written and read back,
+ * and keep their false positive rate in tables of more rows than the writer buffers the hashes of.
+ */
+class BloomFilterTest extends TestBase {
+    private static final int KEYS = 10_000;
+    private static final int BITS_PER_KEY = 10;
+    /**
+     * More rows than a table writer keeps the hashes of before filling the filter as it goes.
+     */
+    private static final int TABLE_ROWS = 600_000;
+
+    @Test
+    void noFalseNegatives() {
+        final List<ByteBuffer> keys = keys();
+        final BloomFilter filter = build(keys);
+        for (final ByteBuffer key : keys) {
+            assertTrue(filter.mightContain(key));
+        }
+    }
+
+    @Test
+    void hashIgnoresBufferOrderAndPosition() {
+        for (final ByteBuffer key : keys()) {
+            final ByteBuffer shifted = ByteBuffer.allocate(key.remaining() + 3).order(ByteOrder.LITTLE_ENDIAN);
+            shifted.position(3);
+            shifted.put(key.duplicate());
+            shifted.position(3);
+            assertEquals(BloomFilter.hash(key), BloomFilter.hash(shifted));
+        }
+    }
+
+    @Test
+    void roundTrip() {
+        final List<ByteBuffer> keys = keys();
+        final BloomFilter filter = build(keys);
+        final ByteBuffer written = ByteBuffer.allocate(filter.sizeInBytes());
+        filter.writeTo(written);
+        final BloomFilter read = BloomFilter.read(written.flip(), filter.hashFunctions());
+        assertEquals(filter.sizeInBytes(), read.sizeInBytes());
+        for (final ByteBuffer key : keys) {
+            assertTrue(read.mightContain(key));
+        }
+        for (int i = 0; i < KEYS; i++) {
+            final ByteBuffer absent = randomKeyBuffer();
+            assertEquals(filter.mightContain(absent), read.mightContain(absent));
+        }
+    }
+
+    @Test
+    void falsePositiveRate() {
+        final BloomFilter filter = build(keys());
+        int positives = 0;
+        for (int i = 0; i < KEYS; i++) {
+            // Random keys are longer than the ones of the filter, so none of them is there
+            if (filter.mightContain(ByteBuffer.wrap(randomValue()))) {
+                positives++;
+            }
+        }
+        // About 0.8% expected for ten bits per key
+        assertTrue(positives < KEYS * 3 / 100, positives + " false positives");
+    }
+
+    @Test
+    void tableFilterOutgrowingHashBuffer(@TempDir File data) throws IOException {
+        checkTableFilter(new File(data, LSMDao.PREFIX_FILE + 1 + LSMDao.SUFFIX_DAT), TableOptions.defaults());
+    }
+
+    @Test
+    void limitedTableFilterOutgrowingHashBuffer(@TempDir File data) throws IOException {
+        // Tombstones of int keys take 20 bytes with their offsets, so the limit stops the table halfway,
+        // still past the hashes the writer buffers
+        checkTableFilter(new File(data, LSMDao.PREFIX_FILE + 1 + LSMDao.SUFFIX_DAT),
+                TableOptions.defaults().withFileSizeLimit(TABLE_ROWS * 10L));
+    }
+
+    private static void checkTableFilter(@NotNull final File file, @NotNull final TableOptions options)
+            throws IOException {
+        final List<Cell> cells = new ArrayList<>(TABLE_ROWS);
+        for (int i = 0; i < TABLE_ROWS; i++) {
+            cells.add(new Cell(ByteBuffer.allocate(Integer.BYTES).putInt(0, i), Value.tombstone(1), 1));
+        }
+        final PeekingIterator<Cell> source = Iterators.peekingIterator(cells.iterator());
+        FileTable.writeToFile(source, file, options, 0, 1, RangeTombstones.EMPTY);
+        final int written = source.hasNext() ? source.peek().getKey().getInt(0) : TABLE_ROWS;
+
+        final FileTable table = new FileTable(file, 1, Verification.FIRST_READ);
+        for (int i = 0; i < written; i++) {
+            assertTrue(table.mightContain(cells.get(i).getKey()));
+        }
+        int positives = 0;
+        for (int i = 0; i < KEYS; i++) {
+            if (table.mightContain(ByteBuffer.allocate(Integer.BYTES).putInt(0, written + i))) {
+                positives++;
+            }
+        }
+        assertTrue(positives < KEYS * 3 / 100, positives + " false positives");
+    }
+
+    @NotNull
+    private static List<ByteBuffer> keys() {
+        final List<ByteBuffer> keys = new ArrayList<>(KEYS);
+        for (int i = 0; i < KEYS; i++) {
+            keys.add(randomKeyBuffer());
+        }
+        return keys;
+    }
+
+    @NotNull
+    private static BloomFilter build(@NotNull final List<ByteBuffer> keys) {
+        final long[] hashes = new long[keys.size()];
+        for (int i = 0; i < hashes.length; i++) {
+            hashes[i] = BloomFilter.hash(keys.get(i));
+        }
+        return BloomFilter.build(hashes, hashes.length, BITS_PER_KEY);
+    }
+}
@@ -0,0 +1,150 @@
+package ru.mail.polis.dao;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.senyast.DaoOptions;
+import ru.mail.polis.dao.senyast.LSMDao;
+import ru.mail.polis.dao.senyast.codec.Codec;
+import ru.mail.polis.dao.senyast.codec.Codecs;
+import ru.mail.polis.dao.senyast.tables.TableOptions;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Block codecs restore what they compress, and tables read the same whatever codec they are written with.
+ */
+class CodecTest extends TestBase {
+    private static final int KEYS = 3_000;
+
+    @Test
+    void deflateRoundTrip() {
+        roundTrip(Codecs.DEFLATE);
+    }
+
+    @Test
+    void lz4RoundTrip() {
+        roundTrip(Codecs.LZ4);
+    }
+
+    @Test
+    void deflateDoesNotOverflow() {
+        doesNotOverflow(Codecs.DEFLATE);
+    }
+
+    @Test
+    void lz4DoesNotOverflow() {
+        doesNotOverflow(Codecs.LZ4);
+    }
+
+    @Test
+    void knownIds() {
+        assertSame(Codecs.DEFLATE, Codecs.byId(Codecs.DEFLATE.id()));
+        assertSame(Codecs.LZ4, Codecs.byId(Codecs.LZ4.id()));
+        assertNull(Codecs.byId(Codecs.NONE_ID));
+    }
+
+    @Test
+    void tablesOfMixedCodecs(@TempDir File data) throws IOException {
+        fill(data, null, 0);
+        fill(data, Codecs.DEFLATE, 1);
+        fill(data, Codecs.LZ4, 2);
+        try (DAO dao = open(data, Codecs.LZ4)) {
+            check(dao);
+            dao.compact();
+            check(dao);
+        }
+        try (DAO dao = open(data, null)) {
+            check(dao);
+        }
+    }
+
+    private static void roundTrip(@NotNull final Codec codec) {
+        final ByteBuffer text = ByteBuffer.wrap(compressible(64 * 1024));
+        final int compressed = roundTrip(codec, text);
+        assertTrue(compressed < text.remaining() / 4, "Compressed to " + compressed);
+
+        roundTrip(codec, randomValueBuffer());
+        roundTrip(codec, ByteBuffer.wrap(new byte[]{42}));
+        roundTrip(codec, ByteBuffer.allocate(0));
+
+        // Positioned in the middle of direct buffers
+        final ByteBuffer direct = ByteBuffer.allocateDirect(text.remaining() + 7);
+        direct.position(7);
+        direct.put(text.duplicate());
+        direct.position(7);
+        roundTrip(codec, direct);
+    }
+
+    private static int roundTrip(@NotNull final Codec codec, @NotNull final ByteBuffer src) {
+        final ByteBuffer original = src.duplicate();
+        final ByteBuffer compressed = ByteBuffer.allocateDirect(src.remaining() * 2 + 64);
+        compressed.position(5);
+        final int size = codec.compress(src, compressed);
+        assertTrue(size >= 0);
+        assertEquals(original, src);
+        compressed.flip().position(5);
+
+        final ByteBuffer restored = ByteBuffer.allocate(src.remaining() + 3);
+        restored.position(3);
+        codec.decompress(compressed, restored);
+        assertEquals(5, compressed.position());
+        restored.position(3);
+        assertEquals(original, restored);
+        return size;
+    }
+
+    private static void doesNotOverflow(@NotNull final Codec codec) {
+        final ByteBuffer random = randomValueBuffer();
+        final ByteBuffer small = ByteBuffer.allocate(random.remaining() / 2);
+        small.position(10);
+        assertEquals(-1, codec.compress(random, small));
+        assertEquals(10, small.position());
+    }
+
+    private static void fill(@NotNull final File data, @Nullable final Codec codec,
+                             final int round) throws IOException {
+        try (DAO dao = open(data, codec)) {
+            for (int i = round; i < KEYS; i += 3) {
+                dao.upsert(key(i), repeatedValue(i));
+            }
+        }
+    }
+
+    private static void check(@NotNull final DAO dao) throws IOException {
+        for (int i = 0; i < KEYS; i++) {
+            assertEquals(repeatedValue(i), dao.get(key(i)));
+        }
+    }
+
+    @NotNull
+    private static DAO open(@NotNull final File data, @Nullable final Codec codec) throws IOException {
+        return new LSMDao(data, DaoOptions.defaults().withTableOptions(TableOptions.defaults().withCodec(codec)));
+    }
+
+    @NotNull
+    private static byte[] compressible(final int size) {
+        final byte[] result = new byte[size];
+        final byte[] phrase = "the quick brown fox jumps over the lazy dog ".getBytes(UTF_8);
+        for (int i = 0; i < size; i++) {
+            result[i] = phrase[i % phrase.length];
+        }
+        return result;
+    }
+
+    @NotNull
+    private static ByteBuffer repeatedValue(final int i) {
+        return ByteBuffer.wrap(("value of key " + i + " repeated, repeated, repeated").getBytes(UTF_8));
+    }
+}
@@ -0,0 +1,120 @@
+package ru.mail.polis.dao;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import ru.mail.polis.Record;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.senyast.DaoOptions;
+import ru.mail.polis.dao.senyast.LSMDao;
+import ru.mail.polis.dao.senyast.tables.CorruptTableException;
+import ru.mail.polis.dao.senyast.tables.Verification;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Detection of corrupted tables by checksums.
+ */
+class CorruptTableTest extends TestBase {
+    private static final int KEYS = 5_000;
+    /**
+     * Properties offset, properties checksum, format version and magic at the end of a table.
+     */
+    private static final int FOOTER_SIZE = Long.BYTES + Integer.BYTES + Integer.BYTES + Long.BYTES;
+
+    @Test
+    void corruptedBlockFailsReads(@TempDir File data) throws IOException {
+        final Path table = fill(data);
+        flipByte(table, Files.size(table) / 3);
+
+        try (DAO dao = open(data)) {
+            int corrupted = 0;
+            for (int i = 0; i < KEYS; i++) {
+                try {
+                    assertEquals(value(i), dao.get(key(i)));
+                } catch (IOException | RuntimeException e) {
+                    assertTrue(corruption(e), e::toString);
+                    corrupted++;
+                }
+            }
+            assertTrue(corrupted > 0);
+
+            final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+            final RuntimeException e = assertThrows(RuntimeException.class, () -> records.forEachRemaining(r -> {
+            }));
+            assertTrue(corruption(e), e::toString);
+        }
+    }
+
+    @Test
+    void corruptedMetadataFailsLoad(@TempDir File data) throws IOException {
+        final Path table = fill(data);
+        final long propertiesOffset;
+        try (FileChannel channel = FileChannel.open(table, StandardOpenOption.READ)) {
+            final ByteBuffer offset = ByteBuffer.allocate(Long.BYTES);
+            channel.read(offset, channel.size() - Long.BYTES - Integer.BYTES - Long.BYTES);
+            propertiesOffset = offset.getLong(0);
+        }
+        // The last byte before the properties belongs to the bloom filter
+        flipByte(table, propertiesOffset - 1);
+
+        try (DAO dao = open(data)) {
+            final Exception e = assertThrows(Exception.class, () -> dao.get(key(0)));
+            assertTrue(corruption(e), e::toString);
+        }
+    }
+
+    @Test
+    void corruptedPropertiesFailOpen(@TempDir File data) throws IOException {
+        final Path table = fill(data);
+        flipByte(table, Files.size(table) - FOOTER_SIZE - 1);
+
+        final Exception e = assertThrows(Exception.class, () -> open(data).close());
+        assertTrue(corruption(e), e::toString);
+    }
+
+    @NotNull
+    private static Path fill(@NotNull final File data) throws IOException {
+        try (DAO dao = open(data)) {
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(key(i), value(i));
+            }
+        }
+        return singleTableFile(data);
+    }
+
+    @NotNull
+    private static DAO open(@NotNull final File data) throws IOException {
+        return new LSMDao(data, DaoOptions.defaults().withVerification(Verification.ALWAYS));
+    }
+
+    private static void flipByte(@NotNull final Path table, final long offset) throws IOException {
+        try (FileChannel channel = FileChannel.open(table, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final ByteBuffer b = ByteBuffer.allocate(1);
+            channel.read(b, offset);
+            b.put(0, (byte) (b.get(0) ^ 0x10)).rewind();
+            channel.write(b, offset);
+        }
+    }
+
+    private static boolean corruption(@NotNull final Throwable e) {
+        for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+            if (cause instanceof CorruptTableException) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
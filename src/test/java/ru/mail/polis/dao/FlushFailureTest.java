@@ -0,0 +1,164 @@
+package ru.mail.polis.dao;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.senyast.DaoOptions;
+import ru.mail.polis.dao.senyast.LSMDao;
+import ru.mail.polis.dao.senyast.tables.WriteController;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Flushes failing for good neither hang closing nor stall writers silently, and lose no acknowledged write.
+ * Writers stop at the memory budget, which counts the overhead of the entries too.
+ */
+class FlushFailureTest extends TestBase {
+    private static final long TIMEOUT_SECONDS = 30;
+
+    @Test
+    void closeGivesUpFailingFlush(@TempDir File data) throws Exception {
+        final ByteBuffer key = randomKeyBuffer();
+        final ByteBuffer value = randomValueBuffer();
+        final DAO dao = DAOFactory.create(data);
+        final Path blocker = blockFlush(data, 1);
+        dao.upsert(key, value);
+
+        final ExecutionException closed = assertThrows(ExecutionException.class, () -> inTime(() -> {
+            dao.close();
+            return null;
+        }));
+        assertTrue(closed.getCause() instanceof IOException);
+
+        unblock(blocker);
+        try (DAO reopened = DAOFactory.create(data)) {
+            assertEquals(value, reopened.get(key));
+        }
+    }
+
+    @Test
+    void stoppedWritersFailWhileFlushFails(@TempDir File data) throws Exception {
+        final DaoOptions options = DaoOptions.defaults()
+                .withFlushThreshold(16 * 1024)
+                .withMemoryBudget(64 * 1024);
+        final LSMDao dao = new LSMDao(data, options);
+        final Path blocker = blockFlush(data, 1);
+        final List<ByteBuffer> written = new ArrayList<>();
+        final IOException stopped = inTime(() -> {
+            while (true) {
+                final ByteBuffer key = randomKeyBuffer();
+                try {
+                    dao.upsert(key, key);
+                } catch (IOException e) {
+                    return e;
+                }
+                written.add(key);
+            }
+        });
+        assertNotNull(dao.writeController().flushFailure());
+        assertTrue(written.size() > 0);
+
+        assertThrows(ExecutionException.class, () -> inTime(() -> {
+            dao.close();
+            return null;
+        }));
+
+        unblock(blocker);
+        try (DAO reopened = DAOFactory.create(data)) {
+            for (final ByteBuffer key : written) {
+                assertEquals(key, reopened.get(key));
+            }
+        }
+        assertNotNull(stopped.getCause());
+    }
+
+    @Test
+    void budgetCountsOverheadOfTinyWrites(@TempDir File data) throws Exception {
+        final long budget = 64 * 1024;
+        final DaoOptions options = DaoOptions.defaults()
+                .withFlushThreshold(16 * 1024)
+                .withMemoryBudget(budget);
+        final LSMDao dao = new LSMDao(data, options);
+        final Path blocker = blockFlush(data, 1);
+        final long[] payload = new long[1];
+        final IOException stopped = inTime(() -> {
+            for (int i = 0; ; i++) {
+                final ByteBuffer key = ByteBuffer.allocate(Integer.BYTES).putInt(0, i);
+                try {
+                    dao.upsert(key, ByteBuffer.allocate(1));
+                } catch (IOException e) {
+                    return e;
+                }
+                payload[0] += key.remaining() + 1;
+            }
+        });
+        assertNotNull(stopped);
+        assertEquals(WriteController.State.STOPPED, dao.writeController().state());
+        // The keys and values alone are a small part of the memory the entries take
+        assertTrue(payload[0] < budget / 4, "Payload " + payload[0] + " of a full budget");
+
+        assertThrows(ExecutionException.class, () -> inTime(() -> {
+            dao.close();
+            return null;
+        }));
+        unblock(blocker);
+    }
+
+    @Test
+    void defaultBudgetIsShareOfHeap() {
+        final long heapShare = Runtime.getRuntime().maxMemory() / DaoOptions.DEFAULT_MEMORY_BUDGET_HEAP_DIVISOR;
+        final DaoOptions options = DaoOptions.defaults().withFlushQueueCapacity(Integer.MAX_VALUE);
+        assertEquals(heapShare, options.memoryBudget());
+        assertEquals(3 * 1024, options.withFlushThreshold(1024).withFlushQueueCapacity(2).memoryBudget());
+        assertEquals(heapShare, options.withMemoryBudget(heapShare).memoryBudget());
+    }
+
+    /**
+     * Puts a non-empty directory where the flush writes the table of the generation, so it fails.
+     * The first memory table of a new database has generation 1.
+     */
+    private static Path blockFlush(final File data, final int generation) throws IOException {
+        final Path blocker = data.toPath().resolve(LSMDao.PREFIX_FILE + generation + ".tmp");
+        Files.createDirectory(blocker);
+        Files.createFile(blocker.resolve("blocker"));
+        return blocker;
+    }
+
+    private static void unblock(final Path blocker) throws IOException {
+        Files.delete(blocker.resolve("blocker"));
+        Files.delete(blocker);
+    }
+
+    private static <T> T inTime(final java.util.concurrent.Callable<T> task) throws Exception {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final Future<T> result = executor.submit(task);
+            try {
+                return result.get(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            } catch (TimeoutException e) {
+                result.cancel(true);
+                throw e;
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
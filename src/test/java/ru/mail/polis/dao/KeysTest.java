@@ -0,0 +1,161 @@
+package ru.mail.polis.dao;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import ru.mail.polis.Record;
+import ru.mail.polis.TestBase;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Keys are ordered by unsigned bytes, a prefix going first, however they are stored.
+ */
+class KeysTest extends TestBase {
+    private static final int ROUNDS = 100_000;
+
+    @Test
+    void highBytesGoLast() {
+        assertTrue(Keys.compare(bytes(0x7F), bytes(0x80)) < 0);
+        assertTrue(Keys.compare(bytes(0x00), bytes(0xFF)) < 0);
+        assertTrue(Keys.compare(bytes(0xFF), bytes(0x01)) > 0);
+        // Same in the middle of a word and after it
+        assertTrue(Keys.compare(bytes(1, 2, 3, 0x7F), bytes(1, 2, 3, 0x80)) < 0);
+        assertTrue(Keys.compare(bytes(1, 2, 3, 4, 5, 6, 7, 8, 0x90), bytes(1, 2, 3, 4, 5, 6, 7, 8, 0x10)) > 0);
+        assertTrue(Keys.compare(bytes(0x80, 0, 0, 0, 0, 0, 0, 0), bytes(0x7F, 0, 0, 0, 0, 0, 0, 0)) > 0);
+    }
+
+    @Test
+    void prefixGoesFirst() {
+        assertTrue(Keys.compare(bytes(), bytes(0x00)) < 0);
+        assertTrue(Keys.compare(bytes(0x80), bytes(0x80, 0x00)) < 0);
+        assertTrue(Keys.compare(bytes(1, 2, 3, 4, 5, 6, 7, 8), bytes(1, 2, 3, 4, 5, 6, 7, 8, 0)) < 0);
+        assertTrue(Keys.compare(bytes(1, 2, 3, 4, 5, 6, 7, 8, 9), bytes(1, 2, 3, 4, 5, 6, 7, 8)) > 0);
+        assertEquals(0, Keys.compare(bytes(0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF),
+                bytes(0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF, 0xFF)));
+    }
+
+    @Test
+    void matchesBytewiseComparison() {
+        final Random random = new Random(17);
+        for (int round = 0; round < ROUNDS; round++) {
+            final byte[] a = randomBytes(random);
+            final byte[] b = random.nextBoolean() ? randomBytes(random) : mutate(a, random);
+            final int expected = Integer.signum(unsigned(a, b));
+            assertEquals(expected, Integer.signum(Keys.compare(ByteBuffer.wrap(a), ByteBuffer.wrap(b))));
+            assertEquals(expected, Integer.signum(Keys.compare(stored(a, random), stored(b, random))));
+            assertEquals(-expected, Integer.signum(Keys.compare(ByteBuffer.wrap(b), ByteBuffer.wrap(a))));
+
+            final ByteBuffer other = stored(b, random);
+            assertEquals(expected, Integer.signum(Keys.compare(ByteBuffer.wrap(a), other, other.position(),
+                    other.remaining())));
+            assertEquals(Integer.signum(ByteBuffer.wrap(a).compareTo(ByteBuffer.wrap(b))),
+                    Integer.signum(Keys.compareSigned(ByteBuffer.wrap(a), other, other.position(),
+                            other.remaining())));
+        }
+    }
+
+    @Test
+    void storageIteratesInUnsignedOrder(@TempDir File data) throws IOException {
+        final List<ByteBuffer> keys = new ArrayList<>();
+        keys.add(bytes(0x00));
+        keys.add(bytes(0x01, 0xFF));
+        keys.add(bytes(0x7F));
+        keys.add(bytes(0x80));
+        keys.add(bytes(0x80, 0x00));
+        keys.add(bytes(0xC0, 1, 2, 3, 4, 5, 6, 7, 8));
+        keys.add(bytes(0xFF));
+        keys.add(bytes(0xFF, 0xFF));
+
+        try (DAO dao = DAOFactory.create(data)) {
+            // Half of the keys in a table, the other half in memory
+            for (int i = 0; i < keys.size(); i += 2) {
+                dao.upsert(keys.get(i), keys.get(i));
+            }
+        }
+        try (DAO dao = DAOFactory.create(data)) {
+            for (int i = 1; i < keys.size(); i += 2) {
+                dao.upsert(keys.get(i), keys.get(i));
+            }
+            assertOrder(keys, dao.iterator(ByteBuffer.allocate(0)));
+            assertOrder(keys.subList(3, keys.size()), dao.iterator(bytes(0x7F, 0x00)));
+            dao.compact();
+            assertOrder(keys, dao.iterator(ByteBuffer.allocate(0)));
+        }
+    }
+
+    private static void assertOrder(@NotNull final List<ByteBuffer> expected,
+                                    @NotNull final Iterator<Record> records) {
+        for (final ByteBuffer key : expected) {
+            assertTrue(records.hasNext());
+            assertEquals(key, records.next().getKey());
+        }
+        assertFalse(records.hasNext());
+    }
+
+    private static int unsigned(@NotNull final byte[] a, @NotNull final byte[] b) {
+        for (int i = 0; i < Math.min(a.length, b.length); i++) {
+            if (a[i] != b[i]) {
+                return (a[i] & 0xFF) - (b[i] & 0xFF);
+            }
+        }
+        return a.length - b.length;
+    }
+
+    @NotNull
+    private static byte[] randomBytes(@NotNull final Random random) {
+        final byte[] result = new byte[random.nextInt(20)];
+        random.nextBytes(result);
+        return result;
+    }
+
+    /**
+     * Copy sharing a prefix with the original, the rest changed or cut.
+     */
+    @NotNull
+    private static byte[] mutate(@NotNull final byte[] original, @NotNull final Random random) {
+        final byte[] result = new byte[Math.max(0, original.length + random.nextInt(5) - 2)];
+        System.arraycopy(original, 0, result, 0, Math.min(original.length, result.length));
+        if (result.length > 0 && random.nextBoolean()) {
+            result[random.nextInt(result.length)] ^= (byte) (1 << random.nextInt(Byte.SIZE));
+        }
+        return result;
+    }
+
+    /**
+     * Bytes in the middle of a direct or heap buffer of either byte order.
+     */
+    @NotNull
+    private static ByteBuffer stored(@NotNull final byte[] bytes, @NotNull final Random random) {
+        final int offset = random.nextInt(9);
+        final ByteBuffer buffer = random.nextBoolean()
+                ? ByteBuffer.allocateDirect(offset + bytes.length + 3)
+                : ByteBuffer.allocate(offset + bytes.length + 3);
+        buffer.order(random.nextBoolean() ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+        buffer.position(offset);
+        buffer.put(bytes);
+        buffer.limit(offset + bytes.length).position(offset);
+        return buffer;
+    }
+
+    @NotNull
+    private static ByteBuffer bytes(final int... values) {
+        final byte[] result = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            result[i] = (byte) values[i];
+        }
+        return ByteBuffer.wrap(result);
+    }
+}
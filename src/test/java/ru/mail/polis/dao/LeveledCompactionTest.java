@@ -0,0 +1,156 @@
+package ru.mail.polis.dao;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import ru.mail.polis.Record;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.senyast.DaoOptions;
+import ru.mail.polis.dao.senyast.LSMDao;
+import ru.mail.polis.dao.senyast.compaction.Compaction;
+import ru.mail.polis.dao.senyast.compaction.CompactionStrategy;
+import ru.mail.polis.dao.senyast.compaction.LeveledCompaction;
+import ru.mail.polis.dao.senyast.model.Generation;
+import ru.mail.polis.dao.senyast.tables.FileTable;
+import ru.mail.polis.dao.senyast.tables.Verification;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Newer tables of shallower levels shadow the values compaction rewrites into deeper levels later.
+ */
+class LeveledCompactionTest extends TestBase {
+    private static final int KEYS = 400;
+    private static final long FILE_SIZE = 4 * 1024;
+    private static final long LEVEL_BASE = 8 * 1024;
+
+    @Test
+    void newerL0ShadowsDeeperLevels(@TempDir File data) throws IOException {
+        final Stepwise strategy = new Stepwise();
+        final DaoOptions options = DaoOptions.defaults().withCompactionStrategy(() -> strategy);
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+
+        for (int round = 1; round <= 2; round++) {
+            try (DAO dao = new LSMDao(data, options)) {
+                for (int i = 0; i < KEYS; i++) {
+                    dao.upsert(key(i), value(i, round));
+                    expected.put(key(i), value(i, round));
+                }
+            }
+        }
+        try (DAO dao = new LSMDao(data, options)) {
+            // Both L0 tables go to L1, which outgrows its target
+            dao.compact();
+            assertEquals(1, strategy.last.outputLevel());
+            check(expected, dao);
+            for (int i = 0; i < KEYS; i += 2) {
+                dao.upsert(key(i), value(i, 3));
+                expected.put(key(i), value(i, 3));
+            }
+        }
+        try (DAO dao = new LSMDao(data, options)) {
+            // A table of L1 is rewritten into L2 after the L0 table overwriting some of its keys is flushed
+            dao.compact();
+            assertEquals(2, strategy.last.outputLevel());
+            check(expected, dao);
+            for (int i = 0; i < KEYS; i += 3) {
+                dao.remove(key(i));
+                expected.remove(key(i));
+            }
+        }
+        assertEquals(Set.of(0, 1, 2), levels(data));
+
+        try (DAO dao = new LSMDao(data, options)) {
+            check(expected, dao);
+            strategy.stepping = false;
+            dao.compact();
+            check(expected, dao);
+        }
+        assertFalse(levels(data).contains(0));
+        try (DAO dao = new LSMDao(data, options)) {
+            check(expected, dao);
+        }
+    }
+
+    private static void check(@NotNull final NavigableMap<ByteBuffer, ByteBuffer> expected,
+                              @NotNull final DAO dao) throws IOException {
+        for (int i = 0; i < KEYS; i++) {
+            final ByteBuffer value = expected.get(key(i));
+            if (value == null) {
+                final ByteBuffer key = key(i);
+                assertThrows(NoSuchElementLite.class, () -> dao.get(key));
+            } else {
+                assertEquals(value, dao.get(key(i)));
+            }
+        }
+        final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+        for (final NavigableMap.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+            assertTrue(records.hasNext());
+            final Record record = records.next();
+            assertEquals(entry.getKey(), record.getKey());
+            assertEquals(entry.getValue(), record.getValue());
+        }
+        assertFalse(records.hasNext());
+    }
+
+    @NotNull
+    private static Set<Integer> levels(@NotNull final File data) throws IOException {
+        final Set<Integer> levels = new TreeSet<>();
+        for (final Path path : tableFiles(data)) {
+            final FileTable table = new FileTable(path.toFile(), Generation.fromPath(path), Verification.FIRST_READ);
+            levels.add(table.getLevel());
+        }
+        return levels;
+    }
+
+    @NotNull
+    private static ByteBuffer value(final int i, final int round) {
+        return ByteBuffer.wrap(String.format("value %05d of round %d, padded to forty bytes", i, round)
+                .getBytes(UTF_8));
+    }
+
+    /**
+     * Runs the compactions leveled strategy finds due one at a time, on {@link DAO#compact()} only,
+     * or merges everything once done stepping.
+     */
+    private static final class Stepwise implements CompactionStrategy {
+        private final CompactionStrategy leveled = new LeveledCompaction(2, FILE_SIZE, LEVEL_BASE, 2, 4);
+        private volatile boolean stepping = true;
+        private volatile Compaction last;
+
+        @NotNull
+        @Override
+        public List<Compaction> candidates(@NotNull final Collection<FileTable> tables) {
+            return List.of();
+        }
+
+        @NotNull
+        @Override
+        public Compaction full(@NotNull final Collection<FileTable> tables) {
+            if (!stepping) {
+                return leveled.full(tables);
+            }
+            final List<Compaction> due = leveled.candidates(tables);
+            assertFalse(due.isEmpty());
+            last = due.get(0);
+            return last;
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package ru.mail.polis.dao;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.senyast.LSMDao;
+import ru.mail.polis.dao.senyast.tables.CorruptManifestException;
+import ru.mail.polis.dao.senyast.tables.Manifest;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Recovery of the set of live tables with and without the {@link Manifest}.
+ */
+class ManifestTest extends TestBase {
+
+    @Test
+    void tableNotInManifestIsDeleted(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKeyBuffer();
+        final ByteBuffer value = randomValueBuffer();
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(key, value);
+        }
+        final List<Path> tables = tableFiles(data);
+        assertEquals(1, tables.size());
+
+        // Like a table written by a compaction interrupted before it was recorded
+        final Path leftover = data.toPath().resolve(LSMDao.PREFIX_FILE + 1_000_000 + LSMDao.SUFFIX_DAT);
+        Files.copy(tables.get(0), leftover);
+
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(value, dao.get(key));
+        }
+        assertFalse(leftover.toFile().exists());
+    }
+
+    @Test
+    void manifestSurvivesCompaction(@TempDir File data) throws IOException {
+        final ByteBuffer first = randomKeyBuffer();
+        final ByteBuffer second = randomKeyBuffer();
+        final ByteBuffer value = randomValueBuffer();
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(first, value);
+        }
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(second, value);
+            dao.remove(first);
+        }
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.compact();
+        }
+        try (DAO dao = DAOFactory.create(data)) {
+            assertThrows(NoSuchElementException.class, () -> dao.get(first));
+            assertEquals(value, dao.get(second));
+        }
+    }
+
+    @Test
+    void legacyDatabaseKeepsAllTables(@TempDir File data) throws IOException {
+        final ByteBuffer first = randomKeyBuffer();
+        final ByteBuffer second = randomKeyBuffer();
+        final ByteBuffer value = randomValueBuffer();
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(first, value);
+        }
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(second, value);
+        }
+        final List<Path> tables = tableFiles(data);
+        assertEquals(2, tables.size());
+        deleteManifest(data);
+
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(value, dao.get(first));
+            assertEquals(value, dao.get(second));
+        }
+        assertTrue(new File(data, Manifest.FILE_NAME).exists());
+        assertEquals(tables, tableFiles(data));
+    }
+
+    @Test
+    void legacyBrokenTableIsMovedAside(@TempDir File data) throws IOException {
+        final ByteBuffer first = randomKeyBuffer();
+        final ByteBuffer second = randomKeyBuffer();
+        final ByteBuffer value = randomValueBuffer();
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(first, value);
+        }
+        final Path broken = tableFiles(data).get(0);
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(second, value);
+        }
+        deleteManifest(data);
+        final byte[] contents = Files.readAllBytes(broken);
+        breakFormatVersion(broken);
+
+        try (DAO dao = DAOFactory.create(data)) {
+            assertThrows(NoSuchElementException.class, () -> dao.get(first));
+            assertEquals(value, dao.get(second));
+        }
+        assertFalse(broken.toFile().exists());
+
+        // The data is kept for inspection and can be put back
+        final Path aside = broken.resolveSibling(broken.getFileName() + ".corrupt");
+        assertEquals(contents.length, aside.toFile().length());
+        Files.write(broken, contents);
+        Files.delete(aside);
+        deleteManifest(data);
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(value, dao.get(first));
+            assertEquals(value, dao.get(second));
+        }
+    }
+
+    @Test
+    void brokenTableInManifestFailsOpen(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKeyBuffer();
+        final ByteBuffer value = randomValueBuffer();
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(key, value);
+        }
+        final Path table = tableFiles(data).get(0);
+        final Path saved = table.resolveSibling("saved");
+        Files.copy(table, saved);
+        breakFormatVersion(table);
+
+        assertThrows(RuntimeException.class, () -> DAOFactory.create(data).close());
+        assertTrue(table.toFile().exists());
+
+        Files.move(saved, table, StandardCopyOption.REPLACE_EXISTING);
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(value, dao.get(key));
+        }
+    }
+
+    @Test
+    void corruptedCheckpointFailsOpenAndKeepsTables(@TempDir File data) throws IOException {
+        final ByteBuffer first = randomKeyBuffer();
+        final ByteBuffer second = randomKeyBuffer();
+        final ByteBuffer value = randomValueBuffer();
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(first, value);
+        }
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(second, value);
+        }
+        final List<Path> tables = tableFiles(data);
+        assertEquals(2, tables.size());
+
+        // Flips a bit of the generation count in the checkpoint, which follows the size, checksum and type
+        final Path manifest = new File(data, Manifest.FILE_NAME).toPath();
+        final byte[] contents = Files.readAllBytes(manifest);
+        contents[2 * Integer.BYTES + 1] ^= 1;
+        Files.write(manifest, contents);
+
+        assertThrows(CorruptManifestException.class, () -> DAOFactory.create(data).close());
+        assertEquals(tables, tableFiles(data));
+
+        // Without the manifest every table found is opened
+        deleteManifest(data);
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(value, dao.get(first));
+            assertEquals(value, dao.get(second));
+        }
+    }
+
+    @Test
+    void tornTailAfterCheckpointIsSkipped(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKeyBuffer();
+        final ByteBuffer value = randomValueBuffer();
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(key, value);
+        }
+        final Path manifest = new File(data, Manifest.FILE_NAME).toPath();
+        Files.write(manifest, new byte[]{0, 0, 1}, StandardOpenOption.APPEND);
+
+        try (DAO dao = DAOFactory.create(data)) {
+            assertEquals(value, dao.get(key));
+        }
+        assertEquals(1, tableFiles(data).size());
+    }
+
+    @Test
+    void failedForceMayLeaveRecordOnDisk(@TempDir File data) throws IOException {
+        final FailingManifest manifest = new FailingManifest(data, List.of(1));
+        try {
+            manifest.failing = true;
+            assertThrows(IOException.class, () -> manifest.added(2));
+            // The record is written before forcing fails, so a crash now lists the table: it must be kept
+            assertEquals(Set.of(1, 2), Manifest.read(data));
+            assertThrows(IOException.class, () -> manifest.replaced(List.of(1), List.of(3)));
+
+            // The next change rewrites the manifest as of the changes which succeeded
+            manifest.failing = false;
+            manifest.added(4);
+            assertEquals(Set.of(1, 4), Manifest.read(data));
+            manifest.replaced(List.of(1), List.of(5));
+            assertEquals(Set.of(4, 5), Manifest.read(data));
+        } finally {
+            manifest.close();
+        }
+    }
+
+    private static void deleteManifest(final File data) throws IOException {
+        Files.delete(new File(data, Manifest.FILE_NAME).toPath());
+    }
+
+    /**
+     * Fails forcing records, which are written already, while failing.
+     */
+    private static final class FailingManifest extends Manifest {
+        private volatile boolean failing;
+
+        FailingManifest(final File dir, final Collection<Integer> generations) throws IOException {
+            super(dir, generations);
+        }
+
+        @Override
+        protected void force(final FileChannel written) throws IOException {
+            if (failing) {
+                throw new IOException("Injected failure");
+            }
+            super.force(written);
+        }
+    }
+
+    /**
+     * Overwrites the format version, an int followed by the 8-byte magic at the end of a table.
+     */
+    private static void breakFormatVersion(final Path table) throws IOException {
+        try (FileChannel channel = FileChannel.open(table, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(Integer.BYTES).putInt(0, 99),
+                    channel.size() - Long.BYTES - Integer.BYTES);
+        }
+    }
+}
@@ -0,0 +1,196 @@
+package ru.mail.polis.dao;
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.function.LongFunction;
+
+import org.junit.jupiter.api.Test;
+
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.senyast.model.Cell;
+import ru.mail.polis.dao.senyast.model.RangeTombstone;
+import ru.mail.polis.dao.senyast.model.Value;
+import ru.mail.polis.dao.senyast.tables.ArenaMemTable;
+import ru.mail.polis.dao.senyast.tables.HeapMemTable;
+import ru.mail.polis.dao.senyast.tables.MemTable;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Values the memory tables keep for readers of older changes.
+ */
+class MemTableTest extends TestBase {
+    private static final int OVERWRITES = 10_000;
+    private static final int KEYS = 200;
+    private static final int CHANGES = 20_000;
+    private static final int ARENA_CHUNK_SIZE = 64 * 1024;
+
+    @Test
+    void heapOverwritesOfHotKeyDropUnreadableValues() {
+        final MemTable table = new HeapMemTable(1);
+        final ByteBuffer key = randomKeyBuffer();
+        table.put(key, Value.of(1, randomValueBuffer()), 1, 0);
+        final long single = table.sizeInBytes();
+        overwrite(table, key);
+        assertTrue(table.sizeInBytes() < 3 * single, "Size " + table.sizeInBytes() + " of a single key");
+    }
+
+    @Test
+    void heapKeepsValuesOfPinnedChange() {
+        keepsValuesOfPinnedChange(HeapMemTable::new);
+    }
+
+    @Test
+    void arenaKeepsValuesOfPinnedChange() {
+        keepsValuesOfPinnedChange(ArenaMemTable::new);
+    }
+
+    @Test
+    void heapOutOfOrderChanges() {
+        outOfOrderChanges(HeapMemTable::new);
+    }
+
+    @Test
+    void arenaOutOfOrderChanges() {
+        outOfOrderChanges(ArenaMemTable::new);
+    }
+
+    @Test
+    void arenaMatchesHeap() {
+        final MemTable heap = new HeapMemTable(1);
+        final MemTable arena = new ArenaMemTable(1, ARENA_CHUNK_SIZE);
+        arena.retain();
+        try {
+            final Random random = new Random(42);
+            final ByteBuffer[] keys = new ByteBuffer[KEYS];
+            for (int i = 0; i < keys.length; i++) {
+                // Keys of every length, bytes above 0x7F included, some being prefixes of others
+                keys[i] = randomBuffer(1 + random.nextInt(24));
+            }
+            for (int sequence = 1; sequence <= CHANGES; sequence++) {
+                final ByteBuffer key = keys[random.nextInt(keys.length)];
+                final int kind = random.nextInt(10);
+                if (kind == 0) {
+                    final ByteBuffer other = keys[random.nextInt(keys.length)];
+                    final boolean ordered = Keys.compare(key, other) < 0;
+                    final RangeTombstone tombstone = new RangeTombstone(ordered ? key : other,
+                            ordered ? other : key, sequence);
+                    heap.removeRange(tombstone, sequence);
+                    arena.removeRange(tombstone, sequence);
+                    continue;
+                }
+                final Value value;
+                if (kind == 1) {
+                    value = Value.tombstone(sequence);
+                } else if (kind == 2) {
+                    value = Value.of(sequence, randomBuffer(1 + random.nextInt(10)), sequence * 1000L);
+                } else {
+                    // Now and then a value bigger than a chunk of the arena
+                    final int size = sequence % 1000 == 0 ? 2 * ARENA_CHUNK_SIZE : 1 + random.nextInt(100);
+                    value = Value.of(sequence, randomBuffer(size));
+                }
+                // Readers pin the change a hundred changes back
+                final long oldest = Math.max(0, sequence - 100);
+                heap.put(key, value, sequence, oldest);
+                arena.put(key, value, sequence, oldest);
+            }
+            for (final long sequence : new long[]{CHANGES - 100, CHANGES - 1, MemTable.LATEST}) {
+                for (final ByteBuffer key : keys) {
+                    assertSameValue(heap.get(key, sequence), arena.get(key, sequence));
+                    final ByteBuffer missing = ByteBuffer.allocate(key.remaining() + 1).put(key.duplicate()).flip();
+                    assertSameValue(heap.get(missing, sequence), arena.get(missing, sequence));
+                }
+                for (final ByteBuffer from : new ByteBuffer[]{ByteBuffer.allocate(0), keys[0], keys[1]}) {
+                    final Iterator<Cell> expected = heap.iterator(from, sequence);
+                    final Iterator<Cell> actual = arena.iterator(from, sequence);
+                    while (expected.hasNext()) {
+                        assertTrue(actual.hasNext());
+                        final Cell cell = expected.next();
+                        final Cell other = actual.next();
+                        assertEquals(cell.getKey(), other.getKey());
+                        assertSameValue(cell.getValue(), other.getValue());
+                    }
+                    assertFalse(actual.hasNext());
+                }
+                for (final ByteBuffer key : keys) {
+                    assertEquals(heap.rangeTombstones(sequence).deletedAt(key),
+                            arena.rangeTombstones(sequence).deletedAt(key));
+                }
+            }
+        } finally {
+            arena.release();
+        }
+    }
+
+    private static void assertSameValue(final Value expected, final Value actual) {
+        if (expected == null) {
+            assertNull(actual);
+            return;
+        }
+        assertEquals(expected.getTimestamp(), actual.getTimestamp());
+        assertEquals(expected.isTombstone(), actual.isTombstone());
+        if (!expected.isTombstone()) {
+            assertEquals(expected.getExpiresAt(), actual.getExpiresAt());
+            assertEquals(expected.getData(), actual.getData());
+        }
+    }
+
+    /**
+     * Every write sees all the changes before it published and none pinned.
+     */
+    private static void overwrite(final MemTable table, final ByteBuffer key) {
+        for (int sequence = 2; sequence <= OVERWRITES; sequence++) {
+            table.put(key, Value.of(sequence, randomValueBuffer()), sequence, sequence - 1);
+        }
+        assertEquals(OVERWRITES, table.get(key).getTimestamp());
+        assertEquals(OVERWRITES - 1, table.get(key, OVERWRITES - 1).getTimestamp());
+    }
+
+    private static void keepsValuesOfPinnedChange(final LongFunction<MemTable> tables) {
+        final MemTable table = tables.apply(1);
+        table.retain();
+        try {
+            final ByteBuffer key = randomKeyBuffer();
+            final ByteBuffer other = randomKeyBuffer();
+            table.put(key, Value.of(1, randomValueBuffer()), 1, 0);
+            table.put(other, Value.of(2, randomValueBuffer()), 2, 1);
+            // A reader pins change 2 while the key is written over and over
+            for (int sequence = 3; sequence <= OVERWRITES; sequence++) {
+                table.put(key, Value.of(sequence, randomValueBuffer()), sequence, 2);
+            }
+            assertEquals(1, table.get(key, 2).getTimestamp());
+            assertEquals(2, table.get(other, 2).getTimestamp());
+            assertEquals(OVERWRITES, table.get(key).getTimestamp());
+            // Once it is done, the old values are dropped, the newest one up to the oldest readable change is kept
+            table.put(key, Value.of(OVERWRITES + 1, randomValueBuffer()), OVERWRITES + 1, OVERWRITES - 1);
+            assertEquals(OVERWRITES - 1, table.get(key, OVERWRITES - 1).getTimestamp());
+            assertEquals(OVERWRITES + 1, table.get(key).getTimestamp());
+            assertEquals(2, table.get(other, OVERWRITES - 1).getTimestamp());
+        } finally {
+            table.release();
+        }
+    }
+
+    private static void outOfOrderChanges(final LongFunction<MemTable> tables) {
+        final MemTable table = tables.apply(1);
+        table.retain();
+        try {
+            final ByteBuffer key = randomKeyBuffer();
+            for (int sequence = 1; sequence <= 10; sequence++) {
+                table.put(key, Value.of(sequence, randomValueBuffer()), sequence, sequence - 1);
+            }
+            // Changes 12 and 11 were reserved after 10 was published and are stored in reverse
+            table.put(key, Value.of(12, randomValueBuffer()), 12, 10);
+            table.put(key, Value.of(11, randomValueBuffer()), 11, 10);
+            assertEquals(10, table.get(key, 10).getTimestamp());
+            assertEquals(11, table.get(key, 11).getTimestamp());
+            assertEquals(12, table.get(key).getTimestamp());
+        } finally {
+            table.release();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package ru.mail.polis.dao;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import ru.mail.polis.Record;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.senyast.DaoOptions;
+import ru.mail.polis.dao.senyast.LSMDao;
+import ru.mail.polis.dao.senyast.compaction.Compaction;
+import ru.mail.polis.dao.senyast.compaction.LeveledCompaction;
+import ru.mail.polis.dao.senyast.model.Cell;
+import ru.mail.polis.dao.senyast.model.Generation;
+import ru.mail.polis.dao.senyast.tables.FileTable;
+import ru.mail.polis.dao.senyast.tables.RangeTombstones;
+import ru.mail.polis.dao.senyast.tables.Verification;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * A compaction merged in parallel key ranges writes the same cells and range tombstones as a sequential one.
+ */
+class ParallelCompactionTest extends TestBase {
+    private static final int KEYS = 5_000;
+    private static final int ROUNDS = 3;
+    private static final long FILE_SIZE = 32 * 1024;
+    private static final int PARALLELISM = 4;
+
+    @Test
+    void sameOutputsAsSequential(@TempDir File data) throws IOException {
+        final File sequential = new File(data, "sequential");
+        final File parallel = new File(data, "parallel");
+        assertTrue(sequential.mkdir() && parallel.mkdir());
+        fill(sequential, 1);
+        fill(parallel, PARALLELISM);
+        assertTrue(new Compaction(tables(parallel), 1, FILE_SIZE, 1).splitPoints(PARALLELISM).size() > 1);
+
+        try (DAO dao = open(sequential, 1)) {
+            dao.compact();
+        }
+        try (DAO dao = open(parallel, PARALLELISM)) {
+            dao.compact();
+        }
+
+        final List<FileTable> expected = tables(sequential);
+        final List<FileTable> actual = tables(parallel);
+        assertTrue(actual.size() > PARALLELISM);
+        final Iterator<Cell> expectedCells = cells(expected);
+        final Iterator<Cell> actualCells = cells(actual);
+        while (expectedCells.hasNext()) {
+            assertTrue(actualCells.hasNext());
+            final Cell cell = expectedCells.next();
+            final Cell other = actualCells.next();
+            assertEquals(cell.getKey(), other.getKey());
+            assertEquals(cell.getValue().isTombstone(), other.getValue().isTombstone());
+            if (!cell.getValue().isTombstone()) {
+                assertEquals(cell.getValue().getData(), other.getValue().getData());
+            }
+        }
+        assertFalse(actualCells.hasNext());
+
+        final RangeTombstones expectedRanges = ranges(expected);
+        final RangeTombstones actualRanges = ranges(actual);
+        for (int i = 0; i < KEYS; i++) {
+            assertEquals(expectedRanges.deletedAt(key(i)) == RangeTombstones.NONE,
+                    actualRanges.deletedAt(key(i)) == RangeTombstones.NONE);
+        }
+
+        try (DAO first = open(sequential, 1); DAO second = open(parallel, PARALLELISM)) {
+            final Iterator<Record> records = first.iterator(ByteBuffer.allocate(0));
+            final Iterator<Record> others = second.iterator(ByteBuffer.allocate(0));
+            while (records.hasNext()) {
+                assertTrue(others.hasNext());
+                assertEquals(records.next(), others.next());
+            }
+            assertFalse(others.hasNext());
+        }
+    }
+
+    /**
+     * Writes tables overwriting, removing and removing ranges of the keys of the older ones.
+     */
+    private static void fill(@NotNull final File data, final int parallelism) throws IOException {
+        for (int round = 0; round < ROUNDS; round++) {
+            try (DAO dao = open(data, parallelism)) {
+                for (int i = round; i < KEYS; i += round + 1) {
+                    if (i % 7 == round) {
+                        dao.remove(key(i));
+                    } else {
+                        dao.upsert(key(i), value(i, round));
+                    }
+                }
+                // Ranges spanning many blocks, so they cross the split points
+                for (int from = round * 100; from < KEYS; from += 1_000) {
+                    dao.removeRange(key(from), key(from + 300));
+                }
+            }
+        }
+    }
+
+    @NotNull
+    private static DAO open(@NotNull final File data, final int parallelism) throws IOException {
+        // Compacts on request only
+        return new LSMDao(data, DaoOptions.defaults()
+                .withCompactionStrategy(() -> new LeveledCompaction(100, FILE_SIZE, Long.MAX_VALUE / 100, 2, 2))
+                .withCompactionParallelism(parallelism));
+    }
+
+    @NotNull
+    private static List<FileTable> tables(@NotNull final File data) throws IOException {
+        final List<Path> paths = tableFiles(data);
+        final List<FileTable> result = new ArrayList<>(paths.size());
+        for (final Path path : paths) {
+            result.add(new FileTable(path.toFile(), Generation.fromPath(path), Verification.FIRST_READ));
+        }
+        return result;
+    }
+
+    /**
+     * Cells of the outputs of a compaction, which have disjoint key ranges.
+     */
+    @NotNull
+    private static Iterator<Cell> cells(@NotNull final List<FileTable> outputs) {
+        final List<FileTable> sorted = new ArrayList<>();
+        for (final FileTable table : outputs) {
+            if (table.getFirstKey() != null) {
+                sorted.add(table);
+            }
+        }
+        sorted.sort(Comparator.comparing(FileTable::getFirstKey, Keys.ORDER));
+        final List<Cell> result = new ArrayList<>();
+        for (final FileTable table : sorted) {
+            table.compactionIterator(ByteBuffer.allocate(0)).forEachRemaining(result::add);
+        }
+        return result.iterator();
+    }
+
+    @NotNull
+    private static RangeTombstones ranges(@NotNull final List<FileTable> outputs) {
+        final List<RangeTombstones> result = new ArrayList<>(outputs.size());
+        for (final FileTable table : outputs) {
+            result.add(table.rangeTombstones());
+        }
+        return RangeTombstones.merge(result);
+    }
+
+    @NotNull
+    private static ByteBuffer value(final int i, final int round) {
+        return ByteBuffer.wrap(String.format("value %05d of round %d", i, round).getBytes(UTF_8));
+    }
+}
@@ -0,0 +1,124 @@
+package ru.mail.polis.dao;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import ru.mail.polis.Record;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.senyast.DaoOptions;
+import ru.mail.polis.dao.senyast.LSMDao;
+import ru.mail.polis.dao.senyast.compaction.TombstoneOptions;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Range removals stored as range tombstones.
+ */
+class RangeTombstoneTest extends TestBase {
+    private static final int KEYS = 100;
+    private static final int FROM = 20;
+    private static final int TO = 40;
+    private static final int REWRITTEN = 25;
+
+    @Test
+    void memTable(@TempDir File data) throws IOException {
+        try (DAO dao = DAOFactory.create(data)) {
+            fill(dao);
+            dao.removeRange(key(FROM), key(TO));
+            dao.upsert(key(REWRITTEN), value(-1));
+            check(dao);
+        }
+    }
+
+    @Test
+    void flushAndCompaction(@TempDir File data) throws IOException {
+        overridesOlderTables(data, TombstoneOptions.defaults());
+    }
+
+    @Test
+    void flushAndPurgingCompaction(@TempDir File data) throws IOException {
+        overridesOlderTables(data, TombstoneOptions.defaults().withGracePeriod(0));
+    }
+
+    @Test
+    void emptyRange(@TempDir File data) throws IOException {
+        try (DAO dao = DAOFactory.create(data)) {
+            fill(dao);
+            dao.removeRange(key(TO), key(FROM));
+            dao.removeRange(key(FROM), key(FROM));
+            assertEquals(KEYS, keys(dao).size());
+        }
+    }
+
+    /**
+     * Values, the tombstone and the value written over it go to different tables, which are then compacted.
+     */
+    private static void overridesOlderTables(@NotNull final File data,
+                                             @NotNull final TombstoneOptions tombstones) throws IOException {
+        final DaoOptions options = DaoOptions.defaults().withTombstoneOptions(tombstones);
+        try (DAO dao = new LSMDao(data, options)) {
+            fill(dao);
+        }
+        try (DAO dao = new LSMDao(data, options)) {
+            dao.removeRange(key(FROM), key(TO));
+        }
+        try (DAO dao = new LSMDao(data, options)) {
+            dao.upsert(key(REWRITTEN), value(-1));
+        }
+        try (DAO dao = new LSMDao(data, options)) {
+            check(dao);
+            dao.compact();
+            check(dao);
+        }
+        try (DAO dao = new LSMDao(data, options)) {
+            check(dao);
+        }
+    }
+
+    private static void fill(@NotNull final DAO dao) throws IOException {
+        for (int i = 0; i < KEYS; i++) {
+            dao.upsert(key(i), value(i));
+        }
+    }
+
+    private static void check(@NotNull final DAO dao) throws IOException {
+        final List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < KEYS; i++) {
+            if (i < FROM || i >= TO || i == REWRITTEN) {
+                expected.add(i);
+            }
+        }
+        assertEquals(expected, keys(dao));
+        for (int i = FROM; i < TO; i++) {
+            if (i != REWRITTEN) {
+                final ByteBuffer key = key(i);
+                assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            }
+        }
+        assertEquals(value(-1), dao.get(key(REWRITTEN)));
+        assertEquals(value(FROM - 1), dao.get(key(FROM - 1)));
+        assertEquals(value(TO), dao.get(key(TO)));
+    }
+
+    @NotNull
+    private static List<Integer> keys(@NotNull final DAO dao) throws IOException {
+        final List<Integer> result = new ArrayList<>();
+        final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+        while (records.hasNext()) {
+            final String key = UTF_8.decode(records.next().getKey()).toString();
+            result.add(Integer.parseInt(key.substring("key".length())));
+        }
+        return result;
+    }
+}
@@ -0,0 +1,77 @@
+package ru.mail.polis.dao;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.senyast.DaoOptions;
+import ru.mail.polis.dao.senyast.LSMDao;
+import ru.mail.polis.dao.senyast.model.Cell;
+import ru.mail.polis.dao.senyast.model.Generation;
+import ru.mail.polis.dao.senyast.tables.FileTable;
+import ru.mail.polis.dao.senyast.tables.TableOptions;
+import ru.mail.polis.dao.senyast.tables.Verification;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tables mapped in many segments read the same as tables mapped at once, whatever block the boundaries fall at.
+ */
+class SegmentTest extends TestBase {
+    private static final int KEYS = 3_000;
+    private static final int BLOCK_SIZE = 512;
+    private static final int BIG_VALUE_SIZE = 8 * 1024;
+
+    @Test
+    void segmentBoundaries(@TempDir File data) throws IOException {
+        final NavigableMap<ByteBuffer, ByteBuffer> expected = new TreeMap<>();
+        final DaoOptions options = DaoOptions.defaults()
+                .withTableOptions(TableOptions.defaults().withBlockSize(BLOCK_SIZE));
+        try (DAO dao = new LSMDao(data, options)) {
+            for (int i = 0; i < KEYS; i++) {
+                // Values bigger than a segment make blocks which get a segment of their own
+                final ByteBuffer value = i % 500 == 0 ? randomBuffer(BIG_VALUE_SIZE) : key("value" + i);
+                dao.upsert(key(i), value);
+                expected.put(key(i), value);
+            }
+        }
+        final Path path = singleTableFile(data);
+        for (final long segmentSize : new long[]{BLOCK_SIZE, BLOCK_SIZE + 1, 4 * 1024 - 1, 64 * 1024}) {
+            final FileTable table = new FileTable(path.toFile(), Generation.fromPath(path),
+                    Verification.FIRST_READ, segmentSize);
+            for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.entrySet()) {
+                assertEquals(entry.getValue(), table.get(entry.getKey()).getData());
+            }
+            assertNull(table.get(key("absent")));
+            for (int from = 0; from < KEYS; from += 997) {
+                final Iterator<Cell> cells = table.iterator(key(from));
+                for (final Map.Entry<ByteBuffer, ByteBuffer> entry : expected.tailMap(key(from)).entrySet()) {
+                    assertTrue(cells.hasNext());
+                    final Cell cell = cells.next();
+                    assertEquals(entry.getKey(), cell.getKey());
+                    assertEquals(entry.getValue(), cell.getValue().getData());
+                }
+                assertFalse(cells.hasNext());
+            }
+        }
+    }
+
+    @NotNull
+    private static ByteBuffer key(@NotNull final String key) {
+        return ByteBuffer.wrap(key.getBytes(UTF_8));
+    }
+}
@@ -0,0 +1,142 @@
+package ru.mail.polis.dao;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import ru.mail.polis.Record;
+import ru.mail.polis.TestBase;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Isolation of {@link Snapshot}s from the changes made after they are taken.
+ */
+class SnapshotTest extends TestBase {
+    private static final int KEYS = 100;
+
+    @Test
+    void changesAfterSnapshotAreNotSeen(@TempDir File data) throws IOException {
+        try (DAO dao = DAOFactory.create(data)) {
+            fill(dao, 0);
+            try (Snapshot snapshot = dao.snapshot()) {
+                final Map<String, String> expected = contents(dao);
+
+                dao.upsert(key(0), value(-1));
+                dao.remove(key(1));
+                dao.removeRange(key(10), key(20));
+                dao.write(new WriteBatch().upsert(key(KEYS), value(KEYS)).remove(key(2)));
+
+                assertEquals(expected, contents(snapshot.iterator(ByteBuffer.allocate(0))));
+                assertEquals(value(0), snapshot.get(key(0)));
+                assertEquals(value(1), snapshot.get(key(1)));
+                assertEquals(value(15), snapshot.get(key(15)));
+                assertThrows(NoSuchElementException.class, () -> snapshot.get(key(KEYS)));
+
+                assertEquals(value(-1), dao.get(key(0)));
+                assertThrows(NoSuchElementException.class, () -> dao.get(key(1)));
+                assertThrows(NoSuchElementException.class, () -> dao.get(key(15)));
+                assertEquals(value(KEYS), dao.get(key(KEYS)));
+            }
+        }
+    }
+
+    @Test
+    void snapshotSurvivesCompaction(@TempDir File data) throws IOException {
+        try (DAO dao = DAOFactory.create(data)) {
+            fill(dao, 0);
+        }
+        try (DAO dao = DAOFactory.create(data)) {
+            try (Snapshot snapshot = dao.snapshot()) {
+                final Map<String, String> expected = contents(dao);
+                final Iterator<Record> started = snapshot.iterator(ByteBuffer.allocate(0));
+                started.next();
+
+                fill(dao, 1);
+                dao.removeRange(key(0), key(KEYS / 2));
+                dao.compact();
+
+                assertEquals(expected, contents(snapshot.iterator(ByteBuffer.allocate(0))));
+                assertEquals(KEYS - 1, contents(started).size());
+            }
+        }
+    }
+
+    @Test
+    void snapshotDoesNotFlush(@TempDir File data) throws IOException {
+        try (DAO dao = DAOFactory.create(data)) {
+            fill(dao, 0);
+            for (int i = 0; i < 10; i++) {
+                dao.snapshot().close();
+            }
+            fill(dao, 1);
+        }
+        // Only closing the database wrote a table
+        assertEquals(1, tables(data));
+    }
+
+    @Test
+    void concurrentWrites(@TempDir File data) throws Exception {
+        try (DAO dao = DAOFactory.create(data)) {
+            fill(dao, 0);
+            final ExecutorService writer = Executors.newSingleThreadExecutor();
+            try (Snapshot snapshot = dao.snapshot()) {
+                final Map<String, String> expected = contents(dao);
+                final Future<?> writes = writer.submit(() -> {
+                    for (int round = 1; round <= 20; round++) {
+                        fill(dao, round);
+                    }
+                    return null;
+                });
+                do {
+                    assertEquals(expected, contents(snapshot.iterator(ByteBuffer.allocate(0))));
+                } while (!writes.isDone());
+                writes.get();
+                assertEquals(expected, contents(snapshot.iterator(ByteBuffer.allocate(0))));
+            } finally {
+                writer.shutdown();
+                assertTrue(writer.awaitTermination(1, TimeUnit.MINUTES));
+            }
+        }
+    }
+
+    private static void fill(@NotNull final DAO dao, final int round) throws IOException {
+        for (int i = 0; i < KEYS; i++) {
+            dao.upsert(key(i), value(round * KEYS + i));
+        }
+    }
+
+    @NotNull
+    private static Map<String, String> contents(@NotNull final DAO dao) throws IOException {
+        return contents(dao.iterator(ByteBuffer.allocate(0)));
+    }
+
+    @NotNull
+    private static Map<String, String> contents(@NotNull final Iterator<Record> records) {
+        final Map<String, String> result = new LinkedHashMap<>();
+        while (records.hasNext()) {
+            final Record record = records.next();
+            result.put(UTF_8.decode(record.getKey()).toString(), UTF_8.decode(record.getValue()).toString());
+        }
+        return result;
+    }
+
+    private static long tables(@NotNull final File data) throws IOException {
+        return tableFiles(data).size();
+    }
+}
@@ -0,0 +1,67 @@
+package ru.mail.polis.dao;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.senyast.model.Generation;
+import ru.mail.polis.dao.senyast.tables.CorruptTableException;
+import ru.mail.polis.dao.senyast.tables.FileTable;
+import ru.mail.polis.dao.senyast.tables.Verification;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tables opened lazily answer what compaction asks about them from the footer alone.
+ */
+class TableOpenTest extends TestBase {
+    private static final int KEYS = 10;
+    private static final int REMOVED = 2;
+
+    @Test
+    void tombstoneStatisticsDoNotLoadTable(@TempDir File data) throws IOException {
+        try (DAO dao = DAOFactory.create(data)) {
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(key(i), key(i));
+            }
+            for (int i = 0; i < REMOVED; i++) {
+                dao.remove(key(i));
+            }
+            // Covers no key written, so it is stored as a single fragment
+            dao.removeRange(key(KEYS), key(KEYS + 1));
+        }
+        final Path path = singleTableFile(data);
+        final FileTable table = new FileTable(path.toFile(), Generation.fromPath(path), Verification.FIRST_READ);
+        // Anything loaded from now on fails the metadata checksum
+        breakMetadata(path);
+
+        assertEquals((REMOVED + 1.0) / (KEYS + 1), table.tombstoneRatio(), 1e-9);
+        assertTrue(table.getOldestTombstone() < Long.MAX_VALUE);
+        assertThrows(CorruptTableException.class, table::load);
+    }
+
+    /**
+     * Flips the last byte before the properties, which belongs to the range tombstones.
+     */
+    private static void breakMetadata(@NotNull final Path table) throws IOException {
+        try (FileChannel channel = FileChannel.open(table, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            final ByteBuffer offset = ByteBuffer.allocate(Long.BYTES);
+            channel.read(offset, channel.size() - Long.BYTES - Integer.BYTES - Long.BYTES);
+            final long last = offset.getLong(0) - 1;
+            final ByteBuffer b = ByteBuffer.allocate(1);
+            channel.read(b, last);
+            b.put(0, (byte) (b.get(0) ^ 0x10)).rewind();
+            channel.write(b, last);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package ru.mail.polis.dao;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.senyast.compaction.TombstoneOptions;
+import ru.mail.polis.dao.senyast.compaction.TombstonePurge;
+import ru.mail.polis.dao.senyast.model.Cell;
+import ru.mail.polis.dao.senyast.model.Generation;
+import ru.mail.polis.dao.senyast.model.RangeTombstone;
+import ru.mail.polis.dao.senyast.model.Value;
+import ru.mail.polis.dao.senyast.tables.FileTable;
+import ru.mail.polis.dao.senyast.tables.RangeTombstones;
+import ru.mail.polis.dao.senyast.tables.Verification;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tombstones are purged by a compaction only if no table left out of it may hold an older value of the key.
+ */
+class TombstonePurgeTest extends TestBase {
+    private static final int KEYS = 100;
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+
+    @Test
+    void keepsTombstonesShadowingTablesLeftOut(@TempDir File data) throws IOException {
+        final File older = new File(data, "older");
+        final File newer = new File(data, "newer");
+        assertTrue(older.mkdir() && newer.mkdir());
+        try (DAO dao = DAOFactory.create(older)) {
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(key(i), key(i));
+            }
+        }
+        try (DAO dao = DAOFactory.create(newer)) {
+            // Keys 10-19 and 30-39 are in the older table, 200-209 and 300-309 are not
+            for (int i = 0; i < 10; i++) {
+                dao.remove(key(10 + i));
+                dao.remove(key(200 + i));
+                dao.upsert(key(20 + i), key(20 + i), 1);
+            }
+            dao.removeRange(key(30), key(40));
+            dao.removeRange(key(300), key(310));
+        }
+        final FileTable old = table(older);
+        final FileTable merged = table(newer);
+        final TombstoneOptions options = TombstoneOptions.defaults().withGracePeriod(0);
+        final long later = System.currentTimeMillis() + HOUR;
+
+        final TombstonePurge purge = new TombstonePurge(List.of(merged), List.of(old, merged), options, later);
+        final Map<ByteBuffer, Value> kept = cells(purge.apply(merged.compactionIterator(ByteBuffer.allocate(0))));
+        assertEquals(20, kept.size());
+        for (int i = 0; i < 10; i++) {
+            assertTrue(kept.get(key(10 + i)).isTombstone());
+            // Expired values shadowing the older ones are turned into tombstones
+            assertTrue(kept.get(key(20 + i)).isTombstone());
+            assertFalse(kept.containsKey(key(200 + i)));
+        }
+        final RangeTombstones ranges = purge.apply(merged.rangeTombstones());
+        assertEquals(1, ranges.fragments().size());
+        final RangeTombstone range = ranges.fragments().get(0);
+        assertEquals(key(30), range.getFrom());
+        assertEquals(key(40), range.getTo());
+
+        // Without the older table, everything goes
+        final TombstonePurge all = new TombstonePurge(List.of(merged), List.of(merged), options, later);
+        assertTrue(cells(all.apply(merged.compactionIterator(ByteBuffer.allocate(0)))).isEmpty());
+        assertTrue(all.apply(merged.rangeTombstones()).isEmpty());
+
+        // Within the grace period, nothing does
+        final TombstonePurge early = new TombstonePurge(List.of(merged), List.of(merged),
+                TombstoneOptions.defaults().withGracePeriod(2 * HOUR), later);
+        assertEquals(30, cells(early.apply(merged.compactionIterator(ByteBuffer.allocate(0)))).size());
+        assertEquals(2, early.apply(merged.rangeTombstones()).fragments().size());
+    }
+
+    @NotNull
+    private static Map<ByteBuffer, Value> cells(@NotNull final Iterator<Cell> cells) {
+        final Map<ByteBuffer, Value> result = new HashMap<>();
+        cells.forEachRemaining(cell -> result.put(cell.getKey(), cell.getValue()));
+        return result;
+    }
+
+    @NotNull
+    private static FileTable table(@NotNull final File data) throws IOException {
+        final Path path = singleTableFile(data);
+        return new FileTable(path.toFile(), Generation.fromPath(path), Verification.FIRST_READ);
+    }
+}
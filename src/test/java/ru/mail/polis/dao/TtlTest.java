@@ -0,0 +1,123 @@
+package ru.mail.polis.dao;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.TimeUnit;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import ru.mail.polis.Record;
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.senyast.DaoOptions;
+import ru.mail.polis.dao.senyast.LSMDao;
+import ru.mail.polis.dao.senyast.compaction.TombstoneOptions;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Expiration of values written with a time to live.
+ */
+class TtlTest extends TestBase {
+    private static final long SHORT_TTL_MILLIS = 200;
+    private static final long LONG_TTL_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    @Test
+    void expiresInMemTable(@TempDir File data) throws IOException, InterruptedException {
+        final ByteBuffer key = randomKeyBuffer();
+        final ByteBuffer value = randomValueBuffer();
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(key, value, SHORT_TTL_MILLIS);
+            assertEquals(value, dao.get(key));
+            expire();
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            assertFalse(dao.iterator(key).hasNext());
+        }
+    }
+
+    @Test
+    void expiresOnDiskAndAfterCompaction(@TempDir File data) throws IOException, InterruptedException {
+        final ByteBuffer expiring = randomKeyBuffer();
+        final ByteBuffer lasting = randomKeyBuffer();
+        final ByteBuffer permanent = randomKeyBuffer();
+        final ByteBuffer value = randomValueBuffer();
+        final DaoOptions options = DaoOptions.defaults()
+                .withTombstoneOptions(TombstoneOptions.defaults().withGracePeriod(0));
+        try (DAO dao = new LSMDao(data, options)) {
+            dao.upsert(expiring, value, SHORT_TTL_MILLIS);
+            dao.upsert(lasting, value, LONG_TTL_MILLIS);
+            dao.upsert(permanent, value);
+        }
+        expire();
+        try (DAO dao = new LSMDao(data, options)) {
+            check(dao, expiring, lasting, permanent, value);
+            dao.compact();
+            check(dao, expiring, lasting, permanent, value);
+        }
+        try (DAO dao = new LSMDao(data, options)) {
+            check(dao, expiring, lasting, permanent, value);
+        }
+    }
+
+    @Test
+    void expiredValueHidesOlderOne(@TempDir File data) throws IOException, InterruptedException {
+        final ByteBuffer key = randomKeyBuffer();
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(key, randomValueBuffer());
+        }
+        try (DAO dao = DAOFactory.create(data)) {
+            dao.upsert(key, randomValueBuffer(), SHORT_TTL_MILLIS);
+        }
+        expire();
+        try (DAO dao = DAOFactory.create(data)) {
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+            dao.compact();
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+
+            final ByteBuffer value = randomValueBuffer();
+            dao.upsert(key, value);
+            assertEquals(value, dao.get(key));
+        }
+    }
+
+    @Test
+    void rejectsOverflowingTtl(@TempDir File data) throws IOException {
+        final ByteBuffer key = randomKeyBuffer();
+        try (DAO dao = DAOFactory.create(data)) {
+            assertThrows(IllegalArgumentException.class, () -> dao.upsert(key, randomValueBuffer(), Long.MAX_VALUE));
+            assertThrows(IllegalArgumentException.class, () -> dao.upsert(key, randomValueBuffer(), 0));
+            assertThrows(NoSuchElementException.class, () -> dao.get(key));
+
+            final ByteBuffer value = randomValueBuffer();
+            dao.upsert(key, value, Long.MAX_VALUE - System.currentTimeMillis() - LONG_TTL_MILLIS);
+            assertEquals(value, dao.get(key));
+        }
+    }
+
+    private static void check(@NotNull final DAO dao, @NotNull final ByteBuffer expiring,
+                              @NotNull final ByteBuffer lasting, @NotNull final ByteBuffer permanent,
+                              @NotNull final ByteBuffer value) throws IOException {
+        assertThrows(NoSuchElementException.class, () -> dao.get(expiring));
+        assertEquals(value, dao.get(lasting));
+        assertEquals(value, dao.get(permanent));
+
+        int count = 0;
+        final Iterator<Record> records = dao.iterator(ByteBuffer.allocate(0));
+        while (records.hasNext()) {
+            assertNotEquals(expiring, records.next().getKey());
+            count++;
+        }
+        assertEquals(2, count);
+    }
+
+    private static void expire() throws InterruptedException {
+        Thread.sleep(2 * SHORT_TTL_MILLIS);
+    }
+}
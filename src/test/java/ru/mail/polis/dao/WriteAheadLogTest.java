@@ -0,0 +1,127 @@
+package ru.mail.polis.dao;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.senyast.DaoOptions;
+import ru.mail.polis.dao.senyast.LSMDao;
+import ru.mail.polis.dao.senyast.wal.Durability;
+import ru.mail.polis.dao.senyast.wal.WriteAheadLog;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * Recovery of acknowledged writes from the {@link WriteAheadLog} of a database which was not closed.
+ */
+class WriteAheadLogTest extends TestBase {
+    private static final int KEYS = 100;
+
+    @Test
+    void replayAfterUncleanClose(@TempDir File dir) throws IOException {
+        final File data = directory(dir, "data");
+        final File crashed = directory(dir, "crashed");
+        try (DAO dao = open(data)) {
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(key(i), value(i));
+            }
+            dao.remove(key(0));
+            dao.write(new WriteBatch().upsert(key(1), value(-1)).remove(key(2)));
+            dao.removeRange(key(10), key(20));
+            // The files as a crash would leave them, the acknowledged writes are forced to the log
+            copyFiles(data, crashed);
+        }
+        assertFalse(segments(crashed).isEmpty());
+
+        try (DAO dao = open(crashed)) {
+            assertThrows(NoSuchElementException.class, () -> dao.get(key(0)));
+            assertEquals(value(-1), dao.get(key(1)));
+            assertThrows(NoSuchElementException.class, () -> dao.get(key(2)));
+            for (int i = 3; i < KEYS; i++) {
+                if (i < 10 || i >= 20) {
+                    assertEquals(value(i), dao.get(key(i)));
+                } else {
+                    final int deleted = i;
+                    assertThrows(NoSuchElementException.class, () -> dao.get(key(deleted)));
+                }
+            }
+        }
+        // Replayed segments are written to tables and deleted
+        assertEquals(List.of(), segments(crashed));
+        try (DAO dao = open(crashed)) {
+            assertEquals(value(KEYS - 1), dao.get(key(KEYS - 1)));
+        }
+    }
+
+    @Test
+    void truncatedTailIsSkipped(@TempDir File dir) throws IOException {
+        final File data = directory(dir, "data");
+        final File crashed = directory(dir, "crashed");
+        try (DAO dao = open(data)) {
+            for (int i = 0; i < KEYS; i++) {
+                dao.upsert(key(i), value(i));
+            }
+            copyFiles(data, crashed);
+        }
+        final List<Path> segments = segments(crashed);
+        assertEquals(1, segments.size());
+        // A record torn by the crash in the middle of its write
+        try (FileChannel channel = FileChannel.open(segments.get(0), StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+
+        try (DAO dao = open(crashed)) {
+            for (int i = 0; i < KEYS - 1; i++) {
+                assertEquals(value(i), dao.get(key(i)));
+            }
+            assertThrows(NoSuchElementException.class, () -> dao.get(key(KEYS - 1)));
+            dao.upsert(key(KEYS - 1), value(KEYS));
+        }
+        try (DAO dao = open(crashed)) {
+            assertEquals(value(0), dao.get(key(0)));
+            assertEquals(value(KEYS), dao.get(key(KEYS - 1)));
+        }
+    }
+
+    @NotNull
+    private static File directory(@NotNull final File parent, @NotNull final String name) throws IOException {
+        return Files.createDirectory(parent.toPath().resolve(name)).toFile();
+    }
+
+    @NotNull
+    private static DAO open(@NotNull final File data) throws IOException {
+        return new LSMDao(data, DaoOptions.defaults().withDurability(Durability.BATCH));
+    }
+
+    private static void copyFiles(@NotNull final File from, @NotNull final File to) throws IOException {
+        try (Stream<Path> files = Files.list(from.toPath())) {
+            for (final Path file : files.collect(Collectors.toList())) {
+                Files.copy(file, to.toPath().resolve(file.getFileName()));
+            }
+        }
+    }
+
+    @NotNull
+    private static List<Path> segments(@NotNull final File data) throws IOException {
+        try (Stream<Path> files = Files.list(data.toPath())) {
+            return files.filter(path -> {
+                final String name = path.getFileName().toString();
+                return name.startsWith(WriteAheadLog.PREFIX_FILE) && name.endsWith(WriteAheadLog.SUFFIX_LOG);
+            }).collect(Collectors.toList());
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package ru.mail.polis.dao;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import ru.mail.polis.TestBase;
+import ru.mail.polis.dao.senyast.DaoOptions;
+import ru.mail.polis.dao.senyast.LSMDao;
+import ru.mail.polis.dao.senyast.compaction.Compaction;
+import ru.mail.polis.dao.senyast.compaction.CompactionStrategy;
+import ru.mail.polis.dao.senyast.compaction.FullCompaction;
+import ru.mail.polis.dao.senyast.tables.FileTable;
+import ru.mail.polis.dao.senyast.tables.WriteController;
+import ru.mail.polis.dao.senyast.tables.WriteLimits;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Writers are delayed, then stopped as L0 tables pile up, and resume once compaction clears L0.
+ */
+class WriteControllerTest extends TestBase {
+    private static final long TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(30);
+    private static final int VALUE_LENGTH = 256;
+
+    @Test
+    void delaysStopsAndResumesWrites(@TempDir File data) throws Exception {
+        // Every write is flushed into an L0 table of its own, and nothing compacts them until asked
+        final DaoOptions options = DaoOptions.defaults()
+                .withFlushThreshold(1)
+                .withMemoryBudget(64 * 1024 * 1024)
+                .withCompactionStrategy(OnRequestOnly::new)
+                .withWriteLimits(WriteLimits.defaults().withL0Tables(1, 2).withDelayedWriteRate(1024));
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try (LSMDao dao = new LSMDao(data, options)) {
+            final WriteController controller = dao.writeController();
+            assertEquals(WriteController.State.NORMAL, controller.state());
+
+            dao.upsert(key(0), randomBuffer(VALUE_LENGTH));
+            await(() -> controller.l0Tables() == 1);
+            assertEquals(WriteController.State.DELAYED, controller.state());
+            assertTrue(controller.delayedWriteRate() > 0);
+
+            // The bucket holds far less than the value at the delayed rate
+            dao.upsert(key(1), randomBuffer(VALUE_LENGTH));
+            assertEquals(1, controller.delayedWrites());
+            assertTrue(controller.delayNanos() > 0);
+            await(() -> controller.l0Tables() == 2);
+            assertEquals(WriteController.State.STOPPED, controller.state());
+
+            final ByteBuffer value = randomBuffer(VALUE_LENGTH);
+            final Future<?> stopped = executor.submit(() -> {
+                dao.upsert(key(2), value);
+                return null;
+            });
+            await(() -> controller.stoppedWrites() == 1);
+            assertFalse(stopped.isDone());
+
+            // The compaction publishes a version without L0 tables
+            dao.compact();
+            stopped.get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            // The resumed write lands in L0 again, delaying writes but not stopping them
+            assertNotEquals(WriteController.State.STOPPED, controller.state());
+            assertEquals(value, dao.get(key(2)));
+            assertEquals(1, controller.stoppedWrites());
+            assertTrue(controller.stopNanos() > 0);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void await(@NotNull final BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+
+    /**
+     * Runs full compactions on {@link DAO#compact()} only, while reporting the L0 tables as debt.
+     */
+    private static final class OnRequestOnly implements CompactionStrategy {
+        private final CompactionStrategy full = new FullCompaction();
+
+        @NotNull
+        @Override
+        public List<Compaction> candidates(@NotNull final Collection<FileTable> tables) {
+            return List.of();
+        }
+
+        @NotNull
+        @Override
+        public Compaction full(@NotNull final Collection<FileTable> tables) {
+            return full.full(tables);
+        }
+
+        @Override
+        public long debt(@NotNull final Collection<FileTable> tables) {
+            long debt = 0;
+            for (final FileTable table : tables) {
+                if (table.getLevel() == 0) {
+                    debt += table.sizeInBytes();
+                }
+            }
+            return debt;
+        }
+    }
+}